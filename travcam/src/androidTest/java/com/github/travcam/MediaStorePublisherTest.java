@@ -0,0 +1,215 @@
+package com.github.travcam;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.annotation.RequiresApi;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SdkSuppress;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * MediaStorePublisher against a fake MediaStore provider counting batches
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = Build.VERSION_CODES.Q)
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class MediaStorePublisherTest {
+    private final static String PATH = "DCIM/TravCam";
+    private final static String MIME = "image/jpeg";
+
+    private FakeMediaProvider mProvider;
+    private MockContentResolver mResolver;
+    private ScheduledExecutorService mExecutor;
+    private Uri mCollection;
+
+    @Before
+    public void setUp() {
+        mProvider = new FakeMediaProvider();
+        mResolver = new MockContentResolver(InstrumentationRegistry.getInstrumentation().getTargetContext());
+        mResolver.addProvider(MediaStore.AUTHORITY, mProvider);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mCollection = MediaStore.Images.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void acquire_reservesEntriesInOneBatch() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 8, 60_000);
+        final Set<Uri> uris = new HashSet<>();
+        for(int i = 0; i < 4; i++) uris.add(publisher.acquire(mCollection, PATH, MIME));
+
+        assertEquals(4, uris.size());
+        assertEquals(1, mProvider.getBatches().size());
+        assertEquals(4, mProvider.getBatches().get(0).size());
+
+        publisher.acquire(mCollection, PATH, MIME);
+        assertEquals(2, mProvider.getBatches().size());
+        // One sweep then two reservation batches
+        assertEquals(3, publisher.getTransactions());
+    }
+
+    @Test
+    public void acquire_sweepsStaleReservationsOnce() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 8, 60_000);
+        for(int i = 0; i < 5; i++) publisher.acquire(mCollection, PATH, MIME);
+
+        final List<String> sweeps = mProvider.getSweeps();
+        assertEquals(1, sweeps.size());
+        assertTrue(sweeps.get(0).contains(MediaStore.MediaColumns.IS_PENDING));
+    }
+
+    @Test
+    public void publish_finalizesBeforeReturning() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 8, 60_000);
+        final Uri uri = publisher.acquire(mCollection, PATH, MIME);
+        final ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, "capture.jpg");
+        publisher.publish(uri, values);
+
+        final ContentValues published = mProvider.getUpdates().get(uri);
+        assertNotNull(published);
+        assertEquals("capture.jpg", published.getAsString(MediaStore.MediaColumns.DISPLAY_NAME));
+        assertEquals(0, (int) published.getAsInteger(MediaStore.MediaColumns.IS_PENDING));
+        assertEquals(1, publisher.getPublishedCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void publish_missingEntry_throws() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 8, 60_000);
+        publisher.publish(ContentUris.withAppendedId(mCollection, 999), new ContentValues());
+    }
+
+    @Test
+    public void discard_flushesQueuedOperationsTogether() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 8, 60_000);
+        for(int i = 0; i < 8; i++) publisher.discard(publisher.acquire(mCollection, PATH, MIME));
+
+        // Two reservation batches then one deletion batch
+        final List<List<ContentProviderOperation>> batches = mProvider.getBatches();
+        assertEquals(3, batches.size());
+        assertEquals(8, batches.get(2).size());
+        for(ContentProviderOperation operation : batches.get(2)) assertTrue(operation.isDelete());
+    }
+
+    @Test
+    public void discard_flushesAfterWindow() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 100, 50);
+        publisher.discard(publisher.acquire(mCollection, PATH, MIME));
+        assertEquals(1, mProvider.getBatches().size());
+
+        final long deadline = System.currentTimeMillis() + 2000;
+        while(mProvider.getBatches().size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(2, mProvider.getBatches().size());
+    }
+
+    @Test
+    public void failedFlush_isReported() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 8, 60_000);
+        final List<String> errors = new ArrayList<>();
+        publisher.setErrorListener(errors::add);
+        publisher.discard(publisher.acquire(mCollection, PATH, MIME));
+
+        mProvider.failBatches();
+        publisher.flush();
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void close_deletesUnusedReservations() throws Exception {
+        final MediaStorePublisher publisher = new MediaStorePublisher(mResolver, mExecutor, 8, 60_000);
+        final Uri used = publisher.acquire(mCollection, PATH, MIME);
+        publisher.discard(used);
+        publisher.close();
+
+        final List<List<ContentProviderOperation>> batches = mProvider.getBatches();
+        assertEquals(2, batches.size());
+        assertEquals(4, batches.get(1).size());
+        for(ContentProviderOperation operation : batches.get(1)) assertTrue(operation.isDelete());
+    }
+
+    /**
+     * Records every batch, inserts get sequential ids and updates or deletes affect one row
+     * Single updates only affect inserted rows, selection deletes are recorded as sweeps
+     */
+    private static class FakeMediaProvider extends MockContentProvider {
+        private final List<List<ContentProviderOperation>> mBatches = new ArrayList<>();
+        private final Map<Uri, ContentValues> mUpdates = new HashMap<>();
+        private final List<String> mSweeps = new ArrayList<>();
+        private long mNextId = 1;
+        private boolean mFailBatches;
+
+        @Override
+        public synchronized ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            if(mFailBatches) throw new OperationApplicationException("Failing batch");
+            mBatches.add(new ArrayList<>(operations));
+            final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for(int i = 0; i < results.length; i++){
+                final ContentProviderOperation operation = operations.get(i);
+                results[i] = operation.isInsert()
+                        ? new ContentProviderResult(ContentUris.withAppendedId(operation.getUri(), mNextId++))
+                        : new ContentProviderResult(1);
+            }
+            return results;
+        }
+
+        @Override
+        public synchronized int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            if(ContentUris.parseId(uri) >= mNextId) return 0;
+            mUpdates.put(uri, values);
+            return 1;
+        }
+
+        @Override
+        public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+            mSweeps.add(selection);
+            return 0;
+        }
+
+        synchronized void failBatches() {
+            mFailBatches = true;
+        }
+
+        synchronized List<List<ContentProviderOperation>> getBatches() {
+            return new ArrayList<>(mBatches);
+        }
+
+        synchronized Map<Uri, ContentValues> getUpdates() {
+            return new HashMap<>(mUpdates);
+        }
+
+        synchronized List<String> getSweeps() {
+            return new ArrayList<>(mSweeps);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.travcam;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps an encoder bitrate within what its output storage sustains
+ *
+ * Fed with periodic samples of bytes written to the output, and bytes produced by the encoder when known.
+ * Storage is lagging when the produced but unwritten backlog exceeds {@link #BACKLOG_SECONDS} of output
+ * and keeps growing. When produced bytes are unknown, like with MediaRecorder, storage is lagging when the
+ * write rate stays under {@link #UNKNOWN_WRITE_TOLERANCE} of the encoding bitrate, encoders undershoot
+ * their bitrate on static scenes so the tolerance is loose.
+ * After {@link #LAG_SAMPLES} lagging samples the bitrate is lowered to {@link #HEADROOM} of the
+ * measured write throughput, by at least a quarter. After {@link #RECOVER_SAMPLES} healthy samples
+ * it is raised one step, never beyond the configured bounds.
+ *
+ * Pure Java, all times are passed in so the loop can be driven by a simulated sink.
+ */
+public class BitrateController {
+    /** Produced bytes aren't known **/
+    public final static long UNKNOWN = -1;
+
+    private final static float BACKLOG_SECONDS = 1f;
+    private final static int LAG_SAMPLES = 2;
+    private final static int RECOVER_SAMPLES = 10;
+    private final static float HEADROOM = 0.9f;
+    private final static float MIN_DECREASE = 0.75f;
+    private final static int RAISE_STEPS = 8;
+
+    /** Share of the encoding bitrate a write rate of unknown produced bytes must reach **/
+    private final static float UNKNOWN_WRITE_TOLERANCE = 0.6f;
+
+    /** Throughput smoothing factor of written bytes per second **/
+    private final static float SMOOTHING = 0.3f;
+
+    private int mMinBitrate, mMaxBitrate, mTarget, mEncodingBitrate;
+    private ThrottleListener mListener;
+
+    /** Last sample and smoothed write throughput **/
+    private long mLastNanos = -1, mLastWritten, mLastBacklog;
+    private float mWriteBytesPerSecond;
+    private int mLaggingSamples, mHealthySamples;
+
+    /** Measurements **/
+    private long mThrottles;
+
+    /**
+     * @param minBitrate  lowest bitrate in bits per second
+     * @param maxBitrate  highest bitrate in bits per second, also the initial target
+     */
+    public BitrateController(int minBitrate, int maxBitrate){
+        setBounds(minBitrate, maxBitrate);
+        mTarget = mMaxBitrate;
+    }
+
+    public synchronized BitrateController setBounds(int minBitrate, int maxBitrate){
+        mMinBitrate = Math.max(1, Math.min(minBitrate, maxBitrate));
+        mMaxBitrate = Math.max(mMinBitrate, maxBitrate);
+        mTarget = clamp(mTarget);
+        return this;
+    }
+
+    public synchronized BitrateController setThrottleListener(@Nullable ThrottleListener listener){
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Starts measuring a new output, the learned target is kept
+     * @param nowNanos  current time
+     * @return          bitrate to start encoding with
+     */
+    public synchronized int start(long nowNanos){
+        mLastNanos = nowNanos;
+        mLastWritten = 0;
+        mLastBacklog = 0;
+        mWriteBytesPerSecond = 0;
+        mLaggingSamples = 0;
+        mHealthySamples = 0;
+        mEncodingBitrate = mTarget;
+        return mTarget;
+    }
+
+    /**
+     * Bitrate the output is really encoded with when it isn't the started target, like a downgraded recording
+     * Write rates of unknown produced bytes are compared to it
+     */
+    public synchronized BitrateController setEncodingBitrate(int bitrate){
+        mEncodingBitrate = bitrate;
+        return this;
+    }
+
+    /**
+     * @param nowNanos  sample time
+     * @param produced  bytes produced by the encoder so far, {@link #UNKNOWN} when not known
+     * @param written   bytes written to the output so far
+     * @return          bitrate to encode with from now on
+     */
+    public synchronized int onSample(long nowNanos, long produced, long written){
+        if(mLastNanos < 0 || nowNanos <= mLastNanos) return mTarget;
+        final float seconds = (nowNanos - mLastNanos) / 1e9f;
+        final long delta = Math.max(0, written - mLastWritten);
+        mLastNanos = nowNanos;
+        mLastWritten = written;
+
+        final float rate = delta / seconds;
+        final boolean lagging, backlogged;
+        if(produced == UNKNOWN){
+            // Encoder output keeps its bitrate, a write rate well under it means storage can't keep up
+            backlogged = rate < mEncodingBitrate / 8f * UNKNOWN_WRITE_TOLERANCE;
+            // A target already under the write rate fits, the output keeps its bitrate till it ends
+            lagging = backlogged && mTarget > rate * 8;
+        }else{
+            // Draining backlog means the lowered bitrate already fits
+            final long backlog = produced - written;
+            backlogged = backlog > BACKLOG_SECONDS * mTarget / 8;
+            lagging = backlogged && backlog >= mLastBacklog;
+            mLastBacklog = backlog;
+        }
+        if(delta > 0){
+            mWriteBytesPerSecond = mWriteBytesPerSecond == 0 ? rate : mWriteBytesPerSecond + SMOOTHING * (rate - mWriteBytesPerSecond);
+        }
+
+        if(lagging){
+            mHealthySamples = 0;
+            if(++mLaggingSamples >= LAG_SAMPLES){
+                mLaggingSamples = 0;
+                final int previous = mTarget;
+                final int sustained = (int) Math.min(Integer.MAX_VALUE, mWriteBytesPerSecond * 8 * HEADROOM);
+                mTarget = clamp(Math.min(sustained, (int) (mTarget * MIN_DECREASE)));
+                if(mTarget < previous){
+                    mThrottles++;
+                    if(mListener != null) mListener.onThrottle(previous, mTarget, (long) mWriteBytesPerSecond);
+                }
+            }
+        }else if(backlogged){
+            mLaggingSamples = 0;
+        }else{
+            mLaggingSamples = 0;
+            if(++mHealthySamples >= RECOVER_SAMPLES && mTarget < mMaxBitrate){
+                mHealthySamples = 0;
+                mTarget = clamp(mTarget + Math.max(1, (mMaxBitrate - mMinBitrate) / RAISE_STEPS));
+            }
+        }
+        return mTarget;
+    }
+
+    private int clamp(int bitrate){
+        return Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return current target bitrate in bits per second **/
+    public synchronized int getTargetBitrate(){
+        return mTarget;
+    }
+
+    /** @return smoothed write throughput of current output in bytes per second **/
+    public synchronized long getWriteBytesPerSecond(){
+        return (long) mWriteBytesPerSecond;
+    }
+
+    /** @return throttles count since creation **/
+    public synchronized long getThrottleCount(){
+        return mThrottles;
+    }
+
+    /**
+     * Throttle events
+     */
+    public interface ThrottleListener{
+        /**
+         * @param fromBitrate            previous bitrate
+         * @param toBitrate              lowered bitrate
+         * @param writeBytesPerSecond    measured write throughput
+         */
+        void onThrottle(int fromBitrate, int toBitrate, long writeBytesPerSecond);
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.travcam;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serializes camera operations like open, capture and record start or stop
+ *
+ * Commands can be submitted from any thread, they run one at a time in submission order on the
+ * attached executor, the camera thread. At most one drain is scheduled at a time, so the queue
+ * has a single consumer even while the camera thread is restarted.
+ *
+ * A command with a target state only runs when {@link CameraStateMachine} allows moving to it,
+ * otherwise it is rejected, like a capture tapped while another one is running or a stop
+ * sent to an idle recorder.
+ */
+public class CameraCommandQueue {
+    private final static String TAG = "CameraCommandQueue";
+
+    private final CameraStateMachine mStateMachine;
+    private final ConcurrentLinkedQueue<Command> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    /** Camera thread executor, null while detached **/
+    private volatile Executor mExecutor;
+
+    /** Measurements **/
+    private final AtomicLong mSubmitted = new AtomicLong(), mExecuted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong(), mDropped = new AtomicLong();
+    private final AtomicLong mLatencyNanos = new AtomicLong(), mMaxLatencyNanos = new AtomicLong();
+    private volatile long mLastLatencyNanos;
+
+    /**
+     * @param stateMachine  validates command target states
+     */
+    public CameraCommandQueue(@NonNull CameraStateMachine stateMachine){
+        mStateMachine = stateMachine;
+    }
+
+    /**
+     * Attaches the camera thread, queued commands start running on it
+     * @param executor  camera thread executor, null detaches and keeps commands queued
+     *                  throws {@link RejectedExecutionException} when its thread stopped
+     */
+    public void setExecutor(@Nullable Executor executor){
+        mExecutor = executor;
+        scheduleDrain();
+    }
+
+    /**
+     * Queues a command
+     * @param name    command name, used by logs
+     * @param target  state the command moves to, null for commands allowed in any state
+     * @param action  command body, run on the camera thread
+     */
+    public void submit(@NonNull String name, @Nullable TravCam.CameraState target, @NonNull Runnable action){
+        mSubmitted.incrementAndGet();
+        mQueue.add(new Command(name, target, action, System.nanoTime()));
+        scheduleDrain();
+    }
+
+    /**
+     * Drops queued commands which didn't run yet, like when host is paused
+     * @return dropped commands count
+     */
+    public int clear(){
+        int dropped = 0;
+        while(mQueue.poll() != null) dropped++;
+        mDropped.addAndGet(dropped);
+        if(dropped > 0) Log.d(TAG, "Dropped "+dropped+" queued commands");
+        return dropped;
+    }
+
+    private void scheduleDrain(){
+        final Executor executor = mExecutor;
+        if(executor == null || mQueue.isEmpty() || !mDrainScheduled.compareAndSet(false, true)) return;
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // Thread is stopping, next attached executor drains the queue
+            mDrainScheduled.set(false);
+        }
+    }
+
+    private void drain(){
+        Command command;
+        while((command = mQueue.poll()) != null) run(command);
+        mDrainScheduled.set(false);
+
+        // Commands submitted between the last poll and clearing the flag
+        scheduleDrain();
+    }
+
+    private void run(@NonNull Command command){
+        final long latency = System.nanoTime() - command.mSubmitNanos;
+        mLastLatencyNanos = latency;
+        mLatencyNanos.addAndGet(latency);
+        long max;
+        while(latency > (max = mMaxLatencyNanos.get()) && !mMaxLatencyNanos.compareAndSet(max, latency));
+
+        if(command.mTarget != null && !mStateMachine.canMoveTo(command.mTarget)){
+            mRejected.incrementAndGet();
+            Log.d(TAG, "Rejected "+command.mName+" in "+mStateMachine.getState());
+            return;
+        }
+        mExecuted.incrementAndGet();
+        command.mAction.run();
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return commands submitted **/
+    public long getSubmittedCount(){
+        return mSubmitted.get();
+    }
+
+    /** @return commands which ran **/
+    public long getExecutedCount(){
+        return mExecuted.get();
+    }
+
+    /** @return commands rejected because their target state wasn't allowed **/
+    public long getRejectedCount(){
+        return mRejected.get();
+    }
+
+    /** @return commands dropped by {@link #clear()} **/
+    public long getDroppedCount(){
+        return mDropped.get();
+    }
+
+    /** @return commands waiting to run **/
+    public int getQueueDepth(){
+        return mQueue.size();
+    }
+
+    /** @return submit to run time of the last command in nanoseconds **/
+    public long getLastLatencyNanos(){
+        return mLastLatencyNanos;
+    }
+
+    /** @return longest submit to run time in nanoseconds **/
+    public long getMaxLatencyNanos(){
+        return mMaxLatencyNanos.get();
+    }
+
+    /** @return average submit to run time in milliseconds, rejected commands included **/
+    public float getAverageLatencyMillis(){
+        final long count = mExecuted.get() + mRejected.get();
+        return count == 0 ? 0 : mLatencyNanos.get() / 1_000_000f / count;
+    }
+
+    private static class Command{
+        private final String mName;
+        private final TravCam.CameraState mTarget;
+        private final Runnable mAction;
+        private final long mSubmitNanos;
+
+        Command(String name, TravCam.CameraState target, Runnable action, long submitNanos){
+            mName = name;
+            mTarget = target;
+            mAction = action;
+            mSubmitNanos = submitNanos;
+        }
+    }
+}
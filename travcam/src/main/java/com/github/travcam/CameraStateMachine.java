@@ -0,0 +1,147 @@
+package com.github.travcam;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Camera state shared by the main thread, the camera thread and ImageReader listeners
+ *
+ * Every transition is checked against an explicit table of allowed transitions and applied
+ * with a compare and set of an immutable {@link Snapshot}, so two threads can't both move
+ * the camera into the same state, like two captures started by rapid taps.
+ * {@link #getSnapshot()} can be read from any thread without locking.
+ */
+public class CameraStateMachine {
+    private final static String TAG = "CameraStateMachine";
+
+    /** Allowed transitions, from state to target states **/
+    private final static Map<TravCam.CameraState, EnumSet<TravCam.CameraState>> TRANSITIONS = new EnumMap<>(TravCam.CameraState.class);
+    static {
+        TRANSITIONS.put(TravCam.CameraState.STATE_PREVIEW, EnumSet.of(TravCam.CameraState.STATE_PREVIEW,
+                TravCam.CameraState.STATE_FOCUS_LOCKED, TravCam.CameraState.STATE_CAPTURING_IMAGE,
+                TravCam.CameraState.STATE_RECORDING_VIDEO));
+        TRANSITIONS.put(TravCam.CameraState.STATE_FOCUS_LOCKED, EnumSet.of(TravCam.CameraState.STATE_PREVIEW,
+                TravCam.CameraState.STATE_FOCUS_UNLOCKED, TravCam.CameraState.STATE_CAPTURING_IMAGE,
+                TravCam.CameraState.STATE_IMAGE_CAPTURED));
+        TRANSITIONS.put(TravCam.CameraState.STATE_FOCUS_UNLOCKED, EnumSet.of(TravCam.CameraState.STATE_PREVIEW,
+                TravCam.CameraState.STATE_FOCUS_LOCKED, TravCam.CameraState.STATE_CAPTURING_IMAGE,
+                TravCam.CameraState.STATE_IMAGE_CAPTURED, TravCam.CameraState.STATE_RECORDING_VIDEO));
+        TRANSITIONS.put(TravCam.CameraState.STATE_CAPTURING_IMAGE, EnumSet.of(TravCam.CameraState.STATE_PREVIEW,
+                TravCam.CameraState.STATE_FOCUS_LOCKED, TravCam.CameraState.STATE_IMAGE_CAPTURED));
+        TRANSITIONS.put(TravCam.CameraState.STATE_IMAGE_CAPTURED, EnumSet.of(TravCam.CameraState.STATE_PREVIEW,
+                TravCam.CameraState.STATE_FOCUS_LOCKED, TravCam.CameraState.STATE_CAPTURING_IMAGE,
+                TravCam.CameraState.STATE_RECORDING_VIDEO));
+        TRANSITIONS.put(TravCam.CameraState.STATE_RECORDING_VIDEO, EnumSet.of(TravCam.CameraState.STATE_VIDEO_RECORDED));
+        TRANSITIONS.put(TravCam.CameraState.STATE_VIDEO_RECORDED, EnumSet.of(TravCam.CameraState.STATE_PREVIEW,
+                TravCam.CameraState.STATE_FOCUS_LOCKED, TravCam.CameraState.STATE_CAPTURING_IMAGE,
+                TravCam.CameraState.STATE_RECORDING_VIDEO));
+    }
+
+    private final AtomicReference<Snapshot> mSnapshot =
+            new AtomicReference<>(new Snapshot(TravCam.CameraState.STATE_PREVIEW, 0, System.nanoTime()));
+
+    /** Measurements **/
+    private final AtomicLong mTransitions = new AtomicLong(), mRejected = new AtomicLong();
+
+    /**
+     * @return whether the table allows moving from one state to another
+     */
+    public static boolean isAllowed(@NonNull TravCam.CameraState from, @NonNull TravCam.CameraState to){
+        final EnumSet<TravCam.CameraState> targets = TRANSITIONS.get(from);
+        return targets != null && targets.contains(to);
+    }
+
+    /** @return current state snapshot, safe from any thread **/
+    @NonNull
+    public Snapshot getSnapshot(){
+        return mSnapshot.get();
+    }
+
+    /** @return current state **/
+    @NonNull
+    public TravCam.CameraState getState(){
+        return mSnapshot.get().state;
+    }
+
+    /**
+     * @return whether moving from current state to the target is allowed right now
+     */
+    public boolean canMoveTo(@NonNull TravCam.CameraState to){
+        return isAllowed(getState(), to);
+    }
+
+    /**
+     * Moves to the target state if the table allows it from the current state
+     * @param to  target state
+     * @return    false when rejected, current state is left unchanged
+     */
+    public boolean moveTo(@NonNull TravCam.CameraState to){
+        while(true){
+            final Snapshot current = mSnapshot.get();
+            if(!isAllowed(current.state, to)){
+                mRejected.incrementAndGet();
+                Log.d(TAG, "Rejected transition "+current.state+" -> "+to);
+                return false;
+            }
+            if(mSnapshot.compareAndSet(current, new Snapshot(to, current.version + 1, System.nanoTime()))){
+                mTransitions.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forces a state without checking the table, like when the camera is closed mid capture
+     */
+    public void reset(@NonNull TravCam.CameraState state){
+        while(true){
+            final Snapshot current = mSnapshot.get();
+            if(mSnapshot.compareAndSet(current, new Snapshot(state, current.version + 1, System.nanoTime()))) return;
+        }
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return applied transitions **/
+    public long getTransitionCount(){
+        return mTransitions.get();
+    }
+
+    /** @return transitions rejected by the table **/
+    public long getRejectedCount(){
+        return mRejected.get();
+    }
+
+    /**
+     * Immutable state published by {@link CameraStateMachine}
+     */
+    public static class Snapshot{
+        /** Camera state **/
+        public final TravCam.CameraState state;
+        /** Incremented on every transition **/
+        public final long version;
+        /** {@link System#nanoTime()} of the transition **/
+        public final long sinceNanos;
+
+        Snapshot(TravCam.CameraState state, long version, long sinceNanos){
+            this.state = state;
+            this.version = version;
+            this.sinceNanos = sinceNanos;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Snapshot{" + state + ", v" + version + "}";
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.github.travcam;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append only index of media captured by TravCam, persisted as a small binary log
+ *
+ * Every stored capture appends an add record, every deletion appends a remove record,
+ * lookups and removals are hash map operations, nothing is queried from MediaStore.
+ * Loading replays the log, its size depends on captures still indexed, not on the media library:
+ * the log is compacted once removed records outnumber live ones.
+ * A torn last record, like after a crash mid-write, is dropped when loading.
+ * Once the log can't be opened or written, the index is degraded: entries are kept in memory
+ * and the next change retries by rewriting the log from memory.
+ *
+ * Record layout, big endian:
+ * add     [byte 1][UTF uri][long id][byte type][UTF mime][UTF name][long size][long timestamp]
+ * remove  [byte 2][UTF uri]
+ */
+public class CaptureIndex {
+    private final static String TAG = "CaptureIndex";
+
+    private final static byte RECORD_ADD = 1;
+    private final static byte RECORD_REMOVE = 2;
+
+    /** Removed records count allowed before compacting **/
+    private final static int MIN_COMPACT_RECORDS = 64;
+
+    private final File mFile;
+
+    /** Live entries by Uri, in capture order **/
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    private final long[] mTotalBytes = new long[TravManager.ScopedFileType.values().length];
+    private int mRemovedRecords;
+    private DataOutputStream mLog;
+
+    /** Log is missing changes kept in memory **/
+    private boolean mDegraded;
+
+    /** Measurements **/
+    private long mLoadNanos;
+
+    /**
+     * @param file  log file, created when missing
+     */
+    public CaptureIndex(@NonNull File file){
+        mFile = file;
+    }
+
+    /**
+     * Replays the log into memory, called once before use
+     */
+    public synchronized void load(){
+        final long start = System.nanoTime();
+        mEntries.clear();
+        Arrays.fill(mTotalBytes, 0);
+        mRemovedRecords = 0;
+
+        long validLength = 0;
+        if(mFile.exists()){
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+                while(true){
+                    final byte record = in.readByte();
+                    final String uri = in.readUTF();
+                    if(record == RECORD_ADD){
+                        final long id = in.readLong();
+                        final int type = in.readByte();
+                        final String mime = in.readUTF();
+                        final String name = in.readUTF();
+                        final long size = in.readLong();
+                        final long timestamp = in.readLong();
+                        if(type < 0 || type >= TravManager.ScopedFileType.values().length) break;
+                        put(new Entry(uri, id, TravManager.ScopedFileType.values()[type], mime, name, size, timestamp));
+                    }else if(record == RECORD_REMOVE){
+                        if(take(uri) != null) mRemovedRecords++;
+                    }else{
+                        break;
+                    }
+                    validLength += recordLength(record, uri, mEntries.get(uri));
+                }
+            } catch (EOFException e) {
+                // End of log or torn last record
+            } catch (IOException e) {
+                Log.d(TAG, "Index load exception: "+e.getMessage());
+            }
+        }
+
+        try {
+            // Drop anything after the last complete record
+            if(mFile.exists() && mFile.length() != validLength){
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+            if(mRemovedRecords > MIN_COMPACT_RECORDS && mRemovedRecords > mEntries.size()){
+                compact();
+            }else{
+                openLog();
+            }
+            mDegraded = false;
+        } catch (IOException e) {
+            Log.d(TAG, "Index open exception: "+e.getMessage());
+            mDegraded = true;
+        }
+        mLoadNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Indexes a stored capture, media without Uri isn't indexed
+     */
+    public synchronized void add(@NonNull CapturedMedia media){
+        if(media.getUri().toString().isEmpty()) return;
+        final Entry entry = new Entry(media.getUri().toString(), media.getId(), media.getType(), media.getMimeType(),
+                media.getDisplayName(), media.getSize(), media.getTimestamp());
+        // Recovered log holds entries indexed so far, this one is appended
+        final boolean logged = ensureLog();
+        put(entry);
+        if(!logged) return;
+        try {
+            writeAdd(mLog, entry);
+            mLog.flush();
+        } catch (IOException e) {
+            Log.d(TAG, "Index write exception: "+e.getMessage());
+            mDegraded = true;
+        }
+    }
+
+    /**
+     * @return indexed entry of a Uri, null if not indexed
+     */
+    @Nullable
+    public synchronized Entry get(@NonNull String uri){
+        return mEntries.get(uri);
+    }
+
+    /**
+     * Removes entries, one log flush for all of them
+     * @param uris  Uris of removed entries
+     */
+    public synchronized void remove(@NonNull Collection<String> uris){
+        final boolean logged = ensureLog();
+        try {
+            for(String uri : uris){
+                if(take(uri) == null) continue;
+                mRemovedRecords++;
+                if(logged){
+                    mLog.writeByte(RECORD_REMOVE);
+                    mLog.writeUTF(uri);
+                }
+            }
+            if(!logged) return;
+            mLog.flush();
+            if(mRemovedRecords > MIN_COMPACT_RECORDS && mRemovedRecords > mEntries.size()) compact();
+        } catch (IOException e) {
+            Log.d(TAG, "Index write exception: "+e.getMessage());
+            mDegraded = true;
+        }
+    }
+
+    /**
+     * @param type  media type, null for all types
+     * @return      indexed entries in capture order
+     */
+    @NonNull
+    public synchronized List<Entry> entries(@Nullable TravManager.ScopedFileType type){
+        final List<Entry> entries = new ArrayList<>(mEntries.size());
+        for(Entry entry : mEntries.values()){
+            if(type == null || entry.type == type) entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * @param type  media type
+     * @return      bytes of indexed captures of that type
+     */
+    public synchronized long getTotalBytes(@NonNull TravManager.ScopedFileType type){
+        return mTotalBytes[type.ordinal()];
+    }
+
+    /** @return indexed entries count **/
+    public synchronized int size(){
+        return mEntries.size();
+    }
+
+    /** @return last load time **/
+    public synchronized long getLoadNanos(){
+        return mLoadNanos;
+    }
+
+    /** @return true when the log couldn't be written, entries are only kept in memory until it's rewritten **/
+    public synchronized boolean isDegraded(){
+        return mDegraded;
+    }
+
+    private void put(Entry entry){
+        final Entry previous = mEntries.put(entry.uri, entry);
+        if(previous != null) mTotalBytes[previous.type.ordinal()] -= previous.size;
+        mTotalBytes[entry.type.ordinal()] += entry.size;
+    }
+
+    private Entry take(String uri){
+        final Entry entry = mEntries.remove(uri);
+        if(entry != null) mTotalBytes[entry.type.ordinal()] -= entry.size;
+        return entry;
+    }
+
+    /**
+     * Rewrites the log with live entries only
+     */
+    private void compact() throws IOException{
+        closeLog();
+        final File temp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            for(Entry entry : mEntries.values()) writeAdd(out, entry);
+        }
+        if(!temp.renameTo(mFile)) throw new IOException("Couldn't replace index log.");
+        mRemovedRecords = 0;
+        openLog();
+    }
+
+    /**
+     * Rewrites a degraded log from memory
+     * @return true when the log can be appended to
+     */
+    private boolean ensureLog(){
+        if(mLog != null && !mDegraded) return true;
+        try {
+            compact();
+            mDegraded = false;
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Index recovery exception: "+e.getMessage());
+            mDegraded = true;
+            return false;
+        }
+    }
+
+    private void openLog() throws IOException{
+        closeLog();
+        mLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+    }
+
+    private void closeLog() throws IOException{
+        final DataOutputStream log = mLog;
+        mLog = null;
+        if(log != null) log.close();
+    }
+
+    private static void writeAdd(DataOutputStream out, Entry entry) throws IOException{
+        out.writeByte(RECORD_ADD);
+        out.writeUTF(entry.uri);
+        out.writeLong(entry.id);
+        out.writeByte(entry.type.ordinal());
+        out.writeUTF(entry.mimeType);
+        out.writeUTF(entry.displayName);
+        out.writeLong(entry.size);
+        out.writeLong(entry.timestamp);
+    }
+
+    /**
+     * @return encoded length of a record just read
+     */
+    private static long recordLength(byte record, String uri, Entry entry){
+        long length = 1 + utfLength(uri);
+        if(record == RECORD_ADD && entry != null){
+            length += 8 + 1 + utfLength(entry.mimeType) + utfLength(entry.displayName) + 8 + 8;
+        }
+        return length;
+    }
+
+    /**
+     * @return modified UTF-8 length of a string as written by {@link DataOutputStream#writeUTF(String)}
+     */
+    private static int utfLength(String value){
+        int length = 2;
+        for(int i = 0; i < value.length(); i++){
+            final char c = value.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F) length++;
+            else if(c > 0x07FF) length += 3;
+            else length += 2;
+        }
+        return length;
+    }
+
+    /**
+     * Indexed capture
+     */
+    public static class Entry{
+        public final String uri, mimeType, displayName;
+        public final long id, size, timestamp;
+        public final TravManager.ScopedFileType type;
+
+        Entry(String uri, long id, TravManager.ScopedFileType type, String mimeType, String displayName, long size, long timestamp){
+            this.uri = uri;
+            this.id = id;
+            this.type = type;
+            this.mimeType = mimeType;
+            this.displayName = displayName;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.travcam;
+
+import android.media.Image;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoded capture delivered in memory, nothing is written to storage
+ *
+ * The buffer is leased straight from the camera {@link Image} without copying,
+ * {@link #release()} must be called once the bytes are consumed: the still reader holds a single image,
+ * still captures are rejected with {@link TravCam.CameraHandlerListener#onError(String)} until it's released.
+ * Leased bytes are invalid once the camera is closed.
+ * Buffers encoded in memory, like zero shutter lag frames, hold no image and release is a no-op.
+ *
+ * Bytes aren't rotated, apply {@link #getRotationDegrees()} when displaying or uploading them.
+ */
+public class CapturedBuffer implements AutoCloseable {
+    private final ByteBuffer mBuffer;
+    private final String mMimeType;
+    private final int mRotationDegrees;
+    private final long mTimestamp, mLatencyNanos;
+    private final boolean mLeased;
+
+    /** Leased image, null once released or when bytes are on heap **/
+    private Image mImage;
+
+    CapturedBuffer(@NonNull ByteBuffer buffer, @Nullable Image image, @NonNull String mimeType,
+                   int rotationDegrees, long timestamp, long latencyNanos){
+        mBuffer = buffer.asReadOnlyBuffer();
+        mImage = image;
+        mLeased = image != null;
+        mMimeType = mimeType;
+        mRotationDegrees = rotationDegrees;
+        mTimestamp = timestamp;
+        mLatencyNanos = latencyNanos;
+    }
+
+    /**
+     * @return read only encoded bytes, invalid after {@link #release()}
+     */
+    @NonNull
+    public synchronized ByteBuffer getBuffer(){
+        if(isReleased()) throw new IllegalStateException("Captured buffer already released.");
+        return mBuffer.duplicate();
+    }
+
+    /** @return encoded bytes count **/
+    public int getSize(){
+        return mBuffer.remaining();
+    }
+
+    /** @return mime type of encoded bytes **/
+    @NonNull
+    public String getMimeType(){
+        return mMimeType;
+    }
+
+    /** @return clockwise rotation to apply to return the capture to portrait **/
+    public int getRotationDegrees(){
+        return mRotationDegrees;
+    }
+
+    /** @return capture time in milliseconds since epoch **/
+    public long getTimestamp(){
+        return mTimestamp;
+    }
+
+    /** @return time from capture request to delivery **/
+    public long getLatencyNanos(){
+        return mLatencyNanos;
+    }
+
+    /** @return is the lease released, heap buffers are never released **/
+    public synchronized boolean isReleased(){
+        return mLeased && mImage == null;
+    }
+
+    /**
+     * Returns the leased image to the camera, safe to call more than once
+     */
+    public synchronized void release(){
+        if(mImage != null){
+            mImage.close();
+            mImage = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.travcam;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.MediaStore;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Result of a capture stored by {@link TravManager}
+ * Built from values already known while writing, so delivering it costs no extra
+ * {@link ContentResolver} query or filesystem stat.
+ *
+ * SDK >= 29 media is identified by its {@link MediaStore} Uri and id.
+ * File media is a plain file, its Uri is a file Uri and its id is {@link #NO_ID}.
+ * Media kept in memory or written to a caller stream has {@link Uri#EMPTY} as Uri.
+ * {@link #getSink()} is the {@link StorageSink} which stored the media.
+ *
+ * {@link #getFile()} is a legacy view, resolved lazily using the deprecated DATA column
+ * only when a host asks for it.
+ */
+public class CapturedMedia {
+    /** Id of media not stored in MediaStore **/
+    public final static long NO_ID = -1;
+
+    private final Uri mUri;
+    private final long mId;
+    private final TravManager.ScopedFileType mType;
+    private final String mMimeType, mDisplayName;
+    private final long mSize, mTimestamp;
+
+    /** Used to resolve legacy file lazily **/
+    private final ContentResolver mResolver;
+    private File mFile;
+    private boolean mFileResolved;
+
+    /** Sink which stored the media **/
+    private final StorageSink mSink;
+
+    /** Encoded bytes of media kept in memory **/
+    private ByteBuffer mBuffer;
+
+    /** Open output of a pending recording, null once published **/
+    private StorageSink.Output mPendingOutput;
+
+    /** Poster frame of a recording, captured while recording **/
+    private Bitmap mPoster;
+    private byte[] mPosterJpeg;
+
+    CapturedMedia(@NonNull Uri uri, long id, @NonNull TravManager.ScopedFileType type, @NonNull String mimeType,
+                  @NonNull String displayName, long size, long timestamp, @Nullable File file,
+                  @Nullable ContentResolver resolver, @NonNull StorageSink sink){
+        mUri = uri;
+        mId = id;
+        mType = type;
+        mMimeType = mimeType;
+        mDisplayName = displayName;
+        mSize = size;
+        mTimestamp = timestamp;
+        mFile = file;
+        mFileResolved = file != null;
+        mResolver = resolver;
+        mSink = sink;
+    }
+
+    /**
+     * Media written directly to a file
+     */
+    static CapturedMedia fromFile(@NonNull File file, @NonNull TravManager.ScopedFileType type, @NonNull String mimeType,
+                                  long size, long timestamp, @NonNull StorageSink sink){
+        return new CapturedMedia(Uri.fromFile(file), NO_ID, type, mimeType, file.getName(), size, timestamp, file, null, sink);
+    }
+
+    /**
+     * Media without a file, kept in memory or written to a caller stream
+     * @param buffer  encoded bytes, null when the media isn't kept
+     */
+    static CapturedMedia fromBuffer(@Nullable ByteBuffer buffer, @NonNull TravManager.ScopedFileType type, @NonNull String mimeType,
+                                    @NonNull String displayName, long size, long timestamp, @NonNull StorageSink sink){
+        final CapturedMedia media = new CapturedMedia(Uri.EMPTY, NO_ID, type, mimeType, displayName, size, timestamp, null, null, sink);
+        media.mFileResolved = true;
+        media.mBuffer = buffer != null ? buffer.asReadOnlyBuffer() : null;
+        return media;
+    }
+
+    /**
+     * @return copy of this media with final size, used when a pending recording is published
+     */
+    CapturedMedia withSize(long size){
+        final CapturedMedia media = new CapturedMedia(mUri, mId, mType, mMimeType, mDisplayName, size, mTimestamp,
+                mFileResolved ? mFile : null, mResolver, mSink);
+        media.mFileResolved = mFileResolved;
+        media.mBuffer = mBuffer;
+        media.mPoster = mPoster;
+        media.mPosterJpeg = mPosterJpeg;
+        return media;
+    }
+
+    void setPoster(@Nullable Bitmap poster, @Nullable byte[] jpeg){
+        mPoster = poster;
+        mPosterJpeg = jpeg;
+    }
+
+    /**
+     * @return poster frame of a recording, null for images or when no poster was captured
+     */
+    @Nullable
+    public Bitmap getPoster(){
+        return mPoster;
+    }
+
+    /**
+     * @return read only JPEG bytes of {@link #getPoster()}, null when no poster was captured
+     */
+    @Nullable
+    public ByteBuffer getPosterJpeg(){
+        return mPosterJpeg != null ? ByteBuffer.wrap(mPosterJpeg).asReadOnlyBuffer() : null;
+    }
+
+    void setPendingOutput(@Nullable StorageSink.Output output){
+        mPendingOutput = output;
+    }
+
+    /** @return open sink output while the media is pending, null otherwise **/
+    @Nullable
+    StorageSink.Output getPendingOutput(){
+        return mPendingOutput;
+    }
+
+    /** @return sink which stored the media **/
+    @NonNull
+    public StorageSink getSink(){
+        return mSink;
+    }
+
+    /**
+     * @return read only encoded bytes for media kept by {@link MemorySink}, null otherwise
+     */
+    @Nullable
+    public ByteBuffer getBuffer(){
+        return mBuffer != null ? mBuffer.duplicate() : null;
+    }
+
+    /** @return MediaStore content Uri, or file Uri for SDK < 29 **/
+    @NonNull
+    public Uri getUri(){
+        return mUri;
+    }
+
+    /** @return MediaStore id, {@link #NO_ID} for SDK < 29 **/
+    public long getId(){
+        return mId;
+    }
+
+    /** @return media type **/
+    @NonNull
+    public TravManager.ScopedFileType getType(){
+        return mType;
+    }
+
+    /** @return mime type **/
+    @NonNull
+    public String getMimeType(){
+        return mMimeType;
+    }
+
+    /** @return display file name **/
+    @NonNull
+    public String getDisplayName(){
+        return mDisplayName;
+    }
+
+    /** @return size in bytes as written, 0 while a recording is pending **/
+    public long getSize(){
+        return mSize;
+    }
+
+    /** @return capture time in milliseconds since epoch **/
+    public long getTimestamp(){
+        return mTimestamp;
+    }
+
+    /**
+     * Legacy file view, the first call on SDK >= 29 queries MediaStore DATA column
+     * Avoid on hot paths, prefer {@link #getUri()} with {@link ContentResolver#openInputStream(Uri)}
+     * @return file or null if it can't be resolved or the media has no file
+     */
+    @Nullable
+    @SuppressWarnings("deprecation")
+    public synchronized File getFile(){
+        if(mFileResolved) return mFile;
+        mFileResolved = true;
+        if(mResolver == null) return null;
+
+        final String column = MediaStore.MediaColumns.DATA;
+        try (Cursor cursor = mResolver.query(mUri, new String[]{column}, null, null, null)) {
+            if(cursor != null && cursor.moveToFirst()){
+                final String path = cursor.getString(cursor.getColumnIndexOrThrow(column));
+                if(path != null) mFile = new File(path);
+            }
+        }
+        return mFile;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "CapturedMedia{" + mUri + ", " + mMimeType + ", " + mSize + " bytes}";
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.travcam;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stores captures as plain files, in a type sub directory of the given directory
+ * No MediaStore entry is created, app private directories need no storage permission
+ */
+public class FileSink implements StorageSink {
+    private final static String TAG = "FileSink";
+
+    private final File mDirectory;
+
+    /**
+     * @param directory  root directory, created when missing
+     */
+    public FileSink(@NonNull File directory){
+        mDirectory = directory;
+    }
+
+    /**
+     * @return sink storing captures in app specific pictures directory, removed with the app
+     */
+    public static FileSink appPrivate(@NonNull Context context){
+        final File directory = context.getExternalFilesDir(Environment.DIRECTORY_DCIM);
+        return new FileSink(directory != null ? directory : new File(context.getFilesDir(), Environment.DIRECTORY_DCIM));
+    }
+
+    /**
+     * Used by {@link TravManager} for SDK < 29, requires WRITE_EXTERNAL_STORAGE
+     * @return sink storing captures in public DCIM directory
+     */
+    @SuppressWarnings("deprecation")
+    public static FileSink publicDcim(){
+        return new FileSink(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM));
+    }
+
+    /** @return root directory **/
+    @NonNull
+    public File getDirectory(){
+        return mDirectory;
+    }
+
+    @NonNull
+    @Override
+    public Output open(@NonNull TravManager.ScopedFileType type, @NonNull String fileName,
+                       @NonNull String mimeType, long timestamp) throws IOException {
+        final File dir = new File(mDirectory, type.toString());
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Couldn't create directory: "+dir);
+
+        final File file = new File(dir, fileName);
+        if(!file.createNewFile()) throw new IOException("Couldn't create new file!");
+        return new FileOutput(CapturedMedia.fromFile(file, type, mimeType, 0, timestamp, this));
+    }
+
+    @Override
+    public boolean supportsDescriptor() {
+        return true;
+    }
+
+    @Override
+    public boolean delete(@NonNull CapturedMedia media) {
+        final File file = media.getFile();
+        return file == null || !file.exists() || file.delete();
+    }
+
+    /**
+     * Writes the created file, stream and descriptor share the same file stream
+     */
+    private static class FileOutput implements Output {
+        private final CapturedMedia mMedia;
+        private FileOutputStream mStream;
+
+        FileOutput(CapturedMedia media){
+            mMedia = media;
+        }
+
+        private FileOutputStream stream() throws IOException {
+            if(mStream == null) mStream = new FileOutputStream(mMedia.getFile());
+            return mStream;
+        }
+
+        @NonNull
+        @Override
+        public OutputStream openStream() throws IOException {
+            return stream();
+        }
+
+        @NonNull
+        @Override
+        public FileDescriptor openDescriptor() throws IOException {
+            return stream().getFD();
+        }
+
+        @NonNull
+        @Override
+        public CapturedMedia getPendingMedia() {
+            return mMedia;
+        }
+
+        @NonNull
+        @Override
+        public CapturedMedia commit() throws IOException {
+            if(mStream != null) mStream.close();
+            final File file = mMedia.getFile();
+            return mMedia.withSize(file != null ? file.length() : 0);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                if(mStream != null) mStream.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Abort exception: "+e.getMessage());
+            }
+            final File file = mMedia.getFile();
+            if(file != null && file.exists() && !file.delete()) Log.d(TAG, "Couldn't delete aborted file: "+file);
+        }
+    }
+}
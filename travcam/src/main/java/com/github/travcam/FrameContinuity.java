@@ -0,0 +1,116 @@
+package com.github.travcam;
+
+/**
+ * Tracks recorded frames continuity from capture result sensor timestamps
+ *
+ * The nominal frame interval is averaged from regular intervals, an interval longer than
+ * {@link #GAP_FACTOR} nominal intervals counts the frames missing from it as dropped.
+ * Events like video snapshots open a window of {@link #EVENT_WINDOW_FRAMES} frames, drops and
+ * the longest interval inside windows are reported apart from the whole recording.
+ *
+ * Frames and events must be reported on a single thread, like the camera thread.
+ */
+public class FrameContinuity {
+    /** Interval longer than nominal intervals by this factor is a gap **/
+    private final static float GAP_FACTOR = 1.5f;
+
+    /** Frames after an event counted as around it, covers pipeline depth and a second of 30 fps **/
+    private final static int EVENT_WINDOW_FRAMES = 40;
+
+    /** Nominal interval averaging weight of a new interval **/
+    private final static float NOMINAL_WEIGHT = 0.1f;
+
+    private long mLastTimestamp;
+    private volatile float mNominalNanos;
+    private int mWindowFramesLeft;
+
+    /** Measurements **/
+    private volatile long mFrames, mDropped, mEvents, mEventDropped, mEventMaxIntervalNanos;
+
+    /**
+     * Starts tracking a new recording
+     */
+    public void reset(){
+        mLastTimestamp = 0;
+        mNominalNanos = 0;
+        mWindowFramesLeft = 0;
+        mFrames = 0;
+        mDropped = 0;
+        mEvents = 0;
+        mEventDropped = 0;
+        mEventMaxIntervalNanos = 0;
+    }
+
+    /**
+     * Recorded frame result
+     * @param timestampNanos  SENSOR_TIMESTAMP of the frame
+     */
+    public void onFrame(long timestampNanos){
+        mFrames++;
+        final long previous = mLastTimestamp;
+        mLastTimestamp = timestampNanos;
+        final boolean inWindow = mWindowFramesLeft > 0;
+        if(inWindow) mWindowFramesLeft--;
+        if(previous == 0 || timestampNanos <= previous) return;
+
+        final long interval = timestampNanos - previous;
+        long dropped = 0;
+        if(mNominalNanos == 0){
+            mNominalNanos = interval;
+        }else if(interval > mNominalNanos * GAP_FACTOR){
+            dropped = Math.round(interval / mNominalNanos) - 1;
+        }else{
+            mNominalNanos += (interval - mNominalNanos) * NOMINAL_WEIGHT;
+        }
+        mDropped += dropped;
+
+        if(inWindow){
+            mEventDropped += dropped;
+            if(interval > mEventMaxIntervalNanos) mEventMaxIntervalNanos = interval;
+        }
+    }
+
+    /**
+     * Opens a window of frames around an event, like a video snapshot request
+     */
+    public void onEvent(){
+        mEvents++;
+        mWindowFramesLeft = EVENT_WINDOW_FRAMES;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return frames reported since {@link #reset()} **/
+    public long getFrameCount(){
+        return mFrames;
+    }
+
+    /** @return frames missing from the whole recording **/
+    public long getDroppedFrames(){
+        return mDropped;
+    }
+
+    /** @return events reported since {@link #reset()} **/
+    public long getEventCount(){
+        return mEvents;
+    }
+
+    /** @return frames missing inside event windows **/
+    public long getDroppedAroundEvents(){
+        return mEventDropped;
+    }
+
+    /** @return longest frame interval inside event windows in milliseconds **/
+    public float getMaxIntervalAroundEventsMillis(){
+        return mEventMaxIntervalNanos / 1_000_000f;
+    }
+
+    /** @return averaged regular frame interval in milliseconds **/
+    public float getNominalIntervalMillis(){
+        return mNominalNanos / 1_000_000f;
+    }
+}
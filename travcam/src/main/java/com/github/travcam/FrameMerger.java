@@ -0,0 +1,410 @@
+package com.github.travcam;
+
+import androidx.annotation.NonNull;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pure Java multi-frame merger for low light captures
+ * A short burst of I420 frames is aligned to the first frame and averaged to reduce noise.
+ *
+ * Alignment:
+ * Every frame is split into {@link #TILE_SIZE} luma tiles, each tile is matched against the
+ * reference frame using a coarse-to-fine block matcher over a 3 level luma pyramid.
+ *
+ * Merge:
+ * Tiles whose best match is still too different from the reference (moving subjects) are rejected,
+ * accepted tiles are averaged. Tiles are processed in parallel on {@link YuvJpegEncoder#getPool()}.
+ *
+ * All frame sized buffers are allocated once in the constructor, merging doesn't allocate
+ * beside small fork-join tasks.
+ */
+public class FrameMerger {
+    /** Luma tile edge, chroma tiles are half of it **/
+    private final static int TILE_SIZE = 32;
+
+    /** Pyramid levels beside full resolution, every level halves dimensions **/
+    private final static int PYRAMID_LEVELS = 2;
+
+    /** Search radius on the coarsest level and refinement radius on finer levels **/
+    private final static int COARSE_RADIUS = 4;
+    private final static int REFINE_RADIUS = 1;
+
+    /** Tiles processed by a single task before splitting stops **/
+    private final static int TILES_PER_TASK = 8;
+
+    /** Frame dimensions and limits **/
+    private final int mWidth, mHeight, mChromaWidth, mChromaHeight, mMaxFrames;
+    private final int mTilesX, mTilesY;
+
+    /** Input frames in I420 layout **/
+    private final byte[][] mFrames;
+
+    /** Luma pyramids per frame, [frame][level - 1] **/
+    private final byte[][][] mPyramids;
+    private final int[] mLevelWidths, mLevelHeights;
+
+    /** Motion vector per frame per tile, x then y, Integer.MIN_VALUE for rejected tiles **/
+    private final int[][] mVectors;
+
+    /** Merged I420 output, reused between merges **/
+    private final byte[] mOutput;
+
+    /** Mean absolute luma difference per pixel above which aligned tile is rejected **/
+    private int mRejectThreshold = 18;
+
+    /** Measurements **/
+    private long mLastAlignNanos, mLastMergeNanos;
+    private int mLastRejectedTiles;
+
+    /**
+     * @param width      frame width
+     * @param height     frame height
+     * @param maxFrames  max burst length
+     */
+    public FrameMerger(int width, int height, int maxFrames){
+        if(width < TILE_SIZE || height < TILE_SIZE || maxFrames < 1) throw new IllegalArgumentException("Invalid merger dimensions!");
+        mWidth = width;
+        mHeight = height;
+        mChromaWidth = (width + 1) / 2;
+        mChromaHeight = (height + 1) / 2;
+        mMaxFrames = maxFrames;
+        mTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+        final int frameSize = width * height + 2 * mChromaWidth * mChromaHeight;
+        mFrames = new byte[maxFrames][frameSize];
+        mOutput = new byte[frameSize];
+
+        mLevelWidths = new int[PYRAMID_LEVELS + 1];
+        mLevelHeights = new int[PYRAMID_LEVELS + 1];
+        mLevelWidths[0] = width;
+        mLevelHeights[0] = height;
+        for(int level = 1; level <= PYRAMID_LEVELS; level++){
+            mLevelWidths[level] = mLevelWidths[level - 1] / 2;
+            mLevelHeights[level] = mLevelHeights[level - 1] / 2;
+        }
+        mPyramids = new byte[maxFrames][PYRAMID_LEVELS][];
+        for(int f = 0; f < maxFrames; f++){
+            for(int level = 1; level <= PYRAMID_LEVELS; level++){
+                mPyramids[f][level - 1] = new byte[mLevelWidths[level] * mLevelHeights[level]];
+            }
+        }
+        mVectors = new int[maxFrames][mTilesX * mTilesY * 2];
+    }
+
+    /**
+     * Bytes allocated by a merger, known before creating it
+     * @param width      frame width
+     * @param height     frame height
+     * @param maxFrames  max burst length
+     */
+    public static long bytesFor(int width, int height, int maxFrames){
+        final long chroma = (long) ((width + 1) / 2) * ((height + 1) / 2);
+        final long frameSize = (long) width * height + 2 * chroma;
+        long pyramid = 0;
+        for(int level = 1, w = width, h = height; level <= PYRAMID_LEVELS; level++){
+            w /= 2;
+            h /= 2;
+            pyramid += (long) w * h;
+        }
+        final long tiles = (long) ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+        return frameSize * (maxFrames + 1) + maxFrames * (pyramid + tiles * 2 * 4);
+    }
+
+    /**
+     * @param threshold  mean absolute luma difference per pixel above which a tile isn't merged
+     */
+    public FrameMerger setRejectThreshold(int threshold){
+        mRejectThreshold = Math.max(1, threshold);
+        return this;
+    }
+
+    /**
+     * @return buffer of frame at index, to be filled with an I420 frame
+     */
+    public byte[] getFrameBuffer(int index){
+        return mFrames[index];
+    }
+
+    /**
+     * Copies YUV_420 planes as delivered by {@link android.media.Image#getPlanes()} into frame at index
+     */
+    public void loadFrame(int index, @NonNull ByteBuffer y, int yRowStride, int yPixelStride,
+                          @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvRowStride, int uvPixelStride){
+        final byte[] frame = mFrames[index];
+        int out = 0;
+        for(int row = 0; row < mHeight; row++){
+            final int offset = row * yRowStride;
+            if(yPixelStride == 1){
+                y.position(offset);
+                y.get(frame, out, mWidth);
+                out += mWidth;
+            }else{
+                for(int x = 0; x < mWidth; x++) frame[out++] = y.get(offset + x * yPixelStride);
+            }
+        }
+        y.rewind();
+
+        final int uOffset = out, vOffset = out + mChromaWidth * mChromaHeight;
+        int i = 0;
+        for(int row = 0; row < mChromaHeight; row++){
+            final int offset = row * uvRowStride;
+            for(int x = 0; x < mChromaWidth; x++, i++){
+                frame[uOffset + i] = u.get(offset + x * uvPixelStride);
+                frame[vOffset + i] = v.get(offset + x * uvPixelStride);
+            }
+        }
+    }
+
+
+
+
+    // ===========================================================================================
+    // ======================================== Merging ==========================================
+    // ===========================================================================================
+    /**
+     * Aligns and merges loaded frames, first frame is the reference
+     * @param count  loaded frames count
+     * @return       merged I420 frame, owned by merger and overwritten by next merge
+     */
+    public synchronized byte[] merge(int count){
+        if(count < 1 || count > mMaxFrames) throw new IllegalArgumentException("Invalid frames count: "+count);
+        final ForkJoinPool pool = YuvJpegEncoder.getPool();
+        final int tiles = mTilesX * mTilesY;
+
+        // Align
+        final long start = System.nanoTime();
+        for(int f = 0; f < count; f++) buildPyramid(f);
+        pool.invoke(new TileTask(0, tiles, count, true));
+        final long aligned = System.nanoTime();
+
+        // Merge
+        pool.invoke(new TileTask(0, tiles, count, false));
+        mLastAlignNanos = aligned - start;
+        mLastMergeNanos = System.nanoTime() - aligned;
+
+        int rejected = 0;
+        for(int f = 1; f < count; f++){
+            for(int t = 0; t < tiles; t++) if(mVectors[f][t * 2] == Integer.MIN_VALUE) rejected++;
+        }
+        mLastRejectedTiles = rejected;
+        return mOutput;
+    }
+
+    /**
+     * Splits tiles range until it is small enough, then aligns or merges it
+     */
+    private class TileTask extends RecursiveAction{
+        private final static long serialVersionUID = 1L;
+
+        private final int mFrom, mTo, mCount;
+        private final boolean mAlign;
+
+        TileTask(int from, int to, int count, boolean align){
+            mFrom = from;
+            mTo = to;
+            mCount = count;
+            mAlign = align;
+        }
+
+        @Override
+        protected void compute(){
+            if(mTo - mFrom > TILES_PER_TASK){
+                final int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new TileTask(mFrom, middle, mCount, mAlign), new TileTask(middle, mTo, mCount, mAlign));
+                return;
+            }
+            for(int tile = mFrom; tile < mTo; tile++){
+                if(mAlign){
+                    for(int f = 1; f < mCount; f++) alignTile(f, tile);
+                }else{
+                    mergeTile(tile, mCount);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds half resolution luma levels using 2x2 box filter
+     */
+    private void buildPyramid(int frame){
+        byte[] source = mFrames[frame];
+        for(int level = 1; level <= PYRAMID_LEVELS; level++){
+            final byte[] target = mPyramids[frame][level - 1];
+            final int sourceWidth = mLevelWidths[level - 1];
+            final int width = mLevelWidths[level], height = mLevelHeights[level];
+            for(int y = 0; y < height; y++){
+                final int row0 = y * 2 * sourceWidth, row1 = row0 + sourceWidth;
+                for(int x = 0; x < width; x++){
+                    final int x2 = x * 2;
+                    target[y * width + x] = (byte) (((source[row0 + x2] & 0xFF) + (source[row0 + x2 + 1] & 0xFF)
+                            + (source[row1 + x2] & 0xFF) + (source[row1 + x2 + 1] & 0xFF) + 2) >> 2);
+                }
+            }
+            source = target;
+        }
+    }
+
+    /**
+     * Coarse-to-fine search of the tile offset minimizing sum of absolute differences
+     * Stores rejected marker when the best full resolution match is still too different
+     */
+    private void alignTile(int frame, int tile){
+        final int tileX = (tile % mTilesX) * TILE_SIZE, tileY = (tile / mTilesX) * TILE_SIZE;
+        int dx = 0, dy = 0;
+        long bestSad = 0;
+
+        for(int level = PYRAMID_LEVELS; level >= 0; level--){
+            final byte[] reference = level == 0 ? mFrames[0] : mPyramids[0][level - 1];
+            final byte[] candidate = level == 0 ? mFrames[frame] : mPyramids[frame][level - 1];
+            final int width = mLevelWidths[level], height = mLevelHeights[level];
+            final int x0 = tileX >> level, y0 = tileY >> level;
+            final int size = Math.max(1, TILE_SIZE >> level);
+            final int radius = level == PYRAMID_LEVELS ? COARSE_RADIUS : REFINE_RADIUS;
+
+            if(level != PYRAMID_LEVELS){
+                dx *= 2;
+                dy *= 2;
+            }
+
+            int bestX = dx, bestY = dy;
+            bestSad = Long.MAX_VALUE;
+            for(int sy = dy - radius; sy <= dy + radius; sy++){
+                for(int sx = dx - radius; sx <= dx + radius; sx++){
+                    final long sad = sad(reference, candidate, width, height, x0, y0, size, sx, sy, bestSad);
+                    if(sad < bestSad){
+                        bestSad = sad;
+                        bestX = sx;
+                        bestY = sy;
+                    }
+                }
+            }
+            dx = bestX;
+            dy = bestY;
+        }
+
+        final int tileWidth = Math.min(TILE_SIZE, mWidth - tileX), tileHeight = Math.min(TILE_SIZE, mHeight - tileY);
+        final boolean rejected = bestSad > (long) mRejectThreshold * tileWidth * tileHeight;
+        mVectors[frame][tile * 2] = rejected ? Integer.MIN_VALUE : dx;
+        mVectors[frame][tile * 2 + 1] = dy;
+    }
+
+    /**
+     * Sum of absolute differences between reference tile and offset candidate tile
+     * Candidate coordinates are clamped to frame edges, stops early once above limit
+     * Absolute values are branchless, noisy low light frames make branches unpredictable
+     */
+    private static long sad(byte[] reference, byte[] candidate, int width, int height,
+                            int x0, int y0, int size, int dx, int dy, long limit){
+        long sum = 0;
+        final int xEnd = Math.min(x0 + size, width), yEnd = Math.min(y0 + size, height);
+        final boolean inside = x0 + dx >= 0 && xEnd - 1 + dx < width && y0 + dy >= 0 && yEnd - 1 + dy < height;
+        for(int y = y0; y < yEnd; y++){
+            final int referenceRow = y * width;
+            int rowSum = 0;
+            if(inside){
+                final int candidateRow = (y + dy) * width + dx;
+                for(int x = x0; x < xEnd; x++){
+                    final int diff = (reference[referenceRow + x] & 0xFF) - (candidate[candidateRow + x] & 0xFF);
+                    final int sign = diff >> 31;
+                    rowSum += (diff ^ sign) - sign;
+                }
+            }else{
+                final int candidateRow = clamp(y + dy, height - 1) * width;
+                for(int x = x0; x < xEnd; x++){
+                    final int diff = (reference[referenceRow + x] & 0xFF) - (candidate[candidateRow + clamp(x + dx, width - 1)] & 0xFF);
+                    final int sign = diff >> 31;
+                    rowSum += (diff ^ sign) - sign;
+                }
+            }
+            sum += rowSum;
+            if(sum >= limit) return sum;
+        }
+        return sum;
+    }
+
+    /**
+     * Averages reference tile with accepted aligned tiles, for luma and both chroma planes
+     */
+    private void mergeTile(int tile, int count){
+        final int tileX = (tile % mTilesX) * TILE_SIZE, tileY = (tile / mTilesX) * TILE_SIZE;
+        final int ySize = mWidth * mHeight, uvSize = mChromaWidth * mChromaHeight;
+
+        mergePlane(tile, count, 0, mWidth, mHeight, tileX, tileY, TILE_SIZE, 0);
+        mergePlane(tile, count, ySize, mChromaWidth, mChromaHeight, tileX / 2, tileY / 2, TILE_SIZE / 2, 1);
+        mergePlane(tile, count, ySize + uvSize, mChromaWidth, mChromaHeight, tileX / 2, tileY / 2, TILE_SIZE / 2, 1);
+    }
+
+    private void mergePlane(int tile, int count, int planeOffset, int width, int height,
+                            int x0, int y0, int size, int shift){
+        final byte[] reference = mFrames[0];
+        final int xEnd = Math.min(x0 + size, width), yEnd = Math.min(y0 + size, height);
+        for(int y = y0; y < yEnd; y++){
+            for(int x = x0; x < xEnd; x++){
+                int sum = reference[planeOffset + y * width + x] & 0xFF;
+                int merged = 1;
+                for(int f = 1; f < count; f++){
+                    final int dx = mVectors[f][tile * 2];
+                    if(dx == Integer.MIN_VALUE) continue;
+                    final int dy = mVectors[f][tile * 2 + 1];
+                    final int sx = clamp(x + (dx >> shift), width - 1), sy = clamp(y + (dy >> shift), height - 1);
+                    sum += mFrames[f][planeOffset + sy * width + sx] & 0xFF;
+                    merged++;
+                }
+                mOutput[planeOffset + y * width + x] = (byte) ((sum + merged / 2) / merged);
+            }
+        }
+    }
+
+    private static int clamp(int value, int max){
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return frame width **/
+    public int getWidth(){
+        return mWidth;
+    }
+
+    /** @return frame height **/
+    public int getHeight(){
+        return mHeight;
+    }
+
+    /** @return max burst length **/
+    public int getMaxFrames(){
+        return mMaxFrames;
+    }
+
+    /** @return bytes held by frame, pyramid and output buffers **/
+    public long getAllocatedBytes(){
+        return bytesFor(mWidth, mHeight, mMaxFrames);
+    }
+
+    /** @return last alignment duration in nanoseconds **/
+    public long getLastAlignNanos(){
+        return mLastAlignNanos;
+    }
+
+    /** @return last merge duration in nanoseconds **/
+    public long getLastMergeNanos(){
+        return mLastMergeNanos;
+    }
+
+    /** @return last align and merge duration per megapixel in milliseconds **/
+    public double getLastMillisPerMegapixel(){
+        return (mLastAlignNanos + mLastMergeNanos) / 1_000_000.0 / (mWidth * (double) mHeight / 1_000_000.0);
+    }
+
+    /** @return tiles left out of the last merge **/
+    public int getLastRejectedTiles(){
+        return mLastRejectedTiles;
+    }
+}
@@ -0,0 +1,281 @@
+package com.github.travcam;
+
+import android.hardware.camera2.CaptureResult;
+import androidx.annotation.NonNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Per frame capture metadata of a recording, kept in columns of primitive arrays
+ *
+ * {@link #record(CaptureResult)} is called on camera thread for every recorded frame,
+ * it copies the chosen {@link Column}s into arrays allocated ahead for the expected frames count.
+ *
+ * Sidecar format, big endian:
+ * [int magic][short version][int frames][byte columns] then per column [byte id][byte width],
+ * then values of every column stored one column after another.
+ * Readers skip columns they don't know using their width.
+ */
+public class FrameMetadata {
+    private final static int MAGIC = 0x5452564D; // TRVM
+    private final static short VERSION = 1;
+
+    /** Missing values **/
+    public final static long NO_LONG = -1;
+    public final static int NO_INT = -1;
+    public final static byte NO_STATE = -1;
+
+    /**
+     * Recordable columns, id is part of the sidecar format and never changes
+     */
+    public enum Column{
+        SENSOR_TIMESTAMP(1, 8),
+        EXPOSURE_TIME(2, 8),
+        FRAME_DURATION(3, 8),
+        SENSITIVITY(4, 4),
+        FOCUS_DISTANCE(5, 4),
+        AE_STATE(6, 1),
+        AF_STATE(7, 1);
+
+        final int mId, mWidth;
+
+        Column(int id, int width){
+            mId = id;
+            mWidth = width;
+        }
+
+        static Column fromId(int id){
+            for(Column column : values()) if(column.mId == id) return column;
+            return null;
+        }
+    }
+
+    private final EnumSet<Column> mColumns;
+    private int mCount, mCapacity;
+
+    /** Columns, null when not recorded **/
+    private long[] mTimestamps, mExposures, mFrameDurations;
+    private int[] mSensitivities;
+    private float[] mFocusDistances;
+    private byte[] mAeStates, mAfStates;
+
+    /** Measurements **/
+    private long mRecordNanos;
+
+    /**
+     * @param expectedFrames  frames count allocated ahead, arrays grow when exceeded
+     * @param columns         recorded columns
+     */
+    public FrameMetadata(int expectedFrames, @NonNull Set<Column> columns){
+        mColumns = EnumSet.noneOf(Column.class);
+        mColumns.addAll(columns);
+        allocate(Math.max(1, expectedFrames));
+    }
+
+    /**
+     * Copies chosen keys of a capture result, called on camera thread
+     */
+    public void record(@NonNull CaptureResult result){
+        final long start = System.nanoTime();
+        synchronized (this){
+            if(mCount == mCapacity) allocate(mCapacity * 2);
+            final int i = mCount++;
+            if(mTimestamps != null) mTimestamps[i] = orDefault(result.get(CaptureResult.SENSOR_TIMESTAMP), NO_LONG);
+            if(mExposures != null) mExposures[i] = orDefault(result.get(CaptureResult.SENSOR_EXPOSURE_TIME), NO_LONG);
+            if(mFrameDurations != null) mFrameDurations[i] = orDefault(result.get(CaptureResult.SENSOR_FRAME_DURATION), NO_LONG);
+            if(mSensitivities != null){
+                final Integer value = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                mSensitivities[i] = value != null ? value : NO_INT;
+            }
+            if(mFocusDistances != null){
+                final Float value = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+                mFocusDistances[i] = value != null ? value : Float.NaN;
+            }
+            if(mAeStates != null) mAeStates[i] = state(result.get(CaptureResult.CONTROL_AE_STATE));
+            if(mAfStates != null) mAfStates[i] = state(result.get(CaptureResult.CONTROL_AF_STATE));
+            mRecordNanos += System.nanoTime() - start;
+        }
+    }
+
+    private static long orDefault(Long value, long fallback){
+        return value != null ? value : fallback;
+    }
+
+    private static byte state(Integer value){
+        return value != null ? value.byteValue() : NO_STATE;
+    }
+
+    /**
+     * Allocates or grows recorded columns, keeping recorded frames
+     */
+    private void allocate(int capacity){
+        mCapacity = capacity;
+        if(mColumns.contains(Column.SENSOR_TIMESTAMP)) mTimestamps = grow(mTimestamps, capacity);
+        if(mColumns.contains(Column.EXPOSURE_TIME)) mExposures = grow(mExposures, capacity);
+        if(mColumns.contains(Column.FRAME_DURATION)) mFrameDurations = grow(mFrameDurations, capacity);
+        if(mColumns.contains(Column.SENSITIVITY)) mSensitivities = mSensitivities == null ? new int[capacity] : Arrays.copyOf(mSensitivities, capacity);
+        if(mColumns.contains(Column.FOCUS_DISTANCE)) mFocusDistances = mFocusDistances == null ? new float[capacity] : Arrays.copyOf(mFocusDistances, capacity);
+        if(mColumns.contains(Column.AE_STATE)) mAeStates = mAeStates == null ? new byte[capacity] : Arrays.copyOf(mAeStates, capacity);
+        if(mColumns.contains(Column.AF_STATE)) mAfStates = mAfStates == null ? new byte[capacity] : Arrays.copyOf(mAfStates, capacity);
+    }
+
+    private static long[] grow(long[] array, int capacity){
+        return array == null ? new long[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    /**
+     * Writes recorded frames as a sidecar file
+     */
+    public synchronized void write(@NonNull File file) throws IOException{
+        final File parent = file.getParentFile();
+        if(parent != null && !parent.exists() && !parent.mkdirs()) throw new IOException("Couldn't create "+parent);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(mCount);
+            out.writeByte(mColumns.size());
+            for(Column column : mColumns){
+                out.writeByte(column.mId);
+                out.writeByte(column.mWidth);
+            }
+            for(Column column : mColumns){
+                for(int i = 0; i < mCount; i++){
+                    switch (column){
+                        case SENSOR_TIMESTAMP: out.writeLong(mTimestamps[i]); break;
+                        case EXPOSURE_TIME: out.writeLong(mExposures[i]); break;
+                        case FRAME_DURATION: out.writeLong(mFrameDurations[i]); break;
+                        case SENSITIVITY: out.writeInt(mSensitivities[i]); break;
+                        case FOCUS_DISTANCE: out.writeFloat(mFocusDistances[i]); break;
+                        case AE_STATE: out.writeByte(mAeStates[i]); break;
+                        case AF_STATE: out.writeByte(mAfStates[i]); break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a sidecar written by {@link #write(File)}
+     * @param file  sidecar file
+     * @return      frames metadata, columns missing from the file return null
+     */
+    @NonNull
+    public static FrameMetadata read(@NonNull File file) throws IOException{
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC) throw new IOException("Not a frame metadata file.");
+            if(in.readShort() > VERSION) throw new IOException("Unsupported frame metadata version.");
+            final int count = in.readInt();
+            final int columnCount = in.readUnsignedByte();
+            final Column[] columns = new Column[columnCount];
+            final int[] widths = new int[columnCount];
+            final Set<Column> known = EnumSet.noneOf(Column.class);
+            for(int c = 0; c < columnCount; c++){
+                columns[c] = Column.fromId(in.readUnsignedByte());
+                widths[c] = in.readUnsignedByte();
+                if(columns[c] != null) known.add(columns[c]);
+            }
+
+            final FrameMetadata metadata = new FrameMetadata(count, known);
+            metadata.mCount = count;
+            for(int c = 0; c < columnCount; c++){
+                final Column column = columns[c];
+                if(column == null || column.mWidth != widths[c]){
+                    // Unknown column, buffered skips may stop short of it
+                    long skip = (long) count * widths[c];
+                    while(skip > 0){
+                        final int skipped = in.skipBytes((int) Math.min(skip, Integer.MAX_VALUE));
+                        if(skipped <= 0) throw new EOFException();
+                        skip -= skipped;
+                    }
+                    continue;
+                }
+                for(int i = 0; i < count; i++){
+                    switch (column){
+                        case SENSOR_TIMESTAMP: metadata.mTimestamps[i] = in.readLong(); break;
+                        case EXPOSURE_TIME: metadata.mExposures[i] = in.readLong(); break;
+                        case FRAME_DURATION: metadata.mFrameDurations[i] = in.readLong(); break;
+                        case SENSITIVITY: metadata.mSensitivities[i] = in.readInt(); break;
+                        case FOCUS_DISTANCE: metadata.mFocusDistances[i] = in.readFloat(); break;
+                        case AE_STATE: metadata.mAeStates[i] = in.readByte(); break;
+                        case AF_STATE: metadata.mAfStates[i] = in.readByte(); break;
+                    }
+                }
+            }
+            return metadata;
+        }
+    }
+
+
+
+
+    // ===========================================================================================
+    // ======================================== Columns ==========================================
+    // ===========================================================================================
+    /** @return recorded frames count **/
+    public synchronized int getCount(){
+        return mCount;
+    }
+
+    /** @return recorded columns **/
+    @NonNull
+    public Set<Column> getColumns(){
+        return EnumSet.copyOf(mColumns);
+    }
+
+    /** @return sensor timestamps in nanoseconds, null when not recorded **/
+    public synchronized long[] getSensorTimestamps(){
+        return mTimestamps != null ? Arrays.copyOf(mTimestamps, mCount) : null;
+    }
+
+    /** @return exposure times in nanoseconds, null when not recorded **/
+    public synchronized long[] getExposureTimes(){
+        return mExposures != null ? Arrays.copyOf(mExposures, mCount) : null;
+    }
+
+    /** @return frame durations in nanoseconds, null when not recorded **/
+    public synchronized long[] getFrameDurations(){
+        return mFrameDurations != null ? Arrays.copyOf(mFrameDurations, mCount) : null;
+    }
+
+    /** @return ISO sensitivities, null when not recorded **/
+    public synchronized int[] getSensitivities(){
+        return mSensitivities != null ? Arrays.copyOf(mSensitivities, mCount) : null;
+    }
+
+    /** @return focus distances in diopters, NaN when unknown, null when not recorded **/
+    public synchronized float[] getFocusDistances(){
+        return mFocusDistances != null ? Arrays.copyOf(mFocusDistances, mCount) : null;
+    }
+
+    /** @return CONTROL_AE_STATE values, null when not recorded **/
+    public synchronized byte[] getAeStates(){
+        return mAeStates != null ? Arrays.copyOf(mAeStates, mCount) : null;
+    }
+
+    /** @return CONTROL_AF_STATE values, null when not recorded **/
+    public synchronized byte[] getAfStates(){
+        return mAfStates != null ? Arrays.copyOf(mAfStates, mCount) : null;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return average camera thread time spent recording a frame **/
+    public synchronized long getAverageRecordNanos(){
+        return mCount == 0 ? 0 : mRecordNanos / mCount;
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.travcam;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Fixed capacity ring of recent frames ordered by timestamp
+ * Used by zero shutter lag mode to keep last N full resolution frames.
+ *
+ * Ring never grows, once full the oldest frame is handed to {@link FrameReleaser}
+ * to free its buffers. Frames taken out using {@link #takeClosest(long)} are owned by the caller.
+ *
+ * All methods are synchronized, frames are pushed from camera thread and taken from UI thread.
+ * @param <T>  frame type
+ */
+public class FrameRing<T> {
+    /** Frames and timestamps stored in parallel arrays **/
+    private final Object[] mFrames;
+    private final long[] mTimestamps;
+
+    /** Index of oldest frame and current frames count **/
+    private int mHead, mSize;
+
+    /** Releases evicted frames **/
+    private final FrameReleaser<T> mReleaser;
+
+    /**
+     * @param capacity  max frames count
+     * @param releaser  called for every frame dropped by the ring
+     */
+    public FrameRing(int capacity, @NonNull FrameReleaser<T> releaser){
+        if(capacity <= 0) throw new IllegalArgumentException("Frame ring capacity must be positive!");
+        mFrames = new Object[capacity];
+        mTimestamps = new long[capacity];
+        mReleaser = releaser;
+    }
+
+    /**
+     * Calculates ring capacity fitting memory cap
+     * @param requestedFrames  wanted frames count
+     * @param frameBytes       bytes held by a single frame
+     * @param maxBytes         memory cap for the whole ring
+     * @return                 capacity, at least 1
+     */
+    public static int capacityFor(int requestedFrames, long frameBytes, long maxBytes){
+        if(frameBytes <= 0) return Math.max(1, requestedFrames);
+        return (int) Math.max(1, Math.min(requestedFrames, maxBytes / frameBytes));
+    }
+
+    /**
+     * Adds a frame as the newest one, oldest frame is released when ring is full
+     * Timestamps are expected to be increasing
+     */
+    public synchronized void push(@NonNull T frame, long timestamp){
+        final int capacity = mFrames.length;
+        if(mSize == capacity){
+            release(mHead);
+            mHead = (mHead + 1) % capacity;
+            mSize--;
+        }
+        final int index = (mHead + mSize) % capacity;
+        mFrames[index] = frame;
+        mTimestamps[index] = timestamp;
+        mSize++;
+    }
+
+    /**
+     * Takes out the frame whose timestamp is closest to the given one
+     * Frames older than the taken one are released, since no later tap can be closer to them
+     * @param timestamp  target timestamp, same time base as pushed timestamps
+     * @return           closest frame or null if ring is empty
+     */
+    public synchronized Entry<T> takeClosest(long timestamp){
+        if(mSize == 0) return null;
+
+        final int capacity = mFrames.length;
+        int best = 0;
+        long bestDelta = Long.MAX_VALUE;
+        for(int i = 0; i < mSize; i++){
+            long delta = Math.abs(mTimestamps[(mHead + i) % capacity] - timestamp);
+            if(delta < bestDelta){
+                bestDelta = delta;
+                best = i;
+            }
+        }
+
+        // Release older frames
+        for(int i = 0; i < best; i++){
+            release(mHead);
+            mHead = (mHead + 1) % capacity;
+            mSize--;
+        }
+
+        final int index = mHead;
+        @SuppressWarnings("unchecked")
+        final Entry<T> entry = new Entry<>((T) mFrames[index], mTimestamps[index], mTimestamps[index] - timestamp);
+        mFrames[index] = null;
+        mHead = (mHead + 1) % capacity;
+        mSize--;
+        return entry;
+    }
+
+    /** Releases all frames **/
+    public synchronized void clear(){
+        while (mSize > 0){
+            release(mHead);
+            mHead = (mHead + 1) % mFrames.length;
+            mSize--;
+        }
+        mHead = 0;
+    }
+
+    /** @return current frames count **/
+    public synchronized int size(){
+        return mSize;
+    }
+
+    /** @return max frames count **/
+    public int capacity(){
+        return mFrames.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void release(int index){
+        final T frame = (T) mFrames[index];
+        mFrames[index] = null;
+        if(frame != null) mReleaser.release(frame);
+    }
+
+    /**
+     * Frame taken out of the ring
+     */
+    public static class Entry<T>{
+        public final T frame;
+        public final long timestamp;
+
+        /** Frame timestamp minus target timestamp, negative when frame is older than target **/
+        public final long deltaNanos;
+
+        Entry(T frame, long timestamp, long deltaNanos){
+            this.frame = frame;
+            this.timestamp = timestamp;
+            this.deltaNanos = deltaNanos;
+        }
+    }
+
+    /**
+     * Frees evicted frame buffers
+     */
+    public interface FrameReleaser<T>{
+        void release(@NonNull T frame);
+    }
+}
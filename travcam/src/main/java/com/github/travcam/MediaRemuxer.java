@@ -0,0 +1,290 @@
+package com.github.travcam;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Lossless trim and concatenation of MP4 recordings, SDK >= 26 only
+ *
+ * Encoded samples are copied from {@link MediaExtractor} to {@link MediaMuxer} without decoding,
+ * through a single direct buffer reused by all calls.
+ * Trims start at the key frame preceding the requested start, so no frame is re-encoded.
+ * Concatenated segments must share track formats, like recordings of the same camera and profile,
+ * including codec specific data: the muxer only writes the one of the first segment.
+ *
+ * Not thread safe, calls are expected on a single thread like {@link TravManager#getIoExecutor()}.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+public class MediaRemuxer {
+    private final static String VIDEO = "video/";
+    private final static String AUDIO = "audio/";
+
+    /** Codec specific data, like H.264 SPS and PPS or the AAC config **/
+    private final static String[] CSD_KEYS = {"csd-0", "csd-1", "csd-2"};
+
+    /** Initial sample buffer size, grown to the largest sample of the sources **/
+    private final static int INITIAL_BUFFER_BYTES = 1024 * 1024;
+
+    /** Gap inserted between segments when the video frame duration is unknown **/
+    private final static long DEFAULT_FRAME_US = 33_333;
+
+    /** Progress is reported at most this often **/
+    private final static float PROGRESS_STEP = 0.01f;
+
+    /** Reused sample buffer, null once released **/
+    private ByteBuffer mBuffer;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    /** Measurements **/
+    private long mLastBytes, mLastNanos;
+
+    /**
+     * Copies segments one after another into a new MP4
+     * @param segments  sources and their time ranges
+     * @param output    seekable, writable descriptor of the new MP4
+     * @param listener  progress listener, called on the calling thread
+     * @return          copied sample bytes
+     */
+    public long remux(@NonNull List<Segment> segments, @NonNull FileDescriptor output,
+                      @Nullable ProgressListener listener) throws IOException{
+        if(segments.isEmpty()) throw new IOException("Nothing to remux.");
+        final long start = System.nanoTime();
+        if(mBuffer == null) mBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+        final MediaMuxer muxer = new MediaMuxer(output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        long bytes = 0;
+        boolean started = false;
+        try {
+            // Total duration for progress, reading durations only parses MP4 headers
+            long totalUs = 0;
+            for(Segment segment : segments){
+                final MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(segment.mDescriptor);
+                    for(int i = 0; i < extractor.getTrackCount(); i++){
+                        final MediaFormat format = extractor.getTrackFormat(i);
+                        if(format.containsKey(MediaFormat.KEY_DURATION)){
+                            segment.mSourceDurationUs = Math.max(segment.mSourceDurationUs, format.getLong(MediaFormat.KEY_DURATION));
+                        }
+                    }
+                } finally {
+                    extractor.release();
+                }
+                totalUs += segment.getDurationUs();
+            }
+
+            int videoTrack = -1, audioTrack = -1;
+            MediaFormat videoFormat = null, audioFormat = null;
+            long offsetUs = 0, doneUs = 0;
+            float reported = -PROGRESS_STEP;
+
+            for(Segment segment : segments){
+                final MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(segment.mDescriptor);
+
+                    // Map source tracks to muxer tracks, created from the first segment
+                    final int[] targets = new int[extractor.getTrackCount()];
+                    int sourceVideo = -1;
+                    for(int i = 0; i < targets.length; i++){
+                        final MediaFormat format = extractor.getTrackFormat(i);
+                        final String mime = format.getString(MediaFormat.KEY_MIME);
+                        targets[i] = -1;
+                        if(mime == null) continue;
+                        ensureBuffer(format);
+                        if(mime.startsWith(VIDEO)){
+                            if(!started){
+                                videoFormat = format;
+                                videoTrack = muxer.addTrack(format);
+                                if(format.containsKey(MediaFormat.KEY_ROTATION)) muxer.setOrientationHint(format.getInteger(MediaFormat.KEY_ROTATION));
+                            }else if(!compatible(videoFormat, format)){
+                                throw new IOException("Incompatible video track, segments must share size and codec configuration: "+format);
+                            }
+                            targets[i] = videoTrack;
+                            sourceVideo = i;
+                        }else if(mime.startsWith(AUDIO)){
+                            if(!started){
+                                audioFormat = format;
+                                audioTrack = muxer.addTrack(format);
+                            }else if(!compatible(audioFormat, format)){
+                                throw new IOException("Incompatible audio track, segments must share sample rate, channels and codec configuration: "+format);
+                            }
+                            targets[i] = audioTrack;
+                        }
+                        if(targets[i] >= 0) extractor.selectTrack(i);
+                    }
+                    if(!started){
+                        if(videoTrack < 0 && audioTrack < 0) throw new IOException("No audio or video track.");
+                        muxer.start();
+                        started = true;
+                    }
+
+                    // Start on the key frame preceding the requested start
+                    extractor.seekTo(segment.mStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    long segmentStartUs = -1, lastOutUs = offsetUs, lastVideoUs = -1, frameUs = DEFAULT_FRAME_US;
+                    while(true){
+                        final int track = extractor.getSampleTrackIndex();
+                        if(track < 0) break;
+                        final long timeUs = extractor.getSampleTime();
+                        if(timeUs > segment.mEndUs) break;
+
+                        if(segmentStartUs < 0){
+                            // Key frame time, samples of other tracks before it are dropped
+                            if(sourceVideo >= 0 && track != sourceVideo){
+                                extractor.advance();
+                                continue;
+                            }
+                            segmentStartUs = timeUs;
+                        }
+                        if(timeUs < segmentStartUs){
+                            extractor.advance();
+                            continue;
+                        }
+
+                        final int size = extractor.readSampleData(mBuffer, 0);
+                        if(size < 0) break;
+                        mInfo.set(0, size, timeUs - segmentStartUs + offsetUs,
+                                (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                        muxer.writeSampleData(targets[track], mBuffer, mInfo);
+                        bytes += size;
+                        lastOutUs = Math.max(lastOutUs, mInfo.presentationTimeUs);
+                        if(track == sourceVideo){
+                            if(lastVideoUs >= 0 && timeUs > lastVideoUs) frameUs = timeUs - lastVideoUs;
+                            lastVideoUs = timeUs;
+                        }
+
+                        if(listener != null && totalUs > 0){
+                            final float progress = Math.min(1f, (float) (doneUs + timeUs - segmentStartUs) / totalUs);
+                            if(progress - reported >= PROGRESS_STEP){
+                                reported = progress;
+                                listener.onProgress(progress);
+                            }
+                        }
+                        if(!extractor.advance()) break;
+                    }
+
+                    // Next segment follows the last frame
+                    offsetUs = lastOutUs + frameUs;
+                    doneUs += segment.getDurationUs();
+                } finally {
+                    extractor.release();
+                }
+            }
+            muxer.stop();
+            if(listener != null) listener.onProgress(1f);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Remux exception: "+e.getMessage());
+        } finally {
+            muxer.release();
+        }
+
+        mLastBytes = bytes;
+        mLastNanos = System.nanoTime() - start;
+        return bytes;
+    }
+
+    /**
+     * Drops the reused buffer, next call allocates it again
+     * Must not be called while remuxing
+     */
+    public void releaseBuffer(){
+        mBuffer = null;
+    }
+
+    /**
+     * Grows the reused buffer to the largest sample of a track
+     */
+    private void ensureBuffer(MediaFormat format){
+        if(!format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) return;
+        final int max = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+        if(max > mBuffer.capacity()) mBuffer = ByteBuffer.allocateDirect(max);
+    }
+
+    /**
+     * Samples of both formats can share a muxer track
+     * Samples encoded with other codec specific data can't be decoded using the track one
+     */
+    static boolean compatible(@Nullable MediaFormat first, @NonNull MediaFormat other){
+        if(first == null) return false;
+        if(!first.getString(MediaFormat.KEY_MIME).equals(other.getString(MediaFormat.KEY_MIME))) return false;
+        for(String key : new String[]{MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT, MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT}){
+            if(first.containsKey(key) != other.containsKey(key)) return false;
+            if(first.containsKey(key) && first.getInteger(key) != other.getInteger(key)) return false;
+        }
+        for(String key : CSD_KEYS){
+            final ByteBuffer csd = first.containsKey(key) ? first.getByteBuffer(key) : null;
+            final ByteBuffer otherCsd = other.containsKey(key) ? other.getByteBuffer(key) : null;
+            // Compares remaining bytes, positions are left untouched
+            if(csd == null ? otherCsd != null : !csd.equals(otherCsd)) return false;
+        }
+        return true;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return bytes held by the reused sample buffer **/
+    public long getBufferBytes(){
+        final ByteBuffer buffer = mBuffer;
+        return buffer != null ? buffer.capacity() : 0;
+    }
+
+    /** @return sample bytes copied by last call **/
+    public long getLastBytes(){
+        return mLastBytes;
+    }
+
+    /** @return last call duration in milliseconds **/
+    public float getLastMillis(){
+        return mLastNanos / 1_000_000f;
+    }
+
+    /** @return last call throughput in megabytes per second **/
+    public float getLastMegabytesPerSecond(){
+        return mLastNanos == 0 ? 0 : mLastBytes * 1000f / mLastNanos;
+    }
+
+    /**
+     * Source recording and its time range
+     */
+    public static class Segment{
+        private final FileDescriptor mDescriptor;
+        private final long mStartUs, mEndUs;
+        private long mSourceDurationUs;
+
+        /**
+         * @param descriptor  readable source descriptor, kept open by the caller
+         * @param startUs     requested start, moved back to the preceding key frame
+         * @param endUs       end, {@link Long#MAX_VALUE} for the whole source
+         */
+        public Segment(@NonNull FileDescriptor descriptor, long startUs, long endUs){
+            mDescriptor = descriptor;
+            mStartUs = Math.max(0, startUs);
+            mEndUs = endUs;
+        }
+
+        long getDurationUs(){
+            return Math.max(0, Math.min(mEndUs, mSourceDurationUs) - mStartUs);
+        }
+    }
+
+    /**
+     * Remux progress
+     */
+    public interface ProgressListener{
+        /** @param progress  0 to 1 **/
+        void onProgress(float progress);
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.travcam;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.util.LruCache;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decodes captured media for review at the size it is displayed
+ *
+ * Encoded bytes and decoded bitmaps of recent captures are kept in two LRU caches sharing
+ * one memory budget, so review and retake cycles don't read storage again.
+ * Decodes use inSampleSize for the requested size and reuse bitmaps handed back by
+ * {@link #recycleBitmap(Bitmap)} through inBitmap. Zooming decodes regions only using
+ * {@link BitmapRegionDecoder}.
+ */
+public class MediaReviewCache {
+    /** Share of the budget used by encoded bytes, the rest is used by bitmaps **/
+    private final static float ENCODED_SHARE = 0.5f;
+
+    /** Max bytes held by bitmaps waiting to be reused **/
+    private final static int MAX_REUSE_POOL_BYTES = 16 * 1024 * 1024;
+
+    private final ContentResolver mResolver;
+    private final LruCache<String, byte[]> mEncoded;
+    private final LruCache<String, Bitmap> mDecoded;
+
+    /** Bitmaps no longer displayed, reused as inBitmap **/
+    private final ArrayList<Bitmap> mReusePool = new ArrayList<>();
+    private long mReusePoolBytes;
+
+    /** Region decoder of the media zoomed last **/
+    private BitmapRegionDecoder mRegionDecoder;
+    private String mRegionKey;
+
+    /** Measurements **/
+    private long mEncodedHits, mEncodedMisses, mDecodedHits, mDecodedMisses, mReused;
+    private long mDecodeCount, mDecodeNanos, mLastDecodeNanos;
+
+    /**
+     * @param resolver     used to read media not cached yet
+     * @param budgetBytes  memory budget of both caches
+     */
+    public MediaReviewCache(@NonNull ContentResolver resolver, int budgetBytes){
+        mResolver = resolver;
+        final int encodedBytes = encodedShareOf(budgetBytes);
+        mEncoded = new LruCache<String, byte[]>(encodedBytes){
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        mDecoded = new LruCache<String, Bitmap>(Math.max(1, budgetBytes - encodedBytes)){
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+    }
+
+    /**
+     * Caches encoded bytes of a capture, used right after storing it
+     * @param media  stored media
+     * @param bytes  its encoded bytes
+     */
+    public void put(@NonNull CapturedMedia media, @NonNull byte[] bytes){
+        final String key = keyOf(media);
+        if(key != null) mEncoded.put(key, bytes);
+    }
+
+    /**
+     * Drops everything cached for a media, like when it is deleted
+     */
+    public synchronized void remove(@NonNull CapturedMedia media){
+        final String key = keyOf(media);
+        if(key == null) return;
+        mEncoded.remove(key);
+        final String prefix = key + "@";
+        for(String decodedKey : mDecoded.snapshot().keySet()){
+            if(decodedKey.startsWith(prefix)) mDecoded.remove(decodedKey);
+        }
+        if(key.equals(mRegionKey)) releaseRegionDecoder();
+    }
+
+    /**
+     * @return encoded bytes of media, from cache when available
+     */
+    @NonNull
+    public byte[] getBytes(@NonNull CapturedMedia media) throws IOException{
+        final String key = keyOf(media);
+        if(key != null){
+            final byte[] cached = mEncoded.get(key);
+            if(cached != null){
+                countEncoded(true);
+                return cached;
+            }
+        }
+        countEncoded(false);
+
+        final byte[] bytes;
+        final ByteBuffer buffer = media.getBuffer();
+        if(buffer != null){
+            bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+        }else if(key != null){
+            bytes = read(media.getUri());
+        }else{
+            throw new IOException("Media has no readable content.");
+        }
+        if(key != null) mEncoded.put(key, bytes);
+        return bytes;
+    }
+
+    /**
+     * Decodes media at least as large as the requested size, keeping its aspect ratio
+     * @param media      captured image
+     * @param reqWidth   displayed width
+     * @param reqHeight  displayed height
+     * @return           decoded bitmap, shared with the cache, don't recycle it while cached
+     */
+    @Nullable
+    public Bitmap decode(@NonNull CapturedMedia media, int reqWidth, int reqHeight) throws IOException{
+        final String key = keyOf(media);
+        final String decodedKey = key != null ? key + "@" + reqWidth + "x" + reqHeight : null;
+        if(decodedKey != null){
+            final Bitmap cached = mDecoded.get(decodedKey);
+            if(cached != null){
+                countDecoded(true);
+                return cached;
+            }
+        }
+        countDecoded(false);
+
+        final byte[] bytes = getBytes(media);
+        final long start = System.nanoTime();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if(options.outWidth <= 0) return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight, reqWidth, reqHeight);
+        options.inMutable = true;
+        final Bitmap bitmap = decodeReusing(bytes, options);
+        recordDecode(System.nanoTime() - start);
+
+        if(bitmap != null && decodedKey != null) mDecoded.put(decodedKey, bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a region of media for zooming, sampled down to about the requested size
+     * Region decoder is kept for the media zoomed last
+     * @param media      captured image
+     * @param region     region in full resolution coordinates
+     * @param reqWidth   displayed width
+     * @param reqHeight  displayed height
+     * @return           decoded region, not cached
+     */
+    @Nullable
+    public synchronized Bitmap decodeRegion(@NonNull CapturedMedia media, @NonNull Rect region,
+                                            int reqWidth, int reqHeight) throws IOException{
+        final String key = keyOf(media);
+        if(mRegionDecoder == null || key == null || !key.equals(mRegionKey)){
+            releaseRegionDecoder();
+            final byte[] bytes = getBytes(media);
+            //noinspection deprecation
+            mRegionDecoder = BitmapRegionDecoder.newInstance(bytes, 0, bytes.length, false);
+            mRegionKey = key;
+        }
+
+        final long start = System.nanoTime();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSizeFor(region.width(), region.height(), reqWidth, reqHeight);
+        final Bitmap bitmap = mRegionDecoder.decodeRegion(region, options);
+        recordDecode(System.nanoTime() - start);
+        return bitmap;
+    }
+
+    /**
+     * Hands back a bitmap which is no longer displayed so later decodes can reuse it
+     * Cached bitmaps are removed from the cache first
+     */
+    public synchronized void recycleBitmap(@NonNull Bitmap bitmap){
+        if(!bitmap.isMutable() || bitmap.isRecycled()) return;
+        for(Map.Entry<String, Bitmap> entry : mDecoded.snapshot().entrySet()){
+            if(entry.getValue() == bitmap) mDecoded.remove(entry.getKey());
+        }
+        if(mReusePoolBytes + bitmap.getAllocationByteCount() > MAX_REUSE_POOL_BYTES) return;
+        mReusePool.add(bitmap);
+        mReusePoolBytes += bitmap.getAllocationByteCount();
+    }
+
+    /**
+     * Drops all cached bytes, bitmaps and decoders
+     */
+    public synchronized void clear(){
+        mEncoded.evictAll();
+        mDecoded.evictAll();
+        mReusePool.clear();
+        mReusePoolBytes = 0;
+        releaseRegionDecoder();
+    }
+
+    /**
+     * Changes the memory budget of both caches, entries above it are evicted right away
+     * Bitmaps waiting to be reused are dropped when the budget shrinks below current usage
+     * @param budgetBytes  new memory budget
+     */
+    public synchronized void setBudget(int budgetBytes){
+        if(getUsedBytes() + mReusePoolBytes > budgetBytes){
+            mReusePool.clear();
+            mReusePoolBytes = 0;
+            releaseRegionDecoder();
+        }
+        final int encodedBytes = encodedShareOf(budgetBytes);
+        mEncoded.resize(encodedBytes);
+        mDecoded.resize(Math.max(1, budgetBytes - encodedBytes));
+    }
+
+    private static int encodedShareOf(int budgetBytes){
+        return Math.max(1, (int) (budgetBytes * ENCODED_SHARE));
+    }
+
+    private synchronized Bitmap decodeReusing(byte[] bytes, BitmapFactory.Options options){
+        // Pooled bitmap large enough for the sampled decode
+        final long needed = (long) ceilDiv(options.outWidth, options.inSampleSize)
+                * ceilDiv(options.outHeight, options.inSampleSize) * 4;
+        final Iterator<Bitmap> iterator = mReusePool.iterator();
+        while(iterator.hasNext()){
+            final Bitmap candidate = iterator.next();
+            if(candidate.getAllocationByteCount() >= needed){
+                iterator.remove();
+                mReusePoolBytes -= candidate.getAllocationByteCount();
+                options.inBitmap = candidate;
+                break;
+            }
+        }
+
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            if(options.inBitmap != null) mReused++;
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+    }
+
+    private void releaseRegionDecoder(){
+        if(mRegionDecoder != null){
+            mRegionDecoder.recycle();
+            mRegionDecoder = null;
+        }
+        mRegionKey = null;
+    }
+
+    private byte[] read(Uri uri) throws IOException{
+        try (InputStream stream = mResolver.openInputStream(uri)) {
+            if(stream == null) throw new IOException("Failed to open input stream.");
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(32, stream.available()));
+            final byte[] chunk = new byte[64 * 1024];
+            int read;
+            while((read = stream.read(chunk)) != -1) bos.write(chunk, 0, read);
+            return bos.toByteArray();
+        }
+    }
+
+    /**
+     * @return cache key, null for media without a Uri
+     */
+    private static String keyOf(CapturedMedia media){
+        return Uri.EMPTY.equals(media.getUri()) ? null : media.getUri().toString();
+    }
+
+    /**
+     * @return largest power of two keeping the decoded size at least the requested size
+     */
+    static int sampleSizeFor(int width, int height, int reqWidth, int reqHeight){
+        int sampleSize = 1;
+        if(reqWidth <= 0 || reqHeight <= 0) return sampleSize;
+        while(width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) sampleSize *= 2;
+        return sampleSize;
+    }
+
+    private static int ceilDiv(int value, int divisor){
+        return (value + divisor - 1) / divisor;
+    }
+
+    private synchronized void countEncoded(boolean hit){
+        if(hit) mEncodedHits++; else mEncodedMisses++;
+    }
+
+    private synchronized void countDecoded(boolean hit){
+        if(hit) mDecodedHits++; else mDecodedMisses++;
+    }
+
+    private synchronized void recordDecode(long nanos){
+        mDecodeCount++;
+        mDecodeNanos += nanos;
+        mLastDecodeNanos = nanos;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return share of encoded bytes requests served from memory **/
+    public synchronized float getEncodedHitRate(){
+        final long total = mEncodedHits + mEncodedMisses;
+        return total == 0 ? 0 : (float) mEncodedHits / total;
+    }
+
+    /** @return share of decode requests served from memory **/
+    public synchronized float getDecodedHitRate(){
+        final long total = mDecodedHits + mDecodedMisses;
+        return total == 0 ? 0 : (float) mDecodedHits / total;
+    }
+
+    /** @return decodes which reused a recycled bitmap **/
+    public synchronized long getReusedBitmapCount(){
+        return mReused;
+    }
+
+    /** @return average decode time in milliseconds **/
+    public synchronized float getAverageDecodeMillis(){
+        return mDecodeCount == 0 ? 0 : mDecodeNanos / 1_000_000f / mDecodeCount;
+    }
+
+    /** @return last decode time **/
+    public synchronized long getLastDecodeNanos(){
+        return mLastDecodeNanos;
+    }
+
+    /** @return bytes currently used by both caches **/
+    public int getUsedBytes(){
+        return mEncoded.size() + mDecoded.size();
+    }
+
+    /** @return bytes held by bitmaps waiting to be reused **/
+    public synchronized long getReusePoolBytes(){
+        return mReusePoolBytes;
+    }
+}
@@ -0,0 +1,295 @@
+package com.github.travcam;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.os.Bundle;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces {@link MediaStore} binder transactions of captures, SDK >= 29 only
+ *
+ * Inserts:
+ * Pending (IS_PENDING = 1) entries are reserved ahead, {@link #RESERVE_BATCH} at a time
+ * using a single {@link ContentResolver#applyBatch(String, ArrayList)} call.
+ * A capture takes a reserved entry, writes its content, then calls {@link #publish(Uri, ContentValues)}.
+ *
+ * Updates:
+ * Publishing (final name, dates and IS_PENDING = 0) is applied right away, so a capture
+ * reported to the host already has its final name and path and is visible to other apps.
+ * Discarding is queued and applied in one batch once {@link #mFlushCount} operations
+ * are queued or {@link #mFlushWindowMs} elapsed, failures are reported to {@link ErrorListener}.
+ *
+ * Reserved entries left by a process that died are deleted before a collection is first reserved in.
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class MediaStorePublisher {
+    private final static String TAG = "MediaStorePublisher";
+
+    /** Pending entries inserted per reservation batch **/
+    private final static int RESERVE_BATCH = 4;
+
+    /** Placeholder display name of reserved entries **/
+    private final static String RESERVED_NAME_PREFIX = ".trav_pending_";
+
+    private final ContentResolver mResolver;
+    private final ScheduledExecutorService mExecutor;
+
+    /** Flush triggers **/
+    private final int mFlushCount;
+    private final long mFlushWindowMs;
+
+    /** Reserved entries per collection, relative path and mime type **/
+    private final Map<String, ArrayDeque<Uri>> mReserved = new HashMap<>();
+
+    /** Collections cleared of stale reserved entries by this process **/
+    private final Set<Uri> mSwept = new HashSet<>();
+
+    /** Queued discard operations **/
+    private final ArrayList<ContentProviderOperation> mQueue = new ArrayList<>();
+    private ScheduledFuture<?> mScheduledFlush;
+
+    /** Informed of failed flushes **/
+    private volatile ErrorListener mErrorListener;
+
+    /** Measurements **/
+    private long mTransactions, mPublished;
+
+    /**
+     * @param resolver       content resolver
+     * @param executor       executor running time window flushes
+     * @param flushCount     queued operations count triggering a flush
+     * @param flushWindowMs  max time an operation stays queued
+     */
+    public MediaStorePublisher(@NonNull ContentResolver resolver, @NonNull ScheduledExecutorService executor,
+                               int flushCount, long flushWindowMs){
+        mResolver = resolver;
+        mExecutor = executor;
+        mFlushCount = Math.max(1, flushCount);
+        mFlushWindowMs = Math.max(0, flushWindowMs);
+    }
+
+    /**
+     * Takes a reserved pending entry, reserving a new batch when none is left
+     * @param collection    MediaStore collection Uri
+     * @param relativePath  entry relative path
+     * @param mimeType      entry mime type
+     * @return              pending entry Uri, ready to be written
+     */
+    public synchronized Uri acquire(@NonNull Uri collection, @NonNull String relativePath, @NonNull String mimeType) throws IOException{
+        final String key = collection + "|" + relativePath + "|" + mimeType;
+        ArrayDeque<Uri> reserved = mReserved.get(key);
+        if(reserved == null){
+            reserved = new ArrayDeque<>();
+            mReserved.put(key, reserved);
+        }
+
+        if(reserved.isEmpty()){
+            if(mSwept.add(collection)) sweep(collection);
+            final ArrayList<ContentProviderOperation> operations = new ArrayList<>(RESERVE_BATCH);
+            final long now = System.nanoTime();
+            for(int i = 0; i < RESERVE_BATCH; i++){
+                operations.add(ContentProviderOperation.newInsert(collection)
+                        .withValue(MediaStore.MediaColumns.DISPLAY_NAME, RESERVED_NAME_PREFIX + now + "_" + i)
+                        .withValue(MediaStore.MediaColumns.RELATIVE_PATH, relativePath)
+                        .withValue(MediaStore.MediaColumns.MIME_TYPE, mimeType)
+                        .withValue(MediaStore.MediaColumns.IS_PENDING, 1)
+                        .build());
+            }
+            for(ContentProviderResult result : applyBatch(operations)){
+                if(result.uri != null) reserved.add(result.uri);
+            }
+            if(reserved.isEmpty()) throw new IOException("Failed to reserve MediaStore records.");
+        }
+        return reserved.poll();
+    }
+
+    /**
+     * Publishes a written entry now, its final name and path are set once this returns
+     * @param uri     entry acquired using {@link #acquire(Uri, String, String)}
+     * @param values  final values like display name and dates, IS_PENDING is cleared
+     */
+    public synchronized void publish(@NonNull Uri uri, @NonNull ContentValues values) throws IOException{
+        final ContentValues published = new ContentValues(values);
+        published.put(MediaStore.MediaColumns.IS_PENDING, 0);
+        mTransactions++;
+        final int updated;
+        try {
+            updated = mResolver.update(uri, published, null, null);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("MediaStore publish exception: "+e.getMessage());
+        }
+        if(updated == 0) throw new IOException("Failed to publish MediaStore record.");
+        mPublished++;
+    }
+
+    /**
+     * Queues deletion of an entry whose content couldn't be written
+     */
+    public synchronized void discard(@NonNull Uri uri){
+        mQueue.add(ContentProviderOperation.newDelete(uri).build());
+        onQueued();
+    }
+
+    /**
+     * Deletes entries now using a single batch, like bulk cleanups
+     * @param uris  entries to be deleted
+     * @return      deleted entries count
+     */
+    public synchronized int delete(@NonNull List<Uri> uris){
+        if(uris.isEmpty()) return 0;
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(uris.size());
+        for(Uri uri : uris) operations.add(ContentProviderOperation.newDelete(uri).build());
+        int deleted = 0;
+        try {
+            for(ContentProviderResult result : applyBatch(operations)){
+                if(result.count != null) deleted += result.count;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Delete exception: "+e.getMessage());
+        }
+        return deleted;
+    }
+
+    /**
+     * Counts a transaction made outside of the publisher for a publisher entry, like opening its stream
+     */
+    public synchronized void countTransaction(){
+        mTransactions++;
+    }
+
+    /**
+     * Deletes reserved entries never published nor discarded, left by a process that died
+     * Called before this process reserves its first entries in the collection
+     * @param collection  MediaStore collection Uri
+     * @return            deleted entries count
+     */
+    @SuppressWarnings("deprecation")
+    private int sweep(@NonNull Uri collection){
+        // Underscores are LIKE wildcards
+        final String selection = MediaStore.MediaColumns.DISPLAY_NAME + " LIKE ? ESCAPE '\\' AND "
+                + MediaStore.MediaColumns.IS_PENDING + " = 1";
+        final String[] args = {RESERVED_NAME_PREFIX.replace("_", "\\_") + "%"};
+        mTransactions++;
+        try {
+            // Pending entries are hidden from queries unless asked for
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R){
+                final Bundle extras = new Bundle();
+                extras.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+                extras.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, args);
+                extras.putInt(MediaStore.QUERY_ARG_MATCH_PENDING, MediaStore.MATCH_INCLUDE);
+                return mResolver.delete(collection, extras);
+            }
+            return mResolver.delete(MediaStore.setIncludePending(collection), selection, args);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.d(TAG, "Sweep exception: "+e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Applies queued operations now
+     * Failures are reported to {@link ErrorListener}, entries left pending are swept on next process start
+     */
+    public synchronized void flush(){
+        if(mScheduledFlush != null){
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        if(mQueue.isEmpty()) return;
+
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>(mQueue);
+        mQueue.clear();
+        try {
+            applyBatch(operations);
+        } catch (IOException e) {
+            Log.d(TAG, "Flush exception: "+e.getMessage());
+            final ErrorListener listener = mErrorListener;
+            if(listener != null) listener.onFlushError(e.getMessage());
+        }
+    }
+
+    /**
+     * @param listener  informed of failed flushes, called on the flushing thread
+     */
+    public void setErrorListener(@Nullable ErrorListener listener){
+        mErrorListener = listener;
+    }
+
+    /**
+     * Flushes queued operations and deletes unused reserved entries
+     * Publisher can still be used afterwards
+     */
+    public synchronized void close(){
+        for(ArrayDeque<Uri> reserved : mReserved.values()){
+            for(Uri uri : reserved) mQueue.add(ContentProviderOperation.newDelete(uri).build());
+            reserved.clear();
+        }
+        flush();
+    }
+
+    private void onQueued(){
+        if(mQueue.size() >= mFlushCount){
+            flush();
+        }else if(mScheduledFlush == null){
+            mScheduledFlush = mExecutor.schedule(this::flush, mFlushWindowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws IOException{
+        mTransactions++;
+        try {
+            return mResolver.applyBatch(MediaStore.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("MediaStore batch exception: "+e.getMessage());
+        }
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return binder transactions made for publisher entries **/
+    public synchronized long getTransactions(){
+        return mTransactions;
+    }
+
+    /** @return published entries count **/
+    public synchronized long getPublishedCount(){
+        return mPublished;
+    }
+
+    /** @return average binder transactions per published capture **/
+    public synchronized float getTransactionsPerCapture(){
+        return mPublished == 0 ? 0 : (float) mTransactions / mPublished;
+    }
+
+    /**
+     * Failed flush listener
+     */
+    public interface ErrorListener{
+        void onFlushError(@NonNull String message);
+    }
+}
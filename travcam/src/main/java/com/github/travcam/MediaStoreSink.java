@@ -0,0 +1,139 @@
+package com.github.travcam;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.MediaStore;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stores captures in the shared DCIM collection using {@link MediaStore}, SDK >= 29
+ * Entries are reserved in batches and published by {@link MediaStorePublisher}
+ */
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class MediaStoreSink implements StorageSink {
+    private final static String TAG = "MediaStoreSink";
+
+    private final ContentResolver mResolver;
+    private final MediaStorePublisher mPublisher;
+
+    public MediaStoreSink(@NonNull ContentResolver resolver, @NonNull MediaStorePublisher publisher){
+        mResolver = resolver;
+        mPublisher = publisher;
+    }
+
+    @NonNull
+    @Override
+    public Output open(@NonNull TravManager.ScopedFileType type, @NonNull String fileName,
+                       @NonNull String mimeType, long timestamp) throws IOException {
+        final Uri collection = type == TravManager.ScopedFileType.IMAGE
+                ? MediaStore.Images.Media.EXTERNAL_CONTENT_URI
+                : MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+        final String path = Environment.DIRECTORY_DCIM + File.separator + type;
+
+        // Reserved pending entry, inserted ahead in a batch
+        final Uri uri = mPublisher.acquire(collection, path, mimeType);
+        return new MediaStoreOutput(new CapturedMedia(uri, ContentUris.parseId(uri), type, mimeType,
+                fileName, 0, timestamp, null, mResolver, this));
+    }
+
+    @Override
+    public boolean supportsDescriptor() {
+        return true;
+    }
+
+    @Override
+    public boolean delete(@NonNull CapturedMedia media) {
+        return mResolver.delete(media.getUri(), null, null) > 0;
+    }
+
+    /**
+     * Writes a reserved pending entry, published on commit
+     */
+    private class MediaStoreOutput implements Output {
+        private final CapturedMedia mMedia;
+        private CountingOutputStream mStream;
+        private ParcelFileDescriptor mDescriptor;
+
+        MediaStoreOutput(CapturedMedia media){
+            mMedia = media;
+        }
+
+        @NonNull
+        @Override
+        public OutputStream openStream() throws IOException {
+            if(mStream == null){
+                mPublisher.countTransaction();
+                final OutputStream stream = mResolver.openOutputStream(mMedia.getUri());
+                if(stream == null) throw new IOException("Failed to open output stream.");
+                mStream = new CountingOutputStream(stream);
+            }
+            return mStream;
+        }
+
+        @NonNull
+        @Override
+        public FileDescriptor openDescriptor() throws IOException {
+            if(mDescriptor == null){
+                mPublisher.countTransaction();
+                mDescriptor = mResolver.openFileDescriptor(mMedia.getUri(), "rw");
+                if(mDescriptor == null) throw new IOException("Failed to open file descriptor.");
+            }
+            return mDescriptor.getFileDescriptor();
+        }
+
+        @NonNull
+        @Override
+        public CapturedMedia getPendingMedia() {
+            return mMedia;
+        }
+
+        @NonNull
+        @Override
+        public CapturedMedia commit() throws IOException {
+            long size = 0;
+            if(mStream != null){
+                mStream.close();
+                size = mStream.getCount();
+            }
+            if(mDescriptor != null){
+                size = Math.max(size, mDescriptor.getStatSize());
+                mDescriptor.close();
+            }
+
+            // Final values, applied before the capture is reported so its name and path are final
+            final long timestamp = mMedia.getTimestamp();
+            final ContentValues values = new ContentValues();
+            values.put(MediaStore.MediaColumns.DISPLAY_NAME, mMedia.getDisplayName());
+            values.put(MediaStore.MediaColumns.DATE_TAKEN, timestamp);
+            if(mMedia.getType() == TravManager.ScopedFileType.VIDEO){
+                values.put(MediaStore.Video.Media.TITLE, mMedia.getDisplayName());
+                values.put(MediaStore.Video.Media.DATE_ADDED, timestamp / 1000);
+            }
+            mPublisher.publish(mMedia.getUri(), values);
+            return mMedia.withSize(size);
+        }
+
+        @Override
+        public void abort() {
+            try {
+                if(mStream != null) mStream.close();
+                if(mDescriptor != null) mDescriptor.close();
+            } catch (IOException e) {
+                Log.d(TAG, "Abort exception: "+e.getMessage());
+            }
+            // Don't leave an orphan entry in the MediaStore
+            mPublisher.discard(mMedia.getUri());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.github.travcam;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits a memory budget between TravCam's buffer consumers and shrinks them under memory pressure
+ *
+ * The total budget follows {@link ActivityManager#getMemoryClass()}, halved on low RAM devices,
+ * and every {@link Kind} gets a fixed share of it. Consumers size themselves from {@link #getBudget(Kind)}
+ * when they allocate and are told about every budget change through {@link Consumer#onBudget(long)}.
+ *
+ * {@link #onTrimMemory(int)} scales all budgets down with the trim level, consumers above their
+ * budget release what isn't in use. {@link #relax()} restores full budgets, like when resumed.
+ */
+public class MemoryGovernor {
+    private final static String TAG = "MemoryGovernor";
+
+    /**
+     * Multiple of memory class used by TravCam, normal and low RAM devices
+     * Most buffers are graphic or native memory, memory class only tells the memory tier of the device
+     **/
+    private final static float MEMORY_CLASS_SHARE = 1f;
+    private final static float LOW_RAM_MEMORY_CLASS_SHARE = 0.5f;
+
+    /**
+     * Buffer consumers and their share of the total budget
+     */
+    public enum Kind {
+        /** Camera outputs, still, analysis and burst ImageReaders **/
+        IMAGE_READERS(0.15f),
+        /** Zero shutter lag frames ring **/
+        FRAME_RING(0.4f),
+        /** Review cache, encoded bytes and decoded bitmaps **/
+        REVIEW_CACHE(0.15f),
+        /** Multi-frame merge and remux buffers **/
+        PROCESSING_BUFFERS(0.3f);
+
+        private final float mShare;
+
+        Kind(float share){
+            mShare = share;
+        }
+    }
+
+    /**
+     * Buffer owner registered using {@link #register(Kind, Consumer)}
+     */
+    public interface Consumer {
+        /** @return bytes held right now **/
+        long getUsedBytes();
+
+        /**
+         * Called whenever the budget of its kind changes, on the thread calling {@link #onTrimMemory(int)}
+         * or {@link #relax()}, consumers owned by another thread hand the change over to it
+         * Consumers above the budget release buffers which aren't in use, later allocations fit the budget
+         * @param budgetBytes  new budget of the consumer kind
+         */
+        void onBudget(long budgetBytes);
+    }
+
+    private final long mTotalBytes;
+    private final Map<Kind, List<Consumer>> mConsumers = new EnumMap<>(Kind.class);
+
+    /** Budgets scale, 1 without memory pressure **/
+    private float mPressure = 1f;
+
+    /** Measurements **/
+    private int mLastTrimLevel;
+    private long mTrimCount;
+
+    /**
+     * @param totalBytes  budget split between all kinds
+     */
+    public MemoryGovernor(long totalBytes){
+        mTotalBytes = Math.max(0, totalBytes);
+    }
+
+    /**
+     * @return governor sized by the app memory class, smaller on low RAM devices
+     */
+    @NonNull
+    public static MemoryGovernor forContext(@NonNull Context context){
+        final ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final boolean lowRam = manager.isLowRamDevice();
+        final long classBytes = manager.getMemoryClass() * 1024L * 1024L;
+        final long total = (long) (classBytes * (lowRam ? LOW_RAM_MEMORY_CLASS_SHARE : MEMORY_CLASS_SHARE));
+        Log.d(TAG, "Memory class: "+manager.getMemoryClass()+" MB, low RAM: "+lowRam+", budget: "+(total / 1024)+" KB");
+        return new MemoryGovernor(total);
+    }
+
+    /**
+     * Registers a consumer, it is told its current budget right away
+     */
+    public void register(@NonNull Kind kind, @NonNull Consumer consumer){
+        final long budget;
+        synchronized (this){
+            List<Consumer> consumers = mConsumers.get(kind);
+            if(consumers == null){
+                consumers = new ArrayList<>();
+                mConsumers.put(kind, consumers);
+            }
+            consumers.add(consumer);
+            budget = getBudget(kind);
+        }
+        consumer.onBudget(budget);
+    }
+
+    /**
+     * Stops telling a consumer about budget changes
+     */
+    public synchronized void unregister(@NonNull Kind kind, @NonNull Consumer consumer){
+        final List<Consumer> consumers = mConsumers.get(kind);
+        if(consumers != null) consumers.remove(consumer);
+    }
+
+    /**
+     * @return current budget of a kind in bytes, shrunk under memory pressure
+     */
+    public synchronized long getBudget(@NonNull Kind kind){
+        return (long) (mTotalBytes * kind.mShare * mPressure);
+    }
+
+    /**
+     * Count of same size buffers fitting a kind budget, like ImageReader max images or ring frames
+     * @param kind         consumer kind
+     * @param bufferBytes  bytes of a single buffer
+     * @param wanted       count wanted without memory limits
+     * @return             count between 0 and wanted, 0 when not even one buffer fits
+     */
+    public synchronized int maxBuffersFor(@NonNull Kind kind, long bufferBytes, int wanted){
+        if(bufferBytes <= 0) return wanted;
+        return (int) Math.max(0, Math.min(wanted, getBudget(kind) / bufferBytes));
+    }
+
+    /**
+     * Shrinks budgets with the trim level, must be forwarded from host's
+     * {@link ComponentCallbacks2#onTrimMemory(int)}
+     * Budgets are only lowered, {@link #relax()} restores them
+     * @param level  trim level
+     */
+    public void onTrimMemory(int level){
+        final float pressure = pressureFor(level);
+        synchronized (this){
+            mLastTrimLevel = level;
+            if(pressure >= mPressure) return;
+            mPressure = pressure;
+            mTrimCount++;
+        }
+        Log.d(TAG, "Trim level "+level+", budgets scaled to "+pressure+", used before: "+(getUsedBytes() / 1024)+" KB");
+        dispatchBudgets();
+    }
+
+    /**
+     * Restores full budgets, like when host is resumed
+     */
+    public void relax(){
+        synchronized (this){
+            if(mPressure == 1f) return;
+            mPressure = 1f;
+        }
+        dispatchBudgets();
+    }
+
+    /**
+     * @return budgets scale for a trim level, 0 drops every optional buffer
+     */
+    static float pressureFor(int level){
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) return 0f;
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) return 0.25f;
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return 0.5f;
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) return 0.75f;
+        return 1f;
+    }
+
+    /**
+     * Tells every consumer its budget, outside of the lock since consumers may release buffers
+     */
+    private void dispatchBudgets(){
+        final Map<Kind, List<Consumer>> snapshot = new EnumMap<>(Kind.class);
+        final Map<Kind, Long> budgets = new EnumMap<>(Kind.class);
+        synchronized (this){
+            for(Map.Entry<Kind, List<Consumer>> entry : mConsumers.entrySet()){
+                snapshot.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+                budgets.put(entry.getKey(), getBudget(entry.getKey()));
+            }
+        }
+        for(Map.Entry<Kind, List<Consumer>> entry : snapshot.entrySet()){
+            final long budget = budgets.get(entry.getKey());
+            for(Consumer consumer : entry.getValue()) consumer.onBudget(budget);
+        }
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return total budget without memory pressure **/
+    public long getTotalBytes(){
+        return mTotalBytes;
+    }
+
+    /** @return bytes currently held by consumers of a kind **/
+    public long getUsedBytes(@NonNull Kind kind){
+        final List<Consumer> consumers;
+        synchronized (this){
+            final List<Consumer> registered = mConsumers.get(kind);
+            if(registered == null) return 0;
+            consumers = new ArrayList<>(registered);
+        }
+        long used = 0;
+        for(Consumer consumer : consumers) used += consumer.getUsedBytes();
+        return used;
+    }
+
+    /** @return bytes currently held by all consumers **/
+    public long getUsedBytes(){
+        long used = 0;
+        for(Kind kind : Kind.values()) used += getUsedBytes(kind);
+        return used;
+    }
+
+    /** @return budgets scale, 1 without memory pressure **/
+    public synchronized float getPressure(){
+        return mPressure;
+    }
+
+    /** @return last trim level received **/
+    public synchronized int getLastTrimLevel(){
+        return mLastTrimLevel;
+    }
+
+    /** @return times budgets were lowered **/
+    public synchronized long getTrimCount(){
+        return mTrimCount;
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.travcam;
+
+import androidx.annotation.NonNull;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps encoded captures in memory, {@link CapturedMedia#getBuffer()} returns the bytes
+ * Nothing is written to storage, recording and HEIC aren't supported
+ */
+public class MemorySink implements StorageSink {
+    /** Default initial buffer size, grows when exceeded **/
+    private final static int DEFAULT_INITIAL_BYTES = 1024 * 1024;
+
+    private final int mInitialBytes;
+
+    public MemorySink(){
+        this(DEFAULT_INITIAL_BYTES);
+    }
+
+    /**
+     * @param initialBytes  initial buffer size, expected encoded capture size avoids buffer growth
+     */
+    public MemorySink(int initialBytes){
+        mInitialBytes = Math.max(1024, initialBytes);
+    }
+
+    @NonNull
+    @Override
+    public Output open(@NonNull TravManager.ScopedFileType type, @NonNull String fileName,
+                       @NonNull String mimeType, long timestamp) {
+        return new MemoryOutput(CapturedMedia.fromBuffer(null, type, mimeType, fileName, 0, timestamp, this), mInitialBytes);
+    }
+
+    @Override
+    public boolean supportsDescriptor() {
+        return false;
+    }
+
+    @Override
+    public boolean delete(@NonNull CapturedMedia media) {
+        // Nothing stored, bytes are released with the media
+        return true;
+    }
+
+    /**
+     * Collects bytes, committed media wraps the collected array without copying it
+     */
+    private class MemoryOutput extends ByteArrayOutputStream implements Output {
+        private final CapturedMedia mMedia;
+
+        MemoryOutput(CapturedMedia media, int initialBytes){
+            super(initialBytes);
+            mMedia = media;
+        }
+
+        @NonNull
+        @Override
+        public OutputStream openStream() {
+            return this;
+        }
+
+        @NonNull
+        @Override
+        public FileDescriptor openDescriptor() throws IOException {
+            throw new IOException("Memory sink has no file descriptor.");
+        }
+
+        @NonNull
+        @Override
+        public CapturedMedia getPendingMedia() {
+            return mMedia;
+        }
+
+        @NonNull
+        @Override
+        public synchronized CapturedMedia commit() {
+            return CapturedMedia.fromBuffer(ByteBuffer.wrap(buf, 0, count).slice(), mMedia.getType(), mMedia.getMimeType(),
+                    mMedia.getDisplayName(), count, mMedia.getTimestamp(), MemorySink.this);
+        }
+
+        @Override
+        public synchronized void abort() {
+            reset();
+        }
+    }
+}
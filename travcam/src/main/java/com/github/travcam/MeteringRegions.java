@@ -0,0 +1,316 @@
+package com.github.travcam;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tap to focus and metering regions, from preview coordinates to sensor active array regions
+ *
+ * Touches are given normalized in the natural display orientation, they are rotated by the sensor
+ * orientation, mirrored for front cameras and mapped into the part of the active array seen by the
+ * preview stream.
+ *
+ * Touches can be sent from any thread, only the latest pending touch is applied when the next preview
+ * result arrives, so rapid touches cost a single request update per frame. The applied touch is used
+ * as the tag of its AF trigger request, touch to converged latency is counted from results following it.
+ */
+public class MeteringRegions {
+    private final static String TAG = "MeteringRegions";
+
+    /** Region side, fraction of the shorter side of the preview field of view **/
+    private final static float DEFAULT_REGION_SIZE = 0.15f;
+
+    /** Stop waiting for convergence after **/
+    private final static long CONVERGE_TIMEOUT_MS = 3000;
+
+    /**
+     * Touch waiting for the next preview frame, also the tag of its AF trigger request
+     */
+    public static class Touch{
+        /** Sensor normalized coordinates, 0 to 1 **/
+        public final float sensorX, sensorY;
+        /** {@link System#nanoTime()} of the touch **/
+        public final long touchNanos;
+
+        Touch(float sensorX, float sensorY, long touchNanos){
+            this.sensorX = sensorX;
+            this.sensorY = sensorY;
+            this.touchNanos = touchNanos;
+        }
+    }
+
+    /** Sensor geometry **/
+    private Rect mFieldOfView;
+    private int mSensorOrientation;
+    private boolean mMirrored;
+    private int mMaxAfRegions, mMaxAeRegions;
+    private float mRegionSize = DEFAULT_REGION_SIZE;
+
+    private final AtomicReference<Touch> mPending = new AtomicReference<>();
+
+    /** Applied regions, written on the camera thread only **/
+    private volatile Touch mActive, mAwaiting;
+    private boolean mTriggerSeen;
+    private volatile MeteringRectangle[] mAfRegions, mAeRegions;
+
+    /** Measurements, updates and convergence are counted on the camera thread **/
+    private final AtomicLong mTouches = new AtomicLong(), mCoalesced = new AtomicLong();
+    private volatile long mUpdates, mConverged, mTimeouts;
+    private volatile long mLastLatencyNanos, mLatencyNanos;
+
+    /**
+     * Sensor geometry, must be set before touches are mapped
+     * @param activeArray        SENSOR_INFO_ACTIVE_ARRAY_SIZE
+     * @param sensorOrientation  SENSOR_ORIENTATION degrees
+     * @param mirrored           front facing lens, preview is mirrored
+     * @param streamWidth        preview stream width, in sensor orientation
+     * @param streamHeight       preview stream height, in sensor orientation
+     * @param maxAfRegions       CONTROL_MAX_REGIONS_AF, 0 disables focus regions
+     * @param maxAeRegions       CONTROL_MAX_REGIONS_AE, 0 disables metering regions
+     */
+    public synchronized MeteringRegions setSensor(@NonNull Rect activeArray, int sensorOrientation, boolean mirrored,
+                                                  int streamWidth, int streamHeight, int maxAfRegions, int maxAeRegions){
+        mFieldOfView = fieldOfView(activeArray, streamWidth, streamHeight);
+        mSensorOrientation = sensorOrientation;
+        mMirrored = mirrored;
+        mMaxAfRegions = maxAfRegions;
+        mMaxAeRegions = maxAeRegions;
+        return this;
+    }
+
+    /**
+     * @param size  region side, fraction of the shorter side of the preview field of view
+     */
+    public MeteringRegions setRegionSize(float size){
+        mRegionSize = Math.max(0.01f, Math.min(1f, size));
+        return this;
+    }
+
+    /**
+     * Queues a touch, replacing a pending touch which wasn't applied yet
+     * @param x          touch x, 0 to 1 of the preview in natural display orientation
+     * @param y          touch y, 0 to 1 of the preview in natural display orientation
+     * @param nowNanos   {@link System#nanoTime()}
+     * @return           false when the camera supports neither focus nor metering regions
+     */
+    public boolean touch(float x, float y, long nowNanos){
+        final float[] sensor;
+        synchronized (this){
+            if(mFieldOfView == null || (mMaxAfRegions == 0 && mMaxAeRegions == 0)) return false;
+            sensor = toSensor(clamp(x), clamp(y), mSensorOrientation, mMirrored);
+        }
+        mTouches.incrementAndGet();
+        if(mPending.getAndSet(new Touch(sensor[0], sensor[1], nowNanos)) != null) mCoalesced.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return latest pending touch, null when none, camera thread only
+     */
+    @Nullable
+    public Touch takePending(){
+        return mPending.getAndSet(null);
+    }
+
+    /**
+     * Makes a touch the active regions and starts waiting for convergence, camera thread only
+     */
+    public void activate(@NonNull Touch touch){
+        final MeteringRectangle region;
+        final boolean af, ae;
+        synchronized (this){
+            region = toRegion(touch.sensorX, touch.sensorY);
+            af = mMaxAfRegions > 0;
+            ae = mMaxAeRegions > 0;
+        }
+        mAfRegions = af ? new MeteringRectangle[]{region} : null;
+        mAeRegions = ae ? new MeteringRectangle[]{region} : null;
+        mActive = touch;
+        mAwaiting = touch;
+        mTriggerSeen = false;
+        mUpdates++;
+    }
+
+    /**
+     * Queues the active touch again, like when preview is restarted after a capture
+     * @return false when no regions are active
+     */
+    public boolean restore(long nowNanos){
+        final Touch active = mActive;
+        if(active == null) return false;
+        mPending.compareAndSet(null, new Touch(active.sensorX, active.sensorY, nowNanos));
+        return true;
+    }
+
+    /**
+     * Drops active and pending regions, focus and metering return to the whole frame, camera thread only
+     */
+    public void clear(){
+        mPending.set(null);
+        mActive = null;
+        mAwaiting = null;
+        mAfRegions = null;
+        mAeRegions = null;
+    }
+
+    /** @return whether touch regions are active **/
+    public boolean hasRegions(){
+        return mActive != null;
+    }
+
+    /** @return active focus regions, null for the whole frame **/
+    @Nullable
+    public MeteringRectangle[] getAfRegions(){
+        return mAfRegions;
+    }
+
+    /** @return active metering regions, null for the whole frame **/
+    @Nullable
+    public MeteringRectangle[] getAeRegions(){
+        return mAeRegions;
+    }
+
+    /**
+     * Preview result of the camera thread, measures touch to converged latency
+     * @param tag      result request tag, the touch for its AF trigger request
+     * @param afState  result CONTROL_AF_STATE
+     * @param aeState  result CONTROL_AE_STATE
+     */
+    public void onResult(long nowNanos, @Nullable Object tag, @Nullable Integer afState, @Nullable Integer aeState){
+        final Touch awaiting = mAwaiting;
+        if(awaiting == null) return;
+
+        // Results of frames requested before the trigger still report previous states
+        if(tag == awaiting) mTriggerSeen = true;
+        if(!mTriggerSeen) return;
+
+        final long latency = nowNanos - awaiting.touchNanos;
+        if(isFocused(afState) && isExposed(aeState)){
+            mAwaiting = null;
+            mConverged++;
+            mLastLatencyNanos = latency;
+            mLatencyNanos += latency;
+        }else if(latency > CONVERGE_TIMEOUT_MS * 1_000_000L){
+            mAwaiting = null;
+            mTimeouts++;
+            Log.d(TAG, "Regions didn't converge, af: "+afState+", ae: "+aeState);
+        }
+    }
+
+    /**
+     * Rotates and mirrors natural display coordinates into sensor coordinates
+     * @return  sensor normalized x and y
+     */
+    static float[] toSensor(float x, float y, int sensorOrientation, boolean mirrored){
+        if(mirrored) x = 1f - x;
+        switch (sensorOrientation){
+            case 90:
+                return new float[]{y, 1f - x};
+            case 180:
+                return new float[]{1f - x, 1f - y};
+            case 270:
+                return new float[]{1f - y, x};
+            default:
+                return new float[]{x, y};
+        }
+    }
+
+    /**
+     * @return largest centered part of the active array with the stream aspect ratio
+     */
+    static Rect fieldOfView(@NonNull Rect activeArray, int streamWidth, int streamHeight){
+        final int[] fov = fieldOfView(activeArray.left, activeArray.top, activeArray.right, activeArray.bottom,
+                streamWidth, streamHeight);
+        return new Rect(fov[0], fov[1], fov[2], fov[3]);
+    }
+
+    /**
+     * @return largest centered part of the active array with the stream aspect ratio, as left, top, right, bottom
+     */
+    static int[] fieldOfView(int left, int top, int right, int bottom, int streamWidth, int streamHeight){
+        final int arrayWidth = right - left, arrayHeight = bottom - top;
+        if(streamWidth <= 0 || streamHeight <= 0) return new int[]{left, top, right, bottom};
+        int width = arrayWidth;
+        int height = arrayHeight;
+        if((long) streamWidth * height > (long) streamHeight * width){
+            height = (int) ((long) width * streamHeight / streamWidth);
+        }else{
+            width = (int) ((long) height * streamWidth / streamHeight);
+        }
+        final int fovLeft = left + (arrayWidth - width) / 2;
+        final int fovTop = top + (arrayHeight - height) / 2;
+        return new int[]{fovLeft, fovTop, fovLeft + width, fovTop + height};
+    }
+
+    private MeteringRectangle toRegion(float sensorX, float sensorY){
+        final Rect fov = mFieldOfView;
+        final int side = Math.max(1, (int) (Math.min(fov.width(), fov.height()) * mRegionSize));
+        final int centerX = fov.left + (int) (sensorX * fov.width());
+        final int centerY = fov.top + (int) (sensorY * fov.height());
+        final int left = Math.max(fov.left, Math.min(fov.right - side, centerX - side / 2));
+        final int top = Math.max(fov.top, Math.min(fov.bottom - side, centerY - side / 2));
+        return new MeteringRectangle(left, top, side, side, MeteringRectangle.METERING_WEIGHT_MAX - 1);
+    }
+
+    private static float clamp(float value){
+        return Math.max(0f, Math.min(1f, value));
+    }
+
+    private boolean isFocused(Integer afState){
+        return mAfRegions == null || afState == null || afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                || afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED;
+    }
+
+    private boolean isExposed(Integer aeState){
+        return mAeRegions == null || aeState == null || (aeState != CaptureResult.CONTROL_AE_STATE_SEARCHING
+                && aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE);
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return touches received **/
+    public long getTouchCount(){
+        return mTouches.get();
+    }
+
+    /** @return touches replaced by a later touch before the next frame **/
+    public long getCoalescedCount(){
+        return mCoalesced.get();
+    }
+
+    /** @return repeating request updates, one per applied touch **/
+    public long getUpdateCount(){
+        return mUpdates;
+    }
+
+    /** @return applied touches which converged **/
+    public long getConvergedCount(){
+        return mConverged;
+    }
+
+    /** @return applied touches which didn't converge in time **/
+    public long getTimeoutCount(){
+        return mTimeouts;
+    }
+
+    /** @return touch to converged time of the last converged touch in milliseconds **/
+    public float getLastConvergeMillis(){
+        return mLastLatencyNanos / 1_000_000f;
+    }
+
+    /** @return average touch to converged time in milliseconds **/
+    public float getAverageConvergeMillis(){
+        final long converged = mConverged;
+        return converged == 0 ? 0 : mLatencyNanos / 1_000_000f / converged;
+    }
+}
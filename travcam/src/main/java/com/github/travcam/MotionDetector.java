@@ -0,0 +1,377 @@
+package com.github.travcam;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java motion detector working on a luma (Y) plane
+ * Every frame is sampled down to a small fixed grid, then compared with the previous
+ * sampled frame block by block. A block is considered changed when its mean absolute
+ * difference exceeds {@link #setSensitivity(int)} threshold.
+ *
+ * All buffers are allocated once in the constructor, {@link #process(ByteBuffer, int, int, int, int, long)}
+ * and {@link #process(byte[], int, int, int, long)} never allocate, so the same class can be
+ * benchmarked on recorded frame dumps outside of Android.
+ *
+ * Hysteresis:
+ * Motion starts after {@link #mTriggerFrames} consecutive moving frames,
+ * and stops when no motion was seen for {@link #mQuietNanos}
+ */
+public class MotionDetector {
+    /** Sampled grid dimensions and block size **/
+    private final int mSampleWidth, mSampleHeight, mBlockSize;
+    private final int mBlocksX, mBlocksY;
+
+    /** Sampled luma of current and previous frames, swapped after every frame **/
+    private byte[] mCurrent, mPrevious;
+    private boolean mHasPrevious;
+
+    /** Lookup tables mapping sampled pixels to source offsets, rebuilt only when source format changes **/
+    private final int[] mColumnOffsets, mRowOffsets;
+    private int mSourceWidth, mSourceHeight, mSourceRowStride, mSourcePixelStride;
+
+    /** Blocks taking part in detection, all blocks by default **/
+    private final boolean[] mActiveBlocks;
+    private int mActiveBlocksCount;
+
+    /** Active blocks are the default whole frame, not regions added by host **/
+    private boolean mWholeFrame;
+
+    /** Mean absolute difference (0-255) a block must exceed to be counted as changed **/
+    private int mSensitivity = 12;
+
+    /** Fraction of active blocks that must change for a frame to be a moving frame **/
+    private float mMinChangedFraction = 0.02f;
+
+    /** Hysteresis **/
+    private int mTriggerFrames = 3;
+    private long mQuietNanos = 3_000_000_000L;
+
+    /** Detection state, motion activity is read from any thread **/
+    private volatile boolean mMotionActive;
+    private int mConsecutiveMovingFrames;
+    private long mFirstMovingTimestamp, mLastMovingTimestamp;
+    private float mLastScore;
+
+    /** Measurements **/
+    private long mFramesProcessed, mTotalProcessNanos, mLastProcessNanos, mMaxProcessNanos;
+    private long mLastDetectionLatencyNanos = -1;
+
+    /** Callbacks listener **/
+    private MotionListener mListener;
+
+    /**
+     * @param sampleWidth   width of the downscaled luma grid
+     * @param sampleHeight  height of the downscaled luma grid
+     * @param blockSize     block edge in sampled pixels, grid dimensions should be multiples of it
+     */
+    public MotionDetector(int sampleWidth, int sampleHeight, int blockSize){
+        if(sampleWidth <= 0 || sampleHeight <= 0 || blockSize <= 0 || blockSize > sampleWidth || blockSize > sampleHeight){
+            throw new IllegalArgumentException("Invalid motion detector dimensions!");
+        }
+        mSampleWidth = sampleWidth;
+        mSampleHeight = sampleHeight;
+        mBlockSize = blockSize;
+        mBlocksX = sampleWidth / blockSize;
+        mBlocksY = sampleHeight / blockSize;
+
+        mCurrent = new byte[sampleWidth * sampleHeight];
+        mPrevious = new byte[sampleWidth * sampleHeight];
+        mColumnOffsets = new int[sampleWidth];
+        mRowOffsets = new int[sampleHeight];
+        mActiveBlocks = new boolean[mBlocksX * mBlocksY];
+        clearRegions();
+    }
+
+    /** Default detector, 64x48 grid with 8x8 blocks **/
+    public MotionDetector(){
+        this(64, 48, 8);
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Configurations ======================================
+    // ===========================================================================================
+    /**
+     * @param sensitivity  mean absolute luma difference per block (1-255), lower is more sensitive
+     */
+    public MotionDetector setSensitivity(int sensitivity){
+        mSensitivity = Math.max(1, Math.min(255, sensitivity));
+        return this;
+    }
+
+    /**
+     * @param fraction  fraction of active blocks (0-1) that must change to consider a frame moving
+     */
+    public MotionDetector setMinChangedFraction(float fraction){
+        mMinChangedFraction = Math.max(0f, Math.min(1f, fraction));
+        return this;
+    }
+
+    /**
+     * @param triggerFrames  consecutive moving frames needed to start motion
+     * @param quietMillis    time without motion needed to stop motion
+     */
+    public MotionDetector setHysteresis(int triggerFrames, long quietMillis){
+        mTriggerFrames = Math.max(1, triggerFrames);
+        mQuietNanos = Math.max(0, quietMillis) * 1_000_000L;
+        return this;
+    }
+
+    /**
+     * Restricts detection to the given region, can be called multiple times to add regions
+     * Coordinates are normalized to frame dimensions (0-1)
+     */
+    public MotionDetector addRegion(float left, float top, float right, float bottom){
+        // First added region replaces the default whole-frame region
+        if(mWholeFrame){
+            for(int i = 0; i < mActiveBlocks.length; i++) mActiveBlocks[i] = false;
+            mActiveBlocksCount = 0;
+            mWholeFrame = false;
+        }
+
+        int x0 = clamp((int) Math.floor(left * mBlocksX), mBlocksX);
+        int x1 = clamp((int) Math.ceil(right * mBlocksX), mBlocksX);
+        int y0 = clamp((int) Math.floor(top * mBlocksY), mBlocksY);
+        int y1 = clamp((int) Math.ceil(bottom * mBlocksY), mBlocksY);
+        for(int by = y0; by < y1; by++){
+            for(int bx = x0; bx < x1; bx++){
+                int index = by * mBlocksX + bx;
+                if(!mActiveBlocks[index]){
+                    mActiveBlocks[index] = true;
+                    mActiveBlocksCount++;
+                }
+            }
+        }
+        return this;
+    }
+
+    /** Resets detection region to the whole frame **/
+    public MotionDetector clearRegions(){
+        for(int i = 0; i < mActiveBlocks.length; i++) mActiveBlocks[i] = true;
+        mActiveBlocksCount = mActiveBlocks.length;
+        mWholeFrame = true;
+        return this;
+    }
+
+    /** Linking listener **/
+    public MotionDetector listenForMotion(MotionListener listener){
+        mListener = listener;
+        return this;
+    }
+
+    /** Forgets previous frame and motion state, measurements are kept **/
+    public void reset(){
+        mHasPrevious = false;
+        mMotionActive = false;
+        mConsecutiveMovingFrames = 0;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ======================================= Detection =========================================
+    // ===========================================================================================
+    /**
+     * Processes a luma plane as delivered by {@link android.media.Image.Plane}
+     * @param luma         Y plane buffer, position is ignored
+     * @param width        frame width
+     * @param height       frame height
+     * @param rowStride    plane row stride
+     * @param pixelStride  plane pixel stride
+     * @param timestampNs  frame timestamp in nanoseconds
+     * @return             changed blocks fraction of this frame
+     */
+    public float process(ByteBuffer luma, int width, int height, int rowStride, int pixelStride, long timestampNs){
+        final long start = System.nanoTime();
+        updateOffsets(width, height, rowStride, pixelStride);
+
+        final byte[] current = mCurrent;
+        final int[] rows = mRowOffsets, columns = mColumnOffsets;
+        int i = 0;
+        for(int y = 0; y < mSampleHeight; y++){
+            final int row = rows[y];
+            for(int x = 0; x < mSampleWidth; x++){
+                current[i++] = luma.get(row + columns[x]);
+            }
+        }
+        return onFrameSampled(timestampNs, start);
+    }
+
+    /**
+     * Processes a packed luma array, used for recorded frame dumps
+     * @param luma         luma bytes
+     * @param width        frame width
+     * @param height       frame height
+     * @param rowStride    row stride in bytes
+     * @param timestampNs  frame timestamp in nanoseconds
+     * @return             changed blocks fraction of this frame
+     */
+    public float process(byte[] luma, int width, int height, int rowStride, long timestampNs){
+        final long start = System.nanoTime();
+        updateOffsets(width, height, rowStride, 1);
+
+        final byte[] current = mCurrent;
+        final int[] rows = mRowOffsets, columns = mColumnOffsets;
+        int i = 0;
+        for(int y = 0; y < mSampleHeight; y++){
+            final int row = rows[y];
+            for(int x = 0; x < mSampleWidth; x++){
+                current[i++] = luma[row + columns[x]];
+            }
+        }
+        return onFrameSampled(timestampNs, start);
+    }
+
+    /**
+     * Compares sampled frame with previous one and applies hysteresis
+     */
+    private float onFrameSampled(long timestampNs, long start){
+        float score = 0f;
+        if(mHasPrevious){
+            score = compareBlocks();
+            mLastScore = score;
+            applyHysteresis(score >= mMinChangedFraction && score > 0f, timestampNs);
+        }
+
+        // Swap buffers
+        final byte[] tmp = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = tmp;
+        mHasPrevious = true;
+        mLastScore = score;
+
+        // Measurements
+        mLastProcessNanos = System.nanoTime() - start;
+        mTotalProcessNanos += mLastProcessNanos;
+        if(mLastProcessNanos > mMaxProcessNanos) mMaxProcessNanos = mLastProcessNanos;
+        mFramesProcessed++;
+        return score;
+    }
+
+    /**
+     * @return fraction of active blocks whose mean absolute difference exceeds sensitivity
+     */
+    private float compareBlocks(){
+        if(mActiveBlocksCount == 0) return 0f;
+
+        final byte[] current = mCurrent, previous = mPrevious;
+        final int blockSize = mBlockSize, width = mSampleWidth;
+        final int threshold = mSensitivity * blockSize * blockSize;
+        int changed = 0;
+
+        for(int by = 0; by < mBlocksY; by++){
+            for(int bx = 0; bx < mBlocksX; bx++){
+                if(!mActiveBlocks[by * mBlocksX + bx]) continue;
+
+                int sum = 0;
+                int offset = by * blockSize * width + bx * blockSize;
+                for(int y = 0; y < blockSize; y++, offset += width){
+                    for(int x = 0; x < blockSize; x++){
+                        int diff = (current[offset + x] & 0xFF) - (previous[offset + x] & 0xFF);
+                        sum += diff < 0 ? -diff : diff;
+                    }
+                }
+                if(sum > threshold) changed++;
+            }
+        }
+        return (float) changed / mActiveBlocksCount;
+    }
+
+    /**
+     * Starts motion after enough consecutive moving frames
+     * Stops motion after quiet period
+     */
+    private void applyHysteresis(boolean moving, long timestampNs){
+        if(moving){
+            if(mConsecutiveMovingFrames == 0) mFirstMovingTimestamp = timestampNs;
+            mConsecutiveMovingFrames++;
+            mLastMovingTimestamp = timestampNs;
+
+            if(!mMotionActive && mConsecutiveMovingFrames >= mTriggerFrames){
+                mMotionActive = true;
+                mLastDetectionLatencyNanos = timestampNs - mFirstMovingTimestamp;
+                if(mListener != null) mListener.onMotionStarted(mLastScore);
+            }
+        }else{
+            mConsecutiveMovingFrames = 0;
+            if(mMotionActive && timestampNs - mLastMovingTimestamp >= mQuietNanos){
+                mMotionActive = false;
+                if(mListener != null) mListener.onMotionStopped();
+            }
+        }
+    }
+
+    /**
+     * Rebuilds sampling lookup tables when source format changes
+     */
+    private void updateOffsets(int width, int height, int rowStride, int pixelStride){
+        if(width == mSourceWidth && height == mSourceHeight && rowStride == mSourceRowStride && pixelStride == mSourcePixelStride) return;
+
+        mSourceWidth = width;
+        mSourceHeight = height;
+        mSourceRowStride = rowStride;
+        mSourcePixelStride = pixelStride;
+        for(int x = 0; x < mSampleWidth; x++) mColumnOffsets[x] = (x * width / mSampleWidth) * pixelStride;
+        for(int y = 0; y < mSampleHeight; y++) mRowOffsets[y] = (y * height / mSampleHeight) * rowStride;
+        mHasPrevious = false;
+    }
+
+    private static int clamp(int value, int max){
+        return Math.max(0, Math.min(max, value));
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return is motion currently active **/
+    public boolean isMotionActive(){
+        return mMotionActive;
+    }
+
+    /** @return changed blocks fraction of the last processed frame **/
+    public float getLastScore(){
+        return mLastScore;
+    }
+
+    /** @return number of processed frames **/
+    public long getFramesProcessed(){
+        return mFramesProcessed;
+    }
+
+    /** @return CPU time spent on the last frame in nanoseconds **/
+    public long getLastProcessNanos(){
+        return mLastProcessNanos;
+    }
+
+    /** @return average CPU time per frame in nanoseconds **/
+    public long getAverageProcessNanos(){
+        return mFramesProcessed == 0 ? 0 : mTotalProcessNanos / mFramesProcessed;
+    }
+
+    /** @return worst CPU time per frame in nanoseconds **/
+    public long getMaxProcessNanos(){
+        return mMaxProcessNanos;
+    }
+
+    /**
+     * @return time between the first moving frame and the motion start callback
+     * in frame timestamps nanoseconds, -1 if motion was never detected
+     */
+    public long getLastDetectionLatencyNanos(){
+        return mLastDetectionLatencyNanos;
+    }
+
+    /**
+     * Motion callbacks, sent on the thread calling process()
+     */
+    public interface MotionListener{
+        void onMotionStarted(float score);
+        void onMotionStopped();
+    }
+}
@@ -0,0 +1,259 @@
+package com.github.travcam;
+
+import android.hardware.camera2.CaptureResult;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Drives focus and exposure convergence before a still capture, from preview {@link CaptureResult} states
+ *
+ * Phases:
+ * Focus, {@link Actions#triggerFocus()} then wait for a locked AF state.
+ * Exposure, {@link Actions#triggerPrecapture()} then wait for AE to enter and leave precapture.
+ * Capture, {@link Actions#capture(boolean)} is called once, converged or timed out.
+ *
+ * A phase is skipped when its state is already converged, so a capture with a focused,
+ * converged preview is taken right away without triggers. Each phase has a timeout,
+ * devices which never report a locked state are captured anyway.
+ *
+ * Results and timeouts must be delivered on a single thread, like the camera thread.
+ */
+public class PrecaptureSequence {
+    /**
+     * Camera requests issued by the sequence
+     */
+    public interface Actions {
+        /** Sends a single request with CONTROL_AF_TRIGGER_START **/
+        void triggerFocus();
+
+        /** Sends a single request with CONTROL_AE_PRECAPTURE_TRIGGER_START **/
+        void triggerPrecapture();
+
+        /**
+         * Takes the still capture
+         * @param focusLocked  whether focus was locked by {@link #triggerFocus()}, lens should be kept still
+         */
+        void capture(boolean focusLocked);
+    }
+
+    private enum Phase{
+        IDLE,
+        FOCUSING,
+        PRECAPTURE_STARTING,
+        EXPOSING
+    }
+
+    /** Default phase timeouts **/
+    private final static long DEFAULT_FOCUS_TIMEOUT_MS = 1000;
+    private final static long DEFAULT_EXPOSURE_TIMEOUT_MS = 1000;
+
+    private long mFocusTimeoutNanos = DEFAULT_FOCUS_TIMEOUT_MS * 1_000_000L;
+    private long mExposureTimeoutNanos = DEFAULT_EXPOSURE_TIMEOUT_MS * 1_000_000L;
+
+    private Phase mPhase = Phase.IDLE;
+    private Actions mActions;
+    private boolean mFocusLocked;
+    private long mStartNanos, mPhaseStartNanos;
+
+    /** Measurements **/
+    private long mLastFocusNanos, mLastExposureNanos, mLastTotalNanos;
+    private boolean mLastFastPath, mLastTimedOut;
+    private long mSequences, mFastPaths, mTimeouts;
+
+    /**
+     * @param focusMs     max wait for a locked AF state
+     * @param exposureMs  max wait for AE precapture metering
+     */
+    public PrecaptureSequence setTimeouts(long focusMs, long exposureMs){
+        mFocusTimeoutNanos = Math.max(0, focusMs) * 1_000_000L;
+        mExposureTimeoutNanos = Math.max(0, exposureMs) * 1_000_000L;
+        return this;
+    }
+
+    /** @return whether a sequence is waiting for convergence **/
+    public boolean isRunning(){
+        return mPhase != Phase.IDLE;
+    }
+
+    /**
+     * Starts a sequence from the latest preview states
+     * @param nowNanos     {@link System#nanoTime()}
+     * @param autoFocus    whether the lens can focus, fixed focus lenses skip the focus phase
+     * @param afState      latest CONTROL_AF_STATE, null when unknown
+     * @param aeState      latest CONTROL_AE_STATE, null when unknown
+     * @param actions      camera requests
+     */
+    public void start(long nowNanos, boolean autoFocus, @Nullable Integer afState, @Nullable Integer aeState,
+                      @NonNull Actions actions){
+        mActions = actions;
+        mStartNanos = nowNanos;
+        mFocusLocked = false;
+        mLastFocusNanos = 0;
+        mLastExposureNanos = 0;
+        mLastTimedOut = false;
+        mSequences++;
+
+        mLastFastPath = (!autoFocus || isFocused(afState)) && isExposed(aeState);
+        if(mLastFastPath) mFastPaths++;
+
+        if(autoFocus && !isFocused(afState)){
+            enter(Phase.FOCUSING, nowNanos);
+            actions.triggerFocus();
+        }else{
+            startExposure(nowNanos, aeState);
+        }
+    }
+
+    /**
+     * Advances the sequence with a preview result
+     * @param afState  result CONTROL_AF_STATE
+     * @param aeState  result CONTROL_AE_STATE
+     */
+    public void onResult(long nowNanos, @Nullable Integer afState, @Nullable Integer aeState){
+        switch (mPhase){
+            case FOCUSING:
+                if(afState == null || afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED
+                        || afState == CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED){
+                    mFocusLocked = afState != null;
+                    mLastFocusNanos = nowNanos - mPhaseStartNanos;
+                    startExposure(nowNanos, aeState);
+                }else if(nowNanos - mPhaseStartNanos > mFocusTimeoutNanos){
+                    mLastTimedOut = true;
+                    mLastFocusNanos = nowNanos - mPhaseStartNanos;
+                    startExposure(nowNanos, aeState);
+                }
+                break;
+
+            case PRECAPTURE_STARTING:
+                // Some devices go straight to converged or flash required
+                if(aeState == null || aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE
+                        || aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED
+                        || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED){
+                    mPhase = Phase.EXPOSING;
+                }
+                checkExposure(nowNanos, aeState);
+                break;
+
+            case EXPOSING:
+                checkExposure(nowNanos, aeState);
+                break;
+        }
+    }
+
+    /**
+     * Captures now if the running phase exceeded its timeout, for when results stop arriving
+     */
+    public void onTimeout(long nowNanos){
+        if(mPhase == Phase.FOCUSING && nowNanos - mPhaseStartNanos > mFocusTimeoutNanos){
+            mLastTimedOut = true;
+            mLastFocusNanos = nowNanos - mPhaseStartNanos;
+            finish(nowNanos);
+        }else if((mPhase == Phase.PRECAPTURE_STARTING || mPhase == Phase.EXPOSING)
+                && nowNanos - mPhaseStartNanos > mExposureTimeoutNanos){
+            mLastTimedOut = true;
+            mLastExposureNanos = nowNanos - mPhaseStartNanos;
+            finish(nowNanos);
+        }
+    }
+
+    /**
+     * Drops a running sequence without capturing, like when the session is closed
+     */
+    public void cancel(){
+        mPhase = Phase.IDLE;
+        mActions = null;
+    }
+
+    /** @return max time a whole sequence can wait before capturing, in milliseconds **/
+    public long getMaxWaitMillis(){
+        return (mFocusTimeoutNanos + mExposureTimeoutNanos) / 1_000_000L;
+    }
+
+    private void startExposure(long nowNanos, Integer aeState){
+        if(isExposed(aeState)){
+            finish(nowNanos);
+            return;
+        }
+        enter(Phase.PRECAPTURE_STARTING, nowNanos);
+        mActions.triggerPrecapture();
+    }
+
+    private void checkExposure(long nowNanos, Integer aeState){
+        final boolean converged = mPhase == Phase.EXPOSING && (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE);
+        final boolean timedOut = nowNanos - mPhaseStartNanos > mExposureTimeoutNanos;
+        if(!converged && !timedOut) return;
+        if(!converged) mLastTimedOut = true;
+        mLastExposureNanos = nowNanos - mPhaseStartNanos;
+        finish(nowNanos);
+    }
+
+    private void enter(Phase phase, long nowNanos){
+        mPhase = phase;
+        mPhaseStartNanos = nowNanos;
+    }
+
+    private void finish(long nowNanos){
+        final Actions actions = mActions;
+        mPhase = Phase.IDLE;
+        mActions = null;
+        mLastTotalNanos = nowNanos - mStartNanos;
+        if(mLastTimedOut) mTimeouts++;
+        if(actions != null) actions.capture(mFocusLocked);
+    }
+
+    private static boolean isFocused(Integer afState){
+        return afState == null || afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED
+                || afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+    }
+
+    private static boolean isExposed(Integer aeState){
+        return aeState == null || aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED
+                || aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return focus phase duration of the last sequence in milliseconds, 0 when skipped **/
+    public float getLastFocusMillis(){
+        return mLastFocusNanos / 1_000_000f;
+    }
+
+    /** @return exposure phase duration of the last sequence in milliseconds, 0 when skipped **/
+    public float getLastExposureMillis(){
+        return mLastExposureNanos / 1_000_000f;
+    }
+
+    /** @return start to capture duration of the last sequence in milliseconds **/
+    public float getLastTotalMillis(){
+        return mLastTotalNanos / 1_000_000f;
+    }
+
+    /** @return whether the last sequence captured without triggers **/
+    public boolean wasLastFastPath(){
+        return mLastFastPath;
+    }
+
+    /** @return whether a phase of the last sequence timed out **/
+    public boolean wasLastTimedOut(){
+        return mLastTimedOut;
+    }
+
+    /** @return started sequences **/
+    public long getSequenceCount(){
+        return mSequences;
+    }
+
+    /** @return sequences captured without triggers **/
+    public long getFastPathCount(){
+        return mFastPaths;
+    }
+
+    /** @return sequences which captured after a timeout **/
+    public long getTimeoutCount(){
+        return mTimeouts;
+    }
+}
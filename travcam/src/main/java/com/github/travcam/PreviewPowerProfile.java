@@ -0,0 +1,137 @@
+package com.github.travcam;
+
+import android.os.PowerManager;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Chooses preview power level from user idleness and device thermal status
+ *
+ * {@link Level#REDUCED} lowers preview frame rate, applied by updating the repeating request only.
+ * {@link Level#LOW} also lowers preview resolution, which needs a new preview session.
+ * Idle levels are left on the first interaction, thermal levels only when the device cools down.
+ *
+ * Pure decision logic, times are passed in and {@link TravCam} applies levels to the preview.
+ */
+public class PreviewPowerProfile {
+    /** Default idle delays before lowering the preview **/
+    private final static long DEFAULT_REDUCED_IDLE_MS = 30_000;
+    private final static long DEFAULT_LOW_IDLE_MS = 120_000;
+
+    public enum Level{
+        FULL,
+        REDUCED,
+        LOW
+    }
+
+    private long mReducedIdleMs = DEFAULT_REDUCED_IDLE_MS, mLowIdleMs = DEFAULT_LOW_IDLE_MS;
+    private long mLastInteractionMs;
+    private int mThermalStatus = PowerManager.THERMAL_STATUS_NONE;
+    private Level mLevel = Level.FULL;
+    private TransitionListener mListener;
+
+    /** Measurements **/
+    private long mTransitions, mLevelSinceMs;
+    private final Map<Level, Long> mTimeInLevel = new EnumMap<>(Level.class);
+
+    /**
+     * @param nowMs  current time, counted as an interaction
+     */
+    public PreviewPowerProfile(long nowMs){
+        mLastInteractionMs = nowMs;
+        mLevelSinceMs = nowMs;
+        for(Level level : Level.values()) mTimeInLevel.put(level, 0L);
+    }
+
+    /**
+     * @param reducedMs  idle time before lowering frame rate
+     * @param lowMs      idle time before also lowering resolution, disabled when not above reducedMs
+     */
+    public synchronized PreviewPowerProfile setIdleDelays(long reducedMs, long lowMs){
+        mReducedIdleMs = Math.max(0, reducedMs);
+        mLowIdleMs = lowMs > mReducedIdleMs ? lowMs : Long.MAX_VALUE;
+        return this;
+    }
+
+    public synchronized PreviewPowerProfile setTransitionListener(@Nullable TransitionListener listener){
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * User interacted, idle levels are left right away
+     */
+    public synchronized Level onInteraction(long nowMs){
+        mLastInteractionMs = nowMs;
+        return evaluate(nowMs, "interaction");
+    }
+
+    /**
+     * @param status  {@link PowerManager} thermal status
+     */
+    public synchronized Level onThermalStatus(int status, long nowMs){
+        mThermalStatus = status;
+        return evaluate(nowMs, "thermal status " + status);
+    }
+
+    /**
+     * Re-evaluates idleness, called periodically
+     */
+    public synchronized Level onTick(long nowMs){
+        return evaluate(nowMs, "idle " + (nowMs - mLastInteractionMs) + " ms");
+    }
+
+    private Level evaluate(long nowMs, String reason){
+        final long idleMs = nowMs - mLastInteractionMs;
+        Level idle = Level.FULL;
+        if(idleMs >= mLowIdleMs) idle = Level.LOW;
+        else if(idleMs >= mReducedIdleMs) idle = Level.REDUCED;
+
+        Level thermal = Level.FULL;
+        if(mThermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) thermal = Level.LOW;
+        else if(mThermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) thermal = Level.REDUCED;
+
+        final Level level = idle.ordinal() > thermal.ordinal() ? idle : thermal;
+        if(level != mLevel){
+            final Level previous = mLevel;
+            mTimeInLevel.put(previous, mTimeInLevel.get(previous) + nowMs - mLevelSinceMs);
+            mLevelSinceMs = nowMs;
+            mLevel = level;
+            mTransitions++;
+            if(mListener != null) mListener.onTransition(previous, level, reason);
+        }
+        return mLevel;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return current level **/
+    @NonNull
+    public synchronized Level getLevel(){
+        return mLevel;
+    }
+
+    /** @return level transitions count **/
+    public synchronized long getTransitions(){
+        return mTransitions;
+    }
+
+    /** @return time spent in a level in milliseconds, current level counted until nowMs **/
+    public synchronized long getTimeInLevel(@NonNull Level level, long nowMs){
+        final long time = mTimeInLevel.get(level);
+        return level == mLevel ? time + nowMs - mLevelSinceMs : time;
+    }
+
+    /**
+     * Level changes
+     */
+    public interface TransitionListener{
+        void onTransition(@NonNull Level from, @NonNull Level to, @NonNull String reason);
+    }
+}
@@ -0,0 +1,289 @@
+package com.github.travcam;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Low bitrate H.264 encoder recording a proxy of a recording, SDK >= 26 only
+ *
+ * Camera writes the same frames to {@link #getInputSurface()} and to the master recorder,
+ * so no transcoding is needed once recording ends. Proxy has no audio track.
+ * Encoded samples are muxed straight to the descriptor of a pending sink output.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+public class ProxyEncoder {
+    private final static String TAG = "ProxyEncoder";
+
+    private final static String MIME = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private final static int IFRAME_INTERVAL_SECONDS = 2;
+
+    /** Proxy is never taller than this **/
+    private final static int MAX_HEIGHT = 480;
+
+    /** Max time waiting for queued frames to be drained on stop **/
+    private final static long DRAIN_TIMEOUT_MS = 1000;
+
+    private final MediaCodec mCodec;
+    private final MediaMuxer mMuxer;
+    private final Surface mInputSurface;
+    private final HandlerThread mThread;
+    private final FileDescriptor mOutput;
+    private int mBitrate;
+
+    /** Muxer track, muxer is started once encoder output format is known **/
+    private int mTrack = -1;
+    private boolean mMuxerStarted;
+    private final CountDownLatch mEnded = new CountDownLatch(1);
+
+    /** Measurements **/
+    private long mFrames, mBytes, mStartNanos, mEndNanos;
+    private long mFirstPtsUs = -1, mLastPtsUs;
+
+    /**
+     * @param size             encoded size, must be a camera output size for {@link MediaCodec}
+     * @param bitrate          bits per second
+     * @param frameRate        frames per second
+     * @param output           proxy file descriptor, kept open until {@link #stop()}
+     * @param orientationHint  rotation degrees written to the file
+     */
+    public ProxyEncoder(@NonNull Size size, int bitrate, int frameRate, @NonNull FileDescriptor output,
+                        int orientationHint) throws IOException{
+        final MediaFormat format = MediaFormat.createVideoFormat(MIME, size.getWidth(), size.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL_SECONDS);
+
+        mThread = new HandlerThread("ProxyEncoder");
+        mThread.start();
+        MediaCodec codec = null;
+        MediaMuxer muxer = null;
+        try {
+            codec = MediaCodec.createEncoderByType(MIME);
+            codec.setCallback(mCallback, new Handler(mThread.getLooper()));
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = codec.createInputSurface();
+            muxer = new MediaMuxer(output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxer.setOrientationHint(orientationHint);
+        } catch (IOException | RuntimeException e) {
+            if(codec != null) codec.release();
+            if(muxer != null) muxer.release();
+            mThread.quitSafely();
+            throw new IOException("Proxy encoder exception: "+e.getMessage());
+        }
+        mCodec = codec;
+        mMuxer = muxer;
+        mOutput = output;
+        mBitrate = bitrate;
+    }
+
+    /**
+     * Largest size not taller than {@link #MAX_HEIGHT} nor the video, with the same aspect ratio as the video
+     * @param choices  camera output sizes for {@link MediaCodec}
+     * @param video    master video size
+     * @return         proxy size, null when none matches
+     */
+    @Nullable
+    static Size chooseSize(@Nullable Size[] choices, @Nullable Size video){
+        if(choices == null || video == null) return null;
+        Size proxy = null;
+        for(Size size : choices){
+            if(size.getHeight() > MAX_HEIGHT || size.getHeight() >= video.getHeight()) continue;
+            if((long) size.getWidth() * video.getHeight() != (long) size.getHeight() * video.getWidth()) continue;
+            if(proxy == null || size.getHeight() > proxy.getHeight()) proxy = size;
+        }
+        return proxy;
+    }
+
+    /** @return surface to be added to the recording session **/
+    @NonNull
+    public Surface getInputSurface(){
+        return mInputSurface;
+    }
+
+    /**
+     * Changes bitrate while encoding
+     * @param bitrate  bits per second
+     */
+    public void setBitrate(int bitrate){
+        if(bitrate == mBitrate) return;
+        final Bundle parameters = new Bundle();
+        parameters.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+        try {
+            mCodec.setParameters(parameters);
+            mBitrate = bitrate;
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "Bitrate exception: "+e.getMessage());
+        }
+    }
+
+    /** @return current bitrate in bits per second **/
+    public int getBitrate(){
+        return mBitrate;
+    }
+
+    /**
+     * Starts encoding, call right before the master recorder starts
+     */
+    public void start(){
+        synchronized (this){
+            mStartNanos = System.nanoTime();
+        }
+        mCodec.start();
+    }
+
+    /**
+     * Drains queued frames and finishes the proxy file
+     * Callbacks are stopped before the codec, even when draining timed out
+     * @return  is proxy file complete
+     */
+    public boolean stop(){
+        boolean complete = false;
+        try {
+            mCodec.signalEndOfInputStream();
+            if(!mEnded.await(DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) Log.d(TAG, "Drain timed out.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "End of stream exception: "+e.getMessage());
+        }
+        quitCallbacks();
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "Stop exception: "+e.getMessage());
+        }
+
+        synchronized (this){
+            mEndNanos = System.nanoTime();
+            if(mMuxerStarted){
+                try {
+                    mMuxer.stop();
+                    complete = mFrames > 0;
+                } catch (IllegalStateException e) {
+                    Log.d(TAG, "Muxer stop exception: "+e.getMessage());
+                }
+            }
+        }
+        release();
+        return complete;
+    }
+
+    /**
+     * Releases encoder without finishing the file, like when the session can't be configured
+     */
+    public void release(){
+        quitCallbacks();
+        mCodec.release();
+        mMuxer.release();
+        mInputSurface.release();
+    }
+
+    /**
+     * Quits and joins the callback thread, a callback running during stop or release
+     * would release output buffers of a stopped codec and write to a stopped muxer
+     * Safe to call more than once
+     */
+    private void quitCallbacks(){
+        mThread.quitSafely();
+        try {
+            mThread.join(DRAIN_TIMEOUT_MS);
+            if(mThread.isAlive()) Log.d(TAG, "Callback thread still running.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Input comes from the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            final ByteBuffer buffer = codec.getOutputBuffer(index);
+
+            // Codec config is already part of the track format
+            if(buffer != null && info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0){
+                synchronized (ProxyEncoder.this){
+                    if(mMuxerStarted){
+                        mMuxer.writeSampleData(mTrack, buffer, info);
+                        mFrames++;
+                        mBytes += info.size;
+                        if(mFirstPtsUs < 0) mFirstPtsUs = info.presentationTimeUs;
+                        mLastPtsUs = info.presentationTimeUs;
+                    }
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+            if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) mEnded.countDown();
+        }
+
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.d(TAG, "Encoder error: "+e.getMessage());
+            mEnded.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            synchronized (ProxyEncoder.this){
+                if(mMuxerStarted) return;
+                mTrack = mMuxer.addTrack(format);
+                mMuxer.start();
+                mMuxerStarted = true;
+            }
+        }
+    };
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return encoded frames count **/
+    public synchronized long getEncodedFrames(){
+        return mFrames;
+    }
+
+    /** @return encoded bytes **/
+    public synchronized long getEncodedBytes(){
+        return mBytes;
+    }
+
+    /** @return bytes which reached the proxy file, {@link BitrateController#UNKNOWN} when it can't be measured **/
+    public long getWrittenBytes(){
+        return TravManager.sizeOf(mOutput);
+    }
+
+    /** @return encoded frames per second of media time **/
+    public synchronized float getFramesPerSecond(){
+        final long durationUs = mLastPtsUs - mFirstPtsUs;
+        return mFrames < 2 || durationUs <= 0 ? 0 : (mFrames - 1) * 1_000_000f / durationUs;
+    }
+
+    /** @return encoded bytes per second of wall time **/
+    public synchronized long getBytesPerSecond(){
+        final long end = mEndNanos != 0 ? mEndNanos : System.nanoTime();
+        return mStartNanos == 0 || end <= mStartNanos ? 0 : (long) (mBytes * 1e9 / (end - mStartNanos));
+    }
+}
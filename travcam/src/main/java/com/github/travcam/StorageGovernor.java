@@ -0,0 +1,275 @@
+package com.github.travcam;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps media stored by TravCam within a byte budget per {@link TravManager.ScopedFileType}
+ * and keeps a free space floor on the storage volume
+ *
+ * Usage is read from {@link CaptureIndex}, eviction runs on a min priority thread shortly after
+ * captures are stored and deletes victims in a single batch using {@link Evictor}.
+ * New recordings are checked by {@link #checkRecording(long)} before they start.
+ *
+ * Victim selection, {@link #selectVictims(List, Map, long, Policy, Map)}, is pure and
+ * can be exercised on its own, like against captures in a temp directory.
+ */
+public class StorageGovernor {
+    private final static String TAG = "StorageGovernor";
+
+    /** Delay coalescing stored captures into one eviction pass **/
+    private final static long ENFORCE_DELAY_MS = 2000;
+
+    /** Recordings are downgraded while less than this multiple of their expected size is available **/
+    private final static int DOWNGRADE_HEADROOM = 2;
+
+    private final CaptureIndex mIndex;
+    private final FreeSpace mFreeSpace;
+    private final Evictor mEvictor;
+    private final ScheduledExecutorService mExecutor;
+
+    /** Limits, no limit by default **/
+    private final Map<TravManager.ScopedFileType, Long> mBudgets = new EnumMap<>(TravManager.ScopedFileType.class);
+    private long mFreeFloorBytes;
+    private Policy mPolicy = Policy.OLDEST_FIRST;
+
+    /** Last access times by Uri, used by {@link Policy#LEAST_RECENTLY_USED} **/
+    private final Map<String, Long> mAccessTimes = new HashMap<>();
+    private ScheduledFuture<?> mScheduledEnforce;
+
+    /** Measurements **/
+    private long mEvictedCount, mEvictedBytes, mLastEnforceNanos;
+
+    /**
+     * @param index      captures index, source of usage
+     * @param freeSpace  free bytes of the storage volume
+     * @param evictor    deletes victims in a batch
+     */
+    public StorageGovernor(@NonNull CaptureIndex index, @NonNull FreeSpace freeSpace, @NonNull Evictor evictor){
+        mIndex = index;
+        mFreeSpace = freeSpace;
+        mEvictor = evictor;
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "StorageGovernor");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * @param type   media type
+     * @param bytes  max bytes stored for that type, 0 or less removes the limit
+     */
+    public synchronized StorageGovernor setBudget(@NonNull TravManager.ScopedFileType type, long bytes){
+        if(bytes > 0) mBudgets.put(type, bytes); else mBudgets.remove(type);
+        return this;
+    }
+
+    /**
+     * @param bytes  free bytes to keep on the storage volume, captures are evicted below it
+     */
+    public synchronized StorageGovernor setFreeSpaceFloor(long bytes){
+        mFreeFloorBytes = Math.max(0, bytes);
+        return this;
+    }
+
+    /**
+     * @param policy  victims order
+     */
+    public synchronized StorageGovernor setPolicy(@NonNull Policy policy){
+        mPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Records media use, like when it is displayed, for {@link Policy#LEAST_RECENTLY_USED}
+     */
+    public synchronized void touch(@NonNull String uri){
+        mAccessTimes.put(uri, System.currentTimeMillis());
+    }
+
+    /**
+     * Schedules an eviction pass, passes requested within {@link #ENFORCE_DELAY_MS} are coalesced
+     */
+    public synchronized void onCaptureStored(){
+        if(mScheduledEnforce != null && !mScheduledEnforce.isDone()) return;
+        mScheduledEnforce = mExecutor.schedule(this::enforce, ENFORCE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Decides whether a recording may start
+     * @param expectedBytes  recording size at full quality and max length
+     * @return               decision, see {@link Decision}
+     */
+    public Decision checkRecording(long expectedBytes){
+        final long available = getAvailableBytes(TravManager.ScopedFileType.VIDEO);
+        final Decision decision;
+        if(available >= expectedBytes * DOWNGRADE_HEADROOM){
+            decision = Decision.ALLOW;
+        }else if(available >= expectedBytes / DOWNGRADE_HEADROOM){
+            decision = Decision.DOWNGRADE;
+        }else{
+            decision = Decision.REJECT;
+        }
+
+        // Free space ahead of next recordings
+        if(decision != Decision.ALLOW) mExecutor.execute(this::enforce);
+        Log.d(TAG, "Recording check, available MB: "+available / (1024 * 1024)+", decision: "+decision);
+        return decision;
+    }
+
+    /**
+     * @param type  media type
+     * @return      bytes which can be written before hitting the budget of type or the free space floor
+     */
+    public synchronized long getAvailableBytes(@NonNull TravManager.ScopedFileType type){
+        long available = mFreeSpace.getFreeBytes() - mFreeFloorBytes;
+        final Long budget = mBudgets.get(type);
+        if(budget != null) available = Math.min(available, budget - mIndex.getTotalBytes(type));
+        return Math.max(0, available);
+    }
+
+    /**
+     * Evicts captures until budgets and free space floor are respected, runs on the calling thread
+     * @return evicted captures count
+     */
+    public int enforce(){
+        final long start = System.nanoTime();
+        final List<CaptureIndex.Entry> victims;
+        synchronized (this){
+            final Map<TravManager.ScopedFileType, Long> overBudget = new EnumMap<>(TravManager.ScopedFileType.class);
+            for(Map.Entry<TravManager.ScopedFileType, Long> budget : mBudgets.entrySet()){
+                overBudget.put(budget.getKey(), mIndex.getTotalBytes(budget.getKey()) - budget.getValue());
+            }
+            final long missingFree = mFreeFloorBytes - mFreeSpace.getFreeBytes();
+            victims = selectVictims(mIndex.entries(null), overBudget, missingFree, mPolicy, mAccessTimes);
+        }
+        if(victims.isEmpty()) return 0;
+
+        long bytes = 0;
+        for(CaptureIndex.Entry victim : victims) bytes += victim.size;
+        final int evicted = mEvictor.evict(victims);
+
+        synchronized (this){
+            for(CaptureIndex.Entry victim : victims) mAccessTimes.remove(victim.uri);
+            mEvictedCount += evicted;
+            mEvictedBytes += bytes;
+            mLastEnforceNanos = System.nanoTime() - start;
+        }
+        Log.d(TAG, "Evicted: "+evicted+", MB: "+bytes / (1024 * 1024)+", ms: "+mLastEnforceNanos / 1_000_000f);
+        return evicted;
+    }
+
+    /**
+     * Selects captures to evict
+     * @param entries      indexed captures
+     * @param overBudget   bytes over budget per type, types without budget are missing
+     * @param missingFree  bytes missing to reach the free space floor
+     * @param policy       victims order
+     * @param accessTimes  last access times by Uri, captures never accessed use their timestamp
+     * @return             victims, in eviction order
+     */
+    @NonNull
+    public static List<CaptureIndex.Entry> selectVictims(@NonNull List<CaptureIndex.Entry> entries,
+                                                         @NonNull Map<TravManager.ScopedFileType, Long> overBudget,
+                                                         long missingFree, @NonNull Policy policy,
+                                                         @NonNull Map<String, Long> accessTimes){
+        final List<CaptureIndex.Entry> ordered = new ArrayList<>(entries);
+        if(policy == Policy.LEAST_RECENTLY_USED){
+            Collections.sort(ordered, (a, b) -> Long.compare(lastUse(a, accessTimes), lastUse(b, accessTimes)));
+        }else{
+            Collections.sort(ordered, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+        }
+
+        final Map<TravManager.ScopedFileType, Long> remaining = new EnumMap<>(overBudget);
+        long remainingFree = missingFree;
+        final List<CaptureIndex.Entry> victims = new ArrayList<>();
+        for(CaptureIndex.Entry entry : ordered){
+            final Long over = remaining.get(entry.type);
+            final boolean typeOver = over != null && over > 0;
+            if(!typeOver && remainingFree <= 0) continue;
+
+            victims.add(entry);
+            if(over != null) remaining.put(entry.type, over - entry.size);
+            remainingFree -= entry.size;
+        }
+        return victims;
+    }
+
+    private static long lastUse(CaptureIndex.Entry entry, Map<String, Long> accessTimes){
+        final Long access = accessTimes.get(entry.uri);
+        return access != null ? Math.max(access, entry.timestamp) : entry.timestamp;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return evicted captures count **/
+    public synchronized long getEvictedCount(){
+        return mEvictedCount;
+    }
+
+    /** @return evicted bytes **/
+    public synchronized long getEvictedBytes(){
+        return mEvictedBytes;
+    }
+
+    /** @return last eviction pass time **/
+    public synchronized long getLastEnforceNanos(){
+        return mLastEnforceNanos;
+    }
+
+    /**
+     * Victims order
+     */
+    public enum Policy{
+        OLDEST_FIRST,
+        LEAST_RECENTLY_USED
+    }
+
+    /**
+     * Recording check result
+     */
+    public enum Decision{
+        /** Enough space for a full quality recording **/
+        ALLOW,
+        /** Recording should use a lower bitrate **/
+        DOWNGRADE,
+        /** Not enough space, recording shouldn't start **/
+        REJECT
+    }
+
+    /**
+     * Free bytes of the storage volume
+     */
+    public interface FreeSpace{
+        long getFreeBytes();
+    }
+
+    /**
+     * Deletes evicted captures, called on the governor thread
+     */
+    public interface Evictor{
+        /**
+         * @param victims  captures to delete
+         * @return         deleted captures count
+         */
+        int evict(@NonNull List<CaptureIndex.Entry> victims);
+    }
+}
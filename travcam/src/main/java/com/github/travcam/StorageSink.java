@@ -0,0 +1,75 @@
+package com.github.travcam;
+
+import androidx.annotation.NonNull;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination of captures stored by {@link TravManager}
+ *
+ * Built-in sinks:
+ * {@link MediaStoreSink}  shared DCIM collection, SDK >= 29
+ * {@link FileSink}        plain files, app private or public DCIM below SDK 29
+ * {@link MemorySink}      encoded bytes kept in memory, nothing is written
+ * {@link StreamSink}      caller supplied OutputStream or FileChannel
+ *
+ * Every capture opens one {@link Output}, writes either its stream or its descriptor,
+ * then commits it. Sinks can be driven directly, without a camera, to benchmark them.
+ */
+public interface StorageSink {
+
+    /**
+     * Opens output of a new capture
+     * @param type       capture type
+     * @param fileName   generated file name
+     * @param mimeType   capture mime type
+     * @param timestamp  capture time in milliseconds since epoch
+     * @return           output to be written then committed or aborted
+     */
+    @NonNull
+    Output open(@NonNull TravManager.ScopedFileType type, @NonNull String fileName,
+                @NonNull String mimeType, long timestamp) throws IOException;
+
+    /**
+     * Video recording and HEIC stills need a file descriptor
+     * @return does {@link Output#openDescriptor()} work for this sink
+     */
+    boolean supportsDescriptor();
+
+    /**
+     * Deletes media stored by this sink
+     * @param media  media delivered by this sink
+     * @return       is media deleted
+     */
+    boolean delete(@NonNull CapturedMedia media);
+
+    /**
+     * Output of a single capture
+     */
+    interface Output {
+        /** @return stream to write encoded capture to, same stream on every call **/
+        @NonNull
+        OutputStream openStream() throws IOException;
+
+        /** @return descriptor to write capture to, same descriptor on every call **/
+        @NonNull
+        FileDescriptor openDescriptor() throws IOException;
+
+        /** @return media being written, its size is 0 until committed **/
+        @NonNull
+        CapturedMedia getPendingMedia();
+
+        /**
+         * Closes the output and makes it available
+         * @return stored media with its final size
+         */
+        @NonNull
+        CapturedMedia commit() throws IOException;
+
+        /**
+         * Closes the output and drops anything written
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.travcam;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes captures to a caller supplied stream or channel, like an upload or a shared file
+ * Captures are appended one after another, the caller owns the stream and closes it.
+ * A descriptor is only available for {@link FileOutputStream}, aborted captures can't be undone.
+ */
+public class StreamSink implements StorageSink {
+    private final static String TAG = "StreamSink";
+
+    private final OutputStream mStream;
+
+    public StreamSink(@NonNull OutputStream stream){
+        mStream = stream;
+    }
+
+    public StreamSink(@NonNull FileChannel channel){
+        mStream = Channels.newOutputStream(channel);
+    }
+
+    @NonNull
+    @Override
+    public Output open(@NonNull TravManager.ScopedFileType type, @NonNull String fileName,
+                       @NonNull String mimeType, long timestamp) {
+        return new StreamOutput(CapturedMedia.fromBuffer(null, type, mimeType, fileName, 0, timestamp, this));
+    }
+
+    @Override
+    public boolean supportsDescriptor() {
+        return mStream instanceof FileOutputStream;
+    }
+
+    @Override
+    public boolean delete(@NonNull CapturedMedia media) {
+        // Already handed to the caller
+        return false;
+    }
+
+    /**
+     * Counts bytes written to the caller stream, closing only flushes it
+     */
+    private class StreamOutput implements Output {
+        private final CapturedMedia mMedia;
+        private final CountingOutputStream mCountingStream;
+
+        StreamOutput(CapturedMedia media){
+            mMedia = media;
+            mCountingStream = new CountingOutputStream(new FilterOutputStream(mStream) {
+                @Override
+                public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+        }
+
+        @NonNull
+        @Override
+        public OutputStream openStream() {
+            return mCountingStream;
+        }
+
+        @NonNull
+        @Override
+        public FileDescriptor openDescriptor() throws IOException {
+            if(!supportsDescriptor()) throw new IOException("Stream sink has no file descriptor.");
+            return ((FileOutputStream) mStream).getFD();
+        }
+
+        @NonNull
+        @Override
+        public CapturedMedia getPendingMedia() {
+            return mMedia;
+        }
+
+        @NonNull
+        @Override
+        public CapturedMedia commit() throws IOException {
+            mCountingStream.flush();
+            return mMedia.withSize(mCountingStream.getCount());
+        }
+
+        @Override
+        public void abort() {
+            try {
+                mCountingStream.flush();
+            } catch (IOException e) {
+                Log.d(TAG, "Abort exception: "+e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.travcam;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Produces small portrait thumbnails of encoded captures, long before the capture is stored
+ *
+ * The thumbnail embedded in JPEG EXIF data is used when present, it is requested using
+ * {@link android.hardware.camera2.CaptureRequest#JPEG_THUMBNAIL_SIZE}.
+ * Otherwise the capture is decoded subsampled to about {@link #mTargetWidth}.
+ *
+ * Bitmaps are pooled: decoding reuses one bitmap through {@link BitmapFactory.Options#inBitmap}
+ * and rotated thumbnails alternate between two output bitmaps, so a delivered thumbnail
+ * stays valid until the second next thumbnail is produced.
+ */
+public class ThumbnailDecoder {
+    private final static String TAG = "ThumbnailDecoder";
+
+    /** Output bitmaps alternated between thumbnails **/
+    private final static int OUTPUT_POOL_SIZE = 2;
+
+    private final int mTargetWidth;
+
+    /** Reused bitmaps **/
+    private Bitmap mDecodeBitmap;
+    private final Bitmap[] mOutputBitmaps = new Bitmap[OUTPUT_POOL_SIZE];
+    private int mNextOutput;
+
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final Matrix mMatrix = new Matrix();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** Measurements **/
+    private long mLastDecodeNanos;
+    private boolean mLastFromExif;
+
+    /**
+     * @param targetWidth  wanted thumbnail width before rotation, subsampled decodes are at least this wide
+     */
+    public ThumbnailDecoder(int targetWidth){
+        mTargetWidth = Math.max(1, targetWidth);
+    }
+
+    /**
+     * Decodes a thumbnail of JPEG bytes
+     * @param jpeg             encoded capture
+     * @param rotationDegrees  clockwise rotation to portrait, multiple of 90
+     * @return                 pooled thumbnail or null if bytes can't be decoded
+     */
+    @Nullable
+    public synchronized Bitmap decode(@NonNull byte[] jpeg, int rotationDegrees){
+        final long start = System.nanoTime();
+
+        // Embedded thumbnail, only parses EXIF header
+        Bitmap decoded = null;
+        mLastFromExif = false;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N){
+            try {
+                final byte[] thumbnail = new ExifInterface(new ByteArrayInputStream(jpeg)).getThumbnailBytes();
+                if(thumbnail != null){
+                    decoded = decodeReusing(thumbnail, 1);
+                    mLastFromExif = decoded != null;
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "EXIF thumbnail exception: "+e.getMessage());
+            }
+        }
+
+        // Subsampled decode of the whole capture
+        if(decoded == null){
+            mOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, mOptions);
+            mOptions.inJustDecodeBounds = false;
+            if(mOptions.outWidth <= 0) return null;
+
+            decoded = decodeReusing(jpeg, sampleSizeFor(mOptions.outWidth, mTargetWidth));
+            if(decoded == null) return null;
+        }
+
+        final Bitmap output = rotateIntoPool(decoded, rotationDegrees);
+        mLastDecodeNanos = System.nanoTime() - start;
+        return output;
+    }
+
+    /**
+     * @return largest power of two keeping the decoded width at least the target width
+     */
+    static int sampleSizeFor(int width, int targetWidth){
+        int sampleSize = 1;
+        while(width / (sampleSize * 2) >= targetWidth) sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Decodes into {@link #mDecodeBitmap} when it is large enough, replacing it otherwise
+     */
+    private Bitmap decodeReusing(byte[] bytes, int sampleSize){
+        mOptions.inSampleSize = sampleSize;
+        mOptions.inMutable = true;
+        mOptions.inBitmap = mDecodeBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, mOptions);
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap can't be reused for these bytes
+            mOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, mOptions);
+        }
+        if(bitmap != null) mDecodeBitmap = bitmap;
+        return bitmap;
+    }
+
+    /**
+     * Draws decoded bitmap rotated into the next pooled output bitmap
+     */
+    Bitmap rotateIntoPool(Bitmap decoded, int rotationDegrees){
+        final boolean swapped = rotationDegrees % 180 != 0;
+        final int width = swapped ? decoded.getHeight() : decoded.getWidth();
+        final int height = swapped ? decoded.getWidth() : decoded.getHeight();
+
+        Bitmap output = mOutputBitmaps[mNextOutput];
+        if(output == null || output.getAllocationByteCount() < width * height * 4){
+            output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }else if(output.getWidth() != width || output.getHeight() != height){
+            output.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+        mOutputBitmaps[mNextOutput] = output;
+        mNextOutput = (mNextOutput + 1) % OUTPUT_POOL_SIZE;
+
+        mMatrix.reset();
+        mMatrix.postRotate(rotationDegrees, decoded.getWidth() / 2f, decoded.getHeight() / 2f);
+        mMatrix.postTranslate((width - decoded.getWidth()) / 2f, (height - decoded.getHeight()) / 2f);
+        new Canvas(output).drawBitmap(decoded, mMatrix, mPaint);
+        return output;
+    }
+
+    /** @return last thumbnail decode time **/
+    public synchronized long getLastDecodeNanos(){
+        return mLastDecodeNanos;
+    }
+
+    /** @return was the last thumbnail taken from EXIF data **/
+    public synchronized boolean isLastFromExif(){
+        return mLastFromExif;
+    }
+}
@@ -4,9 +4,11 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
@@ -17,17 +19,24 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.CamcorderProfile;
+import android.media.Image;
 import android.media.ImageReader;
+import android.media.MediaCodec;
 import android.media.MediaPlayer;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.OrientationEventListener;
@@ -35,13 +44,26 @@ import android.view.Surface;
 import android.view.TextureView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Using android.hardware.camera2 API
@@ -57,6 +79,7 @@ import java.util.List;
  *
  * For threading we're using 2 thread handlers ({@link #mMainHandler} && {@link #mChildHandler})
  * with 1 thread pool {@link #mBackgroundThread}
+ * Open, capture and recording start or stop are queued as commands running in order on {@link #mChildHandler}
  */
 @SuppressWarnings("FieldCanBeLocal")
 public class TravCam {
@@ -76,8 +99,12 @@ public class TravCam {
     /** Holds characteristics for the assigned CameraID camera **/
     private static CameraCharacteristics mCameraCharacteristics;
 
-    /** Tracking Camera state **/
-    private static CameraState mCameraState = CameraState.STATE_PREVIEW;
+    /**
+     * Tracking Camera state, transitions are validated and published atomically
+     * Camera operations run one at a time on the camera thread through {@link #mCommands}
+     * **/
+    private final static CameraStateMachine mStateMachine = new CameraStateMachine();
+    private final static CameraCommandQueue mCommands = new CameraCommandQueue(mStateMachine);
 
     /**
      * Two different threads assigned and used in a ThreadPool
@@ -89,6 +116,9 @@ public class TravCam {
     private static Handler mChildHandler, mMainHandler;
     private final static String THREAD_POOL_NAME = "CameraHandler";
 
+    /** Main looper handler kept across background thread restarts, delivers host callbacks and grabs posters **/
+    private final static Handler mUiHandler = new Handler(Looper.getMainLooper());
+
     /** Current CameraID received from {@link CameraCharacteristics} **/
     private static String mCameraID;
 
@@ -165,6 +195,9 @@ public class TravCam {
     /** Sizes for previewing and video recording **/
     private static Size mPreviewSize, mVideoSize;
 
+    /** Largest YUV output size, used for YUV sourced stills **/
+    private static Size mYuvStillSize;
+
     /**
      * Max preview width that is guaranteed by Camera2 API
      */
@@ -178,15 +211,147 @@ public class TravCam {
     /** Using MediaRecorder for recording videos **/
     private static MediaRecorder mMediaRecorder;
 
-    /** Created file to be used for writing captured video data **/
-    private static File mLastCapturedVideoFile;
+    /** Created media to be used for writing captured video data **/
+    private static CapturedMedia mLastCapturedVideo;
+
+    /** Last published recording, set on the I/O executor once the recording is finished **/
+    private static volatile CapturedMedia mLastRecordedVideo;
+
+    /** Last stored captured image **/
+    private static CapturedMedia mLastCapturedImage;
+
+    /** Destination of the next captured image, default sink when null **/
+    private static volatile StorageSink mNextImageSink;
+
+    /** In-memory delivery of the next captured image and its latency measurement **/
+    private static volatile boolean mNextImageInMemory;
+    private static volatile long mCaptureRequestNanos;
+    private static long mLastInMemoryLatencyNanos;
+
+    /** Buffer holding the single image of {@link #mImageReader} until the host releases it **/
+    private static volatile CapturedBuffer mLeasedBuffer;
+
+    /**
+     * Early thumbnails, delivered before captures are stored
+     * {@link #mThumbnailSize} is requested as JPEG EXIF thumbnail, null when not supported
+     * **/
+    private static ThumbnailDecoder mThumbnailDecoder;
+    private static Size mThumbnailSize;
+    private static long mLastTimeToThumbnailNanos, mLastTimeToFileNanos;
+
+    /** Wanted thumbnail width **/
+    private final static int THUMBNAIL_WIDTH = 320;
+
+    /**
+     * Still capture convergence, {@link #mPrecapture} is driven by preview results of {@link #mPreviewResultCallback}
+     * Latest preview AF and AE states let already converged captures skip triggers
+     * **/
+    private final static PrecaptureSequence mPrecapture = new PrecaptureSequence();
+    private static volatile Integer mLastAfState, mLastAeState;
+    private static long mStillRequestNanos, mLastStillCaptureNanos;
+
+    /** Precapture phase timeouts, legacy devices converge slower, host values override them when set **/
+    private final static long FOCUS_TIMEOUT_MS = 1000;
+    private final static long EXPOSURE_TIMEOUT_MS = 1000;
+    private final static int LEGACY_TIMEOUT_FACTOR = 3;
+    private static long mFocusTimeoutMs, mExposureTimeoutMs;
+
+    /** Extra wait before forcing a capture when preview results stop arriving **/
+    private final static long PRECAPTURE_WATCHDOG_MARGIN_MS = 200;
 
-    /** Created file to be used for writing captured image data **/
-    private static File mLastCapturedImageFile;
+    /** Tap to focus regions, touches are mapped through the inverse of {@link #mPreviewTransform} **/
+    private final static MeteringRegions mMetering = new MeteringRegions();
+    private static Matrix mPreviewTransform = new Matrix();
 
     /** Video recording max length limitation **/
     private final static int MAX_VIDEO_RECORDING_TIME = 30000; // 30 SECONDS
 
+    /** Default max video bitrate, adapted by {@link #mMasterBitrate} and halved when storage governor downgrades a recording **/
+    private final static int VIDEO_BITRATE = 10000000;
+    private final static int VIDEO_FRAME_RATE = 24;
+
+    /**
+     * Dual-rendition recording, SDK >= 26
+     * When enabled, {@link #mProxyEncoder} encodes the recording session frames a second time
+     * at {@link #mProxySize} into {@link #mLastCapturedProxy}, aside the master recorder
+     * **/
+    private static boolean mProxyEnabled;
+    private static Size mProxySize;
+    private static ProxyEncoder mProxyEncoder;
+    private static CapturedMedia mLastCapturedProxy;
+
+    /** Proxy bitrate, its size is chosen by {@link ProxyEncoder#chooseSize(Size[], Size)} **/
+    private final static int PROXY_BITRATE = 1000000;
+
+    /**
+     * Poster frame of recordings, disabled when {@link #mPosterOffsetMs} is negative
+     * Preview frame shown {@link #mPosterOffsetMs} after recording starts is grabbed at {@link #POSTER_WIDTH}
+     * and JPEG encoded on the I/O executor, so no decoding pass over the finished video is needed
+     * **/
+    private static volatile long mPosterOffsetMs = -1;
+    private static volatile Bitmap mPoster;
+    private static volatile Future<byte[]> mPosterJpeg;
+    private static long mPosterStartNanos, mLastPosterNanos;
+    private final static int POSTER_WIDTH = 480;
+    private final static int POSTER_JPEG_QUALITY = 85;
+    private final static long POSTER_ENCODE_TIMEOUT_MS = 500;
+
+    /**
+     * Per frame metadata of recordings, null columns when disabled
+     * {@link #mFrameMetadata} records capture results of the running recording on camera thread
+     * **/
+    private static volatile EnumSet<FrameMetadata.Column> mFrameMetadataColumns;
+    private static volatile FrameMetadata mFrameMetadata;
+    private static volatile long mLastFrameMetadataNanos;
+    private final static int FRAME_METADATA_MAX_FPS = 30;
+
+    /**
+     * Video snapshots, stills taken while recording without reconfiguring the recording session
+     * When enabled, {@link #mSnapshotReader} is configured in every recording session aside {@link #mRecordingTargets},
+     * {@link #mContinuity} tracks recorded frames dropped around snapshots
+     * **/
+    private static boolean mSnapshotsEnabled, mSnapshotUnsupported, mSnapshotInSession;
+    private static Size mSnapshotSize;
+    private static ImageReader mSnapshotReader;
+    private final static List<Surface> mRecordingTargets = new ArrayList<>();
+    private final static FrameContinuity mContinuity = new FrameContinuity();
+    private static long mSnapshotRequestNanos, mLastSnapshotNanos;
+    private final static int SNAPSHOT_MAX_IMAGES = 2;
+
+    /**
+     * Adaptive bitrates, lowered when storage can't keep up with the encoders
+     * MediaRecorder bitrate can't change while recording, {@link #mMasterBitrate} learns during a recording
+     * and applies to the next one. {@link #mProxyBitrate} is applied to {@link #mProxyEncoder} live.
+     * **/
+    private final static BitrateController mMasterBitrate = new BitrateController(VIDEO_BITRATE / 4, VIDEO_BITRATE)
+            .setThrottleListener((from, to, writeBytesPerSecond) -> onBitrateThrottled(false, from, to, writeBytesPerSecond));
+    private final static BitrateController mProxyBitrate = new BitrateController(PROXY_BITRATE / 4, PROXY_BITRATE)
+            .setThrottleListener((from, to, writeBytesPerSecond) -> onBitrateThrottled(true, from, to, writeBytesPerSecond));
+    private static FileDescriptor mRecordingDescriptor;
+    private final static long BITRATE_SAMPLE_MS = 1000;
+
+    /**
+     * Preview power profile, null when disabled
+     * {@link #mPowerProfile} lowers preview to {@link #mReducedFpsRange} when idle or warm, and also to
+     * {@link #mLowPowerPreviewSize} when idle for long or hot. Frame rate changes only update the repeating request.
+     * **/
+    private static PreviewPowerProfile mPowerProfile;
+    private static Handler mPowerHandler;
+    private static Object mThermalListener;
+    private static Range<Integer> mReducedFpsRange, mLowFpsRange, mFullFpsRange;
+    private static Size mLowPowerPreviewSize;
+    private static boolean mPreviewLowResolution;
+    private static String mPowerTransition;
+    private static long mPowerTransitionNanos;
+    private final static int REDUCED_PREVIEW_FPS = 15;
+    private final static int LOW_PREVIEW_FPS = 10;
+    private final static long POWER_TICK_MS = 5000;
+
+    /** Per encoder throughput of last recording **/
+    private static long mRecordingStartNanos;
+    private static volatile long mLastMasterBytesPerSecond, mLastProxyBytesPerSecond;
+    private static volatile float mLastProxyFramesPerSecond;
+
     /**
      * Using CountDownTimer to run for {@link #MAX_VIDEO_RECORDING_TIME}
      * This will detect the currently recording video length, and automatically
@@ -194,6 +359,67 @@ public class TravCam {
      * **/
     private static CountDownTimer mVideoRecordingTimer;
 
+    /**
+     * Optional motion trigger, null when disabled
+     * {@link #mAnalysisReader} delivers small YUV frames to {@link #mMotionDetector}
+     * on {@link #mChildHandler} for both preview and video recording sessions
+     * **/
+    private static MotionDetector mMotionDetector;
+    private static ImageReader mAnalysisReader;
+    private static Size mAnalysisSize;
+
+    /** Optional streams dropped after a failed preview session, until the next camera is configured **/
+    private static boolean mZslUnsupported, mAnalysisUnsupported;
+
+    /** Min analysis stream width, smallest YUV output at least this wide will be used **/
+    private final static int MIN_ANALYSIS_WIDTH = 320;
+
+    /** Analysis and burst reader images without memory pressure, lowered down to 1 by the image readers budget **/
+    private final static int ANALYSIS_MAX_IMAGES = 2;
+    private final static int NIGHT_MAX_IMAGES = 2;
+
+    /**
+     * Zero shutter lag, {@link #mZslRing} is null when disabled
+     * {@link #mZslReader} streams full resolution YUV frames into {@link #mZslRing} while previewing
+     * and {@link #captureImage()} encodes the frame closest to the tap instead of starting a new capture
+     * **/
+    private static FrameRing<Image> mZslRing;
+    private static ImageReader mZslReader;
+    private static boolean mZslEnabled;
+    private static int mZslRequestedFrames;
+    private static long mZslMaxBytes;
+
+    /** Whether sensor timestamps use {@link SystemClock#elapsedRealtimeNanos()} time base **/
+    private static boolean mSensorTimestampRealtime;
+
+    /** Last tap to chosen frame timestamp delta, positive when frame is newer than tap **/
+    private static long mLastZslTapDeltaNanos;
+
+    /**
+     * Low light multi-frame capture
+     * {@link #mNightReader} receives a burst of YUV frames which are merged by {@link #mFrameMerger}
+     * Merger buffers are kept between captures of the same burst length
+     * **/
+    private static FrameMerger mFrameMerger;
+    private static ImageReader mNightReader;
+    private final static int DEFAULT_NIGHT_FRAMES = 4;
+
+    /** Set from burst start until the merged image is encoded, later night captures would overwrite merger buffers **/
+    private final static AtomicBoolean mNightBusy = new AtomicBoolean();
+
+    /** Completion flag of the running burst, set once its frames are merged or it failed **/
+    private static volatile AtomicBoolean mNightBurstDone;
+
+    /** Zero shutter lag ring length of the open reader, 0 while closed **/
+    private static int mZslCapacity;
+
+    /** Images held by zero shutter lag reader beside ring frames, one being acquired and one being encoded **/
+    private final static int ZSL_EXTRA_IMAGES = 2;
+
+    /** Default zero shutter lag ring limits **/
+    private final static int DEFAULT_ZSL_FRAMES = 4;
+    private final static long DEFAULT_ZSL_MAX_BYTES = 96L * 1024 * 1024;
+
 
 
     // ===========================================================================================
@@ -216,7 +442,8 @@ public class TravCam {
         mCameraHandlerListener = listener;
 
         // Init FileManager
-        mFileManager = new TravManager(context);
+        mFileManager = new TravManager(context).listenForCallbacks(mImageFileCallbacks);
+        registerMemoryConsumers(mFileManager.getMemoryGovernor());
 
         // Orientation listener
         mOrientationEventListener = new OrientationEventListener(ctx) {
@@ -245,13 +472,9 @@ public class TravCam {
             public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surface, int width, int height) {
                 startBackgroundThread();
 
-                try{
-                    mPreviewSize = new Size(width, height);
-                    configureTransform(width, height);
-                    initCamera(width, height);
-                }catch (CameraAccessException e){
-                    Log.d(TAG, "openCamera exception: "+e.getMessage());
-                }
+                mPreviewSize = new Size(width, height);
+                configureTransform(width, height);
+                submitOpen(width, height);
             }
 
             @Override
@@ -291,6 +514,11 @@ public class TravCam {
         // Init Media Recorder
         mMediaRecorder = new MediaRecorder();
 
+        // Recorder stops itself at the max file size allowed by the storage governor
+        mMediaRecorder.setOnInfoListener((recorder, what, extra) -> {
+            if(what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) stopVideoRecording();
+        });
+
         // Open Camera
         mCameraManager.openCamera(mCameraID, new CameraDevice.StateCallback() {
             @Override
@@ -336,8 +564,45 @@ public class TravCam {
             mImageReader.close();
             mImageReader = null;
         }
+        mLeasedBuffer = null;
+
+        if(null != mAnalysisReader){
+            mAnalysisReader.close();
+            mAnalysisReader = null;
+        }
+
+        closeZslReader();
+
+        if(null != mNightReader){
+            mNightReader.close();
+            mNightReader = null;
+        }
+
+        // Burst closed before all frames arrived, no merge will free night captures
+        final AtomicBoolean burstDone = mNightBurstDone;
+        if(burstDone != null && burstDone.compareAndSet(false, true)) mNightBusy.set(false);
+
+        if(null != mSnapshotReader){
+            mSnapshotReader.close();
+            mSnapshotReader = null;
+        }
+
+        // Apply queued deletions, drop reserved MediaStore entries
+        if(null != mFileManager){
+            final TravManager fileManager = mFileManager;
+            TravManager.getIoExecutor().execute(fileManager::releasePendingMedia);
+        }
 
+        // Commands queued for the closed camera are stale
+        mCommands.clear();
+        mStateMachine.reset(CameraState.STATE_PREVIEW);
         stopBackgroundThread();
+
+        // Camera thread is stopped, nothing advances the sequence anymore
+        mPrecapture.cancel();
+        mLastAfState = null;
+        mLastAeState = null;
+        mMetering.clear();
     }
 
     /**
@@ -345,22 +610,49 @@ public class TravCam {
      * Pauses current threads
      */
     public static void onPause(){
+        stopPowerProfile();
+        flushPendingMedia();
+        mCommands.clear();
         stopBackgroundThread();
     }
 
+    /**
+     * Deletions of failed captures are applied to MediaStore in batches on SDK >= 29
+     * Applies queued deletions without waiting for the batch window
+     */
+    public static void flushPendingMedia(){
+        if(null != mFileManager){
+            final TravManager fileManager = mFileManager;
+            TravManager.getIoExecutor().execute(fileManager::flushPendingMedia);
+        }
+    }
+
     /**
      * Must be called on host's lifecycle onResume method
      * Resume previous sessions
      */
     public static void onResume(){
-        try {
-            if(mCamera != null && mTextureView.isAvailable())
-                initCamera(mTextureView.getWidth(), mTextureView.getHeight());
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
+        if(mFileManager != null) mFileManager.getMemoryGovernor().relax();
+        startPowerProfile();
+        if(mCamera != null && mTextureView.isAvailable()){
+            startBackgroundThread();
+            submitOpen(mTextureView.getWidth(), mTextureView.getHeight());
         }
     }
 
+    /**
+     * Opens camera on the camera thread, allowed in any state
+     */
+    private static void submitOpen(int width, int height){
+        mCommands.submit("open", null, () -> {
+            try{
+                initCamera(width, height);
+            }catch (CameraAccessException e){
+                Log.d(TAG, "openCamera exception: "+e.getMessage());
+            }
+        });
+    }
+
     /**
      * Starts actual camera preview on screen.
      * {@link #initCamera(int, int)} needs to be called in advance
@@ -371,20 +663,44 @@ public class TravCam {
         // Close old preview session
         closeCameraPreviewSession();
 
-        // Create capture request
+        // Create capture request, template fps range is kept for full power level
         mPreviewBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+        mFullFpsRange = mPreviewBuilder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
 
         // Setting buffer size for current texture
         SurfaceTexture texture = mTextureView.getSurfaceTexture();
         assert texture != null;
-        texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        mPreviewLowResolution = mPowerProfile != null && mPowerProfile.getLevel() == PreviewPowerProfile.Level.LOW && mLowPowerPreviewSize != null;
+        final Size bufferSize = mPreviewLowResolution ? mLowPowerPreviewSize : mPreviewSize;
+        texture.setDefaultBufferSize(bufferSize.getWidth(), bufferSize.getHeight());
 
         // Add surface
         Surface previewSurface = new Surface(texture);
         mPreviewBuilder.addTarget(previewSurface);
 
+        List<Surface> surfaces = new ArrayList<>();
+        surfaces.add(previewSurface);
+
+        // Still surface, stills are captured on the preview session with its converged focus and exposure
+        initImageReader();
+        surfaces.add(mImageReader.getSurface());
+
+        // Motion analysis surface
+        final boolean withAnalysis = initAnalysisReader();
+        if(withAnalysis){
+            surfaces.add(mAnalysisReader.getSurface());
+            mPreviewBuilder.addTarget(mAnalysisReader.getSurface());
+        }
+
+        // Zero shutter lag surface
+        final boolean withZsl = initZslReader();
+        if(withZsl){
+            surfaces.add(mZslReader.getSurface());
+            mPreviewBuilder.addTarget(mZslReader.getSurface());
+        }
+
         // Create capture session
-        mCamera.createCaptureSession(Collections.singletonList(previewSurface), new CameraCaptureSession.StateCallback() {
+        mCamera.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
             @Override
             public void onConfigured(@NonNull CameraCaptureSession session) {
                 mPreviewSession = session;
@@ -393,7 +709,19 @@ public class TravCam {
 
             @Override
             public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-
+                // Max size YUV and analysis streams may exceed supported stream combinations, drop them one by one
+                if(withZsl){
+                    Log.d(TAG, "Preview session failed with ZSL stream, previewing without ZSL.");
+                    mZslUnsupported = true;
+                    restartPreviewForStreamsChange();
+                }else if(withAnalysis){
+                    Log.d(TAG, "Preview session failed with analysis stream, previewing without motion trigger.");
+                    mAnalysisUnsupported = true;
+                    restartPreviewForStreamsChange();
+                }else{
+                    Log.d(TAG, "Preview session configuration failed.");
+                    mUiHandler.post(() -> mCameraHandlerListener.onError("Preview session configuration failed."));
+                }
             }
         }, mMainHandler);
     }
@@ -409,18 +737,27 @@ public class TravCam {
             mPreviewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
 
             // Turn on Auto-focus if supported
-            if(isAutoFocusSupported()){
-                mPreviewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-            }else{
-                mPreviewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
-            }
+            setPreviewFocusMode(mPreviewBuilder);
+
+            // Auto flash, precapture metering decides the flash of the still
+            setPreviewAeMode(mPreviewBuilder);
+
+            // Tapped regions are applied again with the first frame
+            mMetering.restore(System.nanoTime());
 
             // Restarting background threads
             stopBackgroundThread();
             startBackgroundThread();
 
+            // Analysis and zero shutter lag frames are delivered on the restarted child thread
+            attachAnalysisListener();
+            attachZslListener();
+
             // Start preview session
-            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), null, mMainHandler);
+            setPowerFpsRange(mPreviewBuilder);
+            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), mPreviewResultCallback, mChildHandler);
+            mStateMachine.moveTo(CameraState.STATE_PREVIEW);
+            logPowerTransition(true);
         }catch (CameraAccessException e){
             e.printStackTrace();
         }
@@ -438,39 +775,24 @@ public class TravCam {
 
     /**
      * There's a problem that many front-facing cameras have a fixed focus distance.
-     * So after the autofocus trigger in lockFocus() the autofocus state (CONTROL_AF_STATE)
+     * So after the autofocus trigger the autofocus state (CONTROL_AF_STATE)
      * remains INACTIVE and the autofocus trigger does nothing.
      * So in order to make it work you need to check whether autofocus is supported or not.
-     * In here we're checking if there's no actual auto-focus mode
-     * or if there's an available auto-focus mode but it is off
+     * In here we're checking if there's no actual auto-focus mode, if the only auto-focus mode is off
+     * or if the lens has a fixed focus distance
      */
     private static boolean isAutoFocusSupported(){
-        int[] afAvailableModes = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES);
+        final int[] afAvailableModes = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        final Float minFocusDistance = mCameraCharacteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
         return !(
-                afAvailableModes.length == 0
+                afAvailableModes == null || afAvailableModes.length == 0
                         ||
                         (afAvailableModes.length == 1 && afAvailableModes[0] == CameraMetadata.CONTROL_AF_MODE_OFF)
+                        ||
+                        (minFocusDistance != null && minFocusDistance == 0f)
         );
     }
 
-    /**
-     * If AUTO_FOCUS is not supported then we need to manually lock focus using lockFocus() method
-     * after locking focus and capturing image, unlockFocus() method must be called to free the
-     * focus
-     */
-    private static void unlockFocus(){
-        try{
-            // Inform Camera to UnLock Focus
-            mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
-
-            // Set repeating request
-            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), mCameraCaptureSessionCaptureCallbacks, mChildHandler);
-            mCameraState = CameraState.STATE_FOCUS_UNLOCKED;
-        }catch (CameraAccessException e){
-            Log.d(TAG, "unlockFocus() Exception: "+e.getMessage());
-        }
-    }
-
     /**
      * In this sample, we choose a video size with 3x4 aspect ratio. Also, we don't use sizes
      * larger than 1080p, since MediaRecorder cannot handle such a high-resolution video.
@@ -488,6 +810,68 @@ public class TravCam {
         return choices[choices.length - 1];
     }
 
+    /**
+     * Largest JPEG size not larger than the video with the same aspect ratio
+     * Snapshots of record size are supported aside recording by every hardware level
+     * @param choices  camera JPEG output sizes
+     * @param video    video size
+     * @return         snapshot size, null when none matches
+     */
+    private static Size chooseSnapshotSize(Size[] choices, Size video){
+        if(choices == null || video == null) return null;
+        Size snapshot = null;
+        for(Size size : choices){
+            if(size.getWidth() > video.getWidth() || size.getHeight() > video.getHeight()) continue;
+            if((long) size.getWidth() * video.getHeight() != (long) size.getHeight() * video.getWidth()) continue;
+            if(snapshot == null || size.getWidth() > snapshot.getWidth()) snapshot = size;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Fixed or variable range whose max fps is the lowest one still reaching the wanted fps
+     * @param ranges  available AE target fps ranges
+     * @param fps     wanted max fps
+     * @return        range, null when none is available
+     */
+    private static Range<Integer> chooseFpsRange(Range<Integer>[] ranges, int fps){
+        if(ranges == null) return null;
+        Range<Integer> chosen = null;
+        for(Range<Integer> range : ranges){
+            if(chosen == null){
+                chosen = range;
+                continue;
+            }
+            final boolean reaches = range.getUpper() >= fps, chosenReaches = chosen.getUpper() >= fps;
+            if(reaches != chosenReaches){
+                if(reaches) chosen = range;
+            }else if(reaches ? range.getUpper() < chosen.getUpper() : range.getUpper() > chosen.getUpper()){
+                chosen = range;
+            }else if(range.getUpper().equals(chosen.getUpper()) && range.getLower() > chosen.getLower()){
+                // Fixed range keeps the sensor from waking up for higher rates
+                chosen = range;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Largest size with preview aspect ratio and at most half its width
+     * @param choices  camera output sizes for {@link SurfaceTexture}
+     * @param preview  full preview size
+     * @return         low power preview size, null when none matches
+     */
+    private static Size chooseLowPowerPreviewSize(Size[] choices, Size preview){
+        if(choices == null || preview == null) return null;
+        Size low = null;
+        for(Size size : choices){
+            if(size.getWidth() > preview.getWidth() / 2) continue;
+            if((long) size.getWidth() * preview.getHeight() != (long) size.getHeight() * preview.getWidth()) continue;
+            if(low == null || size.getWidth() > low.getWidth()) low = size;
+        }
+        return low;
+    }
+
     /**
      * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
      * is at least as large as the respective texture view size, and that is at most as large as the
@@ -566,6 +950,7 @@ public class TravCam {
             matrix.postRotate(90 * (rotation - 2), centerX, centerY);
         }
         mTextureView.setTransform(matrix);
+        mPreviewTransform = matrix;
     }
 
     /**
@@ -615,7 +1000,25 @@ public class TravCam {
         if(maxPreviewHeight > MAX_PREVIEW_HEIGHT) maxPreviewHeight = MAX_PREVIEW_HEIGHT;
 
         mVideoSize = chooseVideoSize(configMap.getOutputSizes(MediaRecorder.class));
+        mProxySize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? ProxyEncoder.chooseSize(configMap.getOutputSizes(MediaCodec.class), mVideoSize) : null;
+        mSnapshotSize = chooseSnapshotSize(configMap.getOutputSizes(ImageFormat.JPEG), mVideoSize);
+        mSnapshotUnsupported = false;
+        mZslUnsupported = false;
+        mAnalysisUnsupported = false;
+        final Range<Integer>[] fpsRanges = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        mReducedFpsRange = chooseFpsRange(fpsRanges, REDUCED_PREVIEW_FPS);
+        mLowFpsRange = chooseFpsRange(fpsRanges, LOW_PREVIEW_FPS);
+        mAnalysisSize = chooseAnalysisSize(configMap.getOutputSizes(ImageFormat.YUV_420_888));
+        mYuvStillSize = Collections.max(Arrays.asList(configMap.getOutputSizes(ImageFormat.YUV_420_888)), new CompareSizesByArea());
+        mThumbnailSize = chooseThumbnailSize(mCameraCharacteristics.get(CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES));
+        applyPrecaptureTimeouts();
+
+        Integer timestampSource = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        mSensorTimestampRealtime = timestampSource != null && timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
         mPreviewSize = chooseOptimalSize(configMap.getOutputSizes(SurfaceTexture.class), rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth, maxPreviewHeight, largest);
+        mLowPowerPreviewSize = chooseLowPowerPreviewSize(configMap.getOutputSizes(SurfaceTexture.class), mPreviewSize);
+        configureMeteringRegions();
     }
 
     /**
@@ -651,14 +1054,23 @@ public class TravCam {
     // ===========================================================================================
     /** Starts background thread **/
     private static void startBackgroundThread(){
+        if(mBackgroundThread != null) return;
         mBackgroundThread = new HandlerThread(THREAD_POOL_NAME);
         mBackgroundThread.start();
         mChildHandler = new Handler(mBackgroundThread.getLooper());
         mMainHandler = new Handler(Looper.getMainLooper());
+
+        // Queued commands run on the new thread, posts fail once it quits
+        final Handler handler = mChildHandler;
+        mCommands.setExecutor(command -> {
+            if(!handler.post(command)) throw new RejectedExecutionException("Camera thread stopped");
+        });
     }
 
     /** Stops background thread **/
     private static void stopBackgroundThread(){
+        // Commands submitted meanwhile wait for the next thread
+        mCommands.setExecutor(null);
         if(mBackgroundThread != null){
             mBackgroundThread.quitSafely();
             try{
@@ -681,349 +1093,2169 @@ public class TravCam {
     // =================================== Capturing Images ======================================
     // ===========================================================================================
     /**
-     * Called on mSurfaceHolderCallbacks on the surfaceCreated method
-     * Used to initialized ImageReader
+     * Creates still ImageReader once per opened camera, its surface is part of every preview session
      */
     private static void initImageReader(){
+        if(mImageReader != null) return;
+
         // Init image reader width largest available size
         mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.JPEG, 1);
 
         // Adding callbacks to ImageReader
         mImageReader.setOnImageAvailableListener(reader -> {
             // Change camera state
-            mCameraState = CameraState.STATE_IMAGE_CAPTURED;
+            mStateMachine.moveTo(CameraState.STATE_IMAGE_CAPTURED);
+            mLastStillCaptureNanos = System.nanoTime() - mStillRequestNanos;
+            Log.d(TAG, "Still capture ms, focus: "+mPrecapture.getLastFocusMillis()+", exposure: "+mPrecapture.getLastExposureMillis()
+                    +", capture: "+mLastStillCaptureNanos / 1_000_000f+", fast path: "+mPrecapture.wasLastFastPath()
+                    +", timed out: "+mPrecapture.wasLastTimedOut());
 
             // This callback returns an image when CameraCaptureSession completes capture.
             // Call to save captured image
-            mFileManager.listenForCallbacks(new TravManager.ScopedFileManagerCallbacks() {
-                @Override
-                public void onFileCreated(File file) {
-                    // Store captured file
-                    mLastCapturedImageFile = file;
+            final Image image = reader.acquireNextImage();
+            if(image == null) return;
+            if(takeInMemory()){
+                // Lease JPEG plane as is, closed by the host through release()
+                deliverInMemory(image.getPlanes()[0].getBuffer(), image);
+                mStateMachine.moveTo(CameraState.STATE_PREVIEW);
+                return;
+            }
 
-                    // Inform listener
-                    mCameraHandlerListener.onImageCapture(file);
-                }
+            // Thumbnail first, then store full resolution bytes in background
+            final byte[] bytes = TravManager.imageToBytes(image);
+            image.close();
+            deliverThumbnailAndStore(bytes, takeImageSink());
 
-                @Override
-                public void onError(String message) {
-                    Log.d(TAG, "FileManager Error: "+message);
-                }
-            }).storeCapturedImage(reader.acquireNextImage(), TravManager.ScopedFileType.IMAGE);
+            // Preview never stopped, new captures and taps are accepted
+            mStateMachine.moveTo(CameraState.STATE_PREVIEW);
         }, mMainHandler);
     }
 
     /**
-     * Requests camera image capture
-     * Checks if AuthFocus is supported on device, otherwise will manually lock_focus
+     * Informs host with stored image files
      */
-    public static void captureImage(){
-        if(mCamera == null || !mTextureView.isAvailable() || mPreviewSize == null) return;
-
-        // Close previous session
-        closeCameraPreviewSession();
-        try{
-            initImageReader();
-
-            mCameraState = CameraState.STATE_CAPTURING_IMAGE;
-
-            // Updating CaptureRequest builder
-            mPreviewBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-
-            // Turn on flash
-            mPreviewBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+    private final static TravManager.ScopedFileManagerCallbacks mImageFileCallbacks = new TravManager.ScopedFileManagerCallbacks() {
+        @Override
+        public void onMediaCreated(@NonNull CapturedMedia media) {
+            // Store captured media
+            mLastCapturedImage = media;
+            mLastTimeToFileNanos = SystemClock.elapsedRealtimeNanos() - mCaptureRequestNanos;
+            Log.d(TAG, "Time to file ms: "+mLastTimeToFileNanos / 1_000_000f);
+
+            // Inform listener on main thread, media is stored on the I/O executor
+            mUiHandler.post(() -> mCameraHandlerListener.onImageCapture(media));
+        }
 
-            // Orientation
-            final int rotation = ((Activity) context).getWindowManager().getDefaultDisplay().getRotation();
-            mPreviewBuilder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
+        @Override
+        public void onFileCreated(File file) {
+            // Not used, media is delivered using onMediaCreated
+        }
 
-            // Adding targeted surfaces
-            List<Surface> surfaces = new ArrayList<>();
-            surfaces.add(mImageReader.getSurface());
+        @Override
+        public void onError(String message) {
+            Log.d(TAG, "FileManager Error: "+message);
+            mUiHandler.post(() -> mCameraHandlerListener.onError(message));
+        }
+    };
 
-            // Updating target of captured request
-            mPreviewBuilder.addTarget(mImageReader.getSurface());
+    /**
+     * Requests camera image capture stored to the given sink instead of the default one
+     * @param sink  destination of this capture only, see {@link #setStorageSink(StorageSink)}
+     */
+    public static void captureImage(@NonNull StorageSink sink){
+        submitCapture(() -> mNextImageSink = sink);
+    }
 
-            // Start capture session
-            mCamera.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
-                @Override
-                public void onConfigured(@NonNull CameraCaptureSession session) {
-                    mPreviewSession = session;
+    /**
+     * Requests camera image capture delivered by {@link CameraHandlerListener#onImageBuffer(CapturedBuffer)}
+     * No file or MediaStore entry is created and the image isn't rotated
+     * Still captures are rejected until the delivered buffer is released, see {@link CapturedBuffer}
+     */
+    public static void captureImageToMemory(){
+        submitCapture(() -> mNextImageInMemory = true);
+    }
 
-                    // Checking if device supports AutoFocus
-                    // Otherwise focus will be manually locked then unlocked after capturing
-                    try{
-                        if(isAutoFocusSupported()){
-                            mPreviewSession.capture(mPreviewBuilder.build(),
-                                    mCameraCaptureSessionCaptureCallbacks,
-                                    mChildHandler);
-                        }else{
-                            lockFocusAndCapture();
-                        }
-                    }catch (CameraAccessException e){
-                        e.printStackTrace();
-                    }
-                }
+    /**
+     * @return capture request to {@link CameraHandlerListener#onImageBuffer(CapturedBuffer)} time of the last in-memory capture
+     */
+    public static long getLastInMemoryLatencyNanos(){
+        return mLastInMemoryLatencyNanos;
+    }
 
-                @Override
-                public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+    /**
+     * @return is the pending capture delivered in memory
+     */
+    private static boolean takeInMemory(){
+        final boolean inMemory = mNextImageInMemory;
+        mNextImageInMemory = false;
+        return inMemory;
+    }
 
-                }
-            }, mChildHandler);
-        }catch (CameraAccessException e){
-            e.printStackTrace();
+    /**
+     * Informs host with an in-memory capture on main thread
+     * @param buffer  encoded JPEG bytes
+     * @param image   image backing the buffer, null for heap buffers
+     */
+    private static void deliverInMemory(@NonNull ByteBuffer buffer, Image image){
+        final long latency = SystemClock.elapsedRealtimeNanos() - mCaptureRequestNanos;
+        mLastInMemoryLatencyNanos = latency;
+        Log.d(TAG, "In-memory capture latency ms: "+latency / 1_000_000f);
+
+        final CapturedBuffer captured = new CapturedBuffer(buffer, image, TravManager.StillFormat.JPEG.getMimeType(),
+                revertOrientationToPortrait(getSensorOrientation()), System.currentTimeMillis(), latency);
+        if(image != null) mLeasedBuffer = captured;
+        if(Looper.myLooper() == Looper.getMainLooper()){
+            mCameraHandlerListener.onImageBuffer(captured);
+        }else{
+            mUiHandler.post(() -> mCameraHandlerListener.onImageBuffer(captured));
         }
     }
 
     /**
-     * Assign media raw file path
-     * Image capture sound
-     * @param rawFilePath  Resources raw file
+     * @return true while the host holds the still reader image, its next image can't be acquired
      */
-    public static void assignImageCaptureSound(int rawFilePath){
-        mCaptureSound = MediaPlayer.create(context, rawFilePath);
+    private static boolean isStillReaderLeased(){
+        final CapturedBuffer leased = mLeasedBuffer;
+        return leased != null && !leased.isReleased();
     }
 
     /**
-     * If AUTO_FOCUS is not supported then we need to manually lock focus before capturing
-     * This will require to trigger unlockFocus() method too after done with capturing
+     * Delivers a thumbnail by {@link CameraHandlerListener#onImageThumbnail(Bitmap)} on main thread,
+     * then stores the capture on {@link TravManager#getIoExecutor()}
+     * @param jpeg  encoded capture
+     * @param sink  capture destination
      */
-    private static void lockFocusAndCapture(){
-        try{
-            // Update camera state
-            mCameraState = CameraState.STATE_FOCUS_LOCKED;
+    private static void deliverThumbnailAndStore(@NonNull byte[] jpeg, @NonNull StorageSink sink){
+        final Bitmap thumbnail = getThumbnailDecoder().decode(jpeg, revertOrientationToPortrait(getSensorOrientation()));
+        if(thumbnail != null){
+            mLastTimeToThumbnailNanos = SystemClock.elapsedRealtimeNanos() - mCaptureRequestNanos;
+            Log.d(TAG, "Time to thumbnail ms: "+mLastTimeToThumbnailNanos / 1_000_000f+", from EXIF: "+mThumbnailDecoder.isLastFromExif());
+            if(Looper.myLooper() == Looper.getMainLooper()){
+                mCameraHandlerListener.onImageThumbnail(thumbnail);
+            }else{
+                mUiHandler.post(() -> mCameraHandlerListener.onImageThumbnail(thumbnail));
+            }
+        }
 
-            // Inform Camera to Lock Focus
-            mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+        // Callbacks bound to the store, a recording started meanwhile keeps its own
+        TravManager.getIoExecutor().execute(() -> mFileManager.storeCapturedBytes(jpeg, TravManager.ScopedFileType.IMAGE, sink, mImageFileCallbacks));
+    }
 
-            // Capture
-            mPreviewSession.capture(mPreviewBuilder.build(), mCameraCaptureSessionCaptureCallbacks, mChildHandler);
+    private static synchronized ThumbnailDecoder getThumbnailDecoder(){
+        if(mThumbnailDecoder == null) mThumbnailDecoder = new ThumbnailDecoder(THUMBNAIL_WIDTH);
+        return mThumbnailDecoder;
+    }
 
-            // Unlock focus
-            unlockFocus();
-        }catch (CameraAccessException e){
-            Log.d(TAG, "lockFocusAndCapture() Exception: "+e.getMessage());
-        }
+    /**
+     * @return capture request to {@link CameraHandlerListener#onImageThumbnail(Bitmap)} time of the last capture
+     */
+    public static long getLastTimeToThumbnailNanos(){
+        return mLastTimeToThumbnailNanos;
     }
 
     /**
-     * Called from host to delete last captured image file if no longer used
+     * @return capture request to {@link CameraHandlerListener#onImageCapture(CapturedMedia)} time of the last capture
      */
-    public static void dismissCapturedImageFile(){
-        if(mLastCapturedImageFile != null){
-            if(mFileManager.deleteFile(mLastCapturedImageFile)){
-                mLastCapturedImageFile = null;
+    public static long getLastTimeToFileNanos(){
+        return mLastTimeToFileNanos;
+    }
+
+    /**
+     * Smallest supported EXIF thumbnail at least {@link #THUMBNAIL_WIDTH} wide, largest one otherwise
+     * @param sizes  supported thumbnail sizes, (0, 0) means no thumbnail
+     * @return       thumbnail size or null if thumbnails aren't supported
+     */
+    private static Size chooseThumbnailSize(Size[] sizes){
+        if(sizes == null) return null;
+        Size chosen = null;
+        for(Size size : sizes){
+            if(size.getWidth() == 0) continue;
+            final boolean wideEnough = size.getWidth() >= THUMBNAIL_WIDTH;
+            if(chosen == null){
+                chosen = size;
+            }else if(chosen.getWidth() >= THUMBNAIL_WIDTH){
+                if(wideEnough && size.getWidth() < chosen.getWidth()) chosen = size;
+            }else if(size.getWidth() > chosen.getWidth()){
+                chosen = size;
             }
         }
+        return chosen;
     }
 
+    /**
+     * @return sink selected for the pending capture, default sink otherwise
+     */
+    private static StorageSink takeImageSink(){
+        final StorageSink sink = mNextImageSink;
+        mNextImageSink = null;
+        return sink != null ? sink : mFileManager.getStorageSink();
+    }
 
+    /**
+     * Requests camera image capture
+     * Focus and exposure converge on the preview first, already converged previews are captured right away
+     * Capture runs on the camera thread, taps while another capture is running are rejected
+     */
+    public static void captureImage(){
+        submitCapture(null);
+    }
 
+    /**
+     * @param options  sets per capture options on the camera thread, only if the capture isn't rejected
+     */
+    private static void submitCapture(Runnable options){
+        onUserInteraction();
+        final long requestNanos = SystemClock.elapsedRealtimeNanos();
+        mCommands.submit("capture", CameraState.STATE_CAPTURING_IMAGE, () -> {
+            mCaptureRequestNanos = requestNanos;
+            if(options != null) options.run();
+            captureImageNow();
+        });
+    }
 
+    private static void captureImageNow(){
+        if(mCamera == null || !mTextureView.isAvailable() || mPreviewSize == null) return;
 
+        // Zero shutter lag, use already captured frame when available
+        if(captureZslFrame()) return;
 
+        // Still reader holds a single image, leased to the host until released
+        if(isStillReaderLeased()){
+            mNextImageInMemory = false;
+            mNextImageSink = null;
+            rejectCapture("Still capture rejected, previous in-memory capture isn't released.");
+            return;
+        }
+
+        // Another capture may have started since the command was accepted
+        if(!mStateMachine.moveTo(CameraState.STATE_CAPTURING_IMAGE)) return;
+
+        // Converge focus and exposure on the running preview first
+        if(mPreviewSession != null && mPreviewBuilder != null){
+            startPrecapture(mPreviewSession, mPreviewBuilder);
+        }else{
+            captureStill(false);
+        }
+    }
 
-    // ===========================================================================================
-    // =================================== Capturing Videos ======================================
-    // ===========================================================================================
     /**
-     * Changes {@link #mCameraState}
-     * Initializes {@link #mVideoRecordingBuilder} for camera video captures
-     * Links to {@link #mVideoRecordingSession} for custom camera session
-     * Starts {@link #mMediaRecorder} to start video recording
+     * Runs {@link #mPrecapture} on the preview session, on the camera thread
+     * Trigger requests are sent once, the repeating preview request reports their progress
      */
-    public static void startVideoRecording(){
-        if(mCamera == null || !mTextureView.isAvailable() || mPreviewSize == null) return;
+    private static void startPrecapture(@NonNull CameraCaptureSession session, @NonNull CaptureRequest.Builder builder){
+        mPrecapture.start(System.nanoTime(), isAutoFocusSupported(), mLastAfState, mLastAeState, new PrecaptureSequence.Actions() {
+            @Override
+            public void triggerFocus() {
+                sendTrigger(session, builder, CaptureRequest.CONTROL_AF_TRIGGER,
+                        CameraMetadata.CONTROL_AF_TRIGGER_START, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            }
 
-        try {
-            // Check if ready to record video
-            if(mMediaRecorder == null || mLastCapturedVideoFile == null) return;
+            @Override
+            public void triggerPrecapture() {
+                sendTrigger(session, builder, CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                        CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_START, CameraMetadata.CONTROL_AE_PRECAPTURE_TRIGGER_IDLE);
+            }
 
-            // Change camera state
-            mCameraState = CameraState.STATE_RECORDING_VIDEO;
+            @Override
+            public void capture(boolean focusLocked) {
+                if(mChildHandler != null) mChildHandler.removeCallbacks(mPrecaptureWatchdog);
+                captureStill(focusLocked);
+            }
+        });
 
-            // Changing template
-            mVideoRecordingBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        // Results may stop arriving, like on a failing session
+        if(mPrecapture.isRunning() && mChildHandler != null){
+            mChildHandler.postDelayed(mPrecaptureWatchdog, mPrecapture.getMaxWaitMillis() + PRECAPTURE_WATCHDOG_MARGIN_MS);
+        }
+    }
 
-            // Adding targeted surfaces
-            List<Surface> surfaces = new ArrayList<>();
+    private static void sendTrigger(@NonNull CameraCaptureSession session, @NonNull CaptureRequest.Builder builder,
+                                    @NonNull CaptureRequest.Key<Integer> key, int start, int idle){
+        try{
+            builder.set(key, start);
+            session.capture(builder.build(), mPreviewResultCallback, mChildHandler);
+        }catch (CameraAccessException | IllegalStateException e){
+            // Sequence times out and captures anyway
+            Log.d(TAG, "Precapture trigger exception: "+e.getMessage());
+        }finally {
+            builder.set(key, idle);
+        }
+    }
 
-            // Setup surface for MediaRecorder
-            surfaces.add(mMediaRecorder.getSurface());
-            mVideoRecordingBuilder.addTarget(mMediaRecorder.getSurface());
+    private final static Runnable mPrecaptureWatchdog = () -> mPrecapture.onTimeout(System.nanoTime());
 
-            surfaces.add(new Surface(mTextureView.getSurfaceTexture()));
+    /**
+     * Keeps latest preview AF and AE states and advances a running precapture sequence
+     */
+    private final static CameraCaptureSession.CaptureCallback mPreviewResultCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            final Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+            final Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            mLastAfState = afState;
+            mLastAeState = aeState;
+            if(mPrecapture.isRunning()){
+                mPrecapture.onResult(System.nanoTime(), afState, aeState);
+            }else{
+                applyPendingTouch();
+            }
+            mMetering.onResult(System.nanoTime(), request.getTag(), afState, aeState);
+        }
+    };
+
+    /**
+     * Captures a still image on the running preview session using {@link CameraDevice#TEMPLATE_STILL_CAPTURE}
+     * Session isn't rebuilt, converged exposure is locked for the still and focus stays where the precapture
+     * sequence locked it. Preview focus and exposure modes are kept, changing them would reset their state
+     * @param focusLocked  focus was locked by the precapture sequence, it is released once the still is taken
+     */
+    private static void captureStill(boolean focusLocked){
+        if(mCamera == null) return;
+        final CameraCaptureSession session = mPreviewSession;
+        if(session == null || mPreviewBuilder == null || mImageReader == null){
+            abortCapture("Still capture needs a running preview session.");
+            return;
+        }
+
+        try{
+            final CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(mImageReader.getSurface());
+
+            // Same modes as the converged preview, exposure locked to its metering
+            builder.set(CaptureRequest.CONTROL_MODE, mPreviewBuilder.get(CaptureRequest.CONTROL_MODE));
+            builder.set(CaptureRequest.CONTROL_AF_MODE, mPreviewBuilder.get(CaptureRequest.CONTROL_AF_MODE));
+            builder.set(CaptureRequest.CONTROL_AE_MODE, mPreviewBuilder.get(CaptureRequest.CONTROL_AE_MODE));
+            builder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+            applyMeteringRegions(builder);
+
+            // Orientation
+            final int rotation = ((Activity) context).getWindowManager().getDefaultDisplay().getRotation();
+            builder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
+
+            // Embedded thumbnail, used for the early thumbnail callback
+            if(mThumbnailSize != null) builder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, mThumbnailSize);
+
+            mStillRequestNanos = System.nanoTime();
+            session.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
+                    if(mCaptureSound != null) mCaptureSound.start();
+                }
+
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+                    // Continuous focus resumes on the repeating request
+                    if(focusLocked && session == mPreviewSession && mPreviewBuilder != null){
+                        sendTrigger(session, mPreviewBuilder, CaptureRequest.CONTROL_AF_TRIGGER,
+                                CameraMetadata.CONTROL_AF_TRIGGER_CANCEL, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+                    }
+                }
+
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+                    // Still frame lost, the image listener never returns to preview state
+                    abortCapture("Still capture failed, reason: "+failure.getReason());
+                }
+            }, mChildHandler);
+        }catch (CameraAccessException | IllegalStateException e){
+            abortCapture("Still capture exception: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Precapture phase timeouts from the hardware level, unless set by host
+     */
+    private static void applyPrecaptureTimeouts(){
+        final Integer level = mCameraCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        final int factor = level != null && level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY ? LEGACY_TIMEOUT_FACTOR : 1;
+        mPrecapture.setTimeouts(mFocusTimeoutMs > 0 ? mFocusTimeoutMs : FOCUS_TIMEOUT_MS * factor,
+                mExposureTimeoutMs > 0 ? mExposureTimeoutMs : EXPOSURE_TIMEOUT_MS * factor);
+    }
+
+    /**
+     * Overrides precapture phase timeouts, captures are taken once a phase times out
+     * Takes effect on the next camera open, 0 restores device defaults
+     * @param focusMs     max wait for focus lock
+     * @param exposureMs  max wait for exposure metering
+     */
+    public static void setPrecaptureTimeouts(long focusMs, long exposureMs){
+        mFocusTimeoutMs = focusMs;
+        mExposureTimeoutMs = exposureMs;
+    }
+
+    /**
+     * @return precapture sequence, focus and exposure phase times of the last capture included
+     */
+    public static PrecaptureSequence getPrecaptureSequence(){
+        return mPrecapture;
+    }
+
+    /**
+     * @return still request to image time of the last capture, after focus and exposure converged
+     */
+    public static long getLastStillCaptureNanos(){
+        return mLastStillCaptureNanos;
+    }
+
+    /**
+     * Assign media raw file path
+     * Image capture sound
+     * @param rawFilePath  Resources raw file
+     */
+    public static void assignImageCaptureSound(int rawFilePath){
+        mCaptureSound = MediaPlayer.create(context, rawFilePath);
+    }
+
+    /**
+     * Selects format used for storing captured images, JPEG by default
+     * HEIC falls back to JPEG on devices without HEIC encoding support
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @param format  wanted format
+     */
+    public static void setStillFormat(@NonNull TravManager.StillFormat format){
+        if(mFileManager != null) mFileManager.setStillFormat(format);
+    }
+
+    /**
+     * Index of captures stored by TravCam, lookups don't query MediaStore
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @return capture index
+     */
+    public static CaptureIndex getCaptureIndex(){
+        return mFileManager != null ? mFileManager.getCaptureIndex() : null;
+    }
+
+    /**
+     * Storage budgets, free space floor and eviction policy of captures
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @return storage governor
+     */
+    public static StorageGovernor getStorageGovernor(){
+        return mFileManager != null ? mFileManager.getStorageGovernor() : null;
+    }
+
+    /**
+     * Uploads captures in resumable chunks, recordings are uploaded while being recorded
+     * Unfinished uploads are resumed after process death
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @param urls         upload URLs of captures
+     * @param parallelism  concurrent uploads
+     * @return             upload queue
+     */
+    public static UploadQueue enableUploads(@NonNull UploadQueue.UrlProvider urls, int parallelism){
+        return mFileManager != null ? mFileManager.enableUploads(urls, parallelism) : null;
+    }
+
+    /**
+     * Stops uploading new captures, queued uploads keep running
+     */
+    public static void disableUploads(){
+        if(mFileManager != null) mFileManager.disableUploads();
+    }
+
+    /**
+     * @return upload queue, null until uploads are enabled
+     */
+    public static UploadQueue getUploadQueue(){
+        return mFileManager != null ? mFileManager.getUploadQueue() : null;
+    }
+
+    /**
+     * Deletes all captures of a type stored by TravCam, in a single MediaStore batch
+     * @param type  media type, null for all types
+     * @return      deleted captures count
+     */
+    public static int deleteCaptures(TravManager.ScopedFileType type){
+        return mFileManager != null ? mFileManager.deleteCaptures(type) : 0;
+    }
+
+    /**
+     * Review API, decodes captured media at the displayed size
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @return review cache of recent captures, hit rates and decode times included
+     */
+    public static MediaReviewCache getReviewCache(){
+        return mFileManager != null ? mFileManager.getReviewCache() : null;
+    }
+
+    /**
+     * @param format  still format
+     * @return        write time and size measurements of images stored in that format
+     */
+    public static TravManager.WriteStats getStillWriteStats(@NonNull TravManager.StillFormat format){
+        return mFileManager != null ? mFileManager.getStillWriteStats(format) : null;
+    }
+
+    /**
+     * Selects default destination of captures, MediaStore DCIM by default
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @param sink  destination like {@link FileSink#appPrivate(Context)} or {@link MemorySink}, null restores default
+     */
+    public static void setStorageSink(StorageSink sink){
+        if(mFileManager != null) mFileManager.setStorageSink(sink);
+    }
+
+    /**
+     * Called from host to delete last captured image file if no longer used
+     */
+    public static void dismissCapturedImageFile(){
+        if(mLastCapturedImage != null){
+            if(mFileManager.deleteMedia(mLastCapturedImage)){
+                mLastCapturedImage = null;
+            }
+        }
+    }
+
+
+
+
+
+
+
+    // ===========================================================================================
+    // =================================== Capturing Videos ======================================
+    // ===========================================================================================
+    /**
+     * Changes camera state on the camera thread
+     * Initializes {@link #mVideoRecordingBuilder} for camera video captures
+     * Links to {@link #mVideoRecordingSession} for custom camera session
+     * Starts {@link #mMediaRecorder} to start video recording
+     */
+    public static void startVideoRecording(){
+        mCommands.submit("record start", CameraState.STATE_RECORDING_VIDEO, TravCam::startVideoRecordingNow);
+    }
+
+    private static void startVideoRecordingNow(){
+        if(mCamera == null || !mTextureView.isAvailable() || mPreviewSize == null) return;
+
+        try {
+            // Check if ready to record video
+            if(mMediaRecorder == null || mLastCapturedVideo == null) return;
+
+            // Change camera state, already recording when retried without proxy
+            if(mStateMachine.getState() != CameraState.STATE_RECORDING_VIDEO
+                    && !mStateMachine.moveTo(CameraState.STATE_RECORDING_VIDEO)) return;
+
+            // Arrays sized for a full length recording
+            final EnumSet<FrameMetadata.Column> columns = mFrameMetadataColumns;
+            mFrameMetadata = columns != null ? new FrameMetadata(MAX_VIDEO_RECORDING_TIME / 1000 * FRAME_METADATA_MAX_FPS, columns) : null;
+
+            // Changing template
+            mVideoRecordingBuilder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+
+            // Adding targeted surfaces
+            List<Surface> surfaces = new ArrayList<>();
+
+            // Setup surface for MediaRecorder
+            surfaces.add(mMediaRecorder.getSurface());
+            mVideoRecordingBuilder.addTarget(mMediaRecorder.getSurface());
+
+            surfaces.add(new Surface(mTextureView.getSurfaceTexture()));
             mVideoRecordingBuilder.addTarget(new Surface(mTextureView.getSurfaceTexture()));
 
-            // Start capture session
-            mCamera.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
-                @Override
-                public void onConfigured(@NonNull CameraCaptureSession session) {
-                    mVideoRecordingSession = session;
+            // Same frames for the proxy encoder
+            if(mProxyEncoder != null){
+                surfaces.add(mProxyEncoder.getInputSurface());
+                mVideoRecordingBuilder.addTarget(mProxyEncoder.getInputSurface());
+            }
+
+            // Keep feeding motion detector while recording, so it can stop recording
+            if(initAnalysisReader()){
+                surfaces.add(mAnalysisReader.getSurface());
+                mVideoRecordingBuilder.addTarget(mAnalysisReader.getSurface());
+                attachAnalysisListener();
+            }
+
+            // Snapshot requests target the same outputs, recorded frames aren't skipped
+            mRecordingTargets.clear();
+            mRecordingTargets.addAll(surfaces);
+            mContinuity.reset();
+
+            // Configured but not targeted by the repeating request
+            mSnapshotInSession = initSnapshotReader();
+            if(mSnapshotInSession) surfaces.add(mSnapshotReader.getSurface());
+
+            // Start capture session
+            mCamera.createCaptureSession(surfaces, new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(@NonNull CameraCaptureSession session) {
+                    mVideoRecordingSession = session;
+
+                    try{
+                        // Start preview session
+                        mVideoRecordingSession.setRepeatingRequest(mVideoRecordingBuilder.build(), mCameraCaptureSessionCaptureCallbacks, mChildHandler);
+
+                        mVideoRecordingSession.capture(mVideoRecordingBuilder.build(),
+                                mCameraCaptureSessionCaptureCallbacks,
+                                mChildHandler);
+
+                        // Start recording
+                        if(mProxyEncoder != null) mProxyEncoder.start();
+                        mMediaRecorder.start();
+                        mRecordingStartNanos = System.nanoTime();
+                        schedulePoster();
+                        mChildHandler.postDelayed(mBitrateSampler, BITRATE_SAMPLE_MS);
+
+                        /*
+                         ** Start a CountDownTimer to detect video recording length
+                         ** Since CountDownTimer runs on background thread, and it'll touch UI thread
+                         ** when finish, we need to let it run on UI thread
+                         */
+                        ((Activity)context).runOnUiThread(() -> {
+                            // First cancel previous CountDownTimer if exists
+                            if(mVideoRecordingTimer != null) mVideoRecordingTimer.cancel();
+
+                            // Start new timer
+                            mVideoRecordingTimer = new CountDownTimer(MAX_VIDEO_RECORDING_TIME, 1000) {
+                                @Override
+                                public void onTick(long millisUntilFinished) {
+                                    mCameraHandlerListener.onVideoRecordingLengthTicks(MAX_VIDEO_RECORDING_TIME, MAX_VIDEO_RECORDING_TIME - millisUntilFinished);
+                                }
+
+                                @Override
+                                public void onFinish() {
+                                    // Stop video recording when it reaches the max length limits
+                                    stopVideoRecording();
+
+                                    // Motion trigger only fires on new motion, ongoing motion continues in a new video
+                                    final MotionDetector detector = mMotionDetector;
+                                    if(detector != null && detector.isMotionActive()) setUpMediaRecorder();
+                                }
+                            }.start();
+                        });
+                    }catch (CameraAccessException | RuntimeException e){
+                        // Recorder start throws IllegalStateException
+                        abortRecording("Recording start exception: "+e.getMessage());
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+                    // Extra proxy stream may exceed supported stream combinations, record master only
+                    if(mProxyEncoder != null){
+                        Log.d(TAG, "Recording session failed with proxy, recording master only.");
+                        discardProxy();
+                        startVideoRecordingNow();
+                    }else if(mSnapshotInSession){
+                        Log.d(TAG, "Recording session failed with snapshot stream, recording without snapshots.");
+                        mSnapshotUnsupported = true;
+                        startVideoRecordingNow();
+                    }else{
+                        abortRecording("Recording session configuration failed.");
+                    }
+                }
+            }, mChildHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            Toast.makeText(context, "Exception: "+e.getMessage(), Toast.LENGTH_SHORT).show();
+            abortRecording("Recording session exception: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Drops a recording which couldn't start, state never waits for a stop of a recorder which isn't running
+     * Recorder is reset for the next {@link #setUpMediaRecorder()}, pending outputs are discarded
+     * @param message  failure reported to host
+     */
+    private static void abortRecording(@NonNull String message){
+        if(mChildHandler != null) mChildHandler.removeCallbacks(mBitrateSampler);
+        if(mVideoRecordingTimer != null) mVideoRecordingTimer.cancel();
+        mUiHandler.removeCallbacks(mPosterGrabber);
+        mMediaRecorder.reset();
+        mRecordingDescriptor = null;
+        mFrameMetadata = null;
+        discardProxy();
+        if(mLastCapturedVideo != null){
+            mFileManager.discardVideo(mLastCapturedVideo);
+            mLastCapturedVideo = null;
+        }
+        abortCapture(message);
+    }
+
+    /**
+     * Grabs a downscaled preview frame on main thread once {@link #mPosterOffsetMs} elapsed,
+     * its JPEG is encoded on the I/O executor
+     */
+    private static void schedulePoster(){
+        mUiHandler.removeCallbacks(mPosterGrabber);
+        mPoster = null;
+        mPosterJpeg = null;
+        if(mPosterOffsetMs >= 0) mUiHandler.postDelayed(mPosterGrabber, mPosterOffsetMs);
+    }
+
+    private final static Runnable mPosterGrabber = () -> {
+        if(mStateMachine.getState() != CameraState.STATE_RECORDING_VIDEO || !mTextureView.isAvailable()) return;
+        mPosterStartNanos = System.nanoTime();
+        final int height = POSTER_WIDTH * mTextureView.getHeight() / Math.max(1, mTextureView.getWidth());
+        final Bitmap poster = mTextureView.getBitmap(POSTER_WIDTH, Math.max(1, height));
+        if(poster == null) return;
+        mPoster = poster;
+        mPosterJpeg = TravManager.getIoExecutor().submit(() -> {
+            final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            poster.compress(Bitmap.CompressFormat.JPEG, POSTER_JPEG_QUALITY, jpeg);
+            mLastPosterNanos = System.nanoTime() - mPosterStartNanos;
+            return jpeg.toByteArray();
+        });
+    };
+
+    /**
+     * Attaches poster grabbed during recording, none when recording stopped before the poster offset
+     */
+    private static void attachPoster(@NonNull CapturedMedia media, Bitmap poster, Future<byte[]> jpeg){
+        if(poster == null || jpeg == null) return;
+
+        try {
+            media.setPoster(poster, jpeg.get(POSTER_ENCODE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (ExecutionException | TimeoutException e) {
+            Log.d(TAG, "Poster encoding exception: "+e.getMessage());
+            media.setPoster(poster, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Captures a poster frame of every following recording, delivered by {@link CapturedMedia#getPoster()}
+     * @param offsetMs  time after recording start of the preview frame used as poster
+     */
+    public static void enableVideoPoster(long offsetMs){
+        mPosterOffsetMs = Math.max(0, offsetMs);
+    }
+
+    public static void disableVideoPoster(){
+        mPosterOffsetMs = -1;
+    }
+
+    /**
+     * @return preview frame grab to encoded poster time of last recording
+     */
+    public static long getLastPosterNanos(){
+        return mLastPosterNanos;
+    }
+
+    /**
+     * Records per frame capture metadata of every following recording
+     * Sidecar is written next to the video, located by {@link TravManager#getMetadataSidecar(CapturedMedia)}
+     * @param columns  recorded columns
+     */
+    public static void enableFrameMetadata(@NonNull Set<FrameMetadata.Column> columns){
+        final EnumSet<FrameMetadata.Column> copy = EnumSet.noneOf(FrameMetadata.Column.class);
+        copy.addAll(columns);
+        mFrameMetadataColumns = copy;
+    }
+
+    public static void disableFrameMetadata(){
+        mFrameMetadataColumns = null;
+    }
+
+    /**
+     * @return average camera thread time spent recording metadata of a frame during last recording
+     */
+    public static long getLastFrameMetadataNanos(){
+        return mLastFrameMetadataNanos;
+    }
+
+    /**
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @param media  recorded video
+     * @return       frame metadata sidecar of the video, read using {@link FrameMetadata#read(File)}
+     */
+    public static File getMetadataSidecar(@NonNull CapturedMedia media){
+        return mFileManager != null ? mFileManager.getMetadataSidecar(media) : null;
+    }
+
+    /**
+     * Samples write progress of the recording outputs on {@link #mChildHandler}
+     * Lowered proxy bitrate applies right away, master bitrate from next recording
+     */
+    private final static Runnable mBitrateSampler = new Runnable() {
+        @Override
+        public void run() {
+            if(mStateMachine.getState() != CameraState.STATE_RECORDING_VIDEO) return;
+            final long now = System.nanoTime();
+
+            final FileDescriptor descriptor = mRecordingDescriptor;
+            final long written = descriptor != null ? TravManager.sizeOf(descriptor) : -1;
+            if(written >= 0) mMasterBitrate.onSample(now, BitrateController.UNKNOWN, written);
+
+            final ProxyEncoder proxy = mProxyEncoder;
+            final long proxyWritten = proxy != null ? proxy.getWrittenBytes() : -1;
+            if(proxyWritten >= 0) proxy.setBitrate(mProxyBitrate.onSample(now, proxy.getEncodedBytes(), proxyWritten));
+
+            mChildHandler.postDelayed(this, BITRATE_SAMPLE_MS);
+        }
+    };
+
+    private static void onBitrateThrottled(boolean proxy, int fromBitrate, int toBitrate, long writeBytesPerSecond){
+        Log.d(TAG, (proxy ? "Proxy" : "Master")+" bitrate throttled: "+fromBitrate+" -> "+toBitrate+", write B/s: "+writeBytesPerSecond);
+        if(mCameraHandlerListener != null) mCameraHandlerListener.onBitrateThrottled(proxy, fromBitrate, toBitrate);
+    }
+
+    /**
+     * Bounds of adaptive master bitrate, equal bounds disable adaptation
+     * @param minBitrate  lowest bits per second
+     * @param maxBitrate  highest bits per second, used while storage keeps up
+     */
+    public static void setVideoBitrateBounds(int minBitrate, int maxBitrate){
+        mMasterBitrate.setBounds(minBitrate, maxBitrate);
+    }
+
+    /** @return master bitrate used by the next recording **/
+    public static int getVideoBitrate(){
+        return mMasterBitrate.getTargetBitrate();
+    }
+
+    /** @return bitrate throttles count of master and proxy encoders **/
+    public static long getBitrateThrottleCount(){
+        return mMasterBitrate.getThrottleCount() + mProxyBitrate.getThrottleCount();
+    }
+
+    /**
+     * Lowers preview frame rate and resolution while the user is idle or the device is warm
+     * Host should forward interactions using {@link #onUserInteraction()}, captures count as interactions
+     * Thermal status is followed on SDK >= 29
+     * @return power profile, idle delays can be changed using {@link PreviewPowerProfile#setIdleDelays(long, long)}
+     */
+    public static PreviewPowerProfile enablePowerProfile(){
+        if(mPowerProfile == null){
+            mPowerProfile = new PreviewPowerProfile(SystemClock.elapsedRealtime())
+                    .setTransitionListener((from, to, reason) -> {
+                        mPowerTransition = from + " -> " + to + " (" + reason + ")";
+                        mPowerTransitionNanos = System.nanoTime();
+                        if(mPowerHandler != null) mPowerHandler.post(TravCam::applyPowerLevel);
+                    });
+            mPowerHandler = new Handler(Looper.getMainLooper());
+            startPowerProfile();
+        }
+        return mPowerProfile;
+    }
+
+    /**
+     * Restores full preview and stops following idleness and thermal status
+     */
+    public static void disablePowerProfile(){
+        if(mPowerProfile == null) return;
+        stopPowerProfile();
+        mPowerProfile = null;
+        mPowerHandler = null;
+        applyPowerLevel();
+    }
+
+    /** @return power profile, null when disabled **/
+    public static PreviewPowerProfile getPowerProfile(){
+        return mPowerProfile;
+    }
+
+    /**
+     * Restores full preview rate when it was lowered for idleness
+     * Call from host on user interactions, like Activity.onUserInteraction()
+     */
+    public static void onUserInteraction(){
+        final PreviewPowerProfile profile = mPowerProfile;
+        if(profile != null) profile.onInteraction(SystemClock.elapsedRealtime());
+    }
+
+    private final static Runnable mPowerTick = new Runnable() {
+        @Override
+        public void run() {
+            final PreviewPowerProfile profile = mPowerProfile;
+            if(profile == null || mPowerHandler == null) return;
+            profile.onTick(SystemClock.elapsedRealtime());
+            mPowerHandler.postDelayed(this, POWER_TICK_MS);
+        }
+    };
+
+    /**
+     * Starts idle ticks and thermal status listening, resuming counts as an interaction
+     */
+    private static void startPowerProfile(){
+        if(mPowerProfile == null || mPowerHandler == null) return;
+        mPowerProfile.onInteraction(SystemClock.elapsedRealtime());
+        mPowerHandler.removeCallbacks(mPowerTick);
+        mPowerHandler.postDelayed(mPowerTick, POWER_TICK_MS);
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mThermalListener == null){
+            final PowerManager powerManager = context.getSystemService(PowerManager.class);
+            if(powerManager == null) return;
+            final PowerManager.OnThermalStatusChangedListener listener = status -> {
+                final PreviewPowerProfile profile = mPowerProfile;
+                if(profile != null) profile.onThermalStatus(status, SystemClock.elapsedRealtime());
+            };
+            powerManager.addThermalStatusListener(listener);
+            mThermalListener = listener;
+            mPowerProfile.onThermalStatus(powerManager.getCurrentThermalStatus(), SystemClock.elapsedRealtime());
+        }
+    }
+
+    private static void stopPowerProfile(){
+        if(mPowerHandler != null) mPowerHandler.removeCallbacks(mPowerTick);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mThermalListener != null){
+            final PowerManager powerManager = context.getSystemService(PowerManager.class);
+            if(powerManager != null) powerManager.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) mThermalListener);
+            mThermalListener = null;
+        }
+    }
+
+    /**
+     * Applies current power level to the preview, on main thread
+     * Resolution changes rebuild the preview session, frame rate changes only update its repeating request
+     */
+    private static void applyPowerLevel(){
+        if(mCamera == null || mPreviewSession == null || mPreviewBuilder == null) return;
+        final CameraState state = mStateMachine.getState();
+        if(state == CameraState.STATE_CAPTURING_IMAGE || state == CameraState.STATE_RECORDING_VIDEO) return;
+
+        final boolean lowResolution = mPowerProfile != null && mPowerProfile.getLevel() == PreviewPowerProfile.Level.LOW && mLowPowerPreviewSize != null;
+        try {
+            if(lowResolution != mPreviewLowResolution){
+                startCameraPreview();
+            }else{
+                setPowerFpsRange(mPreviewBuilder);
+                mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), mPreviewResultCallback, mChildHandler);
+                logPowerTransition(false);
+            }
+        } catch (CameraAccessException e) {
+            Log.d(TAG, "Power level exception: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Sets AE target fps range of current power level, full level restores template default
+     */
+    private static void setPowerFpsRange(@NonNull CaptureRequest.Builder builder){
+        final PreviewPowerProfile.Level level = mPowerProfile != null ? mPowerProfile.getLevel() : PreviewPowerProfile.Level.FULL;
+        Range<Integer> range = mFullFpsRange;
+        if(level == PreviewPowerProfile.Level.REDUCED && mReducedFpsRange != null) range = mReducedFpsRange;
+        else if(level == PreviewPowerProfile.Level.LOW && mLowFpsRange != null) range = mLowFpsRange;
+        if(range != null) builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+    }
+
+    private static void logPowerTransition(boolean rebuilt){
+        if(mPowerTransition == null) return;
+        Log.d(TAG, "Preview power "+mPowerTransition+" applied in "+(System.nanoTime() - mPowerTransitionNanos) / 1_000_000f
+                +" ms, session rebuilt: "+rebuilt);
+        mPowerTransition = null;
+    }
+
+    /**
+     * Releases proxy encoder and aborts its pending file
+     */
+    private static void discardProxy(){
+        if(mProxyEncoder != null) mProxyEncoder.release();
+        mProxyEncoder = null;
+        if(mLastCapturedProxy != null) mFileManager.discardVideo(mLastCapturedProxy);
+        mLastCapturedProxy = null;
+    }
+
+    /**
+     * Changes camera state on the camera thread, rejected when not recording
+     * Stops and resets {@link #mMediaRecorder}
+     * Inform host with callbacks using {@link #mCameraHandlerListener}
+     * Restarts camera preview session {@link #startCameraPreview()}
+     */
+    public static void stopVideoRecording(){
+        mCommands.submit("record stop", CameraState.STATE_VIDEO_RECORDED, TravCam::stopVideoRecordingNow);
+    }
+
+    private static void stopVideoRecordingNow(){
+        // Update camera state
+        if(!mStateMachine.moveTo(CameraState.STATE_VIDEO_RECORDED)) return;
+
+        // Stop MediaRecorder, throws when stopped before any frame was written
+        mChildHandler.removeCallbacks(mBitrateSampler);
+        boolean recorded = true;
+        try {
+            mMediaRecorder.stop();
+        } catch (RuntimeException e) {
+            Log.d(TAG, "MediaRecorder stop exception: "+e.getMessage());
+            recorded = false;
+        }
+        mMediaRecorder.reset();
+        mRecordingDescriptor = null;
+
+        // Stop video recording timer
+        if(mVideoRecordingTimer != null) mVideoRecordingTimer.cancel();
+
+        // Recording outputs are finished on the I/O executor, camera thread goes back to preview
+        final CapturedMedia video = mLastCapturedVideo;
+        final CapturedMedia proxy = mLastCapturedProxy;
+        final ProxyEncoder encoder = mProxyEncoder;
+        final FrameMetadata metadata = mFrameMetadata;
+        mLastCapturedVideo = null;
+        mLastCapturedProxy = null;
+        mProxyEncoder = null;
+        mFrameMetadata = null;
+        mUiHandler.removeCallbacks(mPosterGrabber);
+        final Bitmap poster = mPoster;
+        final Future<byte[]> posterJpeg = mPosterJpeg;
+        mPoster = null;
+        mPosterJpeg = null;
+        final long recordingNanos = System.nanoTime() - mRecordingStartNanos;
+        final boolean complete = recorded;
+        Log.d(TAG, "Recorded frames: "+mContinuity.getFrameCount()+", dropped: "+mContinuity.getDroppedFrames()
+                +", snapshots: "+mContinuity.getEventCount()+", dropped around snapshots: "+mContinuity.getDroppedAroundEvents());
+        TravManager.getIoExecutor().execute(() -> finishRecording(video, proxy, encoder, metadata, poster, posterJpeg,
+                recordingNanos, complete));
+
+        // Start default preview
+        try {
+            mVideoRecordingSession.stopRepeating();
+            startCameraPreview();
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Publishes a stopped recording with its proxy, poster and sidecar then informs host on main thread
+     * Runs on {@link TravManager#getIoExecutor()}, proxy drain and poster encoding may block
+     * @param complete  false when recorder stopped before writing, outputs are discarded
+     */
+    private static void finishRecording(CapturedMedia video, CapturedMedia pendingProxy, ProxyEncoder encoder,
+                                        FrameMetadata metadata, Bitmap poster, Future<byte[]> posterJpeg,
+                                        long recordingNanos, boolean complete){
+        // Finish proxy, both renditions are delivered together
+        CapturedMedia proxy = null;
+        if(encoder != null){
+            if(encoder.stop() && complete){
+                proxy = mFileManager.publishVideo(pendingProxy);
+            }else if(pendingProxy != null){
+                mFileManager.discardVideo(pendingProxy);
+            }
+            mLastProxyBytesPerSecond = encoder.getBytesPerSecond();
+            mLastProxyFramesPerSecond = encoder.getFramesPerSecond();
+        }
+        if(video == null) return;
+        if(!complete){
+            mFileManager.discardVideo(video);
+            mUiHandler.post(() -> mCameraHandlerListener.onError("Recording stopped before any frame was written."));
+            return;
+        }
+
+        // Publish recorded media with its poster then inform host
+        final CapturedMedia published = mFileManager.publishVideo(video);
+        if(published == null){
+            mUiHandler.post(() -> mCameraHandlerListener.onError("Recording couldn't be published."));
+            return;
+        }
+        attachPoster(published, poster, posterJpeg);
+        mLastRecordedVideo = published;
+
+        // Frame metadata sidecar
+        if(metadata != null){
+            mLastFrameMetadataNanos = metadata.getAverageRecordNanos();
+            mFileManager.writeMetadataSidecar(published, metadata);
+        }
+        mLastMasterBytesPerSecond = recordingNanos <= 0 ? 0 : (long) (published.getSize() * 1e9 / recordingNanos);
+        Log.d(TAG, "Recording throughput, master B/s: "+mLastMasterBytesPerSecond+", proxy B/s: "+mLastProxyBytesPerSecond);
+        final CapturedMedia publishedProxy = proxy;
+        mUiHandler.post(() -> {
+            if(publishedProxy != null){
+                mCameraHandlerListener.onVideoRenditionsRecorded(published, publishedProxy);
+            }else{
+                mCameraHandlerListener.onVideoRecordingEnds(published);
+            }
+        });
+    }
+
+    /**
+     * State checker for host to ensure that video recording is currently running
+     * @return value will be based on the current camera state, safe from any thread
+     */
+    public static boolean isVideoRecordingRunning(){
+        return mStateMachine.getState() == CameraState.STATE_RECORDING_VIDEO;
+    }
+
+    /**
+     * @return current camera state and its version, safe from any thread
+     */
+    public static CameraStateMachine.Snapshot getCameraState(){
+        return mStateMachine.getSnapshot();
+    }
+
+    /**
+     * @return camera operations queue, command latency and rejection counts included
+     */
+    public static CameraCommandQueue getCommandQueue(){
+        return mCommands;
+    }
+
+    /**
+     * Records a low bitrate proxy aside every following recording, from the same camera frames
+     * Both renditions are delivered by {@link CameraHandlerListener#onVideoRenditionsRecorded(CapturedMedia, CapturedMedia)}
+     * Proxy is skipped on SDK < 26 and when the recording session can't stream it
+     */
+    public static void enableProxyRecording(){
+        mProxyEnabled = true;
+    }
+
+    public static void disableProxyRecording(){
+        mProxyEnabled = false;
+    }
+
+    /** @return proxy size of the opened camera, null when proxies can't be recorded **/
+    public static Size getProxySize(){
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? mProxySize : null;
+    }
+
+    /** @return bytes per second written by the master recorder during last recording **/
+    public static long getLastMasterBytesPerSecond(){
+        return mLastMasterBytesPerSecond;
+    }
+
+    /** @return bytes per second encoded by the proxy encoder during last recording **/
+    public static long getLastProxyBytesPerSecond(){
+        return mLastProxyBytesPerSecond;
+    }
+
+    /** @return frames per second encoded by the proxy encoder during last recording **/
+    public static float getLastProxyFramesPerSecond(){
+        return mLastProxyFramesPerSecond;
+    }
+
+    /**
+     * Adds a JPEG stream of video size to every following recording session, used by {@link #captureVideoSnapshot()}
+     * Recording starts without it when the camera can't stream it aside the other outputs
+     */
+    public static void enableVideoSnapshots(){
+        mSnapshotsEnabled = true;
+    }
+
+    public static void disableVideoSnapshots(){
+        mSnapshotsEnabled = false;
+    }
+
+    /**
+     * Captures a still while recording using {@link CameraDevice#TEMPLATE_VIDEO_SNAPSHOT}, on the camera thread
+     * The recording session isn't reconfigured, the snapshot frame is recorded too
+     * Stored with the default sink and delivered like {@link #captureImage()}
+     * Ignored when not recording or when the recording session has no snapshot stream
+     */
+    public static void captureVideoSnapshot(){
+        final long requestNanos = SystemClock.elapsedRealtimeNanos();
+        mCommands.submit("video snapshot", null, () -> {
+            mCaptureRequestNanos = requestNanos;
+            captureVideoSnapshotNow();
+        });
+    }
+
+    private static void captureVideoSnapshotNow(){
+        if(mCamera == null || mVideoRecordingSession == null || !mSnapshotInSession || !isVideoRecordingRunning()){
+            Log.d(TAG, "Video snapshot ignored, no recording with snapshot stream.");
+            return;
+        }
+
+        try{
+            final CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+            for(Surface target : mRecordingTargets) builder.addTarget(target);
+            builder.addTarget(mSnapshotReader.getSurface());
+
+            // Orientation and thumbnail, same as still captures
+            final int rotation = ((Activity) context).getWindowManager().getDefaultDisplay().getRotation();
+            builder.set(CaptureRequest.JPEG_ORIENTATION, rotation);
+            if(mThumbnailSize != null) builder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, mThumbnailSize);
+
+            mContinuity.onEvent();
+            mSnapshotRequestNanos = System.nanoTime();
+            mVideoRecordingSession.capture(builder.build(), mSnapshotCaptureCallbacks, mChildHandler);
+        }catch (CameraAccessException | IllegalStateException e){
+            Log.d(TAG, "Video snapshot exception: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Creates {@link #mSnapshotReader} once per snapshot size, kept across recordings
+     * @return whether the recording session should configure the snapshot stream
+     */
+    private static boolean initSnapshotReader(){
+        if(!mSnapshotsEnabled || mSnapshotUnsupported || mSnapshotSize == null) return false;
+        if(mSnapshotReader != null && mSnapshotReader.getWidth() == mSnapshotSize.getWidth()
+                && mSnapshotReader.getHeight() == mSnapshotSize.getHeight()) return true;
+
+        if(mSnapshotReader != null) mSnapshotReader.close();
+        mSnapshotReader = ImageReader.newInstance(mSnapshotSize.getWidth(), mSnapshotSize.getHeight(), ImageFormat.JPEG, SNAPSHOT_MAX_IMAGES);
+        mSnapshotReader.setOnImageAvailableListener(reader -> {
+            final Image image = reader.acquireNextImage();
+            if(image == null) return;
+            final byte[] bytes = TravManager.imageToBytes(image);
+            image.close();
+            mLastSnapshotNanos = System.nanoTime() - mSnapshotRequestNanos;
+            Log.d(TAG, "Video snapshot ms: "+mLastSnapshotNanos / 1_000_000f);
+
+            // Thumbnail decoding and storing stay off the main and camera threads while recording
+            TravManager.getIoExecutor().execute(() -> deliverThumbnailAndStore(bytes, mFileManager.getStorageSink()));
+        }, mMainHandler);
+        return true;
+    }
+
+    /**
+     * Snapshot frames are recorded frames too
+     */
+    private final static CameraCaptureSession.CaptureCallback mSnapshotCaptureCallbacks = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            onRecordedFrame(result);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+            Log.d(TAG, "Video snapshot failed, reason: "+failure.getReason());
+        }
+    };
+
+    /**
+     * Frame metadata and continuity of a recorded frame, on the camera thread
+     */
+    private static void onRecordedFrame(@NonNull TotalCaptureResult result){
+        final FrameMetadata metadata = mFrameMetadata;
+        if(metadata != null) metadata.record(result);
+        final Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if(timestamp != null) mContinuity.onFrame(timestamp);
+    }
+
+    /**
+     * @return recorded frames continuity of the running or last recording, drops around snapshots included
+     */
+    public static FrameContinuity getFrameContinuity(){
+        return mContinuity;
+    }
+
+    /**
+     * @return snapshot request to image time of the last video snapshot
+     */
+    public static long getLastSnapshotNanos(){
+        return mLastSnapshotNanos;
+    }
+
+    /**
+     * Trims a recorded video without re-encoding, starting at the key frame preceding startMs
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @param source     recorded video
+     * @param startMs    start in milliseconds
+     * @param endMs      end in milliseconds
+     * @param callbacks  progress and trimmed video, called on a background thread
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public static void trimVideo(@NonNull CapturedMedia source, long startMs, long endMs, @NonNull TravManager.RemuxCallbacks callbacks){
+        if(mFileManager != null) mFileManager.trimVideo(source, startMs, endMs, callbacks);
+    }
+
+    /**
+     * Joins recorded videos without re-encoding, like clips capped by the max recording length
+     * {@link #init(TextureView, Context, CameraHandlerListener)} needs to be called in advance
+     * @param sources    recorded videos, in playback order
+     * @param callbacks  progress and joined video, called on a background thread
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public static void concatVideos(@NonNull List<CapturedMedia> sources, @NonNull TravManager.RemuxCallbacks callbacks){
+        if(mFileManager != null) mFileManager.concatVideos(sources, callbacks);
+    }
+
+    /**
+     * Applies all needed configurations for MediaRecorder
+     * Creates a temp video file to be used for storing captured video data
+     */
+    public static void setUpMediaRecorder() {
+        setUpMediaRecorder(mFileManager.getStorageSink());
+    }
+
+    /**
+     * Same as {@link #setUpMediaRecorder()}, recording to the given sink
+     * Runs on the camera thread, rejected while recording or capturing
+     * @param sink  recording destination, must support file descriptors
+     */
+    public static void setUpMediaRecorder(@NonNull StorageSink sink) {
+        onUserInteraction();
+        mCommands.submit("record start", CameraState.STATE_RECORDING_VIDEO, () -> setUpMediaRecorderNow(sink));
+    }
+
+    private static void setUpMediaRecorderNow(@NonNull StorageSink sink) {
+        final Activity activity = (Activity) context;
+        if(activity == null) return;
+
+        // Storage check, expected size at full bitrate and max length
+        final StorageGovernor governor = mFileManager.getStorageGovernor();
+        final long expectedBytes = (long) VIDEO_BITRATE / 8 * MAX_VIDEO_RECORDING_TIME / 1000;
+        final StorageGovernor.Decision decision = governor.checkRecording(expectedBytes);
+        if(decision == StorageGovernor.Decision.REJECT){
+            mUiHandler.post(() -> mCameraHandlerListener.onStorageFull());
+            return;
+        }
+        final int target = mMasterBitrate.start(System.nanoTime());
+        final int bitrate = decision == StorageGovernor.Decision.DOWNGRADE ? target / 2 : target;
+        mMasterBitrate.setEncodingBitrate(bitrate);
+
+        // MediaRecorder sources
+        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
+        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+
+        // Get video file
+        mFileManager.generateVideoFile(sink, new TravManager.ScopedFileManagerCallbacks() {
+            @Override
+            public void onMediaCreated(@NonNull CapturedMedia media) {
+                mLastCapturedVideo = media;
+
+                // Using CamcorderProfile for default video formats
+                final CamcorderProfile camcorderProfile = CamcorderProfile.get(CamcorderProfile.QUALITY_720P);
+
+                // Output, pending descriptor of the sink
+                try {
+                    mRecordingDescriptor = media.getPendingOutput().openDescriptor();
+                    mMediaRecorder.setOutputFile(mRecordingDescriptor);
+                } catch (IOException e) {
+                    Log.d(TAG, "Video output exception: "+e.getMessage());
+                    mMediaRecorder.reset();
+                    mFileManager.discardVideo(media);
+                    mLastCapturedVideo = null;
+                    return;
+                }
+
+                // Video formats
+                mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
+                mMediaRecorder.setVideoEncodingBitRate(bitrate);
+                mMediaRecorder.setVideoFrameRate(VIDEO_FRAME_RATE);
+                mMediaRecorder.setVideoSize(mVideoSize.getWidth(), mVideoSize.getHeight());
+
+                // Never write past the storage budget or free space floor
+                final long maxBytes = governor.getAvailableBytes(TravManager.ScopedFileType.VIDEO);
+                if(maxBytes > 0) mMediaRecorder.setMaxFileSize(maxBytes);
+
+                // Audio formats
+                mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+                mMediaRecorder.setAudioEncodingBitRate(camcorderProfile.audioBitRate);
+                mMediaRecorder.setAudioSamplingRate(camcorderProfile.audioSampleRate);
+
+                // Orientations
+                int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+                int orientationHint = 0;
+                switch (mSensorOrientation) {
+                    case SENSOR_ORIENTATION_DEFAULT_DEGREES:
+                        orientationHint = DEFAULT_ORIENTATIONS.get(rotation);
+                        mMediaRecorder.setOrientationHint(orientationHint);
+                        break;
+                    case SENSOR_ORIENTATION_INVERSE_DEGREES:
+                        orientationHint = INVERSE_ORIENTATIONS.get(rotation);
+                        mMediaRecorder.setOrientationHint(orientationHint);
+                        break;
+                }
+
+                // Proxy rendition, same sink as master
+                mLastCapturedProxy = null;
+                mProxyEncoder = null;
+                if(mProxyEnabled && mProxySize != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+                    try {
+                        mLastCapturedProxy = mFileManager.generateProxyVideoFile(media, sink);
+                        mProxyEncoder = new ProxyEncoder(mProxySize, mProxyBitrate.start(System.nanoTime()), VIDEO_FRAME_RATE,
+                                mLastCapturedProxy.getPendingOutput().openDescriptor(), orientationHint);
+                    } catch (IOException e) {
+                        Log.d(TAG, "Proxy exception, recording master only: "+e.getMessage());
+                        discardProxy();
+                    }
+                }
+
+                // Prepare
+                try {
+                    mMediaRecorder.prepare();
+                    startVideoRecordingNow();
+                } catch (IOException e) {
+                    // Recorder back to initial state for the next recording
+                    Log.d(TAG, "MediaRecorder prepare exception: "+e.getMessage());
+                    mMediaRecorder.reset();
+                    mRecordingDescriptor = null;
+                    discardProxy();
+                    mFileManager.discardVideo(media);
+                    mLastCapturedVideo = null;
+                }
+            }
+
+            @Override
+            public void onFileCreated(File file) {
+                // Not used, media is delivered using onMediaCreated
+            }
+
+            @Override
+            public void onError(String message) {
+                Log.d(TAG, "Video error: "+message);
+            }
+        });
+    }
+
+    /**
+     * Called from host to delete last captured video file if no longer used
+     */
+    public static void dismissCapturedVideoFile(){
+        final CapturedMedia video = mLastRecordedVideo;
+        if(video != null){
+            if(mFileManager.deleteMedia(video)){
+                mLastRecordedVideo = null;
+            }
+        }
+    }
+
+
+
+
+
+
+
+
+    // ===========================================================================================
+    // ==================================== Motion Trigger =======================================
+    // ===========================================================================================
+    /**
+     * Enables motion triggered recording
+     * Video recording starts by {@link #setUpMediaRecorder()} when motion starts
+     * and stops by {@link #stopVideoRecording()} when motion stops.
+     * A recording reaching its max length continues in a new video while motion lasts.
+     * Takes effect on the next preview session
+     * @param detector  configured detector, its listener will be replaced by TravCam
+     */
+    public static void enableMotionTrigger(@NonNull MotionDetector detector){
+        mMotionDetector = detector.listenForMotion(new MotionDetector.MotionListener() {
+            @Override
+            public void onMotionStarted(float score) {
+                Log.d(TAG, "Motion started, score: "+score+", latency ms: "+detector.getLastDetectionLatencyNanos() / 1_000_000);
+                ((Activity) context).runOnUiThread(() -> {
+                    if(!isVideoRecordingRunning()) setUpMediaRecorder();
+                });
+            }
+
+            @Override
+            public void onMotionStopped() {
+                Log.d(TAG, "Motion stopped, avg frame us: "+detector.getAverageProcessNanos() / 1000);
+                ((Activity) context).runOnUiThread(() -> {
+                    if(isVideoRecordingRunning()) stopVideoRecording();
+                });
+            }
+        });
+
+        // Restart preview to add analysis stream
+        restartPreviewForStreamsChange();
+    }
+
+    /**
+     * Disables motion triggered recording, a running recording is not stopped
+     */
+    public static void disableMotionTrigger(){
+        if(mMotionDetector == null) return;
+        mMotionDetector.listenForMotion(null);
+        mMotionDetector = null;
+
+        // Restart preview to drop analysis stream
+        restartPreviewForStreamsChange();
+    }
+
+    /**
+     * @return current motion detector to read measurements, null when disabled
+     */
+    public static MotionDetector getMotionDetector(){
+        return mMotionDetector;
+    }
+
+    /**
+     * Creates analysis ImageReader once, if motion trigger is enabled
+     * Reader is recreated when the {@link MemoryGovernor.Kind#IMAGE_READERS} budget changed its max images
+     * @return is analysis stream available
+     */
+    private static boolean initAnalysisReader(){
+        if(mMotionDetector == null || mAnalysisSize == null || mAnalysisUnsupported){
+            if(mAnalysisReader != null){
+                mAnalysisReader.close();
+                mAnalysisReader = null;
+            }
+            return false;
+        }
+        final int images = analysisReaderImages();
+        if(mAnalysisReader != null && mAnalysisReader.getMaxImages() != images){
+            mAnalysisReader.close();
+            mAnalysisReader = null;
+        }
+        if(mAnalysisReader == null){
+            mAnalysisReader = ImageReader.newInstance(mAnalysisSize.getWidth(), mAnalysisSize.getHeight(), ImageFormat.YUV_420_888, images);
+        }
+        return true;
+    }
+
+    /**
+     * Feeds Y plane of every analysis frame to {@link #mMotionDetector} on {@link #mChildHandler}
+     * Frames are closed right after processing, detector never holds image buffers
+     */
+    private static void attachAnalysisListener(){
+        if(mAnalysisReader == null) return;
+
+        mAnalysisReader.setOnImageAvailableListener(reader -> {
+            final Image image = reader.acquireLatestImage();
+            if(image == null) return;
+
+            try {
+                final MotionDetector detector = mMotionDetector;
+                if(detector != null){
+                    final Image.Plane luma = image.getPlanes()[0];
+                    detector.process(luma.getBuffer(), image.getWidth(), image.getHeight(),
+                            luma.getRowStride(), luma.getPixelStride(), image.getTimestamp());
+                }
+            } finally {
+                image.close();
+            }
+        }, mChildHandler);
+    }
+
+    /**
+     * @param choices  available YUV output sizes
+     * @return         smallest size at least {@link #MIN_ANALYSIS_WIDTH} wide
+     */
+    private static Size chooseAnalysisSize(Size[] choices){
+        if(choices == null || choices.length == 0) return null;
+
+        Size chosen = null;
+        for(Size size : choices){
+            if(size.getWidth() < MIN_ANALYSIS_WIDTH) continue;
+            if(chosen == null || new CompareSizesByArea().compare(size, chosen) < 0) chosen = size;
+        }
+        return chosen != null ? chosen : choices[0];
+    }
+
+
+
+
+
+
+
+
+    // ===========================================================================================
+    // ================================== Zero Shutter Lag =======================================
+    // ===========================================================================================
+    /**
+     * Enables zero shutter lag mode with default limits
+     * @see #enableZeroShutterLag(int, long)
+     */
+    public static void enableZeroShutterLag(){
+        enableZeroShutterLag(DEFAULT_ZSL_FRAMES, DEFAULT_ZSL_MAX_BYTES);
+    }
+
+    /**
+     * Enables zero shutter lag mode
+     * Preview session keeps streaming full resolution YUV frames into a ring,
+     * {@link #captureImage()} then encodes the frame closest to the tap
+     * Takes effect on the next preview session, dropped when the camera can't configure it with preview
+     * @param frames    wanted ring length
+     * @param maxBytes  ring memory cap, ring length is reduced to fit it
+     */
+    public static void enableZeroShutterLag(int frames, long maxBytes){
+        mZslEnabled = true;
+        mZslRequestedFrames = frames;
+        mZslMaxBytes = maxBytes;
+        restartPreviewForStreamsChange();
+    }
+
+    /**
+     * Disables zero shutter lag mode, {@link #captureImage()} returns to still capture requests
+     */
+    public static void disableZeroShutterLag(){
+        mZslEnabled = false;
+        restartPreviewForStreamsChange();
+    }
+
+    /**
+     * @return tap to chosen frame delta of last zero shutter lag capture in nanoseconds,
+     * positive when the frame was captured after the tap
+     */
+    public static long getLastZslTapDeltaNanos(){
+        return mLastZslTapDeltaNanos;
+    }
+
+    /**
+     * Restarts preview session to add or drop optional streams
+     */
+    private static void restartPreviewForStreamsChange(){
+        if(mCamera == null || isVideoRecordingRunning()) return;
+        try {
+            startCameraPreview();
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates zero shutter lag ImageReader and ring, if enabled
+     * Ring length is capped by {@link #mZslMaxBytes} and the {@link MemoryGovernor.Kind#FRAME_RING} budget,
+     * reader holds {@link #ZSL_EXTRA_IMAGES} extra images. Reader is recreated when the budget changed its length
+     * @return is zero shutter lag stream available
+     */
+    private static boolean initZslReader(){
+        final int capacity = mZslEnabled && !mZslUnsupported && mYuvStillSize != null ? zslCapacity() : 0;
+        if(capacity != mZslCapacity) closeZslReader();
+        if(capacity == 0){
+            if(mZslEnabled && !mZslUnsupported) Log.d(TAG, "ZSL stream skipped, frame ring budget: "+mFileManager.getMemoryGovernor().getBudget(MemoryGovernor.Kind.FRAME_RING));
+            return false;
+        }
+        if(mZslReader == null){
+            mZslRing = new FrameRing<>(capacity, Image::close);
+            mZslReader = ImageReader.newInstance(mYuvStillSize.getWidth(), mYuvStillSize.getHeight(), ImageFormat.YUV_420_888, capacity + ZSL_EXTRA_IMAGES);
+            mZslCapacity = capacity;
+            Log.d(TAG, "ZSL ring: "+capacity+" frames of "+mYuvStillSize+", "+(capacity * zslFrameBytes() / 1024)+" KB");
+        }
+        return true;
+    }
+
+    /**
+     * @return ring length fitting requested frames, {@link #mZslMaxBytes} and frame ring budget, 0 if not even one frame fits
+     */
+    private static int zslCapacity(){
+        final long frameBytes = zslFrameBytes();
+        final int fitting = mFileManager.getMemoryGovernor().maxBuffersFor(MemoryGovernor.Kind.FRAME_RING, frameBytes,
+                mZslRequestedFrames + ZSL_EXTRA_IMAGES) - ZSL_EXTRA_IMAGES;
+        return fitting < 1 ? 0 : FrameRing.capacityFor(fitting, frameBytes, mZslMaxBytes);
+    }
+
+    private static long zslFrameBytes(){
+        return (long) mYuvStillSize.getWidth() * mYuvStillSize.getHeight() * 3 / 2;
+    }
+
+    /**
+     * Pushes every zero shutter lag frame to {@link #mZslRing} on {@link #mChildHandler}
+     */
+    private static void attachZslListener(){
+        if(mZslReader == null) return;
+
+        final FrameRing<Image> ring = mZslRing;
+        mZslReader.setOnImageAvailableListener(reader -> {
+            final Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // All buffers are held by ring and encoder, drop this frame
+                return;
+            }
+            if(image != null) ring.push(image, image.getTimestamp());
+        }, mChildHandler);
+    }
+
+    /**
+     * Closes ring frames before closing their reader
+     */
+    private static void closeZslReader(){
+        if(mZslRing != null){
+            mZslRing.clear();
+            mZslRing = null;
+        }
+        if(mZslReader != null){
+            mZslReader.close();
+            mZslReader = null;
+        }
+        mZslCapacity = 0;
+    }
+
+    /**
+     * Takes the ring frame closest to the tap, encodes and stores it on {@link YuvJpegEncoder#getPool()}
+     * so the camera thread keeps filling the ring
+     * Tap time is the one recorded when the capture was submitted, not when its command runs
+     * @return false if zero shutter lag is disabled or no frame is available yet
+     */
+    private static boolean captureZslFrame(){
+        if(mZslRing == null) return false;
+
+        // Sensor timestamps may use the monotonic clock, which doesn't count deep sleep
+        final long tapTimestamp = mSensorTimestampRealtime ? mCaptureRequestNanos
+                : mCaptureRequestNanos - (SystemClock.elapsedRealtimeNanos() - System.nanoTime());
+        final FrameRing.Entry<Image> entry = mZslRing.takeClosest(tapTimestamp);
+        if(entry == null) return false;
+
+        mLastZslTapDeltaNanos = entry.deltaNanos;
+        Log.d(TAG, "ZSL tap to frame delta ms: "+entry.deltaNanos / 1_000_000f);
+        if(mCaptureSound != null) mCaptureSound.start();
+
+        if(takeInMemory()){
+            // YUV frames are encoded, the encoded bytes are delivered from heap
+            YuvJpegEncoder.getPool().execute(() -> {
+                try {
+                    deliverInMemory(ByteBuffer.wrap(mFileManager.yuvImageToJpeg(entry.frame)), null);
+                } catch (IOException e) {
+                    rejectCapture("ZSL encoding exception: "+e.getMessage());
+                } finally {
+                    entry.frame.close();
+                }
+            });
+            return true;
+        }
+
+        final StorageSink sink = takeImageSink();
+        YuvJpegEncoder.getPool().execute(() -> {
+            final byte[] bytes;
+            try {
+                bytes = mFileManager.yuvImageToJpeg(entry.frame);
+            } catch (IOException e) {
+                rejectCapture("ZSL encoding exception: "+e.getMessage());
+                return;
+            } finally {
+                entry.frame.close();
+            }
+            deliverThumbnailAndStore(bytes, sink);
+        });
+        return true;
+    }
+
+    /**
+     * Informs host of a dropped capture like {@link #abortCapture(String)} does,
+     * used where the preview kept running and the state machine was never left, nothing else to restore
+     * @param message  failure reported by {@link CameraHandlerListener#onError(String)}
+     */
+    private static void rejectCapture(@NonNull String message){
+        Log.d(TAG, message);
+        mUiHandler.post(() -> mCameraHandlerListener.onError(message));
+    }
+
+
+
+
+
+
+
+
+    // ===========================================================================================
+    // ================================ Low Light Multi-Frame ====================================
+    // ===========================================================================================
+    /**
+     * Captures a low light image merged from {@link #DEFAULT_NIGHT_FRAMES} frames
+     * @see #captureNightImage(int)
+     */
+    public static void captureNightImage(){
+        captureNightImage(DEFAULT_NIGHT_FRAMES);
+    }
+
+    /**
+     * Captures a short burst of full resolution YUV frames using {@link CameraDevice#TEMPLATE_STILL_CAPTURE}
+     * Frames are aligned and merged off the camera thread, then encoded and stored like
+     * any other captured image, host is informed using {@link CameraHandlerListener#onImageCapture(File)}
+     * Rejected until the previous night image is encoded, failed bursts are reported by {@link CameraHandlerListener#onError(String)}
+     * @param frames  burst length
+     */
+    public static void captureNightImage(int frames){
+        final long requestNanos = SystemClock.elapsedRealtimeNanos();
+        mCommands.submit("night capture", CameraState.STATE_CAPTURING_IMAGE, () -> {
+            mCaptureRequestNanos = requestNanos;
+            captureNightImageNow(frames);
+        });
+    }
 
-                    try{
-                        // Start preview session
-                        mVideoRecordingSession.setRepeatingRequest(mVideoRecordingBuilder.build(), mCameraCaptureSessionCaptureCallbacks, mChildHandler);
+    private static void captureNightImageNow(int frames){
+        if(mCamera == null || !mTextureView.isAvailable() || mYuvStillSize == null || frames < 1) return;
 
-                        mVideoRecordingSession.capture(mVideoRecordingBuilder.build(),
-                                mCameraCaptureSessionCaptureCallbacks,
-                                mChildHandler);
+        // Previous merge or encoding still reads merger buffers
+        if(!mNightBusy.compareAndSet(false, true)){
+            Log.d(TAG, "Night capture rejected, previous night image isn't encoded yet.");
+            return;
+        }
+        if(!mStateMachine.moveTo(CameraState.STATE_CAPTURING_IMAGE)){
+            mNightBusy.set(false);
+            return;
+        }
+        final AtomicBoolean done = new AtomicBoolean();
+        mNightBurstDone = done;
 
-                        // Start recording
-                        mMediaRecorder.start();
+        // Close previous session
+        closeCameraPreviewSession();
+        try{
+            final int width = mYuvStillSize.getWidth(), height = mYuvStillSize.getHeight();
+            final int length = fitNightBurst(width, height, frames);
+            if(mFrameMerger == null || mFrameMerger.getWidth() != width || mFrameMerger.getHeight() != height
+                    || mFrameMerger.getMaxFrames() != length){
+                // Drop old buffers before allocating new ones
+                mFrameMerger = null;
+                mFrameMerger = new FrameMerger(width, height, length);
+            }
+            final FrameMerger merger = mFrameMerger;
 
-                        /*
-                         ** Start a CountDownTimer to detect video recording length
-                         ** Since CountDownTimer runs on background thread, and it'll touch UI thread
-                         ** when finish, we need to let it run on UI thread
-                         */
-                        ((Activity)context).runOnUiThread(() -> {
-                            // First cancel previous CountDownTimer if exists
-                            if(mVideoRecordingTimer != null) mVideoRecordingTimer.cancel();
+            // Burst frames are copied into merger buffers then closed right away
+            if(mNightReader != null){
+                mNightReader.close();
+                mNightReader = null;
+            }
+            mNightReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888,
+                    fitReaderImages(null, width, height, ImageFormat.YUV_420_888, NIGHT_MAX_IMAGES));
+            final int[] received = {0};
+            mNightReader.setOnImageAvailableListener(reader -> {
+                final Image image = reader.acquireNextImage();
+                if(image == null) return;
+                try {
+                    if(received[0] >= length) return;
+                    final Image.Plane[] planes = image.getPlanes();
+                    merger.loadFrame(received[0]++, planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                            planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride());
+                } finally {
+                    image.close();
+                }
 
-                            // Start new timer
-                            mVideoRecordingTimer = new CountDownTimer(MAX_VIDEO_RECORDING_TIME, 1000) {
-                                @Override
-                                public void onTick(long millisUntilFinished) {
-                                    mCameraHandlerListener.onVideoRecordingLengthTicks(MAX_VIDEO_RECORDING_TIME, MAX_VIDEO_RECORDING_TIME - millisUntilFinished);
-                                }
+                if(received[0] == length && done.compareAndSet(false, true)) onNightFramesReceived(merger, length);
+            }, mChildHandler);
 
-                                @Override
-                                public void onFinish() {
-                                    // Stop video recording when it reaches the max length limits
-                                    if(mCameraState == CameraState.STATE_RECORDING_VIDEO) stopVideoRecording();
-                                }
-                            }.start();
-                        });
-                    }catch (CameraAccessException e){
-                        e.printStackTrace();
-                        Toast.makeText(context, "Exception: "+e.getMessage(), Toast.LENGTH_SHORT).show();
+            // Burst request
+            final CaptureRequest.Builder builder = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            builder.addTarget(mNightReader.getSurface());
+            final List<CaptureRequest> burst = new ArrayList<>();
+            for(int i = 0; i < length; i++) burst.add(builder.build());
+
+            // A lost frame never completes the burst, preview is restarted right away
+            final CameraCaptureSession.CaptureCallback callbacks = new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
+                    if(done.compareAndSet(false, true)) abortNightCapture("Night frame failed, reason: "+failure.getReason());
+                }
+
+                @Override
+                public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session, int sequenceId) {
+                    if(done.compareAndSet(false, true)) abortNightCapture("Night burst aborted.");
+                }
+            };
+
+            // Start capture session
+            mCamera.createCaptureSession(Collections.singletonList(mNightReader.getSurface()), new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(@NonNull CameraCaptureSession session) {
+                    mPreviewSession = session;
+                    try{
+                        // Preview is restarted once all frames are received
+                        if(mCaptureSound != null) mCaptureSound.start();
+                        mPreviewSession.captureBurst(burst, callbacks, mChildHandler);
+                    }catch (CameraAccessException | IllegalStateException e){
+                        if(done.compareAndSet(false, true)) abortNightCapture("Night burst exception: "+e.getMessage());
                     }
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-
+                    if(done.compareAndSet(false, true)) abortNightCapture("Night capture session configuration failed.");
                 }
             }, mChildHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-            Toast.makeText(context, "Exception: "+e.getMessage(), Toast.LENGTH_SHORT).show();
+        }catch (CameraAccessException e){
+            if(done.compareAndSet(false, true)) abortNightCapture("Night capture exception: "+e.getMessage());
         }
     }
 
     /**
-     * Changes {@link #mCameraState}
-     * Stops and resets {@link #mMediaRecorder}
-     * Inform host with callbacks using {@link #mCameraHandlerListener}
-     * Restarts camera preview session {@link #startCameraPreview()}
+     * Failed burst, no merge follows so later night captures are accepted again
      */
-    public static void stopVideoRecording(){
-        // Update camera state
-        mCameraState = CameraState.STATE_VIDEO_RECORDED;
-
-        // Stop MediaRecorder
-        mMediaRecorder.stop();
-        mMediaRecorder.reset();
-
-        // Stop video recording timer
-        if(mVideoRecordingTimer != null) mVideoRecordingTimer.cancel();
+    private static void abortNightCapture(@NonNull String message){
+        mNightBusy.set(false);
+        abortCapture(message);
+    }
 
-        // Host callback
-        mCameraHandlerListener.onVideoRecordingEnds(mLastCapturedVideoFile);
+    /**
+     * Shortens a burst until its merger fits the {@link MemoryGovernor.Kind#PROCESSING_BUFFERS} budget
+     * @return burst length, at least 1
+     */
+    private static int fitNightBurst(int width, int height, int frames){
+        final long budget = mFileManager.getMemoryGovernor().getBudget(MemoryGovernor.Kind.PROCESSING_BUFFERS);
+        int burst = frames;
+        while(burst > 1 && FrameMerger.bytesFor(width, height, burst) > budget) burst--;
+        if(burst != frames) Log.d(TAG, "Night burst shortened to "+burst+" frames, processing budget: "+budget);
+        return burst;
+    }
 
-        // Start default preview
+    /**
+     * Restarts preview and merges burst on {@link YuvJpegEncoder#getPool()}
+     * Merging can't run on {@link #mChildHandler} since restarting preview restarts that thread
+     */
+    private static void onNightFramesReceived(@NonNull FrameMerger merger, int frames){
+        mStateMachine.moveTo(CameraState.STATE_IMAGE_CAPTURED);
         try {
-            mVideoRecordingSession.stopRepeating();
             startCameraPreview();
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
+
+        // Merged output is owned by the merger, next night capture waits until it is encoded
+        YuvJpegEncoder.getPool().execute(() -> {
+            final byte[] jpeg;
+            try {
+                final byte[] merged = merger.merge(frames);
+                Log.d(TAG, "Night merge ms/MP: "+merger.getLastMillisPerMegapixel()+", rejected tiles: "+merger.getLastRejectedTiles());
+                jpeg = TravManager.getYuvJpegEncoder().encode(merged, merger.getWidth(), merger.getHeight());
+            } catch (IOException e) {
+                Log.d(TAG, "Night encoding exception: "+e.getMessage());
+                return;
+            } finally {
+                mNightBusy.set(false);
+            }
+            deliverThumbnailAndStore(jpeg, mFileManager.getStorageSink());
+        });
     }
 
+
+
+
+
+
+
+
+    // ===========================================================================================
+    // ================================== Focus & Metering =======================================
+    // ===========================================================================================
     /**
-     * State checker for host to ensure that video recording is currently running
-     * @return value will be based on the current {@link #mCameraState} value
+     * Focuses and meters on a touched point of the preview, call from host's TextureView touch listener
+     * Rapid touches are coalesced, only the latest one is applied with the next preview frame
+     * Focus stays locked on the region until {@link #clearMeteringRegions()}, captures keep it
+     * @param viewX  touch x in TextureView coordinates
+     * @param viewY  touch y in TextureView coordinates
+     * @return       false when the touch can't be mapped or camera supports no regions
      */
-    public static boolean isVideoRecordingRunning(){
-        return mCameraState == CameraState.STATE_RECORDING_VIDEO;
+    public static boolean focusAt(float viewX, float viewY){
+        if(mTextureView == null || mTextureView.getWidth() == 0 || mTextureView.getHeight() == 0) return false;
+        onUserInteraction();
+
+        // Back to untransformed view, preview buffer there fills the view in natural orientation
+        final Matrix inverse = new Matrix();
+        if(!mPreviewTransform.invert(inverse)) return false;
+        final float[] point = {viewX, viewY};
+        inverse.mapPoints(point);
+        return mMetering.touch(point[0] / mTextureView.getWidth(), point[1] / mTextureView.getHeight(), System.nanoTime());
     }
 
     /**
-     * Applies all needed configurations for MediaRecorder
-     * Creates a temp video file to be used for storing captured video data
+     * Drops tapped regions, continuous focus and metering of the whole frame are restored
      */
-    @SuppressLint("NewApi")
-    public static void setUpMediaRecorder() {
-        final Activity activity = (Activity) context;
-        if(activity == null) return;
+    public static void clearMeteringRegions(){
+        mCommands.submit("clear regions", null, () -> {
+            mMetering.clear();
+            if(mPreviewSession == null || mPreviewBuilder == null || mStateMachine.getState() != CameraState.STATE_PREVIEW) return;
+            try{
+                applyMeteringRegions(mPreviewBuilder);
+                setPreviewFocusMode(mPreviewBuilder);
+                mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), mPreviewResultCallback, mChildHandler);
+            }catch (CameraAccessException | IllegalStateException e){
+                Log.d(TAG, "Clear regions exception: "+e.getMessage());
+            }
+        });
+    }
 
-        // MediaRecorder sources
-        mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+    /**
+     * @return tapped regions, touch to converged latency included
+     */
+    public static MeteringRegions getMeteringRegions(){
+        return mMetering;
+    }
 
-        // Get video file
-        mFileManager.listenForCallbacks(new TravManager.ScopedFileManagerCallbacks() {
-            @Override
-            public void onFileCreated(File file) {
-                mLastCapturedVideoFile = file;
+    /**
+     * Sensor geometry of the opened camera, regions cover the part of the active array seen by preview
+     */
+    private static void configureMeteringRegions(){
+        final Rect activeArray = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        final Integer facing = mCameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
+        final Integer maxAf = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+        final Integer maxAe = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+        if(activeArray == null || mPreviewSize == null) return;
+        mMetering.setSensor(activeArray, mSensorOrientation != null ? mSensorOrientation : 0,
+                facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT,
+                mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+                maxAf != null && isAutoFocusSupported() ? maxAf : 0, maxAe != null ? maxAe : 0);
+    }
 
-                // Using CamcorderProfile for default video formats
-                final CamcorderProfile camcorderProfile = CamcorderProfile.get(CamcorderProfile.QUALITY_720P);
+    /**
+     * Applies the latest touch to the running preview request, once per frame on the camera thread
+     * Regions are set in place on the repeating request, no new session or builder is created
+     */
+    private static void applyPendingTouch(){
+        if(mPreviewSession == null || mPreviewBuilder == null || mStateMachine.getState() != CameraState.STATE_PREVIEW) return;
+        final MeteringRegions.Touch touch = mMetering.takePending();
+        if(touch == null) return;
 
-                // Output file
-                mMediaRecorder.setOutputFile(mLastCapturedVideoFile);
+        mMetering.activate(touch);
+        applyMeteringRegions(mPreviewBuilder);
+        try{
+            // Tagged request, convergence is measured from its result on
+            mPreviewBuilder.setTag(touch);
+            if(mMetering.getAfRegions() != null){
+                mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+                mPreviewSession.capture(mPreviewBuilder.build(), mPreviewResultCallback, mChildHandler);
+                mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+                mPreviewBuilder.setTag(null);
+            }
+            mPreviewSession.setRepeatingRequest(mPreviewBuilder.build(), mPreviewResultCallback, mChildHandler);
+        }catch (CameraAccessException | IllegalStateException e){
+            Log.d(TAG, "Regions update exception: "+e.getMessage());
+        }finally {
+            mPreviewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            mPreviewBuilder.setTag(null);
+        }
+    }
 
-                // Video formats
-                mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.DEFAULT);
-                mMediaRecorder.setVideoEncodingBitRate(10000000);
-                mMediaRecorder.setVideoFrameRate(24);
-                mMediaRecorder.setVideoSize(mVideoSize.getWidth(), mVideoSize.getHeight());
+    /**
+     * Sets tapped regions, null regions meter the whole frame
+     * Focus regions switch to auto mode, the lens stays where the trigger left it
+     */
+    private static void applyMeteringRegions(@NonNull CaptureRequest.Builder builder){
+        builder.set(CaptureRequest.CONTROL_AF_REGIONS, mMetering.getAfRegions());
+        builder.set(CaptureRequest.CONTROL_AE_REGIONS, mMetering.getAeRegions());
+        if(mMetering.getAfRegions() != null) builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
+    }
 
-                // Audio formats
-                mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-                mMediaRecorder.setAudioEncodingBitRate(camcorderProfile.audioBitRate);
-                mMediaRecorder.setAudioSamplingRate(camcorderProfile.audioSampleRate);
+    /**
+     * Auto flash when the lens has a flash unit
+     */
+    private static void setPreviewAeMode(@NonNull CaptureRequest.Builder builder){
+        final Boolean flash = mCameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        builder.set(CaptureRequest.CONTROL_AE_MODE, flash != null && flash
+                ? CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH : CaptureRequest.CONTROL_AE_MODE_ON);
+    }
 
-                // Orientations
-                int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                switch (mSensorOrientation) {
-                    case SENSOR_ORIENTATION_DEFAULT_DEGREES:
-                        mMediaRecorder.setOrientationHint(DEFAULT_ORIENTATIONS.get(rotation));
-                        break;
-                    case SENSOR_ORIENTATION_INVERSE_DEGREES:
-                        mMediaRecorder.setOrientationHint(INVERSE_ORIENTATIONS.get(rotation));
-                        break;
-                }
+    /**
+     * Continuous focus if supported
+     */
+    private static void setPreviewFocusMode(@NonNull CaptureRequest.Builder builder){
+        if(isAutoFocusSupported()){
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        }else{
+            builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_OFF);
+        }
+    }
 
-                // Prepare
-                try {
-                    mMediaRecorder.prepare();
-                    startVideoRecording();
-                } catch (IOException e) {
-                    Log.d(TAG, "MediaRecorder prepare exception: "+e.getMessage());
-                }
+
+
+
+
+
+
+
+    // ===========================================================================================
+    // ==================================== Memory Budgets =======================================
+    // ===========================================================================================
+    /**
+     * Must be called from host's {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     * Shrinks memory budgets with the trim level, idle image readers, frame ring and merge buffers
+     * above their budget are released. Budgets are restored by {@link #onResume()}
+     * @param level  trim level
+     */
+    public static void onTrimMemory(int level){
+        if(mFileManager != null) mFileManager.getMemoryGovernor().onTrimMemory(level);
+    }
+
+    /**
+     * @return memory governor reporting used bytes and budgets per consumer, null before {@link #init}
+     */
+    public static MemoryGovernor getMemoryGovernor(){
+        return mFileManager != null ? mFileManager.getMemoryGovernor() : null;
+    }
+
+    /**
+     * Buffers in use by a capture or a recording are never released, they fit the budget once
+     * recreated by the next preview session or capture
+     * Budgets change on host's thread, they are applied by camera commands like any other camera change
+     */
+    private static void registerMemoryConsumers(@NonNull MemoryGovernor governor){
+        governor.register(MemoryGovernor.Kind.IMAGE_READERS, new MemoryGovernor.Consumer() {
+            @Override
+            public long getUsedBytes() {
+                return readersBytes();
             }
 
             @Override
-            public void onError(String message) {
-                Log.d(TAG, "Video error: "+message);
+            public void onBudget(long budgetBytes) {
+                mCommands.submit("image readers budget", null, TravCam::applyImageReadersBudget);
+            }
+        });
+
+        governor.register(MemoryGovernor.Kind.FRAME_RING, new MemoryGovernor.Consumer() {
+            @Override
+            public long getUsedBytes() {
+                final ImageReader reader = mZslReader;
+                return reader != null ? (long) reader.getMaxImages() * zslFrameBytes() : 0;
+            }
+
+            @Override
+            public void onBudget(long budgetBytes) {
+                mCommands.submit("frame ring budget", null, TravCam::applyFrameRingBudget);
             }
-        }).generateVideoFile();
+        });
+
+        governor.register(MemoryGovernor.Kind.PROCESSING_BUFFERS, new MemoryGovernor.Consumer() {
+            @Override
+            public long getUsedBytes() {
+                final FrameMerger merger = mFrameMerger;
+                return merger != null ? merger.getAllocatedBytes() : 0;
+            }
+
+            @Override
+            public void onBudget(long budgetBytes) {
+                mCommands.submit("processing buffers budget", null, () -> {
+                    // A running merge keeps its own reference
+                    if(getUsedBytes() > mFileManager.getMemoryGovernor().getBudget(MemoryGovernor.Kind.PROCESSING_BUFFERS)
+                            && mStateMachine.getState() != CameraState.STATE_CAPTURING_IMAGE) mFrameMerger = null;
+                });
+            }
+        });
     }
 
     /**
-     * Called from host to delete last captured video file if no longer used
+     * Fits readers to the current {@link MemoryGovernor.Kind#IMAGE_READERS} budget, on the camera thread
+     * Burst reader is only used while capturing and is closed, analysis reader is part of the preview
+     * and is resized by a new session. Still reader holds its single image whatever the budget
      */
-    public static void dismissCapturedVideoFile(){
-        if(mLastCapturedVideoFile != null){
-            if(mFileManager.deleteFile(mLastCapturedVideoFile)){
-                mLastCapturedVideoFile = null;
-            }
+    private static void applyImageReadersBudget(){
+        if(mStateMachine.getState() == CameraState.STATE_CAPTURING_IMAGE) return;
+        if(mNightReader != null && readersBytes() > mFileManager.getMemoryGovernor().getBudget(MemoryGovernor.Kind.IMAGE_READERS)){
+            mNightReader.close();
+            mNightReader = null;
+        }
+        if(mAnalysisReader != null && mAnalysisSize != null && mAnalysisReader.getMaxImages() != analysisReaderImages()){
+            Log.d(TAG, "Analysis reader resized to "+analysisReaderImages()+" images");
+            restartPreviewForStreamsChange();
         }
     }
 
+    /**
+     * Rebuilds the ring with the length fitting the current {@link MemoryGovernor.Kind#FRAME_RING} budget, on the camera thread
+     */
+    private static void applyFrameRingBudget(){
+        if(!mZslEnabled || mZslUnsupported || mYuvStillSize == null || mTextureView == null || !mTextureView.isAvailable()
+                || mStateMachine.getState() == CameraState.STATE_CAPTURING_IMAGE || zslCapacity() == mZslCapacity) return;
+        restartPreviewForStreamsChange();
+    }
+
+    /**
+     * @return analysis reader max images fitting the image readers budget
+     */
+    private static int analysisReaderImages(){
+        return fitReaderImages(mAnalysisReader, mAnalysisSize.getWidth(), mAnalysisSize.getHeight(), ImageFormat.YUV_420_888, ANALYSIS_MAX_IMAGES);
+    }
+
+    /**
+     * Max images of an optional reader fitting the {@link MemoryGovernor.Kind#IMAGE_READERS} budget
+     * left by the other readers
+     * @param replaced  reader being resized, its bytes are available to the new one, null if none
+     * @param wanted    max images without memory pressure
+     * @return          between 1 and wanted, a reader holds at least one image
+     */
+    private static int fitReaderImages(@Nullable ImageReader replaced, int width, int height, int format, int wanted){
+        final long left = mFileManager.getMemoryGovernor().getBudget(MemoryGovernor.Kind.IMAGE_READERS)
+                - readersBytes() + readerBytes(replaced);
+        return (int) Math.max(1, Math.min(wanted, left / imageBytes(width, height, format)));
+    }
+
+    /**
+     * @return bytes held by still, analysis and burst readers
+     */
+    private static long readersBytes(){
+        return readerBytes(mImageReader) + readerBytes(mAnalysisReader) + readerBytes(mNightReader);
+    }
+
+    /**
+     * @return bytes held by reader images, compressed formats are counted as one byte per pixel
+     */
+    private static long readerBytes(ImageReader reader){
+        if(reader == null) return 0;
+        return imageBytes(reader.getWidth(), reader.getHeight(), reader.getImageFormat()) * reader.getMaxImages();
+    }
+
+    /**
+     * @return bytes of a single image, compressed formats are counted as one byte per pixel
+     */
+    private static long imageBytes(int width, int height, int format){
+        final int bits = ImageFormat.getBitsPerPixel(format);
+        return Math.max(1, (long) width * height * (bits > 0 ? bits : 8) / 8);
+    }
+
 
 
 
@@ -1035,23 +3267,17 @@ public class TravCam {
     // ===================================== Common Uses =========================================
     // ===========================================================================================
     /**
-     * Used in capture() method to get Camera capture callbacks
-     * This callback manages captured sessions. Whenever a focus or a still picture is requested from a user,
-     * CameraCaptureSession returns callbacks through this callback
+     * Recording session capture callbacks
+     * Informs host once recording frames flow and records per frame metadata,
+     * still captures use their own callback in {@link #captureStill(boolean)}
      */
     private final static CameraCaptureSession.CaptureCallback mCameraCaptureSessionCaptureCallbacks = new CameraCaptureSession.CaptureCallback() {
         @Override
         public void onCaptureStarted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, long timestamp, long frameNumber) {
             super.onCaptureStarted(session, request, timestamp, frameNumber);
 
-            switch (mCameraState){
-                case STATE_CAPTURING_IMAGE:
-                    if(mCaptureSound != null) mCaptureSound.start();
-                    break;
-
-                case STATE_RECORDING_VIDEO:
-                    mCameraHandlerListener.onVideoRecordingStarts();
-                    break;
+            if(mStateMachine.getState() == CameraState.STATE_RECORDING_VIDEO){
+                mCameraHandlerListener.onVideoRecordingStarts();
             }
         }
 
@@ -1059,30 +3285,33 @@ public class TravCam {
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
 
-            try{
-                switch (mCameraState){
-                    case STATE_CAPTURING_IMAGE:
-                    case STATE_IMAGE_CAPTURED:
-                        mPreviewSession.stopRepeating();
-                        startCameraPreview();
-                        break;
-                }
-            }catch (CameraAccessException e){
-                e.printStackTrace();
+            if(mStateMachine.getState() == CameraState.STATE_RECORDING_VIDEO){
+                onRecordedFrame(result);
             }
         }
+    };
 
-        @Override
-        public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
-            super.onCaptureFailed(session, request, failure);
-
+    /**
+     * Leaves a failed capture or recording, camera is back to a running preview and host is informed
+     * @param message  failure reported by {@link CameraHandlerListener#onError(String)}
+     */
+    private static void abortCapture(@NonNull String message){
+        Log.d(TAG, message);
+        mStateMachine.reset(CameraState.STATE_PREVIEW);
+        if(mCamera != null && mTextureView.isAvailable()){
+            try {
+                startCameraPreview();
+            } catch (CameraAccessException e) {
+                Log.d(TAG, "Preview restart exception: "+e.getMessage());
+            }
         }
-    };
+        mUiHandler.post(() -> mCameraHandlerListener.onError(message));
+    }
 
     /**
-     * Camera States Enum
+     * Camera States Enum, transitions are listed by {@link CameraStateMachine}
      */
-    private enum CameraState{
+    public enum CameraState{
         STATE_PREVIEW,
         STATE_FOCUS_LOCKED,
         STATE_FOCUS_UNLOCKED,
@@ -1096,11 +3325,79 @@ public class TravCam {
      * Main callbacks listener to inform listening hosts
      */
     public interface CameraHandlerListener{
-        void onImageCapture(@NonNull File imageFile);
         void onVideoRecordingStarts();
-        void onVideoRecordingEnds(@NonNull File videoFile);
         void onVideoRecordingLengthTicks(long maxProgress, long currentProgress);
         void onCloseCameraError();
+
+        /**
+         * Preferred image callback, carries MediaStore Uri, id, size and timestamp
+         * Called on main thread once the capture is stored
+         * Default implementation resolves the legacy file and calls {@link #onImageCapture(File)}
+         */
+        default void onImageCapture(@NonNull CapturedMedia media){
+            final File file = media.getFile();
+            if(file != null) onImageCapture(file);
+        }
+
+        /**
+         * Preferred video callback, carries MediaStore Uri, id, size and timestamp
+         * Called on main thread once the recording is stored
+         * Default implementation resolves the legacy file and calls {@link #onVideoRecordingEnds(File)}
+         */
+        default void onVideoRecordingEnds(@NonNull CapturedMedia media){
+            final File file = media.getFile();
+            if(file != null) onVideoRecordingEnds(file);
+        }
+
+        /**
+         * Early, small portrait thumbnail of a capture, called on main thread before
+         * {@link #onImageCapture(CapturedMedia)} while the capture is still being stored
+         * Bitmap is pooled and reused two thumbnails later, copy it to keep it longer
+         */
+        default void onImageThumbnail(@NonNull Bitmap thumbnail){}
+
+        /**
+         * Recording wasn't started, storage budget or free space floor would be exceeded
+         * Configured using {@link #getStorageGovernor()}, called on main thread
+         */
+        default void onStorageFull(){}
+
+        /**
+         * In-memory capture requested by {@link #captureImageToMemory()}, called on main thread
+         * Default implementation releases the buffer, overriding it requires calling {@link CapturedBuffer#release()},
+         * still captures are rejected until it's released
+         */
+        default void onImageBuffer(@NonNull CapturedBuffer buffer){
+            buffer.release();
+        }
+
+        /**
+         * Dual-rendition recording enabled by {@link #enableProxyRecording()}
+         * Called instead of {@link #onVideoRecordingEnds(CapturedMedia)} when the proxy was recorded, on main thread
+         * Default implementation calls {@link #onVideoRecordingEnds(CapturedMedia)} with master only
+         */
+        default void onVideoRenditionsRecorded(@NonNull CapturedMedia master, @NonNull CapturedMedia proxy){
+            onVideoRecordingEnds(master);
+        }
+
+        /**
+         * Storage couldn't keep up with an encoder, its bitrate was lowered
+         * Proxy bitrate changes while recording, master bitrate from the next recording
+         * Called from a background thread
+         */
+        default void onBitrateThrottled(boolean proxy, int fromBitrate, int toBitrate){}
+
+        /**
+         * A capture or recording failed and was dropped, preview is restarted and new commands are accepted
+         * Called on main thread
+         */
+        default void onError(@NonNull String message){}
+
+        /** Legacy image callback, only called when {@link #onImageCapture(CapturedMedia)} isn't overridden **/
+        default void onImageCapture(@NonNull File imageFile){}
+
+        /** Legacy video callback, only called when {@link #onVideoRecordingEnds(CapturedMedia)} isn't overridden **/
+        default void onVideoRecordingEnds(@NonNull File videoFile){}
     }
 
     /**
@@ -1,42 +1,126 @@
 package com.github.travcam;
 
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.media.Image;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Build;
-import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.heifwriter.HeifWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class TravManager {
+    private final static String TAG = "TravManagerLogs";
+
     /** Activity context **/
     private final Context context;
 
     /** Extensions to be used for storing files **/
     private final static String EXT_JPG = "jpeg";
     private final static String EXT_MP4 = "mp4";
+    private final static String EXT_HEIC = "heic";
+
+    /** Video mime type **/
+    private final static String MIME_MP4 = "video/mp4";
+
+    /** HEIC encoder mime type, used to detect HEIC support **/
+    private final static String MIME_HEIC_IMAGE = "image/vnd.android.heic";
+
+    /** Quality used when encoding stills **/
+    private final static int JPEG_QUALITY = 95;
+
+    /** Stills are decoded at 1 / STILL_SAMPLE_SIZE resolution before being stored, JPEG and HEIC alike **/
+    private final static int STILL_SAMPLE_SIZE = 2;
+
+    /** Parallel encoder for YUV sourced stills, created on first use **/
+    private static YuvJpegEncoder sYuvJpegEncoder;
+
+    /** HEIC encoding settings **/
+    private final static int HEIC_QUALITY = 90;
+    private final static long HEIC_TIMEOUT_MS = 5000;
+
+    /** Cached HEIC support check **/
+    private static Boolean sHeicSupported;
+
+    /** Selected still format and per format write measurements **/
+    private StillFormat mStillFormat = StillFormat.JPEG;
+    private final Map<StillFormat, WriteStats> mStillWriteStats = new EnumMap<>(StillFormat.class);
+
+    /** MediaStore publishing batch triggers, SDK >= 29 **/
+    private final static int PUBLISH_BATCH = 8;
+    private final static long PUBLISH_WINDOW_MS = 500;
+
+    /** Single background thread for storage work, created on first use **/
+    private static ScheduledExecutorService sIoExecutor;
 
-    /** Callbacks interface **/
-    private ScopedFileManagerCallbacks mFileManageCallbacks;
+    /** Batched MediaStore publisher, created on first use **/
+    private MediaStorePublisher mPublisher;
+
+    /** Review cache, created on first use with the {@link MemoryGovernor.Kind#REVIEW_CACHE} budget **/
+    private MediaReviewCache mReviewCache;
+
+    /** Memory budgets of buffers and caches, created on first use **/
+    private MemoryGovernor mMemoryGovernor;
+
+    /** Index of stored captures, loaded on first use **/
+    private CaptureIndex mCaptureIndex;
+    private final static String CAPTURE_INDEX_FILE = "travcam_captures.idx";
+
+    /** Storage budget governor, created on first use **/
+    private StorageGovernor mStorageGovernor;
+
+    /** Upload queue and upload URLs of captures, null until uploads are enabled **/
+    private UploadQueue mUploadQueue;
+    private UploadQueue.UrlProvider mUploadUrls;
+    private final static String UPLOAD_QUEUE_FILE = "travcam_uploads.q";
+
+    /** Frame metadata sidecars, next to file videos or in app external files otherwise **/
+    private final static String SIDECAR_EXTENSION = ".meta";
+    private final static String SIDECAR_DIR = "metadata";
+
+    /** Lossless trim and concat, created on first use and only used on the I/O executor **/
+    private volatile MediaRemuxer mRemuxer;
+
+    /** Default capture destination and per sink write measurements **/
+    private StorageSink mStorageSink;
+    private final Map<StorageSink, WriteStats> mSinkWriteStats = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /** Callbacks interface, default of calls without their own callbacks **/
+    private volatile ScopedFileManagerCallbacks mFileManageCallbacks;
 
     public TravManager(@NonNull Context context){
         this.context = context;
+        for(StillFormat format : StillFormat.values()) mStillWriteStats.put(format, new WriteStats());
     }
 
 
@@ -51,146 +135,142 @@ public class TravManager {
      * @param fileType  file type helps provide appropriate directory path
      */
     public void storeCapturedImage(@NonNull Image image, @NonNull ScopedFileType fileType){
-        final String path = Environment.DIRECTORY_DCIM + File.separator + fileType;
+        storeCapturedImage(image, fileType, getStorageSink());
+    }
 
+    /**
+     * Same as {@link #storeCapturedImage(Image, ScopedFileType)}, storing to the given sink
+     * @param image     file to be saved
+     * @param fileType  file type
+     * @param sink      capture destination
+     */
+    public void storeCapturedImage(@NonNull Image image, @NonNull ScopedFileType fileType, @NonNull StorageSink sink){
         // Getting captured image bytes
         final byte[] bytes = imageToBytes(image);
 
-        // Generate file name
-        final String fileName = generateFileName(fileType);
-
         // Close image
         image.close();
 
-        // save image with appropriate SDK supporting
-        // then return to caller using listener
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q){
-            saveImageSDKNew(bytes, fileName, path);
-        }else{
-            saveImageSDKOld(bytes, fileName, path);
-        }
+        storeCapturedBytes(bytes, fileType, sink);
     }
 
     /**
-     * Used to save images for Android 10+ devices, using SDK 29+
-     * This method uses {@link MediaStore} API to save media files to local storage
-     * @param bytes      bytes array of current file
-     * @param fileName   file name
-     * @param filePath   directory path
+     * Saves already encoded JPEG bytes
+     * HEIC needs a file descriptor, JPEG is stored for sinks without one
+     * @param bytes     JPEG bytes
+     * @param fileType  file type helps provide appropriate directory path
+     * @param sink      capture destination
      */
-    @RequiresApi(api = Build.VERSION_CODES.Q)
-    private void saveImageSDKNew(@NonNull byte[] bytes, @NonNull String fileName, @NonNull String filePath){
-        // Converting bytes to bitmap
-        Bitmap bitmap = byteToBitmap(bytes);
+    public void storeCapturedBytes(@NonNull byte[] bytes, @NonNull ScopedFileType fileType, @NonNull StorageSink sink){
+        storeCapturedBytes(bytes, fileType, sink, mFileManageCallbacks);
+    }
+
+    /**
+     * Same as {@link #storeCapturedBytes(byte[], ScopedFileType, StorageSink)}, informing the given callbacks
+     * Callbacks are bound to the call, concurrent stores and recordings never receive each other's media
+     * Called on the storing thread, like {@link #getIoExecutor()}
+     * @param callbacks  stored media listener, null for none
+     */
+    public void storeCapturedBytes(@NonNull byte[] bytes, @NonNull ScopedFileType fileType, @NonNull StorageSink sink,
+                                   @Nullable ScopedFileManagerCallbacks callbacks){
+        // Resolve output format once, file name and writer must agree
+        StillFormat format = getEffectiveStillFormat();
+        if(format == StillFormat.HEIC && !sink.supportsDescriptor()) format = StillFormat.JPEG;
 
-        // Save bitmap to local storage
-        final ContentValues values = new ContentValues();
-        values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
-        values.put(MediaStore.MediaColumns.MIME_TYPE, "image/jpg");
-        values.put(MediaStore.MediaColumns.RELATIVE_PATH, filePath);
+        // Generate file name
+        final String fileName = generateFileName(fileType, format);
 
-        final ContentResolver resolver = context.getContentResolver();
-        Uri uri = null;
+        // Converting bytes to bitmap
+        // JPEG is rotated in memory, HEIC carries its rotation, so the file is written only once
+        final Bitmap bitmap = decodeStill(bytes, format != StillFormat.HEIC);
+        final long timestamp = System.currentTimeMillis();
 
+        StorageSink.Output output = null;
         try {
-            final Uri contentUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-            uri = resolver.insert(contentUri, values);
-
-            // Catching exceptions
-            if (uri == null) throw new IOException("Failed to create new MediaStore record.");
-            try (final OutputStream stream = resolver.openOutputStream(uri)) {
-                if (stream == null) throw new IOException("Failed to open output stream.");
-                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, 95, stream)) throw new IOException("Failed to save bitmap.");
-
-                // Return created image file
-                if(mFileManageCallbacks != null) {
-                    File file = new File(getRealPathFromURI(uri, ScopedFileType.IMAGE));
-                    if(file.exists()){
-                        mFileManageCallbacks.onFileCreated(rotateImageFile(file));
-                    }else{
-                        mFileManageCallbacks.onError("Image file does not exist! "+file.getAbsolutePath());
-                    }
+            output = sink.open(fileType, fileName, format.getMimeType(), timestamp);
+            final long writeStart = System.nanoTime();
+            ByteArrayOutputStream reviewBytes = null;
+            if(format == StillFormat.HEIC && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P){
+                writeHeic(bitmap, output.openDescriptor(), null);
+            }else{
+                // Keep written bytes for review once the review cache is used
+                OutputStream stream = output.openStream();
+                if(mReviewCache != null){
+                    reviewBytes = new ByteArrayOutputStream(bytes.length);
+                    stream = new TeeOutputStream(stream, reviewBytes);
                 }
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, stream)) throw new IOException("Failed to save bitmap.");
             }
+            final CapturedMedia media = output.commit();
+            recordStillWrite(format, sink, media.getSize(), System.nanoTime() - writeStart);
+            if(reviewBytes != null) mReviewCache.put(media, reviewBytes.toByteArray());
+            getCaptureIndex().add(media);
+            if(mStorageGovernor != null) mStorageGovernor.onCaptureStored();
+            enqueueUpload(media, false);
+
+            // Return created media, built from known values without querying MediaStore
+            if(callbacks != null) callbacks.onMediaCreated(media);
         }
         catch (IOException e) {
-            if (uri != null) {
-                // Don't leave an orphan entry in the MediaStore
-                resolver.delete(uri, null, null);
-            }
-            if(mFileManageCallbacks != null) mFileManageCallbacks.onError(e.getMessage());
+            // Don't leave an orphan entry behind
+            if (output != null) output.abort();
+            if(callbacks != null) callbacks.onError(e.getMessage());
         }
     }
 
     /**
-     * Used to save images for Android versions less than 10, SDK < 29
-     * @param bytes      bytes array of current file
-     * @param fileName   file name
-     * @param filePath   directory path
+     * Captured images are being rotated from {@link TravCam}
+     * Using this method, images are returned to default rotation state before being written,
+     * so the stored file is encoded once and never re-read
+     * Image is decoded at half resolution whatever the stored format, limiting memory used by the rotation
+     * @param bytes   JPEG bytes
+     * @param rotate  rotate to portrait, false when the writer stores the rotation instead
+     * @return        decoded bitmap
      */
-    private void saveImageSDKOld(@NonNull byte[] bytes, @NonNull String fileName, @NonNull String filePath){
-        final File file = new File(filePath, fileName);
-
-        try{
-            if(file.createNewFile()){
-                // Write bytes to file
-                final FileOutputStream fileOutputStream = new FileOutputStream(file);
-                fileOutputStream.write(bytes);
-                fileOutputStream.flush();
-                fileOutputStream.close();
+    private static Bitmap decodeStill(@NonNull byte[] bytes, boolean rotate){
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = STILL_SAMPLE_SIZE;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if(!rotate) return bitmap;
 
-                // Get media type from extension
-                if(mFileManageCallbacks != null) mFileManageCallbacks.onFileCreated(rotateImageFile(file));
-            }else{
-                if (mFileManageCallbacks != null) mFileManageCallbacks.onError("Couldn't create new file!");
-            }
-        }catch (IOException e){
-            if (mFileManageCallbacks != null) mFileManageCallbacks.onError(String.format("Exception: %s", e.getMessage()));
-        }
-        if (mFileManageCallbacks != null) mFileManageCallbacks.onError("Unexpected error occurred!");
+        Matrix matrix = new Matrix();
+        matrix.postRotate(getPortraitRotation());
+        return Bitmap.createBitmap(bitmap , 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
     }
 
     /**
-     * Captured image files are being rotated from {@link TravCam}
-     * Using this method, images should be returned to default rotation state
-     * and returned to host
-     * Image file is being converted to Bitmap to apply rotation
-     * Then reverted to file and returned
-     * @param imageFile  Image File
-     * @return           Rotated image file
+     * @return rotation to apply to captured images to return to portrait
      */
-    private File rotateImageFile(@NonNull File imageFile){
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = 2;
-        // Get the original bitmap from the filepath to which you want to change orientation
-        // fileName ist the filepath of the image
-        Bitmap bitmap = BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
-
+    private static int getPortraitRotation(){
         // Screen orientation
-        int orientation = TravCam.revertOrientationToPortrait(TravCam.getSensorOrientation());
-
-        Matrix matrix = new Matrix();
-        matrix.postRotate(orientation);
-        bitmap = Bitmap.createBitmap(bitmap , 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-
-        //Convert bitmap to byte array
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-        byte[] bitmapData = bos.toByteArray();
+        return TravCam.revertOrientationToPortrait(TravCam.getSensorOrientation());
+    }
 
-        //write the bytes in file
-        FileOutputStream fos;
+    /**
+     * Encodes bitmap as HEIC using {@link HeifWriter}, hardware HEVC encoder is used when available
+     * Exactly one of fd and path must be set
+     * @param bitmap  decoded capture
+     * @param fd      output file descriptor
+     * @param path    output file path
+     */
+    @RequiresApi(api = Build.VERSION_CODES.P)
+    private void writeHeic(@NonNull Bitmap bitmap, FileDescriptor fd, String path) throws IOException{
+        final HeifWriter.Builder builder = fd != null
+                ? new HeifWriter.Builder(fd, bitmap.getWidth(), bitmap.getHeight(), HeifWriter.INPUT_MODE_BITMAP)
+                : new HeifWriter.Builder(path, bitmap.getWidth(), bitmap.getHeight(), HeifWriter.INPUT_MODE_BITMAP);
+        final HeifWriter writer = builder
+                .setQuality(HEIC_QUALITY)
+                .setRotation(getPortraitRotation())
+                .build();
         try {
-            fos = new FileOutputStream(imageFile);
-            fos.write(bitmapData);
-            fos.flush();
-            fos.close();
-            return imageFile;
-        } catch (IOException e) {
-            e.printStackTrace();
+            writer.start();
+            writer.addBitmap(bitmap);
+            writer.stop(HEIC_TIMEOUT_MS);
+        } catch (Exception e) {
+            throw new IOException("HEIC encoding exception: "+e.getMessage());
+        } finally {
+            writer.close();
         }
-
-        return imageFile;
     }
 
 
@@ -204,132 +284,326 @@ public class TravManager {
      * File will be return using callbacks listener to host {@link #mFileManageCallbacks}
      */
     public void generateVideoFile(){
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q){
-            generateEmptyFileNew(generateFileName(ScopedFileType.VIDEO), ScopedFileType.VIDEO);
-        }else{
-            generateEmptyFileOld(generateFileName(ScopedFileType.VIDEO), ScopedFileType.VIDEO);
+        generateVideoFile(getStorageSink());
+    }
+
+    /**
+     * Opens a pending video output on the given sink
+     * Recorder writes straight to {@link StorageSink.Output#openDescriptor()} of {@link CapturedMedia#getPendingOutput()},
+     * output is committed by {@link #publishVideo(CapturedMedia)}
+     * @param sink  recording destination, must support descriptors
+     */
+    public void generateVideoFile(@NonNull StorageSink sink){
+        generateVideoFile(sink, mFileManageCallbacks);
+    }
+
+    /**
+     * Same as {@link #generateVideoFile(StorageSink)}, informing the given callbacks on the calling thread
+     * @param sink       recording destination, must support descriptors
+     * @param callbacks  pending video listener
+     */
+    public void generateVideoFile(@NonNull StorageSink sink, @NonNull ScopedFileManagerCallbacks callbacks){
+        if(!sink.supportsDescriptor()){
+            callbacks.onError("Storage sink doesn't support recording.");
+            return;
+        }
+
+        try {
+            callbacks.onMediaCreated(openPendingVideo(sink, generateFileName(ScopedFileType.VIDEO)));
+        } catch (IOException e) {
+            callbacks.onError("Video file exception: "+e.getMessage());
         }
     }
 
     /**
-     * Generates writable empty file for New SDK (SDK >= 29)
-     * @param fileName  File name
-     * @param type      File type to be used for creating storing path
+     * Opens a pending proxy video next to a pending master recording
+     * Proxy is named after its master, like trav_vid_[time]_proxy.mp4
+     * @param master  pending master created by {@link #generateVideoFile(StorageSink)}
+     * @param sink    proxy destination, must support descriptors
+     * @return        pending proxy, committed by {@link #publishVideo(CapturedMedia)}
      */
-    @RequiresApi(api = Build.VERSION_CODES.Q)
-    private void generateEmptyFileNew(@NonNull String fileName, @NonNull ScopedFileType type){
-        final String path = Environment.DIRECTORY_DCIM + File.separator + type;
-
-        // Adding content values to video
-        ContentValues values = new ContentValues();
-        values.put(MediaStore.Video.Media.RELATIVE_PATH, path);
-        values.put(MediaStore.Video.Media.TITLE, fileName);
-        values.put(MediaStore.Video.Media.DISPLAY_NAME, fileName);
-        values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
-        values.put(MediaStore.Video.Media.DATE_ADDED, System.currentTimeMillis() / 1000);
-        values.put(MediaStore.Video.Media.DATE_TAKEN, System.currentTimeMillis());
-        values.put(MediaStore.Video.Media.IS_PENDING, 1);
-
-        // Insert video Uri
-        ContentResolver resolver = context.getContentResolver();
-        Uri collection = MediaStore.Video.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
-        Uri uriVideo = resolver.insert(collection, values);
-
-        // Writing video file using FileOutputStream
-        ParcelFileDescriptor pfd;
+    public CapturedMedia generateProxyVideoFile(@NonNull CapturedMedia master, @NonNull StorageSink sink) throws IOException{
+        if(!sink.supportsDescriptor()) throw new IOException("Storage sink doesn't support recording.");
+        final String name = master.getDisplayName();
+        final int dot = name.lastIndexOf('.');
+        return openPendingVideo(sink, (dot > 0 ? name.substring(0, dot) : name) + "_proxy." + EXT_MP4);
+    }
+
+    private CapturedMedia openPendingVideo(@NonNull StorageSink sink, @NonNull String fileName) throws IOException{
+        StorageSink.Output output = null;
         try {
-            pfd = context.getContentResolver().openFileDescriptor(uriVideo, "w");
-            FileOutputStream out;
-            if (pfd != null) {
-                out = new FileOutputStream(pfd.getFileDescriptor());
-                File videoFile = new File(context.getExternalFilesDir("Traveln"), fileName);
-                FileInputStream in = new FileInputStream(videoFile);
-                byte[] buf = new byte[8192];
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
+            output = sink.open(ScopedFileType.VIDEO, fileName, MIME_MP4, System.currentTimeMillis());
+
+            // Keep descriptor open for the recorder
+            output.openDescriptor();
+            final CapturedMedia media = output.getPendingMedia();
+            media.setPendingOutput(output);
+
+            // Uploaded while recording
+            enqueueUpload(media, true);
+            return media;
+        } catch (IOException e) {
+            // Don't leave an orphan entry behind
+            if(output != null) output.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Trims a recording without re-encoding, on the I/O executor
+     * Trimmed video starts at the key frame preceding startMs, it is stored on the default sink
+     * @param source     recorded video
+     * @param startMs    start in milliseconds
+     * @param endMs      end in milliseconds
+     * @param callbacks  progress and result, called on the I/O executor
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public void trimVideo(@NonNull CapturedMedia source, long startMs, long endMs, @NonNull RemuxCallbacks callbacks){
+        remux(Collections.singletonList(source), startMs * 1000, endMs * 1000, callbacks);
+    }
+
+    /**
+     * Joins recordings without re-encoding, on the I/O executor
+     * Recordings must share formats, like clips recorded one after another with the same settings
+     * @param sources    recorded videos, in playback order
+     * @param callbacks  progress and result, called on the I/O executor
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    public void concatVideos(@NonNull List<CapturedMedia> sources, @NonNull RemuxCallbacks callbacks){
+        remux(new ArrayList<>(sources), 0, Long.MAX_VALUE, callbacks);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private void remux(@NonNull List<CapturedMedia> sources, long startUs, long endUs, @NonNull RemuxCallbacks callbacks){
+        final StorageSink sink = getStorageSink();
+        getIoExecutor().execute(() -> {
+            final List<ParcelFileDescriptor> descriptors = new ArrayList<>(sources.size());
+            CapturedMedia media = null;
+            try {
+                if(!sink.supportsDescriptor()) throw new IOException("Storage sink doesn't support recording.");
+                final List<MediaRemuxer.Segment> segments = new ArrayList<>(sources.size());
+                for(CapturedMedia source : sources){
+                    final ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(source.getUri(), "r");
+                    if(descriptor == null) throw new IOException("Couldn't open "+source.getUri());
+                    descriptors.add(descriptor);
+                    segments.add(new MediaRemuxer.Segment(descriptor.getFileDescriptor(), startUs, endUs));
+                }
+
+                if(mRemuxer == null) mRemuxer = new MediaRemuxer();
+                final MediaRemuxer remuxer = mRemuxer;
+                media = openPendingVideo(sink, generateFileName(ScopedFileType.VIDEO));
+                remuxer.remux(segments, media.getPendingOutput().openDescriptor(), callbacks::onProgress);
+                Log.d(TAG, "Remuxed MB: "+remuxer.getLastBytes() / 1_000_000f+", MB/s: "+remuxer.getLastMegabytesPerSecond());
+
+                final CapturedMedia remuxed = publishVideo(media);
+                media = null;
+                if(remuxed == null) throw new IOException("Failed to publish remuxed video.");
+                callbacks.onRemuxed(remuxed);
+            } catch (IOException e) {
+                // Don't leave an orphan entry behind
+                if(media != null) discardVideo(media);
+                callbacks.onError("Remux exception: "+e.getMessage());
+            } finally {
+                for(ParcelFileDescriptor descriptor : descriptors){
+                    try {
+                        descriptor.close();
+                    } catch (IOException ignored) {}
                 }
-                out.flush();
-                out.getFD().sync();
-                out.close();
-                in.close();
-                pfd.close();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        });
+    }
+
+    /**
+     * @return throughput of last trim or concat in megabytes per second, 0 before the first one
+     */
+    public float getLastRemuxMegabytesPerSecond(){
+        final MediaRemuxer remuxer = mRemuxer;
+        return remuxer != null ? remuxer.getLastMegabytesPerSecond() : 0;
+    }
+
+    /**
+     * Writes frame metadata of a recording on the I/O executor
+     * @param media     recorded video
+     * @param metadata  frames metadata recorded with the video
+     */
+    public void writeMetadataSidecar(@NonNull CapturedMedia media, @NonNull FrameMetadata metadata){
+        final File sidecar = getMetadataSidecar(media);
+        getIoExecutor().execute(() -> {
+            try {
+                metadata.write(sidecar);
+            } catch (IOException e) {
+                Log.d(TAG, "Metadata sidecar exception: "+e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Sidecar of a recording, read using {@link FrameMetadata#read(File)}
+     * @param media  recorded video
+     * @return       sidecar file, exists only when frame metadata was recorded
+     */
+    public File getMetadataSidecar(@NonNull CapturedMedia media){
+        return getMetadataSidecar(media.getUri().toString(), media.getDisplayName());
+    }
+
+    private File getMetadataSidecar(@NonNull String uri, @NonNull String displayName){
+        final Uri parsed = Uri.parse(uri);
+        if(ContentResolver.SCHEME_FILE.equals(parsed.getScheme()) && parsed.getPath() != null){
+            return new File(new File(parsed.getPath()).getParentFile(), displayName + SIDECAR_EXTENSION);
         }
-        values.clear();
-        values.put(MediaStore.Video.Media.IS_PENDING, 0);
+        final File external = context.getExternalFilesDir(null);
+        return new File(new File(external != null ? external : context.getFilesDir(), SIDECAR_DIR), displayName + SIDECAR_EXTENSION);
+    }
 
-        context.getContentResolver().update(uriVideo, values, null, null);
-        File file = new File(getRealPathFromURI(uriVideo, ScopedFileType.VIDEO));
-        if(file.exists()){
-            mFileManageCallbacks.onFileCreated(file);
-        }else{
-            mFileManageCallbacks.onError("Video file does not exist! "+file.getAbsolutePath());
+    /**
+     * Aborts a pending recording whose content couldn't be written
+     * @param media  media created by {@link #generateVideoFile()}
+     */
+    public void discardVideo(@NonNull CapturedMedia media){
+        final StorageSink.Output output = media.getPendingOutput();
+        if(output == null) return;
+        media.setPendingOutput(null);
+        if(mUploadQueue != null) mUploadQueue.cancel(media.getUri().toString());
+        output.abort();
+    }
+
+    /**
+     * Called once recorder stopped writing
+     * Commits the pending output, MediaStore entries are published before this returns
+     * @param media  media created by {@link #generateVideoFile()}
+     * @return       media with its final size, null if it couldn't be published and was discarded
+     */
+    @Nullable
+    public CapturedMedia publishVideo(@NonNull CapturedMedia media){
+        final StorageSink.Output output = media.getPendingOutput();
+        if(output == null) return media;
+        media.setPendingOutput(null);
+
+        try {
+            final CapturedMedia published = output.commit();
+            getCaptureIndex().add(published);
+            if(mStorageGovernor != null) mStorageGovernor.onCaptureStored();
+            if(mUploadQueue != null) mUploadQueue.complete(published.getUri().toString(), published.getSize());
+            return published;
+        } catch (IOException e) {
+            Log.d(TAG, "Closing video output exception: "+e.getMessage());
+            if(mUploadQueue != null) mUploadQueue.cancel(media.getUri().toString());
+            // Don't leave an orphan entry behind
+            output.abort();
+            return null;
         }
     }
 
+
+
+
+    // ===========================================================================================
+    // ===================================== Storage Sinks =======================================
+    // ===========================================================================================
     /**
-     * Generates writable empty file for Old SDK (SDK < 29)
-     * @param fileName  File name
-     * @param type      File type to be used for creating storing path
+     * Selects default destination of captures
+     * @param sink  destination, null restores {@link #getDefaultStorageSink()}
      */
-    private void generateEmptyFileOld(@NonNull String fileName, @NonNull ScopedFileType type){
-        // File path
-        final String path = Environment.DIRECTORY_DCIM + File.separator + type;
+    public TravManager setStorageSink(StorageSink sink){
+        mStorageSink = sink;
+        return this;
+    }
 
-        // Create directory
-        File dir = new File(path);
-        if(!dir.exists()){
-            if(dir.mkdirs()){
-                File file = new File(path, fileName);
-                if(file.exists()) mFileManageCallbacks.onFileCreated(file);
-                try{
-                    if(!file.createNewFile()){
-                        FileOutputStream fileOutputStream = new FileOutputStream(file);
-                        fileOutputStream.flush();
-                        fileOutputStream.close();
-                    }
-                    mFileManageCallbacks.onFileCreated(file);
-                }catch (IOException e){
-                    mFileManageCallbacks.onError("Video file exception: "+e.getMessage());
-                }
-            }
+    /**
+     * @return destination used by captures not given a sink
+     */
+    public synchronized StorageSink getStorageSink(){
+        if(mStorageSink == null) mStorageSink = getDefaultStorageSink();
+        return mStorageSink;
+    }
+
+    /**
+     * @return shared DCIM destination, MediaStore for SDK >= 29, public DCIM files otherwise
+     */
+    public StorageSink getDefaultStorageSink(){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q){
+            return new MediaStoreSink(context.getContentResolver(), getPublisher());
         }
-        mFileManageCallbacks.onError("Could not create video file!");
+        return FileSink.publicDcim();
+    }
+
+    /**
+     * @param sink  storage sink
+     * @return      write time and size measurements of stills stored to that sink, null if none was stored
+     */
+    public WriteStats getSinkWriteStats(@NonNull StorageSink sink){
+        return mSinkWriteStats.get(sink);
     }
 
 
 
 
     // ===========================================================================================
-    // ==================================== Helper Methods =======================================
+    // ================================= MediaStore Publishing ===================================
     // ===========================================================================================
     /**
-     * Returns absolute path for Uris
-     * @param contentUri  Uri to retrieve path for
-     * @return            String path
+     * @return publisher batching MediaStore inserts and deletions of this manager
      */
-    private String getRealPathFromURI(Uri contentUri, ScopedFileType type) {
-        Cursor cursor = null;
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    public synchronized MediaStorePublisher getPublisher(){
+        if(mPublisher == null){
+            mPublisher = new MediaStorePublisher(context.getContentResolver(), getIoExecutor(), PUBLISH_BATCH, PUBLISH_WINDOW_MS);
+            mPublisher.setErrorListener(message -> {
+                final ScopedFileManagerCallbacks callbacks = mFileManageCallbacks;
+                if(callbacks != null) callbacks.onError(message);
+            });
+        }
+        return mPublisher;
+    }
+
+    /**
+     * Applies queued deletions of failed captures now, instead of waiting for the batch window
+     * No-op for SDK < 29, files are visible once written
+     */
+    public void flushPendingMedia(){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mPublisher != null) mPublisher.flush();
+    }
+
+    /**
+     * Applies queued deletions and deletes reserved entries left unused
+     * Call when capturing stops, like when camera is closed
+     */
+    public void releasePendingMedia(){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mPublisher != null) mPublisher.close();
+    }
+
+    /**
+     * @param descriptor  open file descriptor
+     * @return            current file size, like a recording being written, -1 when unknown
+     */
+    static long sizeOf(@NonNull FileDescriptor descriptor){
         try {
-            String[] projImage = { MediaStore.Images.Media.DATA };
-            String[] projVideo = { MediaStore.Video.Media.DATA };
-
-            cursor = context.getContentResolver().query(contentUri, type == ScopedFileType.IMAGE ? projImage : projVideo, null, null, null);
-            int column_index = cursor.getColumnIndexOrThrow(type == ScopedFileType.IMAGE ?
-                    MediaStore.Images.Media.DATA :
-                    MediaStore.Video.Media.DATA);
-            cursor.moveToFirst();
-            return cursor.getString(column_index);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+            return Os.fstat(descriptor).st_size;
+        } catch (ErrnoException e) {
+            return -1;
         }
     }
 
+    /**
+     * @return shared single thread executor for storage work kept off camera threads
+     */
+    public static synchronized ScheduledExecutorService getIoExecutor(){
+        if(sIoExecutor == null){
+            sIoExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "TravManagerIO");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sIoExecutor;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ==================================== Helper Methods =======================================
+    // ===========================================================================================
     /**
      * Generates file name using global structure for the whole project
      * Followed structure trav_{type}_{System.currentTimeMillis()}.{extension}
@@ -337,9 +611,19 @@ public class TravManager {
      * @return          generated file name
      */
     public String generateFileName(@NonNull ScopedFileType type){
+        return generateFileName(type, getEffectiveStillFormat());
+    }
+
+    /**
+     * Generates file name for an image stored in the given format
+     * @param type      file type [img, vid]
+     * @param format    still format, used for images extension
+     * @return          generated file name
+     */
+    private String generateFileName(@NonNull ScopedFileType type, @NonNull StillFormat format){
         String extension;
         if(type.toString().toLowerCase().contains("image")) {
-            extension = EXT_JPG;
+            extension = format.getExtension();
         }else{
             extension = EXT_MP4;
         }
@@ -356,13 +640,12 @@ public class TravManager {
      */
     public boolean deleteFile(@NonNull File file){
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q){
-            // Using MediaStore to delete file for SDK >= 29
+            // Using MediaStore to delete file for SDK >= 29, generated names are unique
             String [] selectionArgs = new String[] {(file.getName())};
             ContentResolver contentResolver = context.getContentResolver();
-            String where = MediaStore.Images.Media._ID + "=?";
-            Uri filesUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-            contentResolver.delete(filesUri, where, selectionArgs);
-            return file.exists();
+            String where = MediaStore.MediaColumns.DISPLAY_NAME + "=?";
+            Uri filesUri = MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL);
+            return contentResolver.delete(filesUri, where, selectionArgs) > 0;
         }else{
             // Old external storage file deletion process
             return (!file.isFile() || (file.isFile() && file.exists() && file.delete()));
@@ -370,12 +653,191 @@ public class TravManager {
     }
 
     /**
-     * Converts bytes array to Bitmap
-     * @param b  bytes array
-     * @return   Bitmap
+     * Deletes captured media using the sink which stored it, no MediaStore lookup is needed
+     * @param media  media to be deleted
+     * @return       is media deleted
+     */
+    public boolean deleteMedia(@NonNull CapturedMedia media){
+        if(mReviewCache != null) mReviewCache.remove(media);
+        if(mUploadQueue != null) mUploadQueue.cancel(media.getUri().toString());
+        if(media.getType() == ScopedFileType.VIDEO) deleteSidecar(media.getUri().toString(), media.getDisplayName());
+        getCaptureIndex().remove(Collections.singletonList(media.getUri().toString()));
+        return media.getSink().delete(media);
+    }
+
+    /**
+     * @return index of captures stored by TravCam, loaded on first call
      */
-    private static Bitmap byteToBitmap(byte[] b) {
-        return (b == null || b.length == 0) ? null : BitmapFactory.decodeByteArray(b, 0, b.length);
+    public synchronized CaptureIndex getCaptureIndex(){
+        if(mCaptureIndex == null){
+            mCaptureIndex = new CaptureIndex(new File(context.getFilesDir(), CAPTURE_INDEX_FILE));
+            mCaptureIndex.load();
+            Log.d(TAG, "Capture index loaded, entries: "+mCaptureIndex.size()+", ms: "+mCaptureIndex.getLoadNanos() / 1_000_000f);
+        }
+        return mCaptureIndex;
+    }
+
+    /**
+     * Enforces storage budgets of indexed captures, no limit is set by default
+     * Free space is measured on the primary external volume, where captures are stored
+     * @return storage governor
+     */
+    public synchronized StorageGovernor getStorageGovernor(){
+        if(mStorageGovernor == null){
+            final File externalDir = context.getExternalFilesDir(null);
+            final File volume = externalDir != null ? externalDir : context.getFilesDir();
+            mStorageGovernor = new StorageGovernor(getCaptureIndex(), volume::getUsableSpace, this::deleteCaptures);
+        }
+        return mStorageGovernor;
+    }
+
+    /**
+     * Deletes all indexed captures of a type
+     * @param type  media type, null for all types
+     * @return      deleted captures count
+     */
+    public int deleteCaptures(ScopedFileType type){
+        return deleteCaptures(getCaptureIndex().entries(type));
+    }
+
+    /**
+     * Deletes indexed captures, MediaStore entries are deleted in a single batch
+     * @param entries  index entries
+     * @return         deleted captures count
+     */
+    public int deleteCaptures(@NonNull List<CaptureIndex.Entry> entries){
+        final List<Uri> contentUris = new ArrayList<>();
+        final List<String> removed = new ArrayList<>(entries.size());
+        int deleted = 0;
+        for(CaptureIndex.Entry entry : entries){
+            final Uri uri = Uri.parse(entry.uri);
+            removed.add(entry.uri);
+            if(mUploadQueue != null) mUploadQueue.cancel(entry.uri);
+            if(entry.type == ScopedFileType.VIDEO) deleteSidecar(entry.uri, entry.displayName);
+            if(ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())){
+                contentUris.add(uri);
+            }else if(uri.getPath() != null){
+                final File file = new File(uri.getPath());
+                if(!file.exists() || file.delete()) deleted++;
+            }
+        }
+
+        if(!contentUris.isEmpty()){
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q){
+                deleted += getPublisher().delete(contentUris);
+            }else{
+                for(Uri uri : contentUris) deleted += context.getContentResolver().delete(uri, null, null);
+            }
+        }
+
+        if(mReviewCache != null) mReviewCache.clear();
+        getCaptureIndex().remove(removed);
+        return deleted;
+    }
+
+    /**
+     * Uploads captures stored from now on, recordings are uploaded while being recorded
+     * Unfinished uploads of previous sessions are resumed
+     * @param urls         upload URLs of captures
+     * @param parallelism  concurrent uploads
+     * @return             upload queue
+     */
+    public synchronized UploadQueue enableUploads(@NonNull UploadQueue.UrlProvider urls, int parallelism){
+        mUploadUrls = urls;
+        if(mUploadQueue == null){
+            final ContentResolver resolver = context.getContentResolver();
+            mUploadQueue = new UploadQueue(new File(context.getFilesDir(), UPLOAD_QUEUE_FILE),
+                    uri -> new DescriptorSource(resolver, Uri.parse(uri)), parallelism);
+            final UploadQueue queue = mUploadQueue;
+            getIoExecutor().execute(queue::start);
+        }
+        return mUploadQueue;
+    }
+
+    /**
+     * Stops queuing new captures, queued uploads keep running
+     */
+    public synchronized void disableUploads(){
+        mUploadUrls = null;
+    }
+
+    /** @return upload queue, null until uploads are enabled **/
+    public synchronized UploadQueue getUploadQueue(){
+        return mUploadQueue;
+    }
+
+    private synchronized void enqueueUpload(@NonNull CapturedMedia media, boolean live){
+        // Media without Uri can't be read back
+        if(mUploadUrls == null || Uri.EMPTY.equals(media.getUri())) return;
+        final URL url = mUploadUrls.urlFor(media);
+        if(url == null) return;
+        if(live){
+            mUploadQueue.enqueueLive(media.getUri().toString(), url, media.getMimeType());
+        }else{
+            mUploadQueue.enqueue(media.getUri().toString(), url, media.getMimeType(), media.getSize());
+        }
+    }
+
+    private void deleteSidecar(@NonNull String uri, @NonNull String displayName){
+        final File sidecar = getMetadataSidecar(uri, displayName);
+        if(sidecar.exists() && !sidecar.delete()) Log.d(TAG, "Couldn't delete "+sidecar);
+    }
+
+    /**
+     * Review API, decodes captures at their displayed size instead of full resolution
+     * Recent captures are kept in memory, review and retake cycles don't read storage again
+     * @return shared review cache
+     */
+    public synchronized MediaReviewCache getReviewCache(){
+        if(mReviewCache == null){
+            final MemoryGovernor governor = getMemoryGovernor();
+            final MediaReviewCache cache = new MediaReviewCache(context.getContentResolver(),
+                    toIntBytes(governor.getBudget(MemoryGovernor.Kind.REVIEW_CACHE)));
+            governor.register(MemoryGovernor.Kind.REVIEW_CACHE, new MemoryGovernor.Consumer() {
+                @Override
+                public long getUsedBytes() {
+                    return cache.getUsedBytes() + cache.getReusePoolBytes();
+                }
+
+                @Override
+                public void onBudget(long budgetBytes) {
+                    cache.setBudget(toIntBytes(budgetBytes));
+                }
+            });
+            mReviewCache = cache;
+        }
+        return mReviewCache;
+    }
+
+    /**
+     * Memory budgets of image readers, frame rings, review cache and processing buffers
+     * Budgets shrink with {@link MemoryGovernor#onTrimMemory(int)}
+     * @return shared memory governor
+     */
+    public synchronized MemoryGovernor getMemoryGovernor(){
+        if(mMemoryGovernor == null){
+            mMemoryGovernor = MemoryGovernor.forContext(context);
+
+            // Remux buffer is only touched on the I/O executor, it is dropped there
+            mMemoryGovernor.register(MemoryGovernor.Kind.PROCESSING_BUFFERS, new MemoryGovernor.Consumer() {
+                @Override
+                public long getUsedBytes() {
+                    final MediaRemuxer remuxer = mRemuxer;
+                    return remuxer != null ? remuxer.getBufferBytes() : 0;
+                }
+
+                @Override
+                public void onBudget(long budgetBytes) {
+                    final MediaRemuxer remuxer = mRemuxer;
+                    if(remuxer != null && remuxer.getBufferBytes() > budgetBytes) getIoExecutor().execute(remuxer::releaseBuffer);
+                }
+            });
+        }
+        return mMemoryGovernor;
+    }
+
+    private static int toIntBytes(long bytes){
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
     }
 
     /**
@@ -383,13 +845,209 @@ public class TravManager {
      * @param image  file to be converted
      * @return       converted bytes array
      */
-    private byte[] imageToBytes(Image image){
+    static byte[] imageToBytes(Image image){
         final ByteBuffer buffer = image.getPlanes()[0].getBuffer();
         final byte[] bytes = new byte[buffer.remaining()];
         buffer.get(bytes);
         return bytes;
     }
 
+    /**
+     * Converts YUV_420_888 android.media.Image to JPEG bytes
+     * Uses {@link YuvJpegEncoder} to encode image strips in parallel straight from image planes
+     * @param image  YUV_420_888 image
+     * @return       JPEG bytes
+     */
+    byte[] yuvImageToJpeg(Image image) throws IOException{
+        final Image.Plane[] planes = image.getPlanes();
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 4);
+        final YuvJpegEncoder encoder = getYuvJpegEncoder();
+        encoder.encode(planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), bos);
+        Log.d(TAG, "YUV encode ms: "+encoder.getLastEncodeNanos() / 1_000_000f+", MP/s: "+encoder.getMegapixelsPerSecond());
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return shared YUV encoder, keeps its strip buffers between captures
+     */
+    public static synchronized YuvJpegEncoder getYuvJpegEncoder(){
+        if(sYuvJpegEncoder == null) sYuvJpegEncoder = new YuvJpegEncoder(JPEG_QUALITY);
+        return sYuvJpegEncoder;
+    }
+
+    // ===========================================================================================
+    // ===================================== Still Format ========================================
+    // ===========================================================================================
+    /**
+     * Selects format used for storing stills, HEIC falls back to JPEG where it isn't supported
+     * @param format  wanted format
+     */
+    public TravManager setStillFormat(@NonNull StillFormat format){
+        mStillFormat = format;
+        return this;
+    }
+
+    /**
+     * @return format that will actually be used for the next still
+     */
+    public StillFormat getEffectiveStillFormat(){
+        if(mStillFormat == StillFormat.HEIC && !isHeicSupported()) return StillFormat.JPEG;
+        return mStillFormat;
+    }
+
+    /**
+     * HEIC requires {@link HeifWriter} (SDK 28+) and an HEVC encoder
+     * @return is HEIC encoding available on this device
+     */
+    public static synchronized boolean isHeicSupported(){
+        if(sHeicSupported == null){
+            sHeicSupported = false;
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.P){
+                for(MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()){
+                    if(!info.isEncoder()) continue;
+                    for(String type : info.getSupportedTypes()){
+                        if(type.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_HEVC) || type.equalsIgnoreCase(MIME_HEIC_IMAGE)){
+                            sHeicSupported = true;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return sHeicSupported;
+    }
+
+    /**
+     * @param format  still format
+     * @return        write time and size measurements of stills stored in that format
+     */
+    public WriteStats getStillWriteStats(@NonNull StillFormat format){
+        return mStillWriteStats.get(format);
+    }
+
+    private void recordStillWrite(StillFormat format, StorageSink sink, long bytes, long nanos){
+        mStillWriteStats.get(format).record(bytes, nanos);
+        WriteStats sinkStats = mSinkWriteStats.get(sink);
+        if(sinkStats == null){
+            sinkStats = new WriteStats();
+            mSinkWriteStats.put(sink, sinkStats);
+        }
+        sinkStats.record(bytes, nanos);
+        Log.d(TAG, format+" still written to "+sink.getClass().getSimpleName()+", KB: "+bytes / 1024+", ms: "+nanos / 1_000_000f);
+    }
+
+    /**
+     * Output formats for stills
+     */
+    public enum StillFormat{
+        JPEG(EXT_JPG, "image/jpeg"),
+        HEIC(EXT_HEIC, "image/heic");
+
+        private final String extension, mimeType;
+
+        StillFormat(String extension, String mimeType){
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+
+    /**
+     * Accumulated write measurements
+     */
+    public static class WriteStats{
+        private long mCount, mTotalBytes, mTotalNanos;
+
+        synchronized void record(long bytes, long nanos){
+            mCount++;
+            mTotalBytes += bytes;
+            mTotalNanos += nanos;
+        }
+
+        /** @return written files count **/
+        public synchronized long getCount(){
+            return mCount;
+        }
+
+        /** @return written bytes **/
+        public synchronized long getTotalBytes(){
+            return mTotalBytes;
+        }
+
+        /** @return average file size in bytes **/
+        public synchronized long getAverageBytes(){
+            return mCount == 0 ? 0 : mTotalBytes / mCount;
+        }
+
+        /** @return average write time in milliseconds **/
+        public synchronized float getAverageWriteMillis(){
+            return mCount == 0 ? 0 : mTotalNanos / 1_000_000f / mCount;
+        }
+    }
+
+    /**
+     * Reads captures through their descriptor, length follows a growing recording
+     */
+    private static class DescriptorSource implements UploadQueue.Source{
+        private final ParcelFileDescriptor mDescriptor;
+        private final FileInputStream mStream;
+
+        DescriptorSource(ContentResolver resolver, Uri uri) throws IOException{
+            mDescriptor = resolver.openFileDescriptor(uri, "r");
+            if(mDescriptor == null) throw new IOException("Couldn't open "+uri);
+            mStream = new FileInputStream(mDescriptor.getFileDescriptor());
+        }
+
+        @Override
+        public long length(){
+            return mDescriptor.getStatSize();
+        }
+
+        @Override
+        public int read(long position, @NonNull byte[] buffer, int offset, int count) throws IOException{
+            return mStream.getChannel().read(ByteBuffer.wrap(buffer, offset, count), position);
+        }
+
+        @Override
+        public void close() throws IOException{
+            mStream.close();
+            mDescriptor.close();
+        }
+    }
+
+    /**
+     * Copies written bytes to a second stream
+     */
+    private static class TeeOutputStream extends FilterOutputStream{
+        private final OutputStream mCopy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy){
+            super(out);
+            mCopy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCopy.write(b);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCopy.write(b, off, len);
+        }
+    }
+
     /**
      * File type enum
      */
@@ -424,5 +1082,23 @@ public class TravManager {
     public interface ScopedFileManagerCallbacks{
         void onFileCreated(File file);
         void onError(String message);
+
+        /**
+         * Preferred callback, legacy {@link #onFileCreated(File)} is only called
+         * by this default implementation, resolving the file lazily
+         */
+        default void onMediaCreated(@NonNull CapturedMedia media){
+            onFileCreated(media.getFile());
+        }
+    }
+
+    /**
+     * Trim and concat listener, called on {@link #getIoExecutor()}
+     */
+    public interface RemuxCallbacks{
+        /** @param progress  0 to 1 **/
+        default void onProgress(float progress){}
+        void onRemuxed(@NonNull CapturedMedia media);
+        void onError(String message);
     }
 }
\ No newline at end of file
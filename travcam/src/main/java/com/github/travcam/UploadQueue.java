@@ -0,0 +1,477 @@
+package com.github.travcam;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent queue uploading captures in resumable chunks
+ *
+ * Every chunk is sent as an HTTP PUT to the job URL with a Content-Range header,
+ * "bytes first-last/total", total is "*" while a recording is still growing.
+ * The server stores ranges at their offsets and replies 2xx, or 308 for partial uploads.
+ *
+ * Recordings are uploaded while they are recorded. Recorders rewrite the file head when they stop,
+ * so the first {@link #mHeadHoldbackBytes} bytes are only sent once the recording is complete.
+ *
+ * Jobs and their offsets are persisted after every chunk, {@link #start()} resumes them after process death.
+ * Uploads run on {@link #mParallelism} threads sharing a bandwidth cap, failed chunks are retried
+ * with exponential backoff.
+ */
+public class UploadQueue {
+    private final static String TAG = "UploadQueue";
+
+    /** Chunk size **/
+    private final static int CHUNK_BYTES = 1024 * 1024;
+
+    /** Growing recordings are polled at this interval **/
+    private final static long LIVE_POLL_MS = 500;
+
+    /** Chunk retries before a job is parked until next {@link #start()} **/
+    private final static int MAX_RETRIES = 5;
+    private final static long RETRY_BASE_MS = 1000;
+
+    private final static int CONNECT_TIMEOUT_MS = 15000;
+    private final static int READ_TIMEOUT_MS = 30000;
+
+    private final File mStateFile;
+    private final SourceOpener mOpener;
+    private final int mParallelism;
+    private final ExecutorService mWorkers;
+
+    /** Jobs by media Uri, in enqueue order **/
+    private final LinkedHashMap<String, Job> mJobs = new LinkedHashMap<>();
+
+    /** Limits **/
+    private long mBytesPerSecond;
+    private long mHeadHoldbackBytes = 4 * 1024 * 1024;
+
+    /** Shared bandwidth token bucket **/
+    private double mTokens;
+    private long mLastRefillNanos = System.nanoTime();
+
+    /** Measurements **/
+    private long mUploadedBytes, mUploadNanos, mRetries, mCompleted, mFailed;
+
+    /**
+     * @param stateFile    persisted jobs
+     * @param opener       opens captured media for reading
+     * @param parallelism  concurrent uploads
+     */
+    public UploadQueue(@NonNull File stateFile, @NonNull SourceOpener opener, int parallelism){
+        mStateFile = stateFile;
+        mOpener = opener;
+        mParallelism = Math.max(1, parallelism);
+        mWorkers = Executors.newFixedThreadPool(mParallelism, runnable -> {
+            final Thread thread = new Thread(runnable, "UploadQueue");
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param bytesPerSecond  upload cap shared by all uploads, 0 or less removes it
+     */
+    public synchronized UploadQueue setBandwidthCap(long bytesPerSecond){
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        return this;
+    }
+
+    /**
+     * @param bytes  recording head size sent only after the recording is complete
+     */
+    public synchronized UploadQueue setHeadHoldback(long bytes){
+        mHeadHoldbackBytes = Math.max(0, bytes);
+        return this;
+    }
+
+    /**
+     * Loads persisted jobs and resumes unfinished ones
+     * Recordings interrupted by process death are uploaded as they are
+     */
+    public synchronized void start(){
+        if(mStateFile.exists()){
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStateFile)))) {
+                final int count = in.readInt();
+                for(int i = 0; i < count; i++){
+                    final Job job = Job.read(in);
+                    if(job.length < 0) job.length = currentLength(job);
+                    if(!mJobs.containsKey(job.uri)) mJobs.put(job.uri, job);
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Queue load exception: "+e.getMessage());
+            }
+        }
+        for(Job job : mJobs.values()){
+            if(!job.running) submit(job);
+        }
+    }
+
+    /**
+     * Uploads a complete capture
+     * @param uri        media Uri
+     * @param url        upload URL of the media
+     * @param mimeType   media mime type
+     * @param length     media size in bytes
+     */
+    public synchronized void enqueue(@NonNull String uri, @NonNull URL url, @NonNull String mimeType, long length){
+        if(mJobs.containsKey(uri)) return;
+        final Job job = new Job(uri, url.toString(), mimeType, length, 0, 0);
+        mJobs.put(uri, job);
+        persist();
+        submit(job);
+    }
+
+    /**
+     * Starts uploading a recording while it is recorded, {@link #complete(String, long)} must follow
+     * @param uri        media Uri
+     * @param url        upload URL of the media
+     * @param mimeType   media mime type
+     */
+    public synchronized void enqueueLive(@NonNull String uri, @NonNull URL url, @NonNull String mimeType){
+        if(mJobs.containsKey(uri)) return;
+        final Job job = new Job(uri, url.toString(), mimeType, -1, mHeadHoldbackBytes, mHeadHoldbackBytes);
+        mJobs.put(uri, job);
+        persist();
+        submit(job);
+    }
+
+    /**
+     * Marks a live recording complete, remaining bytes and its head are uploaded
+     * @param uri     media Uri
+     * @param length  final size in bytes
+     */
+    public synchronized void complete(@NonNull String uri, long length){
+        final Job job = mJobs.get(uri);
+        if(job == null) return;
+        job.length = length;
+        persist();
+        notifyAll();
+    }
+
+    /**
+     * Drops a job, like when its media is deleted
+     */
+    public synchronized void cancel(@NonNull String uri){
+        final Job job = mJobs.remove(uri);
+        if(job != null){
+            job.cancelled = true;
+            persist();
+            notifyAll();
+        }
+    }
+
+    private void submit(Job job){
+        job.running = true;
+        mWorkers.execute(() -> run(job));
+    }
+
+    /**
+     * Uploads a job chunk by chunk, runs on a worker thread
+     */
+    private void run(Job job){
+        final byte[] chunk = new byte[CHUNK_BYTES];
+        try {
+            while(!job.cancelled){
+                final long length;
+                synchronized (this){
+                    length = job.length;
+                }
+                final boolean live = length < 0;
+                final long available = live ? currentLength(job) : length;
+
+                if(job.offset < available && (!live || available - job.offset >= CHUNK_BYTES)){
+                    // Next body chunk
+                    final int count = (int) Math.min(CHUNK_BYTES, available - job.offset);
+                    sendWithRetries(job, job.offset, count, length, chunk);
+                    synchronized (this){
+                        job.offset += count;
+                        persist();
+                    }
+                }else if(live){
+                    synchronized (this){
+                        if(job.length < 0 && !job.cancelled) wait(LIVE_POLL_MS);
+                    }
+                }else if(job.headPending){
+                    // Head rewritten by the recorder, sent once complete
+                    final long headEnd = Math.min(job.headLength, length);
+                    while(job.headOffset < headEnd && !job.cancelled){
+                        final int count = (int) Math.min(CHUNK_BYTES, headEnd - job.headOffset);
+                        sendWithRetries(job, job.headOffset, count, length, chunk);
+                        synchronized (this){
+                            job.headOffset += count;
+                            persist();
+                        }
+                    }
+                    synchronized (this){
+                        job.headPending = false;
+                        persist();
+                    }
+                }else{
+                    break;
+                }
+            }
+
+            synchronized (this){
+                if(!job.cancelled){
+                    mJobs.remove(job.uri);
+                    mCompleted++;
+                    persist();
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Upload parked: "+job.uri+", "+e.getMessage());
+            synchronized (this){
+                mFailed++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this){
+                job.running = false;
+            }
+        }
+    }
+
+    private void sendWithRetries(Job job, long offset, int count, long total, byte[] chunk) throws IOException, InterruptedException{
+        for(int attempt = 0; ; attempt++){
+            try {
+                readFully(job, offset, chunk, count);
+                acquireBandwidth(count);
+                final long start = System.nanoTime();
+                send(job, offset, count, total, chunk);
+                synchronized (this){
+                    mUploadedBytes += count;
+                    mUploadNanos += System.nanoTime() - start;
+                }
+                return;
+            } catch (IOException e) {
+                if(attempt + 1 >= MAX_RETRIES) throw e;
+                synchronized (this){
+                    mRetries++;
+                }
+                Thread.sleep(RETRY_BASE_MS << attempt);
+            }
+        }
+    }
+
+    private void send(Job job, long offset, int count, long total, byte[] chunk) throws IOException{
+        final HttpURLConnection connection = (HttpURLConnection) new URL(job.url).openConnection();
+        try {
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setFixedLengthStreamingMode(count);
+            connection.setRequestProperty("Content-Type", job.mimeType);
+            connection.setRequestProperty("Content-Range", "bytes " + offset + "-" + (offset + count - 1) + "/" + (total < 0 ? "*" : total));
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(chunk, 0, count);
+            }
+
+            final int code = connection.getResponseCode();
+            if(code != 308 && (code < 200 || code >= 300)) throw new IOException("Upload response: "+code);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void readFully(Job job, long offset, byte[] chunk, int count) throws IOException{
+        try (Source source = mOpener.open(job.uri)) {
+            int read = 0;
+            while(read < count){
+                final int n = source.read(offset + read, chunk, read, count - read);
+                if(n < 0) throw new IOException("Unexpected end of media.");
+                read += n;
+            }
+        }
+    }
+
+    private long currentLength(Job job){
+        try (Source source = mOpener.open(job.uri)) {
+            return source.length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Blocks until the bandwidth cap allows sending bytes
+     */
+    private void acquireBandwidth(int bytes) throws InterruptedException{
+        while(true){
+            final long sleepMs;
+            synchronized (this){
+                if(mBytesPerSecond <= 0) return;
+                final long now = System.nanoTime();
+                mTokens = Math.min(mBytesPerSecond, mTokens + (now - mLastRefillNanos) * mBytesPerSecond / 1e9);
+                mLastRefillNanos = now;
+
+                // Chunks larger than the bucket go through once it is full
+                final double needed = Math.min(bytes, mBytesPerSecond);
+                if(mTokens >= needed){
+                    mTokens -= needed;
+                    return;
+                }
+                sleepMs = (long) Math.ceil((needed - mTokens) * 1000 / mBytesPerSecond);
+            }
+            Thread.sleep(Math.max(1, sleepMs));
+        }
+    }
+
+    /**
+     * Writes all jobs, replacing the state file atomically
+     */
+    private void persist(){
+        final File temp = new File(mStateFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(mJobs.size());
+            for(Job job : mJobs.values()) job.write(out);
+        } catch (IOException e) {
+            Log.d(TAG, "Queue persist exception: "+e.getMessage());
+            return;
+        }
+        if(!temp.renameTo(mStateFile)) Log.d(TAG, "Couldn't replace queue state.");
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return unfinished jobs count **/
+    public synchronized int getQueueDepth(){
+        return mJobs.size();
+    }
+
+    /** @return uploaded bytes **/
+    public synchronized long getUploadedBytes(){
+        return mUploadedBytes;
+    }
+
+    /** @return average upload throughput in bytes per second, per concurrent upload **/
+    public synchronized long getThroughputBytesPerSecond(){
+        return mUploadNanos == 0 ? 0 : (long) (mUploadedBytes * 1e9 / mUploadNanos);
+    }
+
+    /** @return retried chunks count **/
+    public synchronized long getRetries(){
+        return mRetries;
+    }
+
+    /** @return completed jobs count **/
+    public synchronized long getCompletedCount(){
+        return mCompleted;
+    }
+
+    /** @return jobs parked after exhausting retries **/
+    public synchronized long getFailedCount(){
+        return mFailed;
+    }
+
+    /**
+     * Upload job, offsets are persisted
+     */
+    private static class Job{
+        final String uri, url, mimeType;
+        final long headLength;
+
+        /** Final length, -1 while recording **/
+        long length;
+
+        /** Next body byte to send and next head byte to send **/
+        long offset, headOffset;
+        boolean headPending;
+
+        /** Runtime state, not persisted **/
+        boolean running, cancelled;
+
+        /**
+         * @param headLength  recording head held back until complete, 0 for complete captures
+         */
+        Job(String uri, String url, String mimeType, long length, long offset, long headLength){
+            this.uri = uri;
+            this.url = url;
+            this.mimeType = mimeType;
+            this.length = length;
+            this.offset = offset;
+            this.headLength = headLength;
+            this.headPending = headLength > 0;
+        }
+
+        void write(DataOutputStream out) throws IOException{
+            out.writeUTF(uri);
+            out.writeUTF(url);
+            out.writeUTF(mimeType);
+            out.writeLong(length);
+            out.writeLong(offset);
+            out.writeBoolean(headPending);
+            out.writeLong(headOffset);
+            out.writeLong(headLength);
+        }
+
+        static Job read(DataInputStream in) throws IOException{
+            final String uri = in.readUTF(), url = in.readUTF(), mimeType = in.readUTF();
+            final long length = in.readLong(), offset = in.readLong();
+            final boolean headPending = in.readBoolean();
+            final long headOffset = in.readLong(), headLength = in.readLong();
+
+            // Head length is persisted, the body offset moved past it
+            final Job job = new Job(uri, url, mimeType, length, offset, headLength);
+            job.headPending = headPending;
+            job.headOffset = headOffset;
+            return job;
+        }
+    }
+
+    /**
+     * Opens captured media for reading
+     */
+    public interface SourceOpener{
+        @NonNull
+        Source open(@NonNull String uri) throws IOException;
+    }
+
+    /**
+     * Random access view of captured media
+     */
+    public interface Source extends Closeable{
+        /** @return current length, grows while recording **/
+        long length() throws IOException;
+
+        /** @return bytes read, -1 at end **/
+        int read(long position, @NonNull byte[] buffer, int offset, int count) throws IOException;
+    }
+
+    /**
+     * Provides upload URLs of captures
+     */
+    public interface UrlProvider{
+        /**
+         * @param media  captured media
+         * @return       upload URL, null to skip the media
+         */
+        @Nullable
+        URL urlFor(@NonNull CapturedMedia media);
+    }
+}
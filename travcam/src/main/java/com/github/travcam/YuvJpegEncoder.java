@@ -0,0 +1,594 @@
+package com.github.travcam;
+
+import androidx.annotation.NonNull;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Pure Java multi-core baseline JPEG encoder for YUV_420 frames
+ * Used to encode YUV sourced stills (zero shutter lag frames, merged frames) without
+ * converting them to an ARGB Bitmap first.
+ *
+ * The frame is split into horizontal strips of whole MCU rows, every strip is entropy coded
+ * independently on a {@link ForkJoinPool} sized to the big CPU cores. Strips are joined using
+ * JPEG restart markers, so the output is a single standard baseline JPEG.
+ *
+ * Strip encoders and their output buffers are kept between calls, so encoding frames of the
+ * same size does not allocate beside the returned bytes. Encoder is not reentrant, calls are serialized.
+ */
+public class YuvJpegEncoder {
+    /** Natural order index of every zigzag position **/
+    private final static int[] ZIGZAG = {
+            0,  1,  8, 16,  9,  2,  3, 10, 17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /** Standard quantization tables in natural order **/
+    private final static int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16,  24,  40,  51,  61,
+            12, 12, 14, 19,  26,  58,  60,  55,
+            14, 13, 16, 24,  40,  57,  69,  56,
+            14, 17, 22, 29,  51,  87,  80,  62,
+            18, 22, 37, 56,  68, 109, 103,  77,
+            24, 35, 55, 64,  81, 104, 113,  92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103,  99
+    };
+    private final static int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    /** Standard Huffman tables, code counts per length (1-16) followed by symbols **/
+    private final static int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private final static int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private final static int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private final static int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private final static int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private final static int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private final static int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private final static int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    /** AAN DCT scale factors **/
+    private final static double[] AAN_SCALES = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    /** Huffman codes and code lengths indexed by symbol **/
+    private final static int[][] DC_LUMINANCE = buildHuffman(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private final static int[][] DC_CHROMINANCE = buildHuffman(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private final static int[][] AC_LUMINANCE = buildHuffman(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private final static int[][] AC_CHROMINANCE = buildHuffman(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    /** Max MCUs in a restart interval, DRI is 16 bits **/
+    private final static int MAX_RESTART_INTERVAL = 0xFFFF;
+
+    /** Shared pool sized to big cores **/
+    private static ForkJoinPool sPool;
+
+    /** Encoding quality 1-100 **/
+    private final int mQuality;
+
+    /** Quantization tables in natural order and their DCT divisors **/
+    private final int[] mLuminanceQuant = new int[64], mChrominanceQuant = new int[64];
+    private final float[] mLuminanceDivisors = new float[64], mChrominanceDivisors = new float[64];
+
+    /** Reusable strip encoders, grown when needed **/
+    private final List<StripEncoder> mStrips = new ArrayList<>();
+
+    /** Measurements **/
+    private long mLastEncodeNanos, mLastPixels, mTotalEncodeNanos, mTotalPixels;
+
+    /**
+     * @param quality  JPEG quality 1-100
+     */
+    public YuvJpegEncoder(int quality){
+        mQuality = Math.max(1, Math.min(100, quality));
+        final int scale = mQuality < 50 ? 5000 / mQuality : 200 - mQuality * 2;
+        for(int i = 0; i < 64; i++){
+            mLuminanceQuant[i] = Math.max(1, Math.min(255, (LUMINANCE_QUANT[i] * scale + 50) / 100));
+            mChrominanceQuant[i] = Math.max(1, Math.min(255, (CHROMINANCE_QUANT[i] * scale + 50) / 100));
+        }
+        for(int row = 0; row < 8; row++){
+            for(int col = 0; col < 8; col++){
+                final int i = row * 8 + col;
+                final double aan = AAN_SCALES[row] * AAN_SCALES[col] * 8.0;
+                mLuminanceDivisors[i] = (float) (1.0 / (mLuminanceQuant[i] * aan));
+                mChrominanceDivisors[i] = (float) (1.0 / (mChrominanceQuant[i] * aan));
+            }
+        }
+    }
+
+
+
+
+    // ===========================================================================================
+    // ======================================= Encoding ==========================================
+    // ===========================================================================================
+    /**
+     * Encodes a packed I420 frame, used for frames kept in memory and benchmarks
+     * @param i420    Y plane followed by U and V planes of (width+1)/2 x (height+1)/2
+     * @param width   frame width
+     * @param height  frame height
+     * @return        JPEG bytes
+     */
+    public byte[] encode(@NonNull byte[] i420, int width, int height) throws IOException{
+        final int chromaWidth = (width + 1) / 2, chromaHeight = (height + 1) / 2;
+        final int ySize = width * height, uvSize = chromaWidth * chromaHeight;
+        final ByteBuffer buffer = ByteBuffer.wrap(i420);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(ySize / 4);
+        encode(buffer, width, 1,
+                slice(buffer, ySize, uvSize), slice(buffer, ySize + uvSize, uvSize), chromaWidth, 1,
+                width, height, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes YUV_420 planes as delivered by {@link android.media.Image#getPlanes()}
+     * Planes are only read using absolute gets, so their positions are left untouched
+     * @param y                Y plane
+     * @param yRowStride       Y row stride
+     * @param yPixelStride     Y pixel stride
+     * @param u                U plane
+     * @param v                V plane
+     * @param uvRowStride      chroma row stride
+     * @param uvPixelStride    chroma pixel stride
+     * @param width            frame width
+     * @param height           frame height
+     * @param out              JPEG output
+     */
+    public synchronized void encode(@NonNull ByteBuffer y, int yRowStride, int yPixelStride,
+                                    @NonNull ByteBuffer u, @NonNull ByteBuffer v, int uvRowStride, int uvPixelStride,
+                                    int width, int height, @NonNull OutputStream out) throws IOException{
+        final long start = System.nanoTime();
+        final Frame frame = new Frame(y, yRowStride, yPixelStride, u, v, uvRowStride, uvPixelStride, width, height);
+
+        // Split MCU rows into strips, a few strips per worker to balance uneven content
+        final int mcusPerRow = (width + 15) / 16, mcuRows = (height + 15) / 16;
+        final ForkJoinPool pool = getPool();
+        int rowsPerStrip = Math.max(1, (mcuRows + pool.getParallelism() * 2 - 1) / (pool.getParallelism() * 2));
+        rowsPerStrip = Math.min(rowsPerStrip, Math.max(1, MAX_RESTART_INTERVAL / mcusPerRow));
+        final int stripsCount = (mcuRows + rowsPerStrip - 1) / rowsPerStrip;
+
+        while (mStrips.size() < stripsCount) mStrips.add(new StripEncoder());
+        final List<StripEncoder> strips = mStrips.subList(0, stripsCount);
+        for(int i = 0; i < stripsCount; i++){
+            strips.get(i).prepare(frame, i * rowsPerStrip, Math.min(mcuRows, (i + 1) * rowsPerStrip));
+        }
+
+        // Encode strips in parallel
+        try {
+            for(Future<Void> future : pool.invokeAll(strips)) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("JPEG encoding interrupted!");
+        } catch (ExecutionException e) {
+            throw new IOException("JPEG encoding failed: "+e.getCause());
+        }
+
+        // Join strips with restart markers
+        writeHeaders(out, width, height, stripsCount > 1 ? rowsPerStrip * mcusPerRow : 0);
+        for(int i = 0; i < stripsCount; i++){
+            final StripEncoder strip = strips.get(i);
+            out.write(strip.mOutput, 0, strip.mLength);
+            if(i < stripsCount - 1){
+                out.write(0xFF);
+                out.write(0xD0 + (i & 7));
+            }
+        }
+        out.write(0xFF);
+        out.write(0xD9);
+
+        // Measurements
+        mLastEncodeNanos = System.nanoTime() - start;
+        mLastPixels = (long) width * height;
+        mTotalEncodeNanos += mLastEncodeNanos;
+        mTotalPixels += mLastPixels;
+    }
+
+    /**
+     * Writes SOI, JFIF, quantization, frame, Huffman, restart interval and scan headers
+     */
+    private void writeHeaders(OutputStream out, int width, int height, int restartInterval) throws IOException{
+        // SOI + APP0 JFIF
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        // DQT
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xDB, 0, (byte) 132});
+        out.write(0);
+        for(int i = 0; i < 64; i++) out.write(mLuminanceQuant[ZIGZAG[i]]);
+        out.write(1);
+        for(int i = 0; i < 64; i++) out.write(mChrominanceQuant[ZIGZAG[i]]);
+
+        // SOF0, Y sampled 2x2, Cb and Cr 1x1
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xC0, 0, 17, 8,
+                (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width, 3,
+                1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        // DHT
+        writeHuffmanTable(out, 0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(out, 0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(out, 0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(out, 0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        // DRI
+        if(restartInterval > 0){
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xDD, 0, 4, (byte) (restartInterval >> 8), (byte) restartInterval});
+        }
+
+        // SOS
+        out.write(new byte[]{(byte) 0xFF, (byte) 0xDA, 0, 12, 3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private static void writeHuffmanTable(OutputStream out, int classAndId, int[] bits, int[] values) throws IOException{
+        final int length = 2 + 1 + 16 + values.length;
+        out.write(0xFF);
+        out.write(0xC4);
+        out.write(length >> 8);
+        out.write(length);
+        out.write(classAndId);
+        for(int count : bits) out.write(count);
+        for(int value : values) out.write(value);
+    }
+
+    /**
+     * @return [codes, lengths] arrays indexed by symbol
+     */
+    private static int[][] buildHuffman(int[] bits, int[] values){
+        final int[] codes = new int[256], lengths = new int[256];
+        int code = 0, k = 0;
+        for(int length = 1; length <= 16; length++){
+            for(int i = 0; i < bits[length - 1]; i++){
+                codes[values[k]] = code++;
+                lengths[values[k]] = length;
+                k++;
+            }
+            code <<= 1;
+        }
+        return new int[][]{codes, lengths};
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length){
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.limit(offset + length);
+        return duplicate.slice();
+    }
+
+
+
+
+    // ===========================================================================================
+    // ======================================== Threads ==========================================
+    // ===========================================================================================
+    /**
+     * @return shared pool, parallelism matches big cores count
+     */
+    static synchronized ForkJoinPool getPool(){
+        if(sPool == null) sPool = new ForkJoinPool(bigCoresCount());
+        return sPool;
+    }
+
+    /**
+     * Counts cores whose max frequency is above the slowest cluster
+     * Falls back to all available processors when frequencies can't be read or all are equal
+     */
+    static int bigCoresCount(){
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final long[] frequencies = new long[processors];
+        long min = Long.MAX_VALUE;
+        for(int i = 0; i < processors; i++){
+            frequencies[i] = readMaxFrequency(i);
+            if(frequencies[i] <= 0) return processors;
+            min = Math.min(min, frequencies[i]);
+        }
+
+        int big = 0;
+        for(long frequency : frequencies) if(frequency > min) big++;
+        return big == 0 ? processors : big;
+    }
+
+    private static long readMaxFrequency(int cpu){
+        final File file = new File("/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/cpuinfo_max_freq");
+        try (InputStream in = new FileInputStream(file)) {
+            final byte[] buffer = new byte[32];
+            final int read = in.read(buffer);
+            return read <= 0 ? -1 : Long.parseLong(new String(buffer, 0, read, "US-ASCII").trim());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+
+
+    // ===========================================================================================
+    // ===================================== Measurements ========================================
+    // ===========================================================================================
+    /** @return last encode duration in nanoseconds **/
+    public long getLastEncodeNanos(){
+        return mLastEncodeNanos;
+    }
+
+    /** @return average throughput in megapixels per second **/
+    public double getMegapixelsPerSecond(){
+        return mTotalEncodeNanos == 0 ? 0 : mTotalPixels * 1000.0 / mTotalEncodeNanos;
+    }
+
+    /** @return encoding quality **/
+    public int getQuality(){
+        return mQuality;
+    }
+
+
+
+
+    // ===========================================================================================
+    // ======================================= Strips ============================================
+    // ===========================================================================================
+    /**
+     * Frame planes and layout shared by all strips
+     */
+    private static class Frame{
+        final ByteBuffer y, u, v;
+        final int yRowStride, yPixelStride, uvRowStride, uvPixelStride;
+        final int width, height, chromaWidth, chromaHeight;
+
+        Frame(ByteBuffer y, int yRowStride, int yPixelStride, ByteBuffer u, ByteBuffer v,
+              int uvRowStride, int uvPixelStride, int width, int height){
+            this.y = y;
+            this.u = u;
+            this.v = v;
+            this.yRowStride = yRowStride;
+            this.yPixelStride = yPixelStride;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+            this.width = width;
+            this.height = height;
+            this.chromaWidth = (width + 1) / 2;
+            this.chromaHeight = (height + 1) / 2;
+        }
+    }
+
+    /**
+     * Entropy codes a range of MCU rows into its own reusable buffer
+     * DC predictors start from zero, as required after a restart marker
+     */
+    private class StripEncoder implements Callable<Void>{
+        /** Scratch buffers **/
+        private final float[] mBlock = new float[64];
+        private final int[] mCoefficients = new int[64];
+
+        /** Output buffer, kept between encodes **/
+        private byte[] mOutput = new byte[64 * 1024];
+        private int mLength;
+
+        /** Bit writer state **/
+        private int mBitBuffer, mBitCount;
+
+        /** Current job **/
+        private Frame mFrame;
+        private int mFirstMcuRow, mEndMcuRow;
+        private int mPredictionY, mPredictionCb, mPredictionCr;
+
+        void prepare(Frame frame, int firstMcuRow, int endMcuRow){
+            mFrame = frame;
+            mFirstMcuRow = firstMcuRow;
+            mEndMcuRow = endMcuRow;
+        }
+
+        @Override
+        public Void call(){
+            mLength = 0;
+            mBitBuffer = 0;
+            mBitCount = 0;
+            mPredictionY = mPredictionCb = mPredictionCr = 0;
+
+            final Frame frame = mFrame;
+            final int mcusPerRow = (frame.width + 15) / 16;
+            for(int mcuRow = mFirstMcuRow; mcuRow < mEndMcuRow; mcuRow++){
+                for(int mcu = 0; mcu < mcusPerRow; mcu++){
+                    final int x = mcu * 16, y = mcuRow * 16;
+                    mPredictionY = encodeLumaBlock(x, y, mPredictionY);
+                    mPredictionY = encodeLumaBlock(x + 8, y, mPredictionY);
+                    mPredictionY = encodeLumaBlock(x, y + 8, mPredictionY);
+                    mPredictionY = encodeLumaBlock(x + 8, y + 8, mPredictionY);
+                    mPredictionCb = encodeChromaBlock(frame.u, x / 2, y / 2, mPredictionCb);
+                    mPredictionCr = encodeChromaBlock(frame.v, x / 2, y / 2, mPredictionCr);
+                }
+            }
+
+            // Pad last byte with ones
+            if(mBitCount > 0) writeBits((1 << (8 - mBitCount)) - 1, 8 - mBitCount);
+            mFrame = null;
+            return null;
+        }
+
+        private int encodeLumaBlock(int x0, int y0, int prediction){
+            final Frame frame = mFrame;
+            final float[] block = mBlock;
+            for(int r = 0; r < 8; r++){
+                final int row = Math.min(y0 + r, frame.height - 1) * frame.yRowStride;
+                for(int c = 0; c < 8; c++){
+                    final int column = Math.min(x0 + c, frame.width - 1) * frame.yPixelStride;
+                    block[r * 8 + c] = (frame.y.get(row + column) & 0xFF) - 128;
+                }
+            }
+            return encodeBlock(mLuminanceDivisors, DC_LUMINANCE, AC_LUMINANCE, prediction);
+        }
+
+        private int encodeChromaBlock(ByteBuffer plane, int x0, int y0, int prediction){
+            final Frame frame = mFrame;
+            final float[] block = mBlock;
+            for(int r = 0; r < 8; r++){
+                final int row = Math.min(y0 + r, frame.chromaHeight - 1) * frame.uvRowStride;
+                for(int c = 0; c < 8; c++){
+                    final int column = Math.min(x0 + c, frame.chromaWidth - 1) * frame.uvPixelStride;
+                    block[r * 8 + c] = (plane.get(row + column) & 0xFF) - 128;
+                }
+            }
+            return encodeBlock(mChrominanceDivisors, DC_CHROMINANCE, AC_CHROMINANCE, prediction);
+        }
+
+        /**
+         * Forward DCT, quantization and Huffman coding of {@link #mBlock}
+         * @return DC value used as the next block prediction
+         */
+        private int encodeBlock(float[] divisors, int[][] dcTable, int[][] acTable, int prediction){
+            forwardDct(mBlock);
+
+            final int[] coefficients = mCoefficients;
+            for(int i = 0; i < 64; i++){
+                final int natural = ZIGZAG[i];
+                coefficients[i] = Math.round(mBlock[natural] * divisors[natural]);
+            }
+
+            // DC difference
+            final int dc = coefficients[0];
+            final int diff = dc - prediction;
+            final int dcCategory = category(diff);
+            writeBits(dcTable[0][dcCategory], dcTable[1][dcCategory]);
+            if(dcCategory > 0) writeBits(diff < 0 ? diff - 1 : diff, dcCategory);
+
+            // AC run lengths
+            int run = 0;
+            for(int i = 1; i < 64; i++){
+                final int value = coefficients[i];
+                if(value == 0){
+                    run++;
+                    continue;
+                }
+                while (run > 15){
+                    writeBits(acTable[0][0xF0], acTable[1][0xF0]);
+                    run -= 16;
+                }
+                final int acCategory = category(value);
+                final int symbol = (run << 4) | acCategory;
+                writeBits(acTable[0][symbol], acTable[1][symbol]);
+                writeBits(value < 0 ? value - 1 : value, acCategory);
+                run = 0;
+            }
+            if(run > 0) writeBits(acTable[0][0x00], acTable[1][0x00]);
+            return dc;
+        }
+
+        private void writeBits(int value, int count){
+            mBitBuffer = (mBitBuffer << count) | (value & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8){
+                final int b = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+                writeByte(b);
+                if(b == 0xFF) writeByte(0);
+                mBitCount -= 8;
+            }
+        }
+
+        private void writeByte(int b){
+            if(mLength == mOutput.length){
+                final byte[] grown = new byte[mOutput.length * 2];
+                System.arraycopy(mOutput, 0, grown, 0, mLength);
+                mOutput = grown;
+            }
+            mOutput[mLength++] = (byte) b;
+        }
+    }
+
+    /**
+     * @return bits needed to represent the magnitude of value
+     */
+    private static int category(int value){
+        if(value < 0) value = -value;
+        return value == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * In place AAN floating point forward DCT, output is scaled by {@link #AAN_SCALES}
+     */
+    private static void forwardDct(float[] data){
+        for(int pass = 0; pass < 2; pass++){
+            // First pass on rows, second on columns
+            final int step = pass == 0 ? 1 : 8, next = pass == 0 ? 8 : 1;
+            for(int line = 0; line < 8; line++){
+                final int o = line * next;
+                final float tmp0 = data[o] + data[o + 7 * step];
+                final float tmp7 = data[o] - data[o + 7 * step];
+                final float tmp1 = data[o + step] + data[o + 6 * step];
+                final float tmp6 = data[o + step] - data[o + 6 * step];
+                final float tmp2 = data[o + 2 * step] + data[o + 5 * step];
+                final float tmp5 = data[o + 2 * step] - data[o + 5 * step];
+                final float tmp3 = data[o + 3 * step] + data[o + 4 * step];
+                final float tmp4 = data[o + 3 * step] - data[o + 4 * step];
+
+                // Even part
+                float tmp10 = tmp0 + tmp3;
+                final float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                data[o] = tmp10 + tmp11;
+                data[o + 4 * step] = tmp10 - tmp11;
+                final float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[o + 2 * step] = tmp13 + z1;
+                data[o + 6 * step] = tmp13 - z1;
+
+                // Odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                final float z5 = (tmp10 - tmp12) * 0.382683433f;
+                final float z2 = 0.541196100f * tmp10 + z5;
+                final float z4 = 1.306562965f * tmp12 + z5;
+                final float z3 = tmp11 * 0.707106781f;
+                final float z11 = tmp7 + z3;
+                final float z13 = tmp7 - z3;
+                data[o + 5 * step] = z13 + z2;
+                data[o + 3 * step] = z13 - z2;
+                data[o + step] = z11 + z4;
+                data[o + 7 * step] = z11 - z4;
+            }
+        }
+    }
+}
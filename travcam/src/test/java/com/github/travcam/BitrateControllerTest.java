@@ -0,0 +1,125 @@
+package com.github.travcam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * BitrateController driven by simulated sinks, one sample per second
+ */
+public class BitrateControllerTest {
+    private final static long SECOND = 1_000_000_000L;
+    private final static int MIN_BITRATE = 2_500_000;
+    private final static int MAX_BITRATE = 10_000_000;
+
+    @Test
+    public void unknownProduced_slowSink_throttlesBelowWriteRate() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        final int sinkBitrate = 4_800_000;
+        assertEquals(MAX_BITRATE, controller.start(0));
+
+        long written = 0;
+        for(int second = 1; second <= 30; second++){
+            written += sinkBitrate / 8;
+            controller.onSample(second * SECOND, BitrateController.UNKNOWN, written);
+        }
+
+        final int target = controller.getTargetBitrate();
+        assertTrue("target " + target, target <= sinkBitrate * 0.9f + 1);
+        // Recording keeps its bitrate, the learned target isn't lowered down to the floor
+        assertTrue("target " + target, target > MIN_BITRATE);
+        assertEquals(1, controller.getThrottleCount());
+    }
+
+    @Test
+    public void unknownProduced_sinkKeepingUp_neverThrottles() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        controller.start(0);
+
+        long written = 0;
+        for(int second = 1; second <= 30; second++){
+            // Encoders undershoot on static scenes
+            written += MAX_BITRATE / 8 * 7 / 10;
+            controller.onSample(second * SECOND, BitrateController.UNKNOWN, written);
+        }
+        assertEquals(MAX_BITRATE, controller.getTargetBitrate());
+        assertEquals(0, controller.getThrottleCount());
+    }
+
+    @Test
+    public void unknownProduced_downgradedRecording_comparedToEncodingBitrate() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        final int encoding = controller.start(0) / 2;
+        controller.setEncodingBitrate(encoding);
+
+        long written = 0;
+        for(int second = 1; second <= 30; second++){
+            written += encoding / 8;
+            controller.onSample(second * SECOND, BitrateController.UNKNOWN, written);
+        }
+        assertEquals(0, controller.getThrottleCount());
+    }
+
+    @Test
+    public void unknownProduced_blockedWriter_throttlesToMin() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        controller.start(0);
+        for(int second = 1; second <= 30; second++){
+            controller.onSample(second * SECOND, BitrateController.UNKNOWN, 0);
+        }
+        assertEquals(MIN_BITRATE, controller.getTargetBitrate());
+    }
+
+    @Test
+    public void knownProduced_growingBacklog_throttlesThenRecovers() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        final int[] throttled = new int[2];
+        controller.setThrottleListener((from, to, writeBytesPerSecond) -> {
+            throttled[0] = from;
+            throttled[1] = to;
+        });
+        final long sinkBytesPerSecond = 4_000_000 / 8;
+        int bitrate = controller.start(0);
+
+        long produced = 0, written = 0;
+        for(int second = 1; second <= 10; second++){
+            produced += bitrate / 8;
+            written = Math.min(produced, written + sinkBytesPerSecond);
+            bitrate = controller.onSample(second * SECOND, produced, written);
+        }
+        assertEquals(MAX_BITRATE, throttled[0]);
+        assertTrue("bitrate " + bitrate, bitrate <= 4_000_000);
+        final long throttles = controller.getThrottleCount();
+        assertTrue(throttles >= 1);
+
+        // Fast storage, backlog drains and the target climbs back
+        for(int second = 11; second <= 200; second++){
+            produced += bitrate / 8;
+            written = produced;
+            bitrate = controller.onSample(second * SECOND, produced, written);
+        }
+        assertEquals(MAX_BITRATE, bitrate);
+        assertEquals(throttles, controller.getThrottleCount());
+    }
+
+    @Test
+    public void start_keepsLearnedTarget() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        controller.start(0);
+        for(int second = 1; second <= 4; second++){
+            controller.onSample(second * SECOND, BitrateController.UNKNOWN, 0);
+        }
+        final int learned = controller.getTargetBitrate();
+        assertTrue(learned < MAX_BITRATE);
+        assertEquals(learned, controller.start(10 * SECOND));
+    }
+
+    @Test
+    public void setBounds_clampsTarget() {
+        final BitrateController controller = new BitrateController(MIN_BITRATE, MAX_BITRATE);
+        controller.setBounds(1_000_000, 5_000_000);
+        assertEquals(5_000_000, controller.getTargetBitrate());
+        controller.setBounds(6_000_000, 8_000_000);
+        assertEquals(6_000_000, controller.getTargetBitrate());
+    }
+}
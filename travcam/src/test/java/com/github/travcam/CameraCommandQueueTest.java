@@ -0,0 +1,134 @@
+package com.github.travcam;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.travcam.TravCam.CameraState.*;
+import static org.junit.Assert.*;
+
+/**
+ * CameraCommandQueue ordering and rejection, run on a direct or single thread executor
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CameraCommandQueueTest {
+
+    @Test
+    public void commands_runInSubmissionOrder() {
+        final CameraCommandQueue queue = new CameraCommandQueue(new CameraStateMachine());
+        final List<String> ran = new ArrayList<>();
+        queue.setExecutor(Runnable::run);
+        queue.submit("open", null, () -> ran.add("open"));
+        queue.submit("capture", null, () -> {
+            ran.add("capture");
+            // Submitted from a running command, runs after it
+            queue.submit("unlock", null, () -> ran.add("unlock"));
+            ran.add("capture done");
+        });
+        queue.submit("close", null, () -> ran.add("close"));
+
+        assertEquals(Arrays.asList("open", "capture", "capture done", "unlock", "close"), ran);
+        assertEquals(4, queue.getExecutedCount());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void disallowedTarget_isRejected() {
+        final CameraStateMachine machine = new CameraStateMachine();
+        final CameraCommandQueue queue = new CameraCommandQueue(machine);
+        final List<String> ran = new ArrayList<>();
+        queue.setExecutor(Runnable::run);
+
+        queue.submit("stop", STATE_VIDEO_RECORDED, () -> ran.add("stop"));
+        queue.submit("record", STATE_RECORDING_VIDEO, () -> {
+            machine.moveTo(STATE_RECORDING_VIDEO);
+            ran.add("record");
+        });
+        queue.submit("capture", STATE_CAPTURING_IMAGE, () -> ran.add("capture"));
+        queue.submit("stop", STATE_VIDEO_RECORDED, () -> ran.add("stop"));
+
+        assertEquals(Arrays.asList("record", "stop"), ran);
+        assertEquals(2, queue.getRejectedCount());
+        assertEquals(2, queue.getExecutedCount());
+        assertEquals(4, queue.getSubmittedCount());
+    }
+
+    @Test
+    public void detachedQueue_keepsCommandsUntilAttached() {
+        final CameraCommandQueue queue = new CameraCommandQueue(new CameraStateMachine());
+        final List<String> ran = new ArrayList<>();
+        queue.submit("open", null, () -> ran.add("open"));
+        queue.submit("preview", null, () -> ran.add("preview"));
+        assertTrue(ran.isEmpty());
+        assertEquals(2, queue.getQueueDepth());
+
+        queue.setExecutor(Runnable::run);
+        assertEquals(Arrays.asList("open", "preview"), ran);
+    }
+
+    @Test
+    public void clear_dropsQueuedCommands() {
+        final CameraCommandQueue queue = new CameraCommandQueue(new CameraStateMachine());
+        final List<String> ran = new ArrayList<>();
+        queue.submit("capture", null, () -> ran.add("capture"));
+        queue.submit("record", null, () -> ran.add("record"));
+
+        assertEquals(2, queue.clear());
+        assertEquals(2, queue.getDroppedCount());
+        queue.setExecutor(Runnable::run);
+        assertTrue(ran.isEmpty());
+    }
+
+    @Test
+    public void stoppedThread_drainsOnNextExecutor() {
+        final CameraCommandQueue queue = new CameraCommandQueue(new CameraStateMachine());
+        final List<String> ran = new ArrayList<>();
+        queue.setExecutor(command -> {
+            throw new RejectedExecutionException();
+        });
+        queue.submit("open", null, () -> ran.add("open"));
+        assertEquals(1, queue.getQueueDepth());
+
+        queue.setExecutor(Runnable::run);
+        assertEquals(Collections.singletonList("open"), ran);
+    }
+
+    @Test
+    public void concurrentSubmits_runOneAtATime() throws InterruptedException {
+        final CameraCommandQueue queue = new CameraCommandQueue(new CameraStateMachine());
+        final ExecutorService camera = Executors.newSingleThreadExecutor();
+        final ExecutorService submitters = Executors.newFixedThreadPool(4);
+        final int[] count = {0};
+        queue.setExecutor(camera);
+        for(int i = 0; i < 4000; i++){
+            submitters.execute(() -> queue.submit("tap", null, () -> count[0]++));
+        }
+        submitters.shutdown();
+        assertTrue(submitters.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Commands submitted before this one ran before it
+        final Object done = new Object();
+        synchronized (done){
+            queue.submit("done", null, () -> {
+                synchronized (done){
+                    done.notifyAll();
+                }
+            });
+            done.wait(10_000);
+        }
+        camera.shutdown();
+        assertTrue(camera.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(4000, count[0]);
+        assertEquals(4001, queue.getExecutedCount());
+        assertTrue(queue.getMaxLatencyNanos() >= queue.getLastLatencyNanos());
+    }
+}
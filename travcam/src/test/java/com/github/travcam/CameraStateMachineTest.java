@@ -0,0 +1,105 @@
+package com.github.travcam;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.travcam.TravCam.CameraState.*;
+import static org.junit.Assert.*;
+
+/**
+ * CameraStateMachine transitions, including threads racing for the same transition
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CameraStateMachineTest {
+
+    @Test
+    public void captureFlow_isAllowed() {
+        final CameraStateMachine machine = new CameraStateMachine();
+        assertEquals(STATE_PREVIEW, machine.getState());
+        assertTrue(machine.moveTo(STATE_FOCUS_LOCKED));
+        assertTrue(machine.moveTo(STATE_CAPTURING_IMAGE));
+        assertTrue(machine.moveTo(STATE_IMAGE_CAPTURED));
+        assertTrue(machine.moveTo(STATE_PREVIEW));
+
+        assertEquals(4, machine.getTransitionCount());
+        assertEquals(4, machine.getSnapshot().version);
+        assertEquals(0, machine.getRejectedCount());
+    }
+
+    @Test
+    public void recording_onlyStopsToRecorded() {
+        final CameraStateMachine machine = new CameraStateMachine();
+        assertTrue(machine.moveTo(STATE_RECORDING_VIDEO));
+        assertFalse(machine.canMoveTo(STATE_CAPTURING_IMAGE));
+        assertFalse(machine.moveTo(STATE_PREVIEW));
+        assertFalse(machine.moveTo(STATE_RECORDING_VIDEO));
+        assertEquals(STATE_RECORDING_VIDEO, machine.getState());
+        assertEquals(2, machine.getRejectedCount());
+
+        assertTrue(machine.moveTo(STATE_VIDEO_RECORDED));
+        assertTrue(machine.moveTo(STATE_RECORDING_VIDEO));
+    }
+
+    @Test
+    public void rejectedTransition_keepsSnapshot() {
+        final CameraStateMachine machine = new CameraStateMachine();
+        final CameraStateMachine.Snapshot before = machine.getSnapshot();
+        assertFalse(machine.moveTo(STATE_IMAGE_CAPTURED));
+        assertSame(before, machine.getSnapshot());
+    }
+
+    @Test
+    public void reset_bypassesTable() {
+        final CameraStateMachine machine = new CameraStateMachine();
+        machine.moveTo(STATE_RECORDING_VIDEO);
+        final long version = machine.getSnapshot().version;
+
+        // Camera closed mid recording
+        machine.reset(STATE_PREVIEW);
+        assertEquals(STATE_PREVIEW, machine.getState());
+        assertEquals(version + 1, machine.getSnapshot().version);
+        assertEquals(1, machine.getTransitionCount());
+    }
+
+    @Test
+    public void isAllowed_coversEveryState() {
+        for(TravCam.CameraState from : TravCam.CameraState.values()){
+            boolean any = false;
+            for(TravCam.CameraState to : TravCam.CameraState.values()) any |= CameraStateMachine.isAllowed(from, to);
+            assertTrue(from + " is a dead end", any);
+        }
+        assertFalse(CameraStateMachine.isAllowed(STATE_CAPTURING_IMAGE, STATE_CAPTURING_IMAGE));
+    }
+
+    @Test
+    public void racingCaptures_onlyOneWins() throws InterruptedException {
+        final int threads = 8;
+        for(int round = 0; round < 200; round++){
+            final CameraStateMachine machine = new CameraStateMachine();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger wins = new AtomicInteger();
+            final Thread[] racers = new Thread[threads];
+            for(int t = 0; t < threads; t++){
+                racers[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if(machine.moveTo(STATE_CAPTURING_IMAGE)) wins.incrementAndGet();
+                });
+                racers[t].start();
+            }
+            start.countDown();
+            for(Thread racer : racers) racer.join();
+
+            assertEquals(1, wins.get());
+            assertEquals(threads - 1, machine.getRejectedCount());
+            assertEquals(1, machine.getSnapshot().version);
+        }
+    }
+}
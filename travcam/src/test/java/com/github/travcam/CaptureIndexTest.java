@@ -0,0 +1,194 @@
+package com.github.travcam;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * CaptureIndex logs written record by record, in the documented layout
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CaptureIndexTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("captures", ".index");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private static void writeAdd(DataOutputStream out, String uri, TravManager.ScopedFileType type, long size) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(uri);
+        out.writeLong(uri.hashCode());
+        out.writeByte(type.ordinal());
+        out.writeUTF("image/jpeg");
+        out.writeUTF(uri.substring(uri.lastIndexOf('/') + 1) + ".jpg");
+        out.writeLong(size);
+        out.writeLong(1_600_000_000_000L);
+    }
+
+    private static void writeRemove(DataOutputStream out, String uri) throws IOException {
+        out.writeByte(2);
+        out.writeUTF(uri);
+    }
+
+    private static String uri(int i) {
+        return "content://media/external/images/media/" + i;
+    }
+
+    private static CapturedMedia media(int i, long size) {
+        return new CapturedMedia(Uri.parse(uri(i)), i, TravManager.ScopedFileType.IMAGE, "image/jpeg",
+                i + ".jpg", size, 1_600_000_000_000L, null, null, null);
+    }
+
+    @Test
+    public void load_replaysAddsAndRemoves() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            writeAdd(out, uri(1), TravManager.ScopedFileType.IMAGE, 100);
+            writeAdd(out, uri(2), TravManager.ScopedFileType.VIDEO, 5000);
+            writeAdd(out, uri(3), TravManager.ScopedFileType.IMAGE, 300);
+            writeRemove(out, uri(1));
+        }
+        final CaptureIndex index = new CaptureIndex(mFile);
+        index.load();
+
+        assertEquals(2, index.size());
+        assertNull(index.get(uri(1)));
+        assertEquals(5000, index.get(uri(2)).size);
+        assertEquals(TravManager.ScopedFileType.VIDEO, index.get(uri(2)).type);
+        assertEquals(300, index.getTotalBytes(TravManager.ScopedFileType.IMAGE));
+        assertEquals(5000, index.getTotalBytes(TravManager.ScopedFileType.VIDEO));
+        assertEquals(uri(3), index.entries(TravManager.ScopedFileType.IMAGE).get(0).uri);
+        assertEquals(2, index.entries(null).size());
+    }
+
+    @Test
+    public void load_dropsTornLastRecord() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            writeAdd(out, uri(1), TravManager.ScopedFileType.IMAGE, 100);
+            writeAdd(out, uri(2), TravManager.ScopedFileType.IMAGE, 200);
+        }
+        final long validLength = mFile.length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile, true))) {
+            writeAdd(out, uri(3), TravManager.ScopedFileType.IMAGE, 300);
+        }
+        // Crash in the middle of the last record
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(validLength + 20);
+        }
+
+        final CaptureIndex index = new CaptureIndex(mFile);
+        index.load();
+        assertEquals(2, index.size());
+        assertNull(index.get(uri(3)));
+        assertEquals(validLength, mFile.length());
+
+        // Records appended after the truncation are read back
+        index.remove(Collections.singletonList(uri(1)));
+        final CaptureIndex reloaded = new CaptureIndex(mFile);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        assertEquals(200, reloaded.getTotalBytes(TravManager.ScopedFileType.IMAGE));
+    }
+
+    @Test
+    public void remove_compactsOnceRemovedOutnumberLive() throws IOException {
+        final int adds = 100, removes = 90;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            for(int i = 0; i < adds; i++) writeAdd(out, uri(i), TravManager.ScopedFileType.IMAGE, 10);
+        }
+        final CaptureIndex index = new CaptureIndex(mFile);
+        index.load();
+        final long fullLength = mFile.length();
+
+        final List<String> removed = new ArrayList<>();
+        for(int i = 0; i < removes; i++) removed.add(uri(i));
+        index.remove(removed);
+
+        // Log holds live entries only, about a tenth of the original adds
+        assertEquals(adds - removes, index.size());
+        assertTrue(mFile.length() < fullLength / 5);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+
+        final CaptureIndex reloaded = new CaptureIndex(mFile);
+        reloaded.load();
+        assertEquals(adds - removes, reloaded.size());
+        assertEquals((adds - removes) * 10, reloaded.getTotalBytes(TravManager.ScopedFileType.IMAGE));
+        assertNotNull(reloaded.get(uri(adds - 1)));
+    }
+
+    @Test
+    public void load_compactsLogWithManyRemoves() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            for(int i = 0; i < 80; i++) writeAdd(out, uri(i), TravManager.ScopedFileType.VIDEO, 1);
+            for(int i = 0; i < 70; i++) writeRemove(out, uri(i));
+        }
+        final long fullLength = mFile.length();
+        final CaptureIndex index = new CaptureIndex(mFile);
+        index.load();
+        assertEquals(10, index.size());
+        assertTrue(mFile.length() < fullLength / 5);
+    }
+
+    @Test
+    public void load_missingFile_isEmpty() {
+        mFile.delete();
+        final CaptureIndex index = new CaptureIndex(mFile);
+        index.load();
+        assertEquals(0, index.size());
+        assertTrue(mFile.exists());
+    }
+
+    @Test
+    public void unwritableLog_degradesThenRecovers() throws IOException {
+        final File dir = new File(mFile.getPath() + ".dir");
+        final File file = new File(dir, "captures.index");
+        final CaptureIndex index = new CaptureIndex(file);
+        index.load();
+        assertTrue(index.isDegraded());
+
+        // Kept in memory while the log can't be opened
+        index.add(media(1, 100));
+        index.add(media(2, 200));
+        index.remove(Collections.singletonList(uri(1)));
+        assertEquals(1, index.size());
+        assertTrue(index.isDegraded());
+
+        // Next change rewrites the log from memory
+        assertTrue(dir.mkdir());
+        try {
+            index.add(media(3, 300));
+            assertFalse(index.isDegraded());
+
+            final CaptureIndex reloaded = new CaptureIndex(file);
+            reloaded.load();
+            assertEquals(2, reloaded.size());
+            assertNull(reloaded.get(uri(1)));
+            assertEquals(500, reloaded.getTotalBytes(TravManager.ScopedFileType.IMAGE));
+        } finally {
+            file.delete();
+            dir.delete();
+        }
+    }
+}
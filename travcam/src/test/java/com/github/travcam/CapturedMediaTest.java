@@ -0,0 +1,121 @@
+package com.github.travcam;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.Assert.*;
+
+/**
+ * CapturedMedia built from values known while writing, without MediaStore queries
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CapturedMediaTest {
+    private final static byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF, (byte) 0xD9};
+
+    @Test
+    public void fromFile_isIdentifiedByFileUri() {
+        final File file = new File("/sdcard/DCIM/trav_img_1000.jpeg");
+        final MemorySink sink = new MemorySink();
+        final CapturedMedia media = CapturedMedia.fromFile(file, TravManager.ScopedFileType.IMAGE, "image/jpeg",
+                JPEG.length, 1000, sink);
+
+        assertEquals(Uri.fromFile(file), media.getUri());
+        assertEquals(CapturedMedia.NO_ID, media.getId());
+        assertEquals("trav_img_1000.jpeg", media.getDisplayName());
+        assertEquals("image/jpeg", media.getMimeType());
+        assertEquals(JPEG.length, media.getSize());
+        assertEquals(1000, media.getTimestamp());
+        assertSame(file, media.getFile());
+        assertSame(sink, media.getSink());
+        assertNull(media.getBuffer());
+    }
+
+    @Test
+    public void fromBuffer_hasNoUriOrFile() {
+        final CapturedMedia media = CapturedMedia.fromBuffer(ByteBuffer.wrap(JPEG), TravManager.ScopedFileType.IMAGE,
+                "image/jpeg", "capture.jpeg", JPEG.length, 1000, new MemorySink());
+
+        assertEquals(Uri.EMPTY, media.getUri());
+        assertEquals(CapturedMedia.NO_ID, media.getId());
+        assertNull(media.getFile());
+        assertNull(CapturedMedia.fromBuffer(null, TravManager.ScopedFileType.IMAGE, "image/jpeg", "capture.jpeg",
+                JPEG.length, 1000, new MemorySink()).getBuffer());
+    }
+
+    @Test
+    public void buffer_isReadOnlyAndIndependentPerCall() {
+        final CapturedMedia media = CapturedMedia.fromBuffer(ByteBuffer.wrap(JPEG), TravManager.ScopedFileType.IMAGE,
+                "image/jpeg", "capture.jpeg", JPEG.length, 1000, new MemorySink());
+
+        final ByteBuffer first = media.getBuffer();
+        final byte[] read = new byte[first.remaining()];
+        first.get(read);
+        assertArrayEquals(JPEG, read);
+        assertEquals(JPEG.length, media.getBuffer().remaining());
+        try {
+            media.getBuffer().put((byte) 0);
+            fail("Buffer is writable");
+        } catch (ReadOnlyBufferException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void fileWithoutResolver_isNotQueried() {
+        final CapturedMedia media = new CapturedMedia(Uri.parse("content://media/external/images/media/7"), 7,
+                TravManager.ScopedFileType.IMAGE, "image/jpeg", "capture.jpeg", JPEG.length, 1000, null, null,
+                new MemorySink());
+        assertEquals(7, media.getId());
+        assertNull(media.getFile());
+    }
+
+    @Test
+    public void withSize_keepsIdentity() {
+        final File file = new File("/sdcard/DCIM/trav_vid_1000.mp4");
+        final MemorySink sink = new MemorySink();
+        final CapturedMedia pending = CapturedMedia.fromFile(file, TravManager.ScopedFileType.VIDEO, "video/mp4", 0, 1000, sink);
+        final CapturedMedia published = pending.withSize(5_000_000);
+
+        assertEquals(0, pending.getSize());
+        assertEquals(5_000_000, published.getSize());
+        assertEquals(pending.getUri(), published.getUri());
+        assertEquals(pending.getDisplayName(), published.getDisplayName());
+        assertEquals(TravManager.ScopedFileType.VIDEO, published.getType());
+        assertSame(file, published.getFile());
+        assertSame(sink, published.getSink());
+    }
+
+    @Test
+    public void poster_isKeptWhenPublished() {
+        final CapturedMedia pending = CapturedMedia.fromFile(new File("/sdcard/DCIM/trav_vid_1000.mp4"),
+                TravManager.ScopedFileType.VIDEO, "video/mp4", 0, 1000, new MemorySink());
+        assertNull(pending.getPoster());
+        assertNull(pending.getPosterJpeg());
+
+        final Bitmap poster = Bitmap.createBitmap(480, 270, Bitmap.Config.ARGB_8888);
+        pending.setPoster(poster, JPEG);
+        final CapturedMedia published = pending.withSize(5_000_000);
+        assertSame(poster, published.getPoster());
+        final ByteBuffer jpeg = published.getPosterJpeg();
+        assertTrue(jpeg.isReadOnly());
+        assertEquals(ByteBuffer.wrap(JPEG), jpeg);
+    }
+
+    @Test
+    public void posterWithoutJpeg_hasNoJpegBytes() {
+        final CapturedMedia media = CapturedMedia.fromFile(new File("/sdcard/DCIM/trav_vid_1000.mp4"),
+                TravManager.ScopedFileType.VIDEO, "video/mp4", 0, 1000, new MemorySink());
+        // Poster encoding timed out
+        media.setPoster(Bitmap.createBitmap(480, 270, Bitmap.Config.ARGB_8888), null);
+        assertNotNull(media.getPoster());
+        assertNull(media.getPosterJpeg());
+    }
+}
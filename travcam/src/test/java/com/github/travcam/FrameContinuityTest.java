@@ -0,0 +1,93 @@
+package com.github.travcam;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * FrameContinuity fed with scripted sensor timestamps at 30 fps
+ */
+public class FrameContinuityTest {
+    private final static long FRAME = 33_333_333L;
+    private final static long START = 1_000_000_000L;
+
+    /** Reports frames first to last, at their index times **/
+    private static void frames(FrameContinuity continuity, int first, int last) {
+        for(int i = first; i <= last; i++) continuity.onFrame(START + i * FRAME);
+    }
+
+    @Test
+    public void regularFrames_noneDropped() {
+        final FrameContinuity continuity = new FrameContinuity();
+        frames(continuity, 0, 299);
+        assertEquals(300, continuity.getFrameCount());
+        assertEquals(0, continuity.getDroppedFrames());
+        assertEquals(33.333f, continuity.getNominalIntervalMillis(), 0.01f);
+    }
+
+    @Test
+    public void gap_countsMissingFrames() {
+        final FrameContinuity continuity = new FrameContinuity();
+        frames(continuity, 0, 99);
+        // Frames 100 to 103 never arrive
+        frames(continuity, 104, 199);
+        assertEquals(196, continuity.getFrameCount());
+        assertEquals(4, continuity.getDroppedFrames());
+        // Gap isn't averaged into the nominal interval
+        assertEquals(33.333f, continuity.getNominalIntervalMillis(), 0.01f);
+        assertEquals(0, continuity.getDroppedAroundEvents());
+    }
+
+    @Test
+    public void jitterBelowGapFactor_isNotADrop() {
+        final FrameContinuity continuity = new FrameContinuity();
+        frames(continuity, 0, 99);
+        continuity.onFrame(START + 100 * FRAME + FRAME * 4 / 10);
+        continuity.onFrame(START + 101 * FRAME);
+        assertEquals(0, continuity.getDroppedFrames());
+    }
+
+    @Test
+    public void dropsAfterEvent_areReportedApart() {
+        final FrameContinuity continuity = new FrameContinuity();
+        frames(continuity, 0, 99);
+        continuity.onEvent();
+        frames(continuity, 100, 109);
+        frames(continuity, 112, 200);
+        // Outside the event window
+        frames(continuity, 205, 210);
+
+        assertEquals(1, continuity.getEventCount());
+        assertEquals(6, continuity.getDroppedFrames());
+        assertEquals(2, continuity.getDroppedAroundEvents());
+        assertEquals(100f, continuity.getMaxIntervalAroundEventsMillis(), 0.01f);
+    }
+
+    @Test
+    public void repeatedOrBackwardTimestamps_areIgnored() {
+        final FrameContinuity continuity = new FrameContinuity();
+        frames(continuity, 0, 9);
+        continuity.onFrame(START + 9 * FRAME);
+        continuity.onFrame(START + 5 * FRAME);
+        frames(continuity, 6, 20);
+        assertEquals(0, continuity.getDroppedFrames());
+    }
+
+    @Test
+    public void reset_startsNewRecording() {
+        final FrameContinuity continuity = new FrameContinuity();
+        frames(continuity, 0, 9);
+        continuity.onEvent();
+        frames(continuity, 20, 30);
+        continuity.reset();
+
+        assertEquals(0, continuity.getFrameCount());
+        assertEquals(0, continuity.getDroppedFrames());
+        assertEquals(0, continuity.getEventCount());
+        assertEquals(0f, continuity.getNominalIntervalMillis(), 0f);
+        // First interval of the new recording sets the nominal interval, no gap against the old one
+        continuity.onFrame(START);
+        continuity.onFrame(START + 2 * FRAME);
+        assertEquals(0, continuity.getDroppedFrames());
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.travcam;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * FrameMerger on synthetic bursts of shifted noisy frames
+ */
+public class FrameMergerTest {
+    private final static int WIDTH = 256, HEIGHT = 192;
+    private final static int CHROMA = ((WIDTH + 1) / 2) * ((HEIGHT + 1) / 2);
+
+    /** Blurred random texture, unique enough to be aligned **/
+    private static int[] scene(long seed) {
+        final Random random = new Random(seed);
+        final int[] noise = new int[WIDTH * HEIGHT];
+        for(int i = 0; i < noise.length; i++) noise[i] = random.nextInt(256);
+        final int[] scene = new int[WIDTH * HEIGHT];
+        for(int y = 0; y < HEIGHT; y++){
+            for(int x = 0; x < WIDTH; x++){
+                int sum = 0;
+                for(int dy = -2; dy <= 2; dy++){
+                    for(int dx = -2; dx <= 2; dx++) sum += noise[clamp(y + dy, HEIGHT) * WIDTH + clamp(x + dx, WIDTH)];
+                }
+                scene[y * WIDTH + x] = sum / 25;
+            }
+        }
+        return scene;
+    }
+
+    /** Scene shifted by dx, dy with gaussian noise, as I420 with neutral chroma **/
+    private static void load(byte[] frame, int[] scene, int dx, int dy, float sigma, Random random) {
+        for(int y = 0; y < HEIGHT; y++){
+            for(int x = 0; x < WIDTH; x++){
+                final int value = scene[clamp(y + dy, HEIGHT) * WIDTH + clamp(x + dx, WIDTH)] + (int) (random.nextGaussian() * sigma);
+                frame[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, value));
+            }
+        }
+        for(int i = WIDTH * HEIGHT; i < WIDTH * HEIGHT + 2 * CHROMA; i++) frame[i] = (byte) 128;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+
+    /** Mean absolute luma error against the scene, borders left out **/
+    private static float error(byte[] frame, int[] scene) {
+        final int border = 32;
+        long sum = 0;
+        int count = 0;
+        for(int y = border; y < HEIGHT - border; y++){
+            for(int x = border; x < WIDTH - border; x++){
+                sum += Math.abs((frame[y * WIDTH + x] & 0xFF) - scene[y * WIDTH + x]);
+                count++;
+            }
+        }
+        return (float) sum / count;
+    }
+
+    @Test
+    public void shiftedNoisyBurst_isAlignedAndDenoised() {
+        final int[] scene = scene(1);
+        final Random random = new Random(2);
+        final FrameMerger merger = new FrameMerger(WIDTH, HEIGHT, 6);
+        final int[][] shifts = {{0, 0}, {3, -2}, {-5, 1}, {2, 6}, {-1, -4}, {7, 3}};
+        for(int f = 0; f < shifts.length; f++){
+            load(merger.getFrameBuffer(f), scene, shifts[f][0], shifts[f][1], 12f, random);
+        }
+        final float single = error(merger.getFrameBuffer(0), scene);
+
+        final byte[] merged = merger.merge(shifts.length);
+        final float mergedError = error(merged, scene);
+        assertTrue("single " + single + ", merged " + mergedError, mergedError < single * 0.7f);
+        assertEquals(0, merger.getLastRejectedTiles());
+        assertTrue(merger.getLastMillisPerMegapixel() > 0);
+    }
+
+    @Test
+    public void movingSubject_tilesAreRejected() {
+        final int[] scene = scene(3);
+        final Random random = new Random(4);
+        final FrameMerger merger = new FrameMerger(WIDTH, HEIGHT, 3);
+        for(int f = 0; f < 3; f++) load(merger.getFrameBuffer(f), scene, 0, 0, 2f, random);
+
+        // A bright object covers a few tiles of the last frame only
+        final byte[] last = merger.getFrameBuffer(2);
+        for(int y = 64; y < 128; y++){
+            for(int x = 96; x < 160; x++) last[y * WIDTH + x] = (byte) 255;
+        }
+
+        final byte[] merged = merger.merge(3);
+        assertTrue(merger.getLastRejectedTiles() >= 4);
+        // Object isn't ghosted into the merged frame
+        assertTrue((merged[96 * WIDTH + 128] & 0xFF) < 230);
+    }
+
+    @Test
+    public void singleFrame_isReturnedUnchanged() {
+        final FrameMerger merger = new FrameMerger(WIDTH, HEIGHT, 2);
+        load(merger.getFrameBuffer(0), scene(5), 0, 0, 4f, new Random(6));
+        final byte[] frame = merger.getFrameBuffer(0).clone();
+        assertArrayEquals(frame, merger.merge(1));
+    }
+
+    @Test
+    public void loadFrame_copiesStridedPlanes() {
+        final FrameMerger merger = new FrameMerger(64, 32, 1);
+        final int rowStride = 80, chromaWidth = 32, chromaHeight = 16, uvRowStride = 72;
+        final ByteBuffer y = ByteBuffer.allocate(rowStride * 32);
+        final ByteBuffer uv = ByteBuffer.allocate(uvRowStride * chromaHeight);
+        for(int row = 0; row < 32; row++){
+            for(int x = 0; x < 64; x++) y.put(row * rowStride + x, (byte) (row + x));
+        }
+        for(int row = 0; row < chromaHeight; row++){
+            for(int x = 0; x < chromaWidth; x++){
+                uv.put(row * uvRowStride + 2 * x, (byte) 10);
+                uv.put(row * uvRowStride + 2 * x + 1, (byte) 20);
+            }
+        }
+        final ByteBuffer v = ByteBuffer.wrap(uv.array(), 1, uv.capacity() - 1).slice();
+        merger.loadFrame(0, y, rowStride, 1, uv, v, uvRowStride, 2);
+
+        final byte[] frame = merger.getFrameBuffer(0);
+        assertEquals((byte) (31 + 63), frame[31 * 64 + 63]);
+        assertEquals(10, frame[64 * 32]);
+        assertEquals(20, frame[64 * 32 + chromaWidth * chromaHeight]);
+        assertEquals(0, y.position());
+    }
+
+    @Test
+    public void bytesFor_matchesAllocation() {
+        assertEquals(FrameMerger.bytesFor(WIDTH, HEIGHT, 4), new FrameMerger(WIDTH, HEIGHT, 4).getAllocatedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void merge_rejectsTooManyFrames() {
+        new FrameMerger(WIDTH, HEIGHT, 2).merge(3);
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.travcam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * FrameMetadata sidecars written in the documented layout and read back
+ */
+@RunWith(RobolectricTestRunner.class)
+public class FrameMetadataTest {
+    private final static int MAGIC = 0x5452564D;
+    private final static int FRAMES = 3000;
+
+    private File mFile, mCopy;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("frames", ".meta");
+        mCopy = File.createTempFile("frames", ".copy");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mCopy.delete();
+    }
+
+    /** Timestamps, optionally an unknown 16 byte column, sensitivities and AF states **/
+    private void writeSidecar(boolean withUnknown) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile))) {
+            out.writeInt(MAGIC);
+            out.writeShort(1);
+            out.writeInt(FRAMES);
+            out.writeByte(withUnknown ? 4 : 3);
+            out.writeByte(1);
+            out.writeByte(8);
+            if(withUnknown){
+                out.writeByte(99);
+                out.writeByte(16);
+            }
+            out.writeByte(4);
+            out.writeByte(4);
+            out.writeByte(7);
+            out.writeByte(1);
+
+            for(int i = 0; i < FRAMES; i++) out.writeLong(1_000_000_000L + i * 33_333_333L);
+            if(withUnknown){
+                for(int i = 0; i < FRAMES; i++) out.write(new byte[16]);
+            }
+            for(int i = 0; i < FRAMES; i++) out.writeInt(100 + i % 700);
+            for(int i = 0; i < FRAMES; i++) out.writeByte(i % 6);
+        }
+    }
+
+    private static void assertColumns(FrameMetadata metadata) {
+        assertEquals(FRAMES, metadata.getCount());
+        assertEquals(EnumSet.of(FrameMetadata.Column.SENSOR_TIMESTAMP, FrameMetadata.Column.SENSITIVITY,
+                FrameMetadata.Column.AF_STATE), metadata.getColumns());
+        final long[] timestamps = metadata.getSensorTimestamps();
+        final int[] sensitivities = metadata.getSensitivities();
+        final byte[] afStates = metadata.getAfStates();
+        for(int i = 0; i < FRAMES; i++){
+            assertEquals(1_000_000_000L + i * 33_333_333L, timestamps[i]);
+            assertEquals(100 + i % 700, sensitivities[i]);
+            assertEquals(i % 6, afStates[i]);
+        }
+        assertNull(metadata.getExposureTimes());
+        assertNull(metadata.getFocusDistances());
+    }
+
+    @Test
+    public void read_returnsWrittenColumns() throws IOException {
+        writeSidecar(false);
+        assertColumns(FrameMetadata.read(mFile));
+    }
+
+    @Test
+    public void read_skipsUnknownColumns() throws IOException {
+        writeSidecar(true);
+        assertColumns(FrameMetadata.read(mFile));
+    }
+
+    @Test
+    public void write_roundTripsSidecar() throws IOException {
+        writeSidecar(false);
+        FrameMetadata.read(mFile).write(mCopy);
+        assertArrayEquals(Files.readAllBytes(mFile.toPath()), Files.readAllBytes(mCopy.toPath()));
+    }
+
+    @Test
+    public void emptyRecording_roundTrips() throws IOException {
+        new FrameMetadata(0, EnumSet.of(FrameMetadata.Column.EXPOSURE_TIME)).write(mCopy);
+        final FrameMetadata metadata = FrameMetadata.read(mCopy);
+        assertEquals(0, metadata.getCount());
+        assertEquals(0, metadata.getExposureTimes().length);
+        assertEquals(0, metadata.getAverageRecordNanos());
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsForeignFile() throws IOException {
+        Files.write(mFile.toPath(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        FrameMetadata.read(mFile);
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsTruncatedFile() throws IOException {
+        writeSidecar(true);
+        Files.write(mFile.toPath(), Arrays.copyOf(Files.readAllBytes(mFile.toPath()), 40_000));
+        FrameMetadata.read(mFile);
+    }
+}
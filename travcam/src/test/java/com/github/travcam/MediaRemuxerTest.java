@@ -0,0 +1,60 @@
+package com.github.travcam;
+
+import android.media.MediaFormat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * MediaRemuxer track compatibility, segments muxed into a single track must share their format
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MediaRemuxerTest {
+    private final static byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1F};
+    private final static byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+
+    private static MediaFormat video(int width, int height, byte[] sps, byte[] pps) {
+        final MediaFormat format = MediaFormat.createVideoFormat("video/avc", width, height);
+        if(sps != null) format.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
+        if(pps != null) format.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+        return format;
+    }
+
+    @Test
+    public void sameFormat_isCompatible() {
+        assertTrue(MediaRemuxer.compatible(video(1920, 1080, SPS, PPS), video(1920, 1080, SPS.clone(), PPS.clone())));
+        assertTrue(MediaRemuxer.compatible(MediaFormat.createAudioFormat("audio/mp4a-latm", 48000, 2),
+                MediaFormat.createAudioFormat("audio/mp4a-latm", 48000, 2)));
+    }
+
+    @Test
+    public void otherSizeOrMime_isIncompatible() {
+        assertFalse(MediaRemuxer.compatible(video(1920, 1080, SPS, PPS), video(1280, 720, SPS, PPS)));
+        assertFalse(MediaRemuxer.compatible(MediaFormat.createAudioFormat("audio/mp4a-latm", 48000, 2),
+                MediaFormat.createAudioFormat("audio/mp4a-latm", 44100, 2)));
+        assertFalse(MediaRemuxer.compatible(null, video(1920, 1080, SPS, PPS)));
+    }
+
+    @Test
+    public void otherCodecConfiguration_isIncompatible() {
+        final byte[] otherPps = PPS.clone();
+        otherPps[7] = 0;
+        assertFalse(MediaRemuxer.compatible(video(1920, 1080, SPS, PPS), video(1920, 1080, SPS, otherPps)));
+        assertFalse(MediaRemuxer.compatible(video(1920, 1080, SPS, PPS), video(1920, 1080, SPS, null)));
+        assertFalse(MediaRemuxer.compatible(video(1920, 1080, null, null), video(1920, 1080, SPS, PPS)));
+    }
+
+    @Test
+    public void compatible_keepsBufferPositions() {
+        final MediaFormat first = video(1920, 1080, SPS, PPS);
+        final MediaFormat other = video(1920, 1080, SPS, PPS);
+        MediaRemuxer.compatible(first, other);
+        assertEquals(0, first.getByteBuffer("csd-0").position());
+        assertEquals(0, other.getByteBuffer("csd-1").position());
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.travcam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * MediaReviewCache encoded bytes caching and budgets, reading file media
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MediaReviewCacheTest {
+    private final static int BUDGET = 2000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("review", ".jpeg");
+        Files.write(mFile.toPath(), bytes(300, 1));
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static byte[] bytes(int size, int value) {
+        final byte[] bytes = new byte[size];
+        for(int i = 0; i < size; i++) bytes[i] = (byte) (value + i);
+        return bytes;
+    }
+
+    private static CapturedMedia media(File file) {
+        return CapturedMedia.fromFile(file, TravManager.ScopedFileType.IMAGE, "image/jpeg", file.length(), 1000, new MemorySink());
+    }
+
+    private static MediaReviewCache cache() {
+        return new MediaReviewCache(RuntimeEnvironment.getApplication().getContentResolver(), BUDGET);
+    }
+
+    @Test
+    public void storedMedia_isReadOnce() throws IOException {
+        final MediaReviewCache cache = cache();
+        final CapturedMedia media = media(mFile);
+        final byte[] first = cache.getBytes(media);
+        assertArrayEquals(bytes(300, 1), first);
+
+        // Retake cycle reviews the same capture again
+        mFile.delete();
+        assertSame(first, cache.getBytes(media));
+        assertEquals(0.5f, cache.getEncodedHitRate(), 0f);
+        assertEquals(300, cache.getUsedBytes());
+    }
+
+    @Test
+    public void put_cachesWrittenBytes() throws IOException {
+        final MediaReviewCache cache = cache();
+        final CapturedMedia media = media(mFile);
+        final byte[] written = bytes(200, 7);
+        cache.put(media, written);
+
+        assertSame(written, cache.getBytes(media));
+        assertEquals(1f, cache.getEncodedHitRate(), 0f);
+    }
+
+    @Test(expected = IOException.class)
+    public void removedMedia_isReadAgain() throws IOException {
+        final MediaReviewCache cache = cache();
+        final CapturedMedia media = media(mFile);
+        cache.put(media, bytes(200, 7));
+        cache.remove(media);
+        assertEquals(0, cache.getUsedBytes());
+
+        mFile.delete();
+        cache.getBytes(media);
+    }
+
+    @Test
+    public void budget_evictsLeastRecentlyUsed() throws IOException {
+        final MediaReviewCache cache = cache();
+        final File other = File.createTempFile("review", ".jpeg");
+        try {
+            // Encoded bytes get half of the budget
+            cache.put(media(mFile), bytes(600, 1));
+            cache.put(media(other), bytes(600, 2));
+            assertEquals(600, cache.getUsedBytes());
+
+            cache.setBudget(1000);
+            assertEquals(0, cache.getUsedBytes());
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test
+    public void memoryMedia_isReadFromItsBuffer() throws IOException {
+        final MediaReviewCache cache = cache();
+        final CapturedMedia media = CapturedMedia.fromBuffer(ByteBuffer.wrap(bytes(100, 3)), TravManager.ScopedFileType.IMAGE,
+                "image/jpeg", "capture.jpeg", 100, 1000, new MemorySink());
+        assertArrayEquals(bytes(100, 3), cache.getBytes(media));
+        assertArrayEquals(bytes(100, 3), cache.getBytes(media));
+
+        // Media without a Uri has no cache key
+        assertEquals(0f, cache.getEncodedHitRate(), 0f);
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void mediaWithoutContent_isRejected() throws IOException {
+        cache().getBytes(CapturedMedia.fromBuffer(null, TravManager.ScopedFileType.IMAGE, "image/jpeg", "capture.jpeg",
+                100, 1000, new MemorySink()));
+    }
+
+    @Test
+    public void sampleSize_keepsRequestedSize() {
+        assertEquals(2, MediaReviewCache.sampleSizeFor(4000, 3000, 1000, 1000));
+        assertEquals(4, MediaReviewCache.sampleSizeFor(4000, 3000, 1000, 750));
+        assertEquals(1, MediaReviewCache.sampleSizeFor(4000, 3000, 3000, 3000));
+        assertEquals(1, MediaReviewCache.sampleSizeFor(4000, 3000, 0, 0));
+    }
+}
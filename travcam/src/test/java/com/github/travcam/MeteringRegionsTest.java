@@ -0,0 +1,137 @@
+package com.github.travcam;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * MeteringRegions coordinate mapping, touch coalescing and convergence measurements
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MeteringRegionsTest {
+    private final static float DELTA = 1e-6f;
+    private final static long MS = 1_000_000L;
+
+    private static void assertPoint(float x, float y, float[] point) {
+        assertEquals(x, point[0], DELTA);
+        assertEquals(y, point[1], DELTA);
+    }
+
+    /** Back camera with focus and metering regions **/
+    private static MeteringRegions regions() {
+        return new MeteringRegions().setSensor(new Rect(0, 0, 4000, 3000), 90, false, 1920, 1080, 1, 1);
+    }
+
+    @Test
+    public void toSensor_rotatesBySensorOrientation() {
+        assertPoint(0.2f, 0.1f, MeteringRegions.toSensor(0.2f, 0.1f, 0, false));
+        assertPoint(0.1f, 0.8f, MeteringRegions.toSensor(0.2f, 0.1f, 90, false));
+        assertPoint(0.8f, 0.9f, MeteringRegions.toSensor(0.2f, 0.1f, 180, false));
+        assertPoint(0.9f, 0.2f, MeteringRegions.toSensor(0.2f, 0.1f, 270, false));
+    }
+
+    @Test
+    public void toSensor_mirrorsFrontCamera() {
+        assertPoint(0.8f, 0.1f, MeteringRegions.toSensor(0.2f, 0.1f, 0, true));
+        // Mirroring flips x before rotating
+        assertPoint(0.9f, 0.8f, MeteringRegions.toSensor(0.8f, 0.1f, 270, false));
+        assertPoint(0.9f, 0.8f, MeteringRegions.toSensor(0.2f, 0.1f, 270, true));
+        assertPoint(0.5f, 0.5f, MeteringRegions.toSensor(0.5f, 0.5f, 90, true));
+    }
+
+    @Test
+    public void fieldOfView_cropsToStreamAspectRatio() {
+        // 16:9 stream on a 4:3 array loses top and bottom
+        assertArrayEquals(new int[]{0, 375, 4000, 2625}, MeteringRegions.fieldOfView(0, 0, 4000, 3000, 1920, 1080));
+        // 1:1 stream loses left and right, array offset is kept
+        assertArrayEquals(new int[]{516, 8, 3516, 3008}, MeteringRegions.fieldOfView(16, 8, 4016, 3008, 1080, 1080));
+        // Same aspect ratio keeps the whole array
+        assertArrayEquals(new int[]{0, 0, 4000, 3000}, MeteringRegions.fieldOfView(0, 0, 4000, 3000, 640, 480));
+        assertArrayEquals(new int[]{0, 0, 4000, 3000}, MeteringRegions.fieldOfView(0, 0, 4000, 3000, 0, 0));
+    }
+
+    @Test
+    public void cornerTouch_isClampedToFieldOfView() {
+        final MeteringRegions regions = regions();
+        regions.touch(0f, 0f, 0);
+        regions.activate(regions.takePending());
+
+        // Top left of the portrait view is the bottom left of the 16:9 crop of a sensor rotated by 90
+        final MeteringRectangle region = regions.getAfRegions()[0];
+        assertEquals(0, region.getX());
+        assertEquals(2625, region.getY() + region.getHeight());
+        assertEquals(region.getWidth(), region.getHeight());
+        assertTrue(region.getHeight() > 0 && region.getHeight() <= 2250);
+    }
+
+    @Test
+    public void rapidTouches_areCoalesced() {
+        final MeteringRegions regions = regions();
+        assertTrue(regions.touch(0.1f, 0.1f, 0));
+        assertTrue(regions.touch(0.5f, 0.5f, MS));
+        assertTrue(regions.touch(0.2f, 0.1f, 2 * MS));
+
+        final MeteringRegions.Touch touch = regions.takePending();
+        assertNotNull(touch);
+        assertEquals(0.1f, touch.sensorX, DELTA);
+        assertEquals(0.8f, touch.sensorY, DELTA);
+        assertNull(regions.takePending());
+        assertEquals(3, regions.getTouchCount());
+        assertEquals(2, regions.getCoalescedCount());
+    }
+
+    @Test
+    public void touch_withoutRegionSupport_isRefused() {
+        assertFalse(new MeteringRegions().touch(0.5f, 0.5f, 0));
+        final MeteringRegions regions = new MeteringRegions().setSensor(new Rect(0, 0, 4000, 3000), 90, false, 1920, 1080, 0, 0);
+        assertFalse(regions.touch(0.5f, 0.5f, 0));
+    }
+
+    @Test
+    public void convergence_isMeasuredFromTriggerResults() {
+        final MeteringRegions regions = regions();
+        regions.touch(0.5f, 0.5f, 0);
+        final MeteringRegions.Touch touch = regions.takePending();
+        regions.activate(touch);
+        assertTrue(regions.hasRegions());
+        assertNotNull(regions.getAfRegions());
+        assertNotNull(regions.getAeRegions());
+
+        // Frame requested before the trigger reports stale locked states
+        regions.onResult(10 * MS, null, CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED, CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals(0, regions.getConvergedCount());
+
+        regions.onResult(40 * MS, touch, CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN, CaptureResult.CONTROL_AE_STATE_SEARCHING);
+        regions.onResult(250 * MS, null, CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED, CaptureResult.CONTROL_AE_STATE_CONVERGED);
+        assertEquals(1, regions.getConvergedCount());
+        assertEquals(250f, regions.getLastConvergeMillis(), 0.01f);
+        assertEquals(1, regions.getUpdateCount());
+
+        regions.clear();
+        assertFalse(regions.hasRegions());
+        assertNull(regions.getAfRegions());
+        assertFalse(regions.restore(300 * MS));
+    }
+
+    @Test
+    public void unconvergedRegions_timeOut() {
+        final MeteringRegions regions = regions();
+        regions.touch(0.5f, 0.5f, 0);
+        final MeteringRegions.Touch touch = regions.takePending();
+        regions.activate(touch);
+        regions.onResult(40 * MS, touch, CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN, CaptureResult.CONTROL_AE_STATE_SEARCHING);
+        regions.onResult(3001 * MS, null, CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN, CaptureResult.CONTROL_AE_STATE_SEARCHING);
+        assertEquals(1, regions.getTimeoutCount());
+        assertEquals(0, regions.getConvergedCount());
+
+        // Active regions are queued again after a preview restart
+        assertTrue(regions.restore(4000 * MS));
+        assertEquals(4000 * MS, regions.takePending().touchNanos);
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.travcam;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * MotionDetector fed with synthetic luma frames at 30 fps
+ */
+public class MotionDetectorTest {
+    private final static int WIDTH = 320, HEIGHT = 240;
+    private final static long FRAME_NANOS = 33_333_333L;
+
+    private static class Events implements MotionDetector.MotionListener {
+        int started, stopped;
+
+        @Override
+        public void onMotionStarted(float score) {
+            started++;
+        }
+
+        @Override
+        public void onMotionStopped() {
+            stopped++;
+        }
+    }
+
+    /** Flat gray frame with a white square whose left edge is at x **/
+    private static byte[] frame(int squareX) {
+        final byte[] luma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(luma, (byte) 64);
+        for(int y = 80; y < 160; y++){
+            for(int x = squareX; x < Math.min(WIDTH, squareX + 80); x++) luma[y * WIDTH + x] = (byte) 240;
+        }
+        return luma;
+    }
+
+    @Test
+    public void staticScene_neverTriggers() {
+        final Events events = new Events();
+        final MotionDetector detector = new MotionDetector().listenForMotion(events);
+        for(int i = 0; i < 60; i++){
+            assertEquals(0f, detector.process(frame(100), WIDTH, HEIGHT, WIDTH, i * FRAME_NANOS), 0f);
+        }
+        assertFalse(detector.isMotionActive());
+        assertEquals(0, events.started);
+        assertEquals(60, detector.getFramesProcessed());
+    }
+
+    @Test
+    public void movingSquare_startsAfterTriggerFrames_stopsAfterQuiet() {
+        final Events events = new Events();
+        final MotionDetector detector = new MotionDetector().setHysteresis(3, 1000).listenForMotion(events);
+
+        long timestamp = 0;
+        detector.process(frame(0), WIDTH, HEIGHT, WIDTH, timestamp);
+        for(int i = 1; i <= 2; i++){
+            assertTrue(detector.process(frame(i * 40), WIDTH, HEIGHT, WIDTH, timestamp += FRAME_NANOS) > 0f);
+            assertFalse(detector.isMotionActive());
+        }
+        detector.process(frame(120), WIDTH, HEIGHT, WIDTH, timestamp += FRAME_NANOS);
+        assertTrue(detector.isMotionActive());
+        assertEquals(1, events.started);
+        assertEquals(2 * FRAME_NANOS, detector.getLastDetectionLatencyNanos());
+
+        // Square stops moving, motion stops once quiet period elapsed
+        final long lastMoving = timestamp;
+        while(timestamp - lastMoving < 1_000_000_000L){
+            detector.process(frame(120), WIDTH, HEIGHT, WIDTH, timestamp += FRAME_NANOS);
+        }
+        assertFalse(detector.isMotionActive());
+        assertEquals(1, events.stopped);
+    }
+
+    @Test
+    public void motionOutsideRegion_isIgnored() {
+        final Events events = new Events();
+        final MotionDetector detector = new MotionDetector().setHysteresis(1, 0)
+                .addRegion(0f, 0f, 1f, 0.25f).listenForMotion(events);
+        for(int i = 0; i < 5; i++){
+            assertEquals(0f, detector.process(frame(i * 40), WIDTH, HEIGHT, WIDTH, i * FRAME_NANOS), 0f);
+        }
+        assertEquals(0, events.started);
+    }
+
+    @Test
+    public void regionsCoveringWholeFrame_areKept() {
+        final Events events = new Events();
+        // Whole frame added by host, then a second region, both stay active
+        final MotionDetector detector = new MotionDetector().setHysteresis(1, 0)
+                .addRegion(0f, 0f, 1f, 1f).addRegion(0f, 0f, 1f, 0.25f).listenForMotion(events);
+        detector.process(frame(0), WIDTH, HEIGHT, WIDTH, 0);
+        assertTrue(detector.process(frame(40), WIDTH, HEIGHT, WIDTH, FRAME_NANOS) > 0f);
+        assertEquals(1, events.started);
+
+        // Cleared regions are the default whole frame again, next region replaces it
+        detector.clearRegions().addRegion(0f, 0f, 1f, 0.25f);
+        detector.reset();
+        detector.process(frame(0), WIDTH, HEIGHT, WIDTH, 2 * FRAME_NANOS);
+        assertEquals(0f, detector.process(frame(40), WIDTH, HEIGHT, WIDTH, 3 * FRAME_NANOS), 0f);
+    }
+
+    @Test
+    public void reset_startsMotionAgainOnOngoingMotion() {
+        final Events events = new Events();
+        final MotionDetector detector = new MotionDetector().setHysteresis(1, 1000).listenForMotion(events);
+        detector.process(frame(0), WIDTH, HEIGHT, WIDTH, 0);
+        detector.process(frame(40), WIDTH, HEIGHT, WIDTH, FRAME_NANOS);
+        assertTrue(detector.isMotionActive());
+
+        detector.reset();
+        assertFalse(detector.isMotionActive());
+        // First frame after reset only becomes the reference
+        assertEquals(0f, detector.process(frame(80), WIDTH, HEIGHT, WIDTH, 2 * FRAME_NANOS), 0f);
+        detector.process(frame(120), WIDTH, HEIGHT, WIDTH, 3 * FRAME_NANOS);
+        assertEquals(2, events.started);
+    }
+
+    @Test
+    public void stridedBuffer_matchesPackedArray() {
+        final MotionDetector packed = new MotionDetector();
+        final MotionDetector strided = new MotionDetector();
+        final int pixelStride = 2, rowStride = WIDTH * pixelStride + 64;
+        for(int i = 0; i < 4; i++){
+            final byte[] luma = frame(i * 40);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+            for(int y = 0; y < HEIGHT; y++){
+                for(int x = 0; x < WIDTH; x++) buffer.put(y * rowStride + x * pixelStride, luma[y * WIDTH + x]);
+            }
+            assertEquals(packed.process(luma, WIDTH, HEIGHT, WIDTH, i * FRAME_NANOS),
+                    strided.process(buffer, WIDTH, HEIGHT, rowStride, pixelStride, i * FRAME_NANOS), 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDimensions_throw() {
+        new MotionDetector(8, 8, 16);
+    }
+}
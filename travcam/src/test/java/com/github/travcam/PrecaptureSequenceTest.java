@@ -0,0 +1,140 @@
+package com.github.travcam;
+
+import android.hardware.camera2.CaptureResult;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * PrecaptureSequence fed with scripted AF and AE states
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PrecaptureSequenceTest {
+    private final static long MS = 1_000_000L;
+
+    private final static Integer AF_SCANNING = CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN;
+    private final static Integer AF_LOCKED = CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+    private final static Integer AF_PASSIVE = CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+    private final static Integer AE_SEARCHING = CaptureResult.CONTROL_AE_STATE_SEARCHING;
+    private final static Integer AE_PRECAPTURE = CaptureResult.CONTROL_AE_STATE_PRECAPTURE;
+    private final static Integer AE_CONVERGED = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+
+    /** Requests issued by the sequence, in order **/
+    private static class Recorder implements PrecaptureSequence.Actions {
+        final List<String> requests = new ArrayList<>();
+
+        @Override
+        public void triggerFocus() {
+            requests.add("focus");
+        }
+
+        @Override
+        public void triggerPrecapture() {
+            requests.add("precapture");
+        }
+
+        @Override
+        public void capture(boolean focusLocked) {
+            requests.add(focusLocked ? "capture locked" : "capture");
+        }
+    }
+
+    @Test
+    public void convergedPreview_capturesRightAway() {
+        final PrecaptureSequence sequence = new PrecaptureSequence();
+        final Recorder recorder = new Recorder();
+        sequence.start(0, true, AF_PASSIVE, AE_CONVERGED, recorder);
+
+        assertEquals(Collections.singletonList("capture"), recorder.requests);
+        assertFalse(sequence.isRunning());
+        assertTrue(sequence.wasLastFastPath());
+        assertEquals(1, sequence.getFastPathCount());
+    }
+
+    @Test
+    public void fullSequence_focusesThenMeters() {
+        final PrecaptureSequence sequence = new PrecaptureSequence();
+        final Recorder recorder = new Recorder();
+        sequence.start(0, true, AF_SCANNING, AE_SEARCHING, recorder);
+        assertEquals(Collections.singletonList("focus"), recorder.requests);
+
+        sequence.onResult(30 * MS, AF_SCANNING, AE_SEARCHING);
+        sequence.onResult(200 * MS, AF_LOCKED, AE_SEARCHING);
+        assertEquals(Arrays.asList("focus", "precapture"), recorder.requests);
+
+        sequence.onResult(230 * MS, AF_LOCKED, AE_SEARCHING);
+        sequence.onResult(260 * MS, AF_LOCKED, AE_PRECAPTURE);
+        sequence.onResult(400 * MS, AF_LOCKED, AE_PRECAPTURE);
+        assertTrue(sequence.isRunning());
+        sequence.onResult(500 * MS, AF_LOCKED, AE_CONVERGED);
+
+        assertEquals(Arrays.asList("focus", "precapture", "capture locked"), recorder.requests);
+        assertFalse(sequence.isRunning());
+        assertFalse(sequence.wasLastTimedOut());
+        assertEquals(200f, sequence.getLastFocusMillis(), 0.01f);
+        assertEquals(300f, sequence.getLastExposureMillis(), 0.01f);
+        assertEquals(500f, sequence.getLastTotalMillis(), 0.01f);
+    }
+
+    @Test
+    public void fixedFocus_skipsFocusPhase() {
+        final PrecaptureSequence sequence = new PrecaptureSequence();
+        final Recorder recorder = new Recorder();
+        sequence.start(0, false, null, AE_SEARCHING, recorder);
+        assertEquals(Collections.singletonList("precapture"), recorder.requests);
+
+        // Device going straight to converged after the trigger
+        sequence.onResult(50 * MS, null, AE_CONVERGED);
+        assertEquals(Arrays.asList("precapture", "capture"), recorder.requests);
+    }
+
+    @Test
+    public void focusNeverLocking_timesOut() {
+        final PrecaptureSequence sequence = new PrecaptureSequence().setTimeouts(300, 300);
+        final Recorder recorder = new Recorder();
+        sequence.start(0, true, AF_SCANNING, AE_CONVERGED, recorder);
+        sequence.onResult(200 * MS, AF_SCANNING, AE_CONVERGED);
+        assertEquals(Collections.singletonList("focus"), recorder.requests);
+
+        sequence.onResult(301 * MS, AF_SCANNING, AE_CONVERGED);
+        assertEquals(Arrays.asList("focus", "capture"), recorder.requests);
+        assertTrue(sequence.wasLastTimedOut());
+        assertEquals(1, sequence.getTimeoutCount());
+    }
+
+    @Test
+    public void missingResults_captureOnTimeout() {
+        final PrecaptureSequence sequence = new PrecaptureSequence().setTimeouts(100, 400);
+        final Recorder recorder = new Recorder();
+        sequence.start(0, false, null, AE_SEARCHING, recorder);
+
+        sequence.onTimeout(300 * MS);
+        assertTrue(sequence.isRunning());
+        sequence.onTimeout(401 * MS);
+        assertEquals(Arrays.asList("precapture", "capture"), recorder.requests);
+        assertTrue(sequence.wasLastTimedOut());
+        assertEquals(500, sequence.getMaxWaitMillis());
+    }
+
+    @Test
+    public void cancelledSequence_neverCaptures() {
+        final PrecaptureSequence sequence = new PrecaptureSequence();
+        final Recorder recorder = new Recorder();
+        sequence.start(0, true, AF_SCANNING, AE_SEARCHING, recorder);
+        sequence.cancel();
+        sequence.onResult(10 * MS, AF_LOCKED, AE_CONVERGED);
+        sequence.onTimeout(5000 * MS);
+
+        assertEquals(Collections.singletonList("focus"), recorder.requests);
+        assertFalse(sequence.isRunning());
+        assertEquals(1, sequence.getSequenceCount());
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.travcam;
+
+import android.os.PowerManager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.github.travcam.PreviewPowerProfile.Level.*;
+import static org.junit.Assert.*;
+
+/**
+ * PreviewPowerProfile levels from scripted interactions, ticks and thermal statuses
+ */
+public class PreviewPowerProfileTest {
+
+    @Test
+    public void idlePreview_stepsDownThenRecoversOnInteraction() {
+        final PreviewPowerProfile profile = new PreviewPowerProfile(0);
+        assertEquals(FULL, profile.onTick(29_999));
+        assertEquals(REDUCED, profile.onTick(30_000));
+        assertEquals(REDUCED, profile.onTick(119_999));
+        assertEquals(LOW, profile.onTick(120_000));
+
+        assertEquals(FULL, profile.onInteraction(130_000));
+        assertEquals(3, profile.getTransitions());
+        assertEquals(30_000, profile.getTimeInLevel(FULL, 130_000));
+        assertEquals(90_000, profile.getTimeInLevel(REDUCED, 130_000));
+        assertEquals(10_000, profile.getTimeInLevel(LOW, 130_000));
+    }
+
+    @Test
+    public void lowDelayNotAboveReduced_disablesLow() {
+        final PreviewPowerProfile profile = new PreviewPowerProfile(0).setIdleDelays(1_000, 1_000);
+        assertEquals(REDUCED, profile.onTick(1_000));
+        assertEquals(REDUCED, profile.onTick(10_000_000));
+    }
+
+    @Test
+    public void thermalStatus_overridesInteraction() {
+        final PreviewPowerProfile profile = new PreviewPowerProfile(0);
+        assertEquals(FULL, profile.onThermalStatus(PowerManager.THERMAL_STATUS_LIGHT, 10));
+        assertEquals(REDUCED, profile.onThermalStatus(PowerManager.THERMAL_STATUS_MODERATE, 20));
+        assertEquals(LOW, profile.onThermalStatus(PowerManager.THERMAL_STATUS_SEVERE, 30));
+
+        // Interacting doesn't cool the device down
+        assertEquals(LOW, profile.onInteraction(40));
+        assertEquals(FULL, profile.onThermalStatus(PowerManager.THERMAL_STATUS_NONE, 50));
+    }
+
+    @Test
+    public void higherOfIdleAndThermal_wins() {
+        final PreviewPowerProfile profile = new PreviewPowerProfile(0);
+        profile.onThermalStatus(PowerManager.THERMAL_STATUS_MODERATE, 0);
+        assertEquals(LOW, profile.onTick(120_000));
+        assertEquals(REDUCED, profile.onInteraction(121_000));
+    }
+
+    @Test
+    public void listener_seesEveryTransitionOnce() {
+        final List<String> transitions = new ArrayList<>();
+        final PreviewPowerProfile profile = new PreviewPowerProfile(0).setIdleDelays(100, 200)
+                .setTransitionListener((from, to, reason) -> transitions.add(from + ">" + to));
+        profile.onTick(50);
+        profile.onTick(100);
+        profile.onTick(150);
+        profile.onTick(200);
+        profile.onInteraction(250);
+        profile.onInteraction(260);
+
+        assertEquals(Arrays.asList("FULL>REDUCED", "REDUCED>LOW", "LOW>FULL"), transitions);
+        assertEquals(3, profile.getTransitions());
+    }
+}
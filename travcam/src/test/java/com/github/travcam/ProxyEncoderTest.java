@@ -0,0 +1,40 @@
+package com.github.travcam;
+
+import android.util.Size;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * ProxyEncoder size selection from camera output sizes
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProxyEncoderTest {
+    private final static Size[] SIZES = {
+            new Size(1920, 1080), new Size(1440, 1080), new Size(1280, 720), new Size(960, 720),
+            new Size(854, 480), new Size(640, 480), new Size(640, 360), new Size(320, 240), new Size(176, 144)
+    };
+
+    @Test
+    public void proxy_keepsVideoAspectRatio() {
+        assertEquals(new Size(640, 480), ProxyEncoder.chooseSize(SIZES, new Size(960, 720)));
+        assertEquals(new Size(640, 360), ProxyEncoder.chooseSize(SIZES, new Size(1920, 1080)));
+        assertEquals(new Size(640, 480), ProxyEncoder.chooseSize(SIZES, new Size(1440, 1080)));
+    }
+
+    @Test
+    public void proxy_isSmallerThanVideo() {
+        assertEquals(new Size(320, 240), ProxyEncoder.chooseSize(SIZES, new Size(640, 480)));
+        assertNull(ProxyEncoder.chooseSize(SIZES, new Size(176, 144)));
+    }
+
+    @Test
+    public void noMatchingSize_disablesProxy() {
+        assertNull(ProxyEncoder.chooseSize(new Size[]{new Size(1920, 1080), new Size(176, 144)}, new Size(1440, 1080)));
+        assertNull(ProxyEncoder.chooseSize(null, new Size(1440, 1080)));
+        assertNull(ProxyEncoder.chooseSize(SIZES, null));
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.travcam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * StorageGovernor victim selection, and eviction of captures in a temp directory
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StorageGovernorTest {
+    private final static TravManager.ScopedFileType IMAGE = TravManager.ScopedFileType.IMAGE;
+    private final static TravManager.ScopedFileType VIDEO = TravManager.ScopedFileType.VIDEO;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("captures").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDirectory.listFiles();
+        if(files != null) for(File file : files) file.delete();
+        mDirectory.delete();
+    }
+
+    private static CaptureIndex.Entry entry(String name, TravManager.ScopedFileType type, long size, long timestamp) {
+        return new CaptureIndex.Entry(name, timestamp, type, "image/jpeg", name, size, timestamp);
+    }
+
+    private static List<String> uris(List<CaptureIndex.Entry> entries) {
+        final List<String> uris = new ArrayList<>();
+        for(CaptureIndex.Entry entry : entries) uris.add(entry.uri);
+        return uris;
+    }
+
+    @Test
+    public void selectVictims_oldestFirstUntilUnderBudget() {
+        final List<CaptureIndex.Entry> entries = Arrays.asList(
+                entry("c", IMAGE, 100, 3), entry("a", IMAGE, 100, 1), entry("v", VIDEO, 1000, 0), entry("b", IMAGE, 100, 2));
+        final Map<TravManager.ScopedFileType, Long> overBudget = new EnumMap<>(TravManager.ScopedFileType.class);
+        overBudget.put(IMAGE, 150L);
+
+        final List<CaptureIndex.Entry> victims = StorageGovernor.selectVictims(entries, overBudget, 0,
+                StorageGovernor.Policy.OLDEST_FIRST, Collections.<String, Long>emptyMap());
+        assertEquals(Arrays.asList("a", "b"), uris(victims));
+    }
+
+    @Test
+    public void selectVictims_leastRecentlyUsedKeepsTouchedCaptures() {
+        final List<CaptureIndex.Entry> entries = Arrays.asList(entry("a", IMAGE, 100, 1), entry("b", IMAGE, 100, 2));
+        final Map<TravManager.ScopedFileType, Long> overBudget = new EnumMap<>(TravManager.ScopedFileType.class);
+        overBudget.put(IMAGE, 50L);
+        final Map<String, Long> accessTimes = new HashMap<>();
+        accessTimes.put("a", 10L);
+
+        final List<CaptureIndex.Entry> victims = StorageGovernor.selectVictims(entries, overBudget, 0,
+                StorageGovernor.Policy.LEAST_RECENTLY_USED, accessTimes);
+        assertEquals(Collections.singletonList("b"), uris(victims));
+    }
+
+    @Test
+    public void selectVictims_freeSpaceFloorEvictsAnyType() {
+        final List<CaptureIndex.Entry> entries = Arrays.asList(
+                entry("v", VIDEO, 1000, 1), entry("a", IMAGE, 100, 2), entry("b", IMAGE, 100, 3));
+        final List<CaptureIndex.Entry> victims = StorageGovernor.selectVictims(entries,
+                new EnumMap<TravManager.ScopedFileType, Long>(TravManager.ScopedFileType.class), 1050,
+                StorageGovernor.Policy.OLDEST_FIRST, Collections.<String, Long>emptyMap());
+        assertEquals(Arrays.asList("v", "a"), uris(victims));
+    }
+
+    @Test
+    public void selectVictims_withinLimits_isEmpty() {
+        final List<CaptureIndex.Entry> entries = Collections.singletonList(entry("a", IMAGE, 100, 1));
+        final Map<TravManager.ScopedFileType, Long> overBudget = new EnumMap<>(TravManager.ScopedFileType.class);
+        overBudget.put(IMAGE, -500L);
+        assertTrue(StorageGovernor.selectVictims(entries, overBudget, -1, StorageGovernor.Policy.OLDEST_FIRST,
+                Collections.<String, Long>emptyMap()).isEmpty());
+    }
+
+    @Test
+    public void enforce_deletesOldestCapturesInDirectory() throws IOException {
+        // Ten captures of 1 KB each, indexed oldest first
+        final File log = new File(mDirectory, "captures.index");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(log))) {
+            for(int i = 0; i < 10; i++){
+                final File capture = new File(mDirectory, "capture_" + i + ".jpg");
+                Files.write(capture.toPath(), new byte[1024]);
+                out.writeByte(1);
+                out.writeUTF(capture.getPath());
+                out.writeLong(i);
+                out.writeByte(IMAGE.ordinal());
+                out.writeUTF("image/jpeg");
+                out.writeUTF(capture.getName());
+                out.writeLong(capture.length());
+                out.writeLong(1_000L + i);
+            }
+        }
+        final CaptureIndex index = new CaptureIndex(log);
+        index.load();
+
+        final StorageGovernor governor = new StorageGovernor(index, () -> 1L << 30, victims -> {
+            final List<String> deleted = new ArrayList<>();
+            for(CaptureIndex.Entry victim : victims){
+                if(new File(victim.uri).delete()) deleted.add(victim.uri);
+            }
+            index.remove(deleted);
+            return deleted.size();
+        }).setBudget(IMAGE, 6 * 1024);
+
+        assertEquals(4, governor.enforce());
+        for(int i = 0; i < 10; i++){
+            assertEquals("capture " + i, i >= 4, new File(mDirectory, "capture_" + i + ".jpg").exists());
+        }
+        assertEquals(6 * 1024, index.getTotalBytes(IMAGE));
+        assertEquals(4, governor.getEvictedCount());
+        assertEquals(4 * 1024, governor.getEvictedBytes());
+
+        // Within budget, next pass has nothing to do
+        assertEquals(0, governor.enforce());
+    }
+
+    @Test
+    public void checkRecording_decidesByAvailableBytes() {
+        final long[] free = {0};
+        final CaptureIndex index = new CaptureIndex(new File(mDirectory, "captures.index"));
+        index.load();
+        final StorageGovernor governor = new StorageGovernor(index, () -> free[0], victims -> 0).setFreeSpaceFloor(100);
+
+        free[0] = 100 + 2000;
+        assertEquals(StorageGovernor.Decision.ALLOW, governor.checkRecording(1000));
+        free[0] = 100 + 1000;
+        assertEquals(StorageGovernor.Decision.DOWNGRADE, governor.checkRecording(1000));
+        free[0] = 100 + 400;
+        assertEquals(StorageGovernor.Decision.REJECT, governor.checkRecording(1000));
+        assertEquals(400, governor.getAvailableBytes(VIDEO));
+    }
+}
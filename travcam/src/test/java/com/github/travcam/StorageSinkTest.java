@@ -0,0 +1,128 @@
+package com.github.travcam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Built-in sinks driven directly, without a camera
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StorageSinkTest {
+    private final static byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, (byte) 0xFF, (byte) 0xD9};
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("sink").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDirectory);
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if(children != null) for(File child : children) delete(child);
+        file.delete();
+    }
+
+    private static CapturedMedia store(StorageSink sink, byte[] bytes) throws IOException {
+        final StorageSink.Output output = sink.open(TravManager.ScopedFileType.IMAGE, "capture.jpg", "image/jpeg", 1000);
+        final OutputStream stream = output.openStream();
+        assertSame(stream, output.openStream());
+        stream.write(bytes);
+        return output.commit();
+    }
+
+    @Test
+    public void memorySink_keepsCommittedBytes() throws IOException {
+        final MemorySink sink = new MemorySink();
+        final CapturedMedia media = store(sink, JPEG);
+
+        assertEquals(JPEG.length, media.getSize());
+        assertSame(sink, media.getSink());
+        final ByteBuffer buffer = media.getBuffer();
+        assertNotNull(buffer);
+        assertTrue(buffer.isReadOnly());
+        final byte[] stored = new byte[buffer.remaining()];
+        buffer.get(stored);
+        assertArrayEquals(JPEG, stored);
+        assertFalse(sink.supportsDescriptor());
+    }
+
+    @Test(expected = IOException.class)
+    public void memorySink_hasNoDescriptor() throws IOException {
+        new MemorySink().open(TravManager.ScopedFileType.IMAGE, "capture.jpg", "image/jpeg", 0).openDescriptor();
+    }
+
+    @Test
+    public void streamSink_appendsCapturesToCallerStream() throws IOException {
+        final ByteArrayOutputStream caller = new ByteArrayOutputStream();
+        final StreamSink sink = new StreamSink(caller);
+        assertEquals(JPEG.length, store(sink, JPEG).getSize());
+        assertEquals(3, store(sink, new byte[]{7, 8, 9}).getSize());
+
+        assertEquals(JPEG.length + 3, caller.size());
+        assertFalse(sink.supportsDescriptor());
+        assertFalse(sink.delete(store(sink, new byte[0])));
+    }
+
+    @Test
+    public void streamSink_fileStreamHasDescriptor() throws IOException {
+        try (FileOutputStream file = new FileOutputStream(new File(mDirectory, "stream.bin"))) {
+            final StreamSink sink = new StreamSink(file);
+            assertTrue(sink.supportsDescriptor());
+            assertTrue(sink.open(TravManager.ScopedFileType.VIDEO, "video.mp4", "video/mp4", 0).openDescriptor().valid());
+        }
+    }
+
+    @Test
+    public void fileSink_writesTypeDirectory() throws IOException {
+        final FileSink sink = new FileSink(mDirectory);
+        final CapturedMedia media = store(sink, JPEG);
+
+        final File file = media.getFile();
+        assertNotNull(file);
+        assertEquals(new File(mDirectory, TravManager.ScopedFileType.IMAGE.toString()), file.getParentFile());
+        assertEquals(JPEG.length, media.getSize());
+        assertArrayEquals(JPEG, Files.readAllBytes(file.toPath()));
+
+        assertTrue(sink.delete(media));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void fileSink_abortDeletesFile() throws IOException {
+        final FileSink sink = new FileSink(mDirectory);
+        final StorageSink.Output output = sink.open(TravManager.ScopedFileType.VIDEO, "video.mp4", "video/mp4", 0);
+        output.openDescriptor();
+        output.openStream().write(JPEG);
+        final File file = output.getPendingMedia().getFile();
+        assertTrue(file.exists());
+
+        output.abort();
+        assertFalse(file.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void fileSink_existingName_isRefused() throws IOException {
+        final FileSink sink = new FileSink(mDirectory);
+        store(sink, JPEG);
+        store(sink, JPEG);
+    }
+}
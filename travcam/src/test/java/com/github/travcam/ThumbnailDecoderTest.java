@@ -0,0 +1,64 @@
+package com.github.travcam;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ * ThumbnailDecoder subsampling and pooled output bitmaps
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ThumbnailDecoderTest {
+
+    @Test
+    public void sampleSize_keepsTargetWidth() {
+        assertEquals(8, ThumbnailDecoder.sampleSizeFor(4000, 320));
+        assertEquals(2, ThumbnailDecoder.sampleSizeFor(640, 320));
+        assertEquals(1, ThumbnailDecoder.sampleSizeFor(639, 320));
+        assertEquals(1, ThumbnailDecoder.sampleSizeFor(320, 320));
+        // Captures narrower than the target aren't upscaled
+        assertEquals(1, ThumbnailDecoder.sampleSizeFor(100, 320));
+    }
+
+    @Test
+    public void rotation_swapsThumbnailSides() {
+        final ThumbnailDecoder decoder = new ThumbnailDecoder(320);
+        final Bitmap decoded = Bitmap.createBitmap(500, 375, Bitmap.Config.ARGB_8888);
+
+        final Bitmap portrait = decoder.rotateIntoPool(decoded, 90);
+        assertEquals(375, portrait.getWidth());
+        assertEquals(500, portrait.getHeight());
+        final Bitmap landscape = decoder.rotateIntoPool(decoded, 180);
+        assertEquals(500, landscape.getWidth());
+        assertEquals(375, landscape.getHeight());
+    }
+
+    @Test
+    public void outputs_alternateBetweenTwoBitmaps() {
+        final ThumbnailDecoder decoder = new ThumbnailDecoder(320);
+        final Bitmap decoded = Bitmap.createBitmap(500, 375, Bitmap.Config.ARGB_8888);
+
+        final Bitmap first = decoder.rotateIntoPool(decoded, 90);
+        final Bitmap second = decoder.rotateIntoPool(decoded, 90);
+        assertNotSame(first, second);
+        // Delivered thumbnail stays valid until the second next one
+        assertSame(first, decoder.rotateIntoPool(decoded, 90));
+        assertSame(second, decoder.rotateIntoPool(decoded, 90));
+    }
+
+    @Test
+    public void smallerThumbnail_reusesPooledBitmap() {
+        final ThumbnailDecoder decoder = new ThumbnailDecoder(320);
+        final Bitmap first = decoder.rotateIntoPool(Bitmap.createBitmap(500, 375, Bitmap.Config.ARGB_8888), 0);
+        decoder.rotateIntoPool(Bitmap.createBitmap(500, 375, Bitmap.Config.ARGB_8888), 0);
+
+        final Bitmap reused = decoder.rotateIntoPool(Bitmap.createBitmap(400, 300, Bitmap.Config.ARGB_8888), 0);
+        assertSame(first, reused);
+        assertEquals(400, reused.getWidth());
+        assertEquals(300, reused.getHeight());
+    }
+}
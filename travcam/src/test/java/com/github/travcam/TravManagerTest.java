@@ -0,0 +1,59 @@
+package com.github.travcam;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.*;
+
+/**
+ * TravManager still format selection and write measurements, on a device without HEVC encoders
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TravManagerTest {
+
+    @Test
+    public void heicWithoutEncoder_fallsBackToJpeg() {
+        final TravManager manager = new TravManager(RuntimeEnvironment.getApplication());
+        assertEquals(TravManager.StillFormat.JPEG, manager.getEffectiveStillFormat());
+
+        manager.setStillFormat(TravManager.StillFormat.HEIC);
+        assertFalse(TravManager.isHeicSupported());
+        assertEquals(TravManager.StillFormat.JPEG, manager.getEffectiveStillFormat());
+        assertTrue(manager.generateFileName(TravManager.ScopedFileType.IMAGE).endsWith(".jpeg"));
+    }
+
+    @Test
+    public void fileNames_followType() {
+        final TravManager manager = new TravManager(RuntimeEnvironment.getApplication());
+        assertTrue(manager.generateFileName(TravManager.ScopedFileType.IMAGE).matches("trav_img_\\d+\\.jpeg"));
+        assertTrue(manager.generateFileName(TravManager.ScopedFileType.VIDEO).matches("trav_vid_\\d+\\.mp4"));
+    }
+
+    @Test
+    public void stillFormats_matchMimeTypes() {
+        assertEquals("jpeg", TravManager.StillFormat.JPEG.getExtension());
+        assertEquals("image/jpeg", TravManager.StillFormat.JPEG.getMimeType());
+        assertEquals("heic", TravManager.StillFormat.HEIC.getExtension());
+        assertEquals("image/heic", TravManager.StillFormat.HEIC.getMimeType());
+    }
+
+    @Test
+    public void writeStats_areKeptPerFormat() {
+        final TravManager manager = new TravManager(RuntimeEnvironment.getApplication());
+        final TravManager.WriteStats jpeg = manager.getStillWriteStats(TravManager.StillFormat.JPEG);
+        assertNotSame(jpeg, manager.getStillWriteStats(TravManager.StillFormat.HEIC));
+        assertEquals(0, jpeg.getCount());
+        assertEquals(0, jpeg.getAverageBytes());
+        assertEquals(0f, jpeg.getAverageWriteMillis(), 0f);
+
+        jpeg.record(1_000_000, 20_000_000);
+        jpeg.record(3_000_000, 40_000_000);
+        assertEquals(2, jpeg.getCount());
+        assertEquals(4_000_000, jpeg.getTotalBytes());
+        assertEquals(2_000_000, jpeg.getAverageBytes());
+        assertEquals(30f, jpeg.getAverageWriteMillis(), 0.001f);
+        assertEquals(0, manager.getStillWriteStats(TravManager.StillFormat.HEIC).getCount());
+    }
+}
@@ -0,0 +1,233 @@
+package com.github.travcam;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * UploadQueue against a local HTTP server assembling the uploaded ranges
+ */
+@RunWith(RobolectricTestRunner.class)
+public class UploadQueueTest {
+    private final static int MB = 1024 * 1024;
+    private final static long TIMEOUT_MS = 15_000;
+
+    private HttpServer mServer;
+    private File mStateFile;
+    private URL mUrl;
+
+    /** Uploaded bytes by offset and received Content-Range headers **/
+    private final byte[] mReceived = new byte[8 * MB];
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    /** Recording backing the sources, grows while live **/
+    private final byte[] mData = new byte[(int) (3.5 * MB)];
+    private volatile int mLength;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(mData);
+        mStateFile = File.createTempFile("uploads", ".state");
+        mStateFile.delete();
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/upload", exchange -> {
+            final String range = exchange.getRequestHeaders().getFirst("Content-Range");
+            final byte[] body = readAll(exchange.getRequestBody());
+            if(mFailures.getAndDecrement() > 0){
+                exchange.sendResponseHeaders(500, -1);
+            }else{
+                final long offset = Long.parseLong(range.substring(6, range.indexOf('-')));
+                synchronized (mReceived){
+                    System.arraycopy(body, 0, mReceived, (int) offset, body.length);
+                }
+                mRanges.add(range);
+                exchange.sendResponseHeaders(308, -1);
+            }
+            exchange.close();
+        });
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        mStateFile.delete();
+        new File(mStateFile.getPath() + ".tmp").delete();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private UploadQueue.Source open(String uri) {
+        return new UploadQueue.Source() {
+            @Override
+            public long length() {
+                return mLength;
+            }
+
+            @Override
+            public int read(long position, byte[] buffer, int offset, int count) {
+                final int read = (int) Math.min(count, mLength - position);
+                if(read <= 0) return -1;
+                System.arraycopy(mData, (int) position, buffer, offset, read);
+                return read;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static void await(Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while(!condition.met()){
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private void assertUploaded(int length) {
+        synchronized (mReceived){
+            for(int i = 0; i < length; i++){
+                if(mReceived[i] != mData[i]) fail("Byte " + i + " differs");
+            }
+        }
+    }
+
+    @Test
+    public void completeCapture_isUploadedInChunks() throws InterruptedException {
+        mLength = (int) (2.5 * MB);
+        final UploadQueue queue = new UploadQueue(mStateFile, this::open, 1);
+        queue.start();
+        queue.enqueue("capture", mUrl, "image/jpeg", mLength);
+
+        await(() -> queue.getCompletedCount() == 1);
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(mLength, queue.getUploadedBytes());
+        assertEquals(0, queue.getRetries());
+        assertUploaded(mLength);
+        assertEquals("bytes 0-1048575/2621440", mRanges.get(0));
+        assertEquals("bytes 2097152-2621439/2621440", mRanges.get(2));
+        assertEquals(3, mRanges.size());
+    }
+
+    @Test
+    public void liveRecording_sendsHeadAfterComplete() throws InterruptedException {
+        final UploadQueue queue = new UploadQueue(mStateFile, this::open, 1).setHeadHoldback(MB);
+        queue.start();
+        mLength = (int) (2.5 * MB);
+        queue.enqueueLive("recording", mUrl, "video/mp4");
+
+        // One full chunk past the head, the partial tail waits for more data
+        await(() -> mRanges.size() == 1);
+        assertEquals("bytes 1048576-2097151/*", mRanges.get(0));
+        Thread.sleep(600);
+        assertEquals(1, mRanges.size());
+
+        // Recorder rewrites its head on stop
+        mData[0] = (byte) ~mData[0];
+        mLength = mData.length;
+        queue.complete("recording", mLength);
+
+        await(() -> queue.getCompletedCount() == 1);
+        assertUploaded(mLength);
+        assertEquals("bytes 0-1048575/" + mLength, mRanges.get(mRanges.size() - 1));
+    }
+
+    @Test
+    public void interruptedRecording_resumesFromPersistedOffset() throws InterruptedException {
+        mLength = 3 * MB;
+        final UploadQueue first = new UploadQueue(mStateFile, this::open, 1).setHeadHoldback(MB);
+        first.start();
+        first.enqueueLive("recording", mUrl, "video/mp4");
+        await(() -> mRanges.size() == 2);
+        Thread.sleep(100);
+
+        // Process death, next launch uploads the recording as it is
+        final UploadQueue second = new UploadQueue(mStateFile, this::open, 1);
+        second.start();
+        await(() -> second.getCompletedCount() == 1);
+
+        assertEquals(MB, second.getUploadedBytes());
+        assertEquals("bytes 0-1048575/" + mLength, mRanges.get(2));
+        assertEquals(3, mRanges.size());
+        assertUploaded(mLength);
+    }
+
+    @Test
+    public void failedChunk_isRetried() throws InterruptedException {
+        mLength = MB / 2;
+        mFailures.set(1);
+        final UploadQueue queue = new UploadQueue(mStateFile, this::open, 1);
+        queue.start();
+        queue.enqueue("capture", mUrl, "image/jpeg", mLength);
+
+        await(() -> queue.getCompletedCount() == 1);
+        assertEquals(1, queue.getRetries());
+        assertEquals(0, queue.getFailedCount());
+        assertUploaded(mLength);
+    }
+
+    @Test
+    public void bandwidthCap_slowsUploads() throws InterruptedException {
+        mLength = 2 * MB;
+        final UploadQueue queue = new UploadQueue(mStateFile, this::open, 1).setBandwidthCap(4 * MB);
+        queue.start();
+        final long start = System.nanoTime();
+        queue.enqueue("capture", mUrl, "image/jpeg", mLength);
+
+        await(() -> queue.getCompletedCount() == 1);
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 400);
+    }
+
+    @Test
+    public void cancelledLiveRecording_isDropped() throws InterruptedException {
+        mLength = MB / 2;
+        final UploadQueue queue = new UploadQueue(mStateFile, this::open, 1).setHeadHoldback(MB);
+        queue.start();
+        queue.enqueueLive("recording", mUrl, "video/mp4");
+        assertEquals(1, queue.getQueueDepth());
+
+        queue.cancel("recording");
+        assertEquals(0, queue.getQueueDepth());
+        Thread.sleep(600);
+        assertEquals(0, queue.getCompletedCount());
+        assertTrue(mRanges.isEmpty());
+
+        // Cancelled jobs aren't resumed
+        final UploadQueue next = new UploadQueue(mStateFile, this::open, 1);
+        next.start();
+        assertEquals(0, next.getQueueDepth());
+    }
+}
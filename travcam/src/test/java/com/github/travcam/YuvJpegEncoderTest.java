@@ -0,0 +1,113 @@
+package com.github.travcam;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+/**
+ * YuvJpegEncoder output decoded back by the JVM JPEG decoder
+ */
+public class YuvJpegEncoderTest {
+
+    /** Gray I420 frame with a diagonal luma gradient **/
+    private static byte[] gradient(int width, int height) {
+        final int chromaWidth = (width + 1) / 2, chromaHeight = (height + 1) / 2;
+        final byte[] i420 = new byte[width * height + 2 * chromaWidth * chromaHeight];
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++) i420[y * width + x] = (byte) (16 + 220 * (x + y) / (width + height));
+        }
+        for(int i = width * height; i < i420.length; i++) i420[i] = (byte) 128;
+        return i420;
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull("JPEG not decodable", image);
+        return image;
+    }
+
+    private static float meanLumaError(byte[] i420, BufferedImage image) {
+        long error = 0;
+        for(int y = 0; y < image.getHeight(); y++){
+            for(int x = 0; x < image.getWidth(); x++){
+                final int green = (image.getRGB(x, y) >> 8) & 0xFF;
+                error += Math.abs(green - (i420[y * image.getWidth() + x] & 0xFF));
+            }
+        }
+        return (float) error / (image.getWidth() * image.getHeight());
+    }
+
+    @Test
+    public void i420_decodesToSameFrame() throws IOException {
+        final int width = 640, height = 480;
+        final byte[] i420 = gradient(width, height);
+        final byte[] jpeg = new YuvJpegEncoder(90).encode(i420, width, height);
+
+        assertEquals((byte) 0xFF, jpeg[0]);
+        assertEquals((byte) 0xD8, jpeg[1]);
+        assertEquals((byte) 0xFF, jpeg[jpeg.length - 2]);
+        assertEquals((byte) 0xD9, jpeg[jpeg.length - 1]);
+
+        final BufferedImage image = decode(jpeg);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        assertTrue(meanLumaError(i420, image) < 3f);
+    }
+
+    @Test
+    public void oddDimensions_decode() throws IOException {
+        final int width = 333, height = 201;
+        final byte[] i420 = gradient(width, height);
+        final BufferedImage image = decode(new YuvJpegEncoder(90).encode(i420, width, height));
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        assertTrue(meanLumaError(i420, image) < 3f);
+    }
+
+    @Test
+    public void semiPlanarPlanes_matchPlanar() throws IOException {
+        final int width = 320, height = 240;
+        final int chromaWidth = width / 2, chromaHeight = height / 2;
+        final byte[] i420 = gradient(width, height);
+        final YuvJpegEncoder encoder = new YuvJpegEncoder(85);
+        final byte[] planar = encoder.encode(i420, width, height);
+
+        // NV12 layout, U and V interleaved with pixel stride 2
+        final byte[] uv = new byte[chromaWidth * chromaHeight * 2];
+        for(int i = 0; i < chromaWidth * chromaHeight; i++){
+            uv[2 * i] = i420[width * height + i];
+            uv[2 * i + 1] = i420[width * height + chromaWidth * chromaHeight + i];
+        }
+        final ByteBuffer u = ByteBuffer.wrap(uv);
+        final ByteBuffer v = ByteBuffer.wrap(uv, 1, uv.length - 1).slice();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encode(ByteBuffer.wrap(i420, 0, width * height).slice(), width, 1, u, v, width, 2, width, height, out);
+
+        assertArrayEquals(planar, out.toByteArray());
+    }
+
+    @Test
+    public void reusedEncoder_isDeterministic() throws IOException {
+        final YuvJpegEncoder encoder = new YuvJpegEncoder(75);
+        final byte[] small = gradient(64, 64);
+        final byte[] large = gradient(512, 384);
+        final byte[] first = encoder.encode(large, 512, 384);
+        encoder.encode(small, 64, 64);
+        assertArrayEquals(first, encoder.encode(large, 512, 384));
+        assertTrue(encoder.getLastEncodeNanos() > 0);
+    }
+
+    @Test
+    public void lowerQuality_isSmaller() throws IOException {
+        final byte[] i420 = gradient(640, 480);
+        assertTrue(new YuvJpegEncoder(30).encode(i420, 640, 480).length < new YuvJpegEncoder(95).encode(i420, 640, 480).length);
+    }
+}